@@ -0,0 +1,99 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Debounced autosave scheduler. Each edit pushes the save back until typing pauses
+ * for the idle delay, but a save is never deferred longer than the max delay after
+ * the first unsaved edit.
+ * <p>
+ * On storage where a sync is slow the idle delay is stretched so syncs take at most
+ * 1/SYNC_DUTY_RATIO of the editing time, see {@link SafeFile#getSyncAvgMicros()}.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class AutoSaver implements Runnable {
+
+    public static final long IDLE_DELAY_MS = 3000;
+    public static final long MAX_DELAY_MS = 30000;
+    public static final int SYNC_DUTY_RATIO = 100;
+
+    private final Handler m_handler;
+    private final Runnable m_saveAction;
+    private long m_idleDelayMs = IDLE_DELAY_MS;
+    private long m_maxDelayMs = MAX_DELAY_MS;
+    private long m_firstEditMs = 0;     // Uptime of first edit since last save, 0 if none.
+
+    /**
+     * @param handler     UI thread handler used for the delay.
+     * @param saveAction  Run on handler thread when save is due.
+     */
+    public AutoSaver(Handler handler, Runnable saveAction) {
+        m_handler = handler;
+        m_saveAction = saveAction;
+    }
+
+    public void setDelays(long idleDelayMs, long maxDelayMs) {
+        m_idleDelayMs = idleDelayMs;
+        m_maxDelayMs = Math.max(idleDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Call after each edit, (re)schedules the save.
+     */
+    public void onEdit() {
+        long nowMs = SystemClock.uptimeMillis();
+        if (m_firstEditMs == 0)
+            m_firstEditMs = nowMs;
+        long dueMs = Math.min(nowMs + getIdleDelayMs(), m_firstEditMs + m_maxDelayMs);
+        m_handler.removeCallbacks(this);
+        m_handler.postAtTime(this, dueMs);
+    }
+
+    /**
+     * @return Idle delay, stretched when measured sync cost is high.
+     */
+    public long getIdleDelayMs() {
+        long syncMs = SafeFile.getSyncAvgMicros() / 1000;
+        return Math.min(m_maxDelayMs, Math.max(m_idleDelayMs, syncMs * SYNC_DUTY_RATIO));
+    }
+
+    /**
+     * Drop any scheduled save, used when document is saved, cleared or replaced.
+     */
+    public void cancel() {
+        m_handler.removeCallbacks(this);
+        m_firstEditMs = 0;
+    }
+
+    @Override
+    public void run() {
+        m_firstEditMs = 0;
+        m_saveAction.run();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+/**
+ * Lists directory entries for the file browser on a background thread.
+ * <p>
+ * Entries arrive on the UI thread in sorted batches so a large directory shows its first
+ * rows at once. Completed listings are cached per directory and reused while the
+ * directory's modify time is unchanged. Starting a new listing abandons the previous one.
+ * Directory names are returned with a leading "/".
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+class DirLister {
+
+    /**
+     * Entries found, called on UI thread.
+     */
+    interface Listener {
+        void onEntries(List<String> entries, boolean done);
+    }
+
+    private static class Listing {
+        final long modified;
+        final String[] dirs;
+        final String[] files;
+
+        Listing(long modified, String[] dirs, String[] files) {
+            this.modified = modified;
+            this.dirs = dirs;
+            this.files = files;
+        }
+    }
+
+    static final int BATCH_SIZE = 256;
+    static final int CACHE_DIRS = 32;
+    // Directory times may be this coarse, a listing this close to its change time is not cached.
+    static final long MTIME_SLACK_MS = 2000;
+
+    private static final Map<String, Listing> s_cache =
+            new LinkedHashMap<String, Listing>(CACHE_DIRS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+                    return size() > CACHE_DIRS;
+                }
+            };
+
+    private static final ExecutorService s_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "DirLister");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Handler m_uiHandler = new Handler(Looper.getMainLooper());
+    private final Pattern m_dirPattern;     // Null to skip directories.
+    private final Pattern m_filePattern;    // Null to skip files.
+    private volatile int m_generation;
+
+    /**
+     * @param dirPattern   Directory names to list, null for none.
+     * @param filePattern  File names to list, null for none.
+     */
+    DirLister(Pattern dirPattern, Pattern filePattern) {
+        m_dirPattern = dirPattern;
+        m_filePattern = filePattern;
+    }
+
+    /**
+     * Start listing dir, abandons any listing still running. Call on UI thread.
+     */
+    void list(final String dir, final Listener listener) {
+        final int generation = ++m_generation;
+        s_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == m_generation)
+                    enumerate(new File(dir), generation, listener);
+            }
+        });
+    }
+
+    /**
+     * Abandon listing, no further entries are delivered.
+     */
+    void close() {
+        m_generation++;
+    }
+
+    private void enumerate(File dir, int generation, Listener listener) {
+        String path = dir.getAbsolutePath();
+        long modified = dir.lastModified();
+        Listing listing;
+        synchronized (s_cache) {
+            listing = s_cache.get(path);
+        }
+
+        if (listing == null || listing.modified != modified) {
+            listing = read(dir, modified, generation, listener);
+            if (listing == null)
+                return;     // Abandoned.
+            if (modified != 0 && System.currentTimeMillis() - modified > MTIME_SLACK_MS) {
+                synchronized (s_cache) {
+                    s_cache.put(path, listing);
+                }
+            }
+            deliver(generation, listener, new ArrayList<String>(0), true);
+        } else {
+            ArrayList<String> entries = new ArrayList<String>(listing.dirs.length + listing.files.length);
+            addMatches(listing.dirs, listing.files, entries);
+            deliver(generation, listener, entries, true);
+        }
+    }
+
+    /**
+     * Read directory, delivering matching entries in batches.
+     *
+     * @return Listing of all names, null if abandoned.
+     */
+    private Listing read(File dir, long modified, int generation, Listener listener) {
+        String[] names = dir.list();
+        if (names == null)
+            names = new String[0];
+
+        ArrayList<String> dirs = new ArrayList<String>();
+        ArrayList<String> files = new ArrayList<String>(names.length);
+        int dirMark = 0;
+        int fileMark = 0;
+        for (int idx = 0; idx != names.length; idx++) {
+            String name = names[idx];
+            if (new File(dir, name).isDirectory())
+                dirs.add(name);
+            else
+                files.add(name);
+
+            if ((idx + 1) % BATCH_SIZE == 0) {
+                if (generation != m_generation)
+                    return null;
+                ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+                addMatches(dirs.subList(dirMark, dirs.size()), files.subList(fileMark, files.size()), batch);
+                dirMark = dirs.size();
+                fileMark = files.size();
+                deliver(generation, listener, batch, false);
+            }
+        }
+
+        ArrayList<String> batch = new ArrayList<String>(BATCH_SIZE);
+        addMatches(dirs.subList(dirMark, dirs.size()), files.subList(fileMark, files.size()), batch);
+        deliver(generation, listener, batch, false);
+
+        return new Listing(modified, dirs.toArray(new String[dirs.size()]), files.toArray(new String[files.size()]));
+    }
+
+    private void addMatches(String[] dirs, String[] files, List<String> out) {
+        addMatches(Arrays.asList(dirs), Arrays.asList(files), out);
+    }
+
+    private void addMatches(List<String> dirs, List<String> files, List<String> out) {
+        if (m_dirPattern != null) {
+            for (String name : dirs) {
+                if (m_dirPattern.matcher(name).matches())
+                    out.add("/" + name);
+            }
+        }
+        if (m_filePattern != null) {
+            for (String name : files) {
+                if (m_filePattern.matcher(name).matches())
+                    out.add(name);
+            }
+        }
+    }
+
+    private void deliver(final int generation, final Listener listener, final List<String> entries,
+            final boolean done) {
+        if (entries.isEmpty() && !done)
+            return;
+        Collections.sort(entries, String.CASE_INSENSITIVE_ORDER);
+        m_uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == m_generation)
+                    listener.onEntries(entries, done);
+            }
+        });
+    }
+}
@@ -42,20 +42,26 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnFocusChangeListener;
 import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.PopupMenu;
+import android.widget.ProgressBar;
+import android.widget.Spinner;
+import android.widget.TextView;
 
+import com.landenlabs.all_encrypnotes.ui.LogIt;
 import com.landenlabs.all_encrypnotes.ui.RenameDialog;
 import com.landenlabs.all_encrypnotes.ui.UiUtil;
 import com.landenlabs.all_encrypnotes.ui.WebDialog;
 import com.landenlabs.all_encrypnotes.ui.YesNoDialog;
 
 import java.io.File;
-import java.io.FilenameFilter;
-import java.io.IOException;
 import java.sql.Date;
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Abstract base class for Load and Save Document file UI.
@@ -71,10 +77,24 @@ public class DocFileDlg {
     
     private static final String DOC_DIR = "documents/encrypnotes";
     private static final String DOC_EXT = ".etxt";
+    private static final String METRICS_FILE = "EncrypNotes-metrics.txt";
+    private static final int PREFETCH_COUNT = 3;
     private static final DateFormat m_dateFormat = DateFormat.getDateInstance();
     private static final File STORAGE_DIR = new File(Environment.getExternalStorageDirectory(), DOC_DIR);
 
+    // File list sort choices, in order of R.array.list_sort_modes.
+    private static final int[] SORT_KEYS = {
+            DocSortIndex.SORT_NAME, DocSortIndex.SORT_NAME, DocSortIndex.SORT_MODIFIED,
+            DocSortIndex.SORT_MODIFIED, DocSortIndex.SORT_SIZE, DocSortIndex.SORT_SIZE,
+            DocSortIndex.SORT_VERSION, DocSortIndex.SORT_HINT, DocSortIndex.SORT_TITLE };
+    private static final boolean[] SORT_DESCENDING = {
+            false, true, true, false, true, false, false, false, false };
+
     private Doc.DocMetadata m_docMetadata = new Doc.DocMetadata();
+    private int m_editCount = 0;        // Incremented on each edit, detects edits during background save.
+    private DirtyRange m_dirty;         // Edits since text matched m_dirtyName on disk, null if unknown.
+    private String m_dirtyName;
+    private int m_listSort = 0;         // Position in SORT_KEYS, kept between file lists.
     
     // Passed parameters
     private final Activity m_context;
@@ -93,9 +113,26 @@ public class DocFileDlg {
         m_context = context;
     }
     
+    /**
+     * Finish or remove saves interrupted by a crash or kill, then list notes into
+     * the catalog, runs on the I/O thread.
+     */
+    public void recoverSaves() {
+        DocIoService.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                int count = SafeFile.recover(STORAGE_DIR, DOC_EXT);
+                if (count != 0)
+                    LogIt.log(DocFileDlg.class, LogIt.WARN, "Recovered " + count + " interrupted saves", null);
+                NoteCatalog.get().start(STORAGE_DIR, DOC_EXT);
+                NoteCatalog.get().getNames();
+            }
+        }, null);
+    }
+
     /**
      * Ensure storage directory exists, make if needed.
-     * @return
+     * @return false if storage permission is not granted or directory can not be made.
      */
     public boolean ensureDocDir() {
         // PermissionChecker.checkSelfPermission(mActivity, Manifest.permission.WRITE_EXTERNAL_STORAGE)
@@ -144,8 +181,26 @@ public class DocFileDlg {
      */
     public void setModified(boolean newModified) {
         m_docMetadata.modified = newModified;
+        if (newModified)
+            m_editCount++;
     }
     
+    /**
+     * Record text edit, same arguments as TextWatcher.onTextChanged.
+     */
+    public void onTextChanged(int start, int before, int count) {
+        if (m_dirty != null)
+            m_dirty.onTextChanged(start, before, count);
+    }
+
+    /**
+     * Text now matches named file on disk, track edits from here.
+     */
+    private void resetDirty(String filename, int textLength) {
+        m_dirty = new DirtyRange(textLength);
+        m_dirtyName = filename;
+    }
+
     /**
      * @return true if filename exists and encryption key specified. 
      */
@@ -159,6 +214,7 @@ public class DocFileDlg {
      */
     public void Clear() {
         m_docMetadata = new Doc.DocMetadata();
+        m_dirty = null;
     }
     
     /**
@@ -167,8 +223,8 @@ public class DocFileDlg {
      * @param docText
      */
     public void saveInstanceState(Bundle b, EditText docText) {
-        m_docMetadata.caretPosition = docText.getSelectionStart();
-        b.putString("text", docText.getText().toString());  // TODO - encrypt
+        m_docMetadata.caretPosition = WindowedEditor.getSelectionStart(docText);
+        b.putString("text", WindowedEditor.getText(docText));  // TODO - encrypt
         b.putSerializable("metadata", m_docMetadata);
     }
     
@@ -180,11 +236,13 @@ public class DocFileDlg {
      */
     public void restoreInstanceState(Bundle b, EditText docText) {
         m_docMetadata = (Doc.DocMetadata) b.getSerializable("metadata");
-        UiUtil.setText(docText, b.getString("text"));       // TODO - decrypt
+        WindowedEditor.setText(docText, b.getString("text"));       // TODO - decrypt
+        m_dirty = null;     // Unknown relation to file on disk, next save writes whole file.
     }
 
     public void showInfo() {
-        String infosStr = Doc.getInfoStr(m_docMetadata, m_dateFormat).replace("\n", "<p>");
+        String infosStr = (Doc.getInfoStr(STORAGE_DIR, m_docMetadata, m_dateFormat)
+                + "\nSave sync: " + SafeFile.getSyncSummary()).replace("\n", "<p>");
         // YesNoDialog.showDialog(m_context, "Info", infosStr,
         //         R.id.file_info, YesNoDialog.BTN_OK);
         String htmlStr = infosStr.replaceAll("\n([^:]*:)(.*)", "<tr><td><span style='color:blue;'>$1</span><td>$2");
@@ -192,6 +250,61 @@ public class DocFileDlg {
                 String.format("<center><h2>Info</h2></center><p><table>%s</table>", htmlStr));
     }
 
+    /**
+     * Show open and save stage timings, Dump appends them to a text file in the document directory.
+     */
+    public void showDiagnostics() {
+        final Dialog dlg = new Dialog(new ContextThemeWrapper(m_context, R.style.OpenDialogStyle));
+        dlg.setContentView(R.layout.diagnostics_dlg);
+        dlg.setTitle(R.string.dlg_diagnostics_title);
+
+        final TextView reportTxt = UiUtil.viewById(dlg, R.id.diagnostics_text);
+        final TextView statusTxt = UiUtil.viewById(dlg, R.id.diagnostics_status);
+        reportTxt.setText(DocMetrics.report());
+        statusTxt.setText("Save sync: " + SafeFile.getSyncSummary()
+                + "\nOpen cache: " + DocCache.get().getSummary());
+
+        dlg.findViewById(R.id.diagnostics_reset).setOnClickListener(new Button.OnClickListener() {
+            public void onClick(View v) {
+                DocMetrics.reset();
+                reportTxt.setText(DocMetrics.report());
+            }
+        });
+
+        dlg.findViewById(R.id.diagnostics_dump).setOnClickListener(new Button.OnClickListener() {
+            public void onClick(View v) {
+                final File file = new File(STORAGE_DIR, METRICS_FILE);
+                final String[] error = new String[1];
+                DocIoService.get().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            DocMetrics.dump(file);
+                        } catch (Exception ex) {
+                            error[0] = ex.getLocalizedMessage();
+                            LogIt.log(DocFileDlg.class, LogIt.ERROR, "Metrics dump failed " + file, ex);
+                        }
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        statusTxt.setText(error[0] == null
+                                ? m_context.getString(R.string.diagnostics_dumped, file.getPath())
+                                : m_context.getString(R.string.diagnostics_dump_failed, error[0]));
+                    }
+                });
+            }
+        });
+
+        dlg.findViewById(R.id.diagnostics_close).setOnClickListener(new Button.OnClickListener() {
+            public void onClick(View v) {
+                dlg.dismiss();
+            }
+        });
+
+        dlg.show();
+    }
+
     // -------------------------------------------------------------------------------------------
     //                                     L O A D     S e c t i o n
     // -------------------------------------------------------------------------------------------
@@ -203,29 +316,61 @@ public class DocFileDlg {
      * On completion send message Okay or Fail.
      */
     public void showLoad(final EncrypPrefs prefs, final EditText docText, final SendMsg sendMsg) {
-        File[] file_list = STORAGE_DIR.listFiles(new FilenameFilter() {
-            public boolean accept(File dir, String fname) {
-                return fname.endsWith(DOC_EXT);
-            }
-        });
+        // Catalog is kept current by a directory watch, only the first open lists the directory.
+        final NoteCatalog catalog = NoteCatalog.get();
+        catalog.start(STORAGE_DIR, DOC_EXT);
+        String[] file_names = catalog.getNames();
 
-        if (file_list == null || file_list.length == 0) {
+        if (file_names.length == 0) {
             YesNoDialog.showOk(m_context, m_context.getResources().getString(R.string.no_etxt_files, DOC_EXT, DOC_DIR));
             return;
         }
 
-        final String[] file_names = new String[file_list.length];
-        for (int i = 0; i < file_list.length; i++)
-            file_names[i] = file_list[i].getName().replaceAll(DOC_EXT, "");
+        // Warm cache with the latest notes while the user picks one, needs a known password.
+        if (prefs.Global_pwd_state && !TextUtils.isEmpty(prefs.Global_pwd_value))
+            DocIoService.get().prefetch(catalog.getFiles(), PREFETCH_COUNT, prefs.Global_pwd_value);
 
         AlertDialog.Builder builder = new AlertDialog.Builder( 
                 new ContextThemeWrapper(m_context, R.style.FileListDialogStyle));
-        builder.setTitle(m_context.getResources().getString(R.string.list_etxt_files, DOC_EXT, DOC_DIR));
         final FileListAdapter fileListAdapter = new FileListAdapter(m_context, STORAGE_DIR, DOC_EXT,
                 m_dateFormat, m_context.getWindow().getDecorView().getHeight());
 
-        fileListAdapter.addAll(file_names);
-        fileListAdapter.sort();
+        fileListAdapter.setSort(SORT_KEYS[m_listSort], SORT_DESCENDING[m_listSort]);
+        fileListAdapter.setNames(file_names);
+
+        // Title holds filter and sort choice, both only reorder the adapter's index.
+        View titleView = m_context.getLayoutInflater().inflate(R.layout.file_list_title, null);
+        TextView titleTv = UiUtil.viewById(titleView, R.id.file_list_title);
+        titleTv.setText(m_context.getResources().getString(R.string.list_etxt_files, DOC_EXT, DOC_DIR));
+        EditText filterETxt = UiUtil.viewById(titleView, R.id.file_list_filter);
+        filterETxt.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                fileListAdapter.setFilter(s.toString());
+            }
+        });
+        Spinner sortSpinner = UiUtil.viewById(titleView, R.id.file_list_sort);
+        sortSpinner.setSelection(m_listSort);
+        sortSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
+                m_listSort = pos;
+                fileListAdapter.setSort(SORT_KEYS[pos], SORT_DESCENDING[pos]);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        builder.setCustomTitle(titleView);
 
         builder.setAdapter(fileListAdapter,
                 new DialogInterface.OnClickListener() {
@@ -242,6 +387,29 @@ public class DocFileDlg {
 
         final AlertDialog alert = builder.create();
 
+        // Notes added or removed outside the list (ex: by a save or file manager) while it is shown.
+        final NoteCatalog.Listener catalogListener = new NoteCatalog.Listener() {
+            @Override
+            public void onCatalogChanged() {
+                fileListAdapter.setNames(catalog.getNames());
+            }
+        };
+        catalog.addListener(catalogListener);
+        alert.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialog) {
+                catalog.removeListener(catalogListener);
+                fileListAdapter.close();
+                // Persist catalog renames and deletes made in the list.
+                DocIoService.get().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        DocCatalog.get().flush();
+                    }
+                }, null);
+            }
+        });
+
         fileListAdapter.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
             public boolean onItemLongClick(AdapterView<?> arg0, View view, int pos, long id) {
                 final String filename = fileListAdapter.getItem(pos);
@@ -362,33 +530,20 @@ public class DocFileDlg {
             public void onClick(View v) {
                 EditText pwdText = (EditText) dlg.findViewById(R.id.pwd);
                 String pwd = pwdText.getText().toString();
-                String filename = filenameETxt.getText().toString().trim();
-                File file = new File(STORAGE_DIR, filename + DOC_EXT);
-                Date lastModified = Util.getCurrentDate();
-                if (file.exists())
-                    lastModified = new Date(file.lastModified());
+                final String filename = filenameETxt.getText().toString().trim();
+                final File file = new File(STORAGE_DIR, filename + DOC_EXT);
 
-                try {
-                    loadFile(filename, pwd, docText, sendMsg);
-                } catch (Doc.DocPasswordException e) {
-                    WebDialog.show(m_context, WebDialog.HTML_CENTER_BOX, 
-                            String.format("<center><h2>%s</h2><table frame='box'><tr><td>File:<td>%s<tr><td>Modified:<td>%s<tr><td>Size:<td>%s</table>",  
-                            e.getMessage(), filename, m_dateFormat.format(lastModified), String.format("%,d", file.length())));
-                    sendMsg.send(SendMsg.MSG_FAIL);
-                    return;
-                } catch (Exception e) {
-                    String exName = e.getClass().getName().replaceAll(".*\\.", "");
-                    String exMsg = e.getMessage();
-                    if (!TextUtils.isEmpty(exMsg))
-                        exMsg = exMsg.replaceAll(".*\\(", "(");
-                    YesNoDialog.showOk(m_context, exName + "\n File: " + filename + "\n\n" + exMsg);
-                    WebDialog.show(m_context, WebDialog.HTML_CENTER_BOX, 
-                            String.format("<center><h2>%s</h2><table frame='box'><tr><td>File:<td>%s</table><p>%s",  
-                            e.getMessage(), filename, exMsg));
-                    sendMsg.send(SendMsg.MSG_FAIL);
-                    return;
-                }
-                dlg.dismiss();
+                loadFile(filename, pwd, docText, new DocIoService.LoadListener() {
+                    @Override
+                    public void onLoaded(Doc doc) {
+                        dlg.dismiss();
+                    }
+
+                    @Override
+                    public void onLoadFailed(Exception ex) {
+                        showLoadError(ex, filename, file);
+                    }
+                }, sendMsg);
             }
         });
 
@@ -401,37 +556,70 @@ public class DocFileDlg {
         dlg.show();
     }
 
+    /**
+     * Report load failure, password errors show file details.
+     */
+    @SuppressLint("DefaultLocale")
+    private void showLoadError(Exception e, String filename, File file) {
+        if (e instanceof Doc.DocPasswordException) {
+            Date lastModified = Util.getCurrentDate();
+            if (file.exists())
+                lastModified = new Date(file.lastModified());
+            WebDialog.show(m_context, WebDialog.HTML_CENTER_BOX,
+                    String.format("<center><h2>%s</h2><table frame='box'><tr><td>File:<td>%s<tr><td>Modified:<td>%s<tr><td>Size:<td>%s</table>",
+                    e.getMessage(), filename, m_dateFormat.format(lastModified), String.format("%,d", file.length())));
+        } else {
+            String exName = e.getClass().getName().replaceAll(".*\\.", "");
+            String exMsg = e.getMessage();
+            if (!TextUtils.isEmpty(exMsg))
+                exMsg = exMsg.replaceAll(".*\\(", "(");
+            YesNoDialog.showOk(m_context, exName + "\n File: " + filename + "\n\n" + exMsg);
+            WebDialog.show(m_context, WebDialog.HTML_CENTER_BOX,
+                    String.format("<center><h2>%s</h2><table frame='box'><tr><td>File:<td>%s</table><p>%s",
+                    e.getMessage(), filename, exMsg));
+        }
+    }
+
     /**
      * Load decrypted text from permanent file storage into text object.
-     * Send message on completion.
+     * Decrypt runs on background thread, text object updated and message sent on completion.
      * 
      * @param fname
      *            file to load from storage (no path and no extension)
      * @param pwd
      *            password to decrypt file
-     * @throws java.io.FileNotFoundException
-     * @throws Doc.DocPasswordException
-     * @throws java.io.IOException
-     * @throws Doc.DocException
+     * @param listener
+     *            notified (UI thread) after text object updated or on failure.
      */
-    private void loadFile(final String fname, String pwd, final EditText docText, final SendMsg sendMsg) 
-            throws IOException, Doc.DocException {
-        Doc doc = new Doc();
-        doc.doOpen(new File(STORAGE_DIR, fname + DOC_EXT), pwd);
-
-        Doc.DocMetadata docMetadata = doc.getDocMetadata();
-        docMetadata.copyTo(m_docMetadata);
-        docMetadata = null;
-        
-        // Set state before docText, because docText has 'textChanged' listener
-        // to update the Title bar.
-        m_docMetadata.modified = false;  
-        m_docMetadata.filename = new File(m_docMetadata.filename).getName();
-        UiUtil.setText(docText, doc.getText());
-        docText.setSelection(m_docMetadata.caretPosition, m_docMetadata.caretPosition);
+    private void loadFile(final String fname, String pwd, final EditText docText,
+            final DocIoService.LoadListener listener, final SendMsg sendMsg) {
+        DocIoService.get().load(new File(STORAGE_DIR, fname + DOC_EXT), pwd, new DocIoService.LoadListener() {
+            @Override
+            public void onLoaded(Doc doc) {
+                Doc.DocMetadata docMetadata = new Doc.DocMetadata();
+                doc.getDocMetadata().copyTo(docMetadata);
+
+                // Set state before docText, because docText has 'textChanged' listener
+                // to update the Title bar.
+                docMetadata.modified = false;
+                docMetadata.filename = new File(docMetadata.filename).getName();
+                m_docMetadata = docMetadata;
+                WindowedEditor.setText(docText, doc.getText());
+                resetDirty(docMetadata.filename, doc.getText().length());
+                WindowedEditor.setSelection(docText, m_docMetadata.caretPosition);
+
+                listener.onLoaded(doc);
+                if (sendMsg != null)
+                    sendMsg.send(SendMsg.MSG_OKAY);
+            }
 
-        if (sendMsg != null)
-            sendMsg.send(SendMsg.MSG_OKAY);
+            @Override
+            public void onLoadFailed(Exception ex) {
+                listener.onLoadFailed(ex);
+                if (sendMsg != null)
+                    sendMsg.send(SendMsg.MSG_FAIL);
+            }
+        });
     }
 
     /**
@@ -440,13 +628,327 @@ public class DocFileDlg {
      * @return Hint string or ""
      */
     String getHint(final String filename) {
-        Doc doc = new Doc();
-        try {
-            doc.doOpen(new File(STORAGE_DIR, filename + DOC_EXT), null);
-        } catch (Exception ex) {
-            return "";
+        DocHeaderCache.Header header = DocHeaderCache.get().getHeader(new File(STORAGE_DIR, filename + DOC_EXT));
+        return (header == null) ? "" : header.hint;
+    }
+
+    // -------------------------------------------------------------------------------------------
+    //                                     S E A R C H    S e c t i o n
+    // -------------------------------------------------------------------------------------------
+    static final int SEARCH_MAX_HITS = 50;
+
+    /**
+     *  Show search dialog, query encrypted index of documents saved with password.
+     *  Selecting a hit loads document and moves caret to first match.
+     *
+     *  Process is asynchronous, see SendMsg for indication of success/failure.
+     */
+    public void showSearch(final EncrypPrefs prefs, final EditText docText, final SendMsg sendMsg) {
+        final Dialog dlg = new Dialog(new ContextThemeWrapper(m_context, R.style.OpenDialogStyle));
+        dlg.setContentView(R.layout.search_dlg);
+        dlg.setTitle(R.string.dlg_search_title);
+        dlg.setCancelable(true);
+
+        final UiPasswordManager managePwd = new UiPasswordManager(prefs, dlg, true);
+        managePwd.setHint("");
+        final EditText queryETxt = UiUtil.viewById(dlg, R.id.search_query);
+        final ListView resultsView = UiUtil.viewById(dlg, R.id.search_results);
+        final ArrayAdapter<String> resultsAdapter =
+                new ArrayAdapter<String>(m_context, android.R.layout.simple_list_item_1);
+        resultsView.setAdapter(resultsAdapter);
+        final List<DocSearchIndex.Hit> hits = new ArrayList<DocSearchIndex.Hit>();
+
+        UiUtil.viewById(dlg, R.id.okBtn).setOnClickListener(new Button.OnClickListener() {
+            public void onClick(View v) {
+                final String pwd = managePwd.getPwdView().getText().toString();
+                final String query = queryETxt.getText().toString().trim();
+                if (TextUtils.isEmpty(pwd) || TextUtils.isEmpty(query))
+                    return;
+
+                final List<DocSearchIndex.Hit> found = new ArrayList<DocSearchIndex.Hit>();
+                DocIoService.get().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            found.addAll(DocSearchIndex.get().search(pwd, query, SEARCH_MAX_HITS));
+                        } catch (Exception ex) {
+                            LogIt.log(DocFileDlg.class, LogIt.ERROR, "Search failed", ex);
+                        }
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        hits.clear();
+                        hits.addAll(found);
+                        resultsAdapter.clear();
+                        for (DocSearchIndex.Hit hit : hits)
+                            resultsAdapter.add(hit.filename.replace(DOC_EXT, "") + "\n\u2026" + hit.snippet + "\u2026");
+                        if (hits.isEmpty())
+                            resultsAdapter.add(m_context.getResources().getString(R.string.search_none, query));
+                    }
+                });
+            }
+        });
+
+        resultsView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int pos, long id) {
+                if (pos >= hits.size())
+                    return;
+                final DocSearchIndex.Hit hit = hits.get(pos);
+                final String filename = hit.filename.replace(DOC_EXT, "");
+                final File file = new File(STORAGE_DIR, hit.filename);
+                String pwd = managePwd.getPwdView().getText().toString();
+                loadFile(filename, pwd, docText, new DocIoService.LoadListener() {
+                    @Override
+                    public void onLoaded(Doc doc) {
+                        WindowedEditor.setSelection(docText, hit.offset);
+                        dlg.dismiss();
+                    }
+
+                    @Override
+                    public void onLoadFailed(Exception ex) {
+                        showLoadError(ex, filename, file);
+                    }
+                }, sendMsg);
+            }
+        });
+
+        dlg.findViewById(R.id.cancelBtn).setOnClickListener(new Button.OnClickListener() {
+            public void onClick(View v) {
+                dlg.dismiss();
+            }
+        });
+
+        dlg.show();
+    }
+
+    /**
+     * Change password (and upgrade format) of every document which uses the old password.
+     * Runs on the I/O thread so queued saves finish first and later saves use the new key.
+     */
+    public void showRekey(final EncrypPrefs prefs) {
+        final Dialog dlg = new Dialog(new ContextThemeWrapper(m_context, R.style.OpenDialogStyle));
+        dlg.setContentView(R.layout.rekey_dlg);
+        dlg.setTitle(R.string.dlg_rekey_title);
+        dlg.setCancelable(false);
+
+        final UiPasswordManager managePwd = new UiPasswordManager(prefs, dlg, false);
+        managePwd.setHint("");
+        managePwd.showHint();
+        final EditText oldPwdETxt = UiUtil.viewById(dlg, R.id.rekey_old_pwd);
+        final ProgressBar progressBar = UiUtil.viewById(dlg, R.id.rekey_bar);
+        final TextView statusTxt = UiUtil.viewById(dlg, R.id.rekey_status);
+        final Button okBtn = UiUtil.viewById(dlg, R.id.okBtn);
+        final DocRekey[] running = new DocRekey[1];
+
+        okBtn.setOnClickListener(new Button.OnClickListener() {
+            public void onClick(View v) {
+                final String oldPwd = oldPwdETxt.getText().toString();
+                final String newPwd = managePwd.getPwdView().getText().toString();
+                final String hint = managePwd.getHint();
+                if (TextUtils.isEmpty(oldPwd) || TextUtils.isEmpty(newPwd)) {
+                    statusTxt.setText(R.string.pwd_empty);
+                    return;
+                }
+                if (!managePwd.isValid()) {
+                    statusTxt.setText(R.string.pwd_nomatch);
+                    return;
+                }
+
+                okBtn.setEnabled(false);
+                final String docName = TextUtils.isEmpty(m_docMetadata.filename)
+                        ? "" : new File(m_docMetadata.filename).getName();
+                final boolean[] docRekeyed = new boolean[1];
+                final DocRekey.Result[] result = new DocRekey.Result[1];
+                final DocRekey rekey = new DocRekey(oldPwd, newPwd).setHint(hint)
+                        .setListener(new DocRekey.Listener() {
+                            @Override
+                            public void onProgress(final int done, final int total, final File file,
+                                    int status, Exception error) {
+                                if (status == DocRekey.STATUS_REKEYED && file.getName().equals(docName))
+                                    docRekeyed[0] = true;
+                                m_context.runOnUiThread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        progressBar.setMax(total);
+                                        progressBar.setProgress(done);
+                                        statusTxt.setText(m_context.getString(R.string.rekey_progress,
+                                                done, total, file.getName().replace(DOC_EXT, "")));
+                                    }
+                                });
+                            }
+                        });
+                // Search index entries move from the old password's index to the new one.
+                rekey.setDocListener(new DocRekey.DocListener() {
+                    @Override
+                    public void onStart(byte[] newKey) {
+                        DocSearchIndex.get().attach(newKey, newPwd);
+                    }
+
+                    @Override
+                    public void onRekeyed(File file, Doc doc) {
+                        DocSearchIndex.get().remove(file, oldPwd);
+                        DocSearchIndex.get().update(file, doc.getText(), doc.getDocMetadata().key);
+                    }
+                });
+                running[0] = rekey;
+
+                final Doc.DocMetadata docMetadata = m_docMetadata;
+                final File docFile = TextUtils.isEmpty(docName) ? null : new File(STORAGE_DIR, docName);
+                final Doc.DocMetadata newKeyMeta = new Doc.DocMetadata();
+                DocIoService.get().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            result[0] = rekey.run(STORAGE_DIR);
+                            DocSearchIndex.get().flush();
+                            if (docRekeyed[0]) {
+                                // Saves of the open document queued with the old key use the new one.
+                                newKeyMeta.setKey(newPwd);
+                                DocIoService.get().changeKey(docFile, newPwd, hint, newKeyMeta.key);
+                            }
+                        } catch (Exception ex) {
+                            LogIt.log(DocFileDlg.class, LogIt.ERROR, "Change password failed", ex);
+                        }
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        // Open document now uses new key, next save rewrites it fully.
+                        if (docRekeyed[0] && newKeyMeta.key != null) {
+                            docMetadata.key = newKeyMeta.key;
+                            docMetadata.kdf = newKeyMeta.kdf;
+                            docMetadata.hint = hint;
+                        }
+                        running[0] = null;
+                        if (docRekeyed[0])
+                            m_dirty = null;
+                        DocRekey.Result res = result[0];
+                        if (res != null && !res.canceled
+                                && prefs.Global_pwd_state && oldPwd.equals(prefs.Global_pwd_value)) {
+                            prefs.Global_pwd_value = newPwd;
+                            prefs.Global_pwd_hint = hint;
+                            prefs.save();
+                            DocIoService.get().execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    DocCatalog.get().rekey(newPwd);
+                                }
+                            }, null);
+                        }
+                        if (res == null) {
+                            statusTxt.setText(R.string.rekey_desc);
+                            okBtn.setEnabled(true);
+                        } else {
+                            statusTxt.setText(m_context.getString(R.string.rekey_done,
+                                    res.rekeyed, res.skipped, res.failed));
+                        }
+                    }
+                });
+            }
+        });
+
+        dlg.findViewById(R.id.cancelBtn).setOnClickListener(new Button.OnClickListener() {
+            public void onClick(View v) {
+                if (running[0] != null)
+                    running[0].cancel();
+                dlg.dismiss();
+            }
+        });
+
+        dlg.show();
+    }
+
+    /**
+     * Show earlier revisions stored in the saved document. Selecting one replaces the
+     * editor text, which is saved as the newest revision on the next save.
+     */
+    public void showRevisions(final EditText docText) {
+        if (!canSave()) {
+            YesNoDialog.showOk(m_context, m_context.getString(R.string.revisions_none));
+            return;
         }
-        return doc.getHint();
+
+        final File file = new File(STORAGE_DIR, m_docMetadata.filename);
+        final byte[] key = m_docMetadata.key;
+        final List<DocHistory.Revision> revisions = new ArrayList<DocHistory.Revision>();
+        DocIoService.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DocChunks.Reader reader = new Doc().doOpenChunks(file, key);
+                    try {
+                        revisions.addAll(reader.getRevisions());
+                    } finally {
+                        reader.close();
+                    }
+                } catch (Exception ex) {
+                    LogIt.log(DocFileDlg.class, LogIt.WARN, "No revisions " + file, ex);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (revisions.isEmpty()) {
+                    YesNoDialog.showOk(m_context, m_context.getString(R.string.revisions_none));
+                    return;
+                }
+
+                // Newest first.
+                DateFormat timeFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+                final int count = revisions.size();
+                String[] items = new String[count];
+                for (int idx = 0; idx < count; idx++) {
+                    DocHistory.Revision rev = revisions.get(count - 1 - idx);
+                    items[idx] = m_context.getString(R.string.revision_item,
+                            timeFormat.format(new Date(rev.timestamp)), rev.charLen);
+                }
+
+                AlertDialog.Builder builder = new AlertDialog.Builder(
+                        new ContextThemeWrapper(m_context, R.style.FileListDialogStyle));
+                builder.setTitle(R.string.dlg_revisions_title);
+                builder.setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int pos) {
+                        dialog.dismiss();
+                        restoreRevision(file, key, count - 1 - pos, docText);
+                    }
+                });
+                builder.show();
+            }
+        });
+    }
+
+    /**
+     * Rebuild revision in background and place it in the editor as a modification.
+     */
+    private void restoreRevision(final File file, final byte[] key, final int revIdx, final EditText docText) {
+        final String[] text = new String[1];
+        DocIoService.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DocChunks.Reader reader = new Doc().doOpenChunks(file, key);
+                    try {
+                        text[0] = reader.readRevision(revIdx);
+                    } finally {
+                        reader.close();
+                    }
+                } catch (Exception ex) {
+                    LogIt.log(DocFileDlg.class, LogIt.ERROR, "Restore revision failed " + file, ex);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (text[0] == null) {
+                    YesNoDialog.showOk(m_context, m_context.getString(R.string.revisions_none));
+                    return;
+                }
+                WindowedEditor.setText(docText, text[0]);
+                setModified(true);
+            }
+        });
     }
 
     // -------------------------------------------------------------------------------------------
@@ -549,9 +1051,7 @@ public class DocFileDlg {
                     String hint = m_managePwd.getHint();
 
                     dlg.dismiss();
-                    if (saveFile(filename, pwd, hint, docText, sendMsg)) {
-                        YesNoDialog.showOk(m_context, m_context.getResources().getString(R.string.file_saved, filename), saveMsgNum);
-                    }
+                    startSave(filename, pwd, hint, docText, sendMsg, true, saveMsgNum);
                 } else {
                     YesNoDialog.showOk(m_context, m_context.getResources().getString(R.string.pwd_nomatch));
                     sendMsg.send(SendMsg.MSG_FAIL);
@@ -590,21 +1090,54 @@ public class DocFileDlg {
      *            password hint
      * @param docText
      *
-     * Successful saving will be processed synchronously, failure will complete async.
-     * @return {@code true} if file saved and send message.
+     * Text is captured immediately, encryption and save complete in background.
+     * @return {@code true} if save started, completion reported via send message.
      */
     public boolean saveFile(String filename, String pwd, String hint, EditText docText, final SendMsg sendMsg) {
+        return startSave(filename, pwd, hint, docText, sendMsg, true, YesNoDialog.MSG_NONE);
+    }
+
+    /**
+     * Save current text to file using password, used when app is going to background.
+     * Failures are only logged.
+     *
+     * @return {@code true} if save started.
+     */
+    public boolean saveOnBackground(String filename, String pwd, String hint, EditText docText) {
+        if (!STORAGE_DIR.canWrite())
+            return false;
+        return startSave(filename, pwd, hint, docText, null, false, YesNoDialog.MSG_NONE);
+    }
+
+    /**
+     * Autosave modified document to its current file, only re-encrypting modified chunks.
+     * Does nothing if document has no filename or key yet.
+     *
+     * @return {@code true} if save started.
+     */
+    public boolean autoSave(EditText docText, SendMsg sendMsg) {
+        if (!isModified() || !canSave() || !STORAGE_DIR.canWrite())
+            return false;
+        return startSave(null, null, null, docText, sendMsg, false, YesNoDialog.MSG_NONE);
+    }
+
+    /**
+     * Snapshot text and metadata then queue encrypted save on background thread.
+     *
+     * @param showResult  Show error (and saved message if savedMsgNum set) when done.
+     * @param savedMsgNum Message number for "file saved" dialog, MSG_NONE for no dialog.
+     */
+    private boolean startSave(String filename, String pwd, String hint, EditText docText,
+            final SendMsg sendMsg, final boolean showResult, final int savedMsgNum) {
 
         if (!STORAGE_DIR.canWrite()) {
             YesNoDialog.showOk(m_context, "Apparently I cannot write to " + STORAGE_DIR.getAbsolutePath());
-            sendMsg.send(SendMsg.MSG_FAIL);
+            if (sendMsg != null)
+                sendMsg.send(SendMsg.MSG_FAIL);
             return false;
         }
 
-        m_docMetadata.caretPosition = docText.getSelectionStart();
-
-    //    if (hint != null)
-    //        m_docMetadata.hint = hint;
+        m_docMetadata.caretPosition = WindowedEditor.getSelectionStart(docText);
 
         // Use new filename if provided
         if (filename == null)
@@ -612,68 +1145,54 @@ public class DocFileDlg {
         else
             m_docMetadata.filename = filename;
 
-        // Use new password if provided
-        if (!TextUtils.isEmpty(pwd))
-            m_docMetadata.setKey(pwd);
+        // New password (if provided) is derived into a key on the background thread.
+        if (TextUtils.isEmpty(pwd))
+            pwd = null;
 
         if (hint == null)
             hint = m_docMetadata.hint;
         else
             m_docMetadata.hint = hint;
 
-        Doc doc = new Doc(docText.getText().toString(), m_docMetadata);
-
-        File saveToFile = new File(STORAGE_DIR, filename);
-
-        if (saveToFile.exists())
-            saveToFile.delete();
-
-        try {
-            doc.doSave(saveToFile, hint);
-        } catch (IOException e) {
-            e.printStackTrace();
-            YesNoDialog.showOk(m_context, e.toString() + " saving \"" + saveToFile.getAbsolutePath() + "\": "
-                    + e.getMessage());
-            sendMsg.send(SendMsg.MSG_FAIL);
-            return false;
-        } catch (Doc.DocException e) {
-            e.printStackTrace();
-            YesNoDialog.showOk(m_context, e.toString() + " saving \"" + saveToFile.getAbsolutePath() + "\": "
-                    + e.getMessage());
-            sendMsg.send(SendMsg.MSG_FAIL);
-            return false;
-        }
+        // Snapshot state on UI thread, background save works on private copies.
+        final Doc.DocMetadata docMetadata = m_docMetadata;
+        final int editCount = m_editCount;
+        final String saveName = filename;
+        Doc.DocMetadata saveMeta = new Doc.DocMetadata();
+        docMetadata.copyTo(saveMeta);
+        CharSequence text = WindowedEditor.getSnapshot(docText);
+
+        // Edits since the file was last written, only valid for the same file.
+        DirtyRange dirty = null;
+        if (m_dirty != null && filename.equals(m_dirtyName))
+            dirty = new DirtyRange(m_dirty);
+        resetDirty(filename, text.length());
+
+        DocIoService.get().save(new File(STORAGE_DIR, filename), text, saveMeta, pwd, hint, dirty,
+                new DocIoService.SaveListener() {
+                    @Override
+                    public void onSaved(File file, Doc.DocMetadata savedMeta) {
+                        docMetadata.saveHistory = savedMeta.saveHistory;
+                        docMetadata.key = savedMeta.key;
+                        docMetadata.kdf = savedMeta.kdf;
+                        if (docMetadata == m_docMetadata && editCount == m_editCount)
+                            m_docMetadata.modified = false;
+                        if (showResult && savedMsgNum != YesNoDialog.MSG_NONE)
+                            YesNoDialog.showOk(m_context,
+                                    m_context.getResources().getString(R.string.file_saved, saveName), savedMsgNum);
+                        if (sendMsg != null)
+                            sendMsg.send(SendMsg.MSG_OKAY);
+                    }
 
-        m_docMetadata.modified = false;
-        sendMsg.send(SendMsg.MSG_OKAY);
+                    @Override
+                    public void onSaveFailed(File file, Exception ex) {
+                        if (showResult)
+                            YesNoDialog.showOk(m_context, ex.toString() + " saving \"" + file.getAbsolutePath() + "\": "
+                                    + ex.getMessage());
+                        if (sendMsg != null)
+                            sendMsg.send(SendMsg.MSG_FAIL);
+                    }
+                });
         return true;
     }
-
-    public boolean saveOnBackground(String filename, String pwd, String hint, EditText docText) {
-        boolean saved = false;
-
-        if (STORAGE_DIR.canWrite()) {
-            m_docMetadata.caretPosition = docText.getSelectionStart();
-
-            m_docMetadata.filename = filename;
-            m_docMetadata.setKey(pwd);
-            m_docMetadata.hint = hint;
-
-            Doc doc = new Doc(docText.getText().toString(), m_docMetadata);
-
-            File saveToFile = new File(STORAGE_DIR, filename);
-
-            if (saveToFile.exists())
-                saveToFile.delete();
-
-            try {
-                doc.doSave(saveToFile, hint);
-                m_docMetadata.modified = false;
-                saved = true;
-            } catch (Exception ex) {
-            }
-        }
-
-        return saved;
-    }
 }
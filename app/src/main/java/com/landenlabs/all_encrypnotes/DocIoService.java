@@ -0,0 +1,465 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.landenlabs.all_encrypnotes.ui.LogIt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Background executor which owns all document open and save work (SHA1, AES, GZIP and disk I/O).
+ * <p>
+ * Work runs on a single background thread so requests complete in the order submitted,
+ * listeners are called back on the UI thread. A save request for a file which is still
+ * waiting in the queue is merged with the newer request.
+ * <p>
+ * Saves with a dirty range only re-encrypt the modified chunks. After a failed save the
+ * file no longer matches the range base, so the next save of that file is a full save.
+ * Their search index entry is marked stale and refreshed once saves have been idle for
+ * a while, on the next full save or when the note is opened again.
+ * <p>
+ * A password change of a file applies to every later save of that file, including saves
+ * whose metadata was copied before the change completed, until a save arrives with the
+ * new key.
+ * <p>
+ * Opened and saved documents are kept sealed in {@link DocCache}, a reopen with the
+ * same password skips the file.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocIoService {
+
+    /**
+     * Load completion, called on UI thread.
+     */
+    public interface LoadListener {
+        void onLoaded(Doc doc);
+        void onLoadFailed(Exception ex);
+    }
+
+    /**
+     * Save completion, called on UI thread.
+     */
+    public interface SaveListener {
+        void onSaved(File file, Doc.DocMetadata savedMeta);
+        void onSaveFailed(File file, Exception ex);
+    }
+
+    /**
+     * Password change of one file, key is set once derived.
+     */
+    private static class KeyChange {
+        final String pwd;
+        final String hint;      // Null to keep hint of each save.
+        byte[] key;
+
+        KeyChange(String pwd, String hint, byte[] key) {
+            this.pwd = pwd;
+            this.hint = hint;
+            this.key = key;
+        }
+    }
+
+    // Catalog and search index changes are written at most this often while notes are saved.
+    static final long FLUSH_MS = 30 * 1000;
+
+    // Search index entries left stale by incremental saves are refreshed after this much idle time.
+    static final long INDEX_IDLE_MS = 60 * 1000;
+
+    /**
+     * Text saved incrementally, not yet indexed.
+     */
+    private static class StaleIndex {
+        final File file;
+        final CharSequence text;
+        final byte[] key;
+
+        StaleIndex(File file, CharSequence text, byte[] key) {
+            this.file = file;
+            this.text = text;
+            this.key = key;
+        }
+    }
+
+    private static DocIoService s_instance;
+
+    private final ExecutorService m_executor;
+    private final Handler m_uiHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, SaveTask> m_pendingSaves = new HashMap<String, SaveTask>();
+    private final HashMap<String, KeyChange> m_keyChanges = new HashMap<String, KeyChange>(); // Lock m_pendingSaves.
+    private final HashSet<String> m_needFullSave = new HashSet<String>();    // Used on I/O thread only.
+    private boolean m_flushQueued;                                          // Used on I/O thread only.
+    private final HashMap<String, StaleIndex> m_staleIndex = new HashMap<String, StaleIndex>(); // I/O thread.
+    private int m_indexIdleGeneration;                                      // Used on I/O thread only.
+
+    private DocIoService() {
+        m_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DocIo");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return Application wide document I/O service.
+     */
+    public static synchronized DocIoService get() {
+        if (s_instance == null)
+            s_instance = new DocIoService();
+        return s_instance;
+    }
+
+    /**
+     * Open and decrypt file in background.
+     */
+    public void load(final File file, final String pwd, final LoadListener listener) {
+        m_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Doc cached = (pwd == null) ? null : DocCache.get().get(file, pwd);
+                final Doc doc = (cached != null) ? cached : new Doc();
+                try {
+                    if (cached == null)
+                        doc.doOpen(file, pwd);
+                    m_uiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onLoaded(doc);
+                        }
+                    });
+                    if (pwd != null) {
+                        // Index documents not yet indexed, skipped if already current. A cached note
+                        // may have been saved incrementally since it was indexed.
+                        DocSearchIndex.get().attach(doc.getDocMetadata().key, pwd);
+                        DocSearchIndex.get().update(file, doc.getContent(), doc.getDocMetadata().key);
+                        m_staleIndex.remove(file.getAbsolutePath());
+                        if (cached == null) {
+                            DocCache.get().put(file, doc);
+                            DocCatalog.get().update(file, doc);
+                        }
+                        scheduleFlush();
+                    }
+                } catch (final Exception ex) {
+                    m_uiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onLoadFailed(ex);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Open and cache the most recently modified files, behind any queued work.
+     * Files already cached or not opened by pwd are skipped.
+     *
+     * @param files  Candidates, sorted by modify time in background.
+     * @param count  Number of files to prefetch.
+     */
+    public void prefetch(final File[] files, final int count, final String pwd) {
+        m_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long[] modified = new long[files.length];
+                Integer[] order = new Integer[files.length];
+                for (int idx = 0; idx < files.length; idx++) {
+                    modified[idx] = files[idx].lastModified();
+                    order[idx] = idx;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer lhs, Integer rhs) {
+                        long lhsTime = modified[lhs];
+                        long rhsTime = modified[rhs];
+                        return (lhsTime == rhsTime) ? 0 : ((lhsTime > rhsTime) ? -1 : 1);
+                    }
+                });
+
+                for (int idx = 0; idx < Math.min(count, order.length); idx++) {
+                    File file = files[order[idx]];
+                    Doc doc = DocCache.get().get(file, pwd);
+                    if (doc != null)
+                        continue;
+                    try {
+                        doc = new Doc();
+                        if (doc.doOpen(file, pwd))
+                            DocCache.get().put(file, doc);
+                    } catch (Exception ex) {
+                        // Different password or unreadable, left for a normal open.
+                        LogIt.log(DocIoService.class, LogIt.DEBUG, "Prefetch skipped " + file, null);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Run work on background I/O thread, then run done (optional) on UI thread.
+     */
+    public void execute(final Runnable work, final Runnable done) {
+        m_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work.run();
+                } catch (Exception ex) {
+                    LogIt.log(DocIoService.class, LogIt.ERROR, "Background work failed", ex);
+                }
+                if (done != null)
+                    m_uiHandler.post(done);
+            }
+        });
+    }
+
+    /**
+     * Write catalog and search index changes after a delay, so a burst of saves rewrites
+     * each once. Call on I/O thread.
+     */
+    private void scheduleFlush() {
+        if (m_flushQueued)
+            return;
+        m_flushQueued = true;
+        m_uiHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        m_flushQueued = false;
+                        DocCatalog.get().flush();
+                        DocSearchIndex.get().flush();
+                    }
+                }, null);
+            }
+        }, FLUSH_MS);
+    }
+
+    /**
+     * Index notes saved incrementally once no save has run for INDEX_IDLE_MS. Call on I/O thread.
+     */
+    private void scheduleIndexRefresh() {
+        final int generation = ++m_indexIdleGeneration;
+        m_uiHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != m_indexIdleGeneration)
+                            return;     // Saved again since, wait for next idle.
+                        for (StaleIndex stale : m_staleIndex.values())
+                            DocSearchIndex.get().update(stale.file, stale.text, stale.key);
+                        m_staleIndex.clear();
+                        scheduleFlush();
+                    }
+                }, null);
+            }
+        }, INDEX_IDLE_MS);
+    }
+
+    /**
+     * Use pwd for all later saves of file, including saves already queued with the old key,
+     * until a save arrives whose metadata holds key.
+     *
+     * @param hint  Hint of pwd, used by saves queued with the old hint.
+     * @param key   Key derived from pwd, null if not yet known.
+     */
+    public void changeKey(File file, String pwd, String hint, byte[] key) {
+        synchronized (m_pendingSaves) {
+            m_keyChanges.put(file.getAbsolutePath(), new KeyChange(pwd, hint, key));
+        }
+    }
+
+    /**
+     * Encrypt and save text snapshot in background. If a save for the same file is still
+     * queued, its text and metadata are replaced and only one save is performed.
+     *
+     * @param file      File to save.
+     * @param text      Snapshot of document text, a String or a read only PieceTable snapshot.
+     * @param docMeta   Private copy of metadata, updated by the save.
+     * @param pwd       New password or null to keep key in docMeta.
+     * @param hint      Password hint.
+     * @param dirty     Range changed since last save of this file, null to write whole file.
+     * @param listener  Completion listener.
+     */
+    public void save(File file, CharSequence text, Doc.DocMetadata docMeta, String pwd, String hint,
+            DirtyRange dirty, SaveListener listener) {
+        String path = file.getAbsolutePath();
+        synchronized (m_pendingSaves) {
+            KeyChange change = m_keyChanges.get(path);
+            if (pwd != null)
+                m_keyChanges.put(path, new KeyChange(pwd, null, null));
+            else if (change != null && change.key != null && Arrays.equals(change.key, docMeta.key))
+                m_keyChanges.remove(path);     // Caller has the new key.
+
+            SaveTask task = m_pendingSaves.get(path);
+            if (task != null) {
+                LogIt.log(DocIoService.class, LogIt.DEBUG, "Coalesce save " + path, null);
+                task.m_text = text;
+                task.m_docMeta = docMeta;
+                if (pwd != null)
+                    task.m_pwd = pwd;
+                task.m_hint = hint;
+                if (task.m_dirty != null && dirty != null)
+                    task.m_dirty.merge(dirty);
+                else
+                    task.m_dirty = null;
+                task.m_listeners.add(listener);
+                return;
+            }
+
+            task = new SaveTask(file, text, docMeta, pwd, hint, dirty, listener);
+            m_pendingSaves.put(path, task);
+            m_executor.execute(task);
+        }
+    }
+
+    /**
+     * Queued save request, fields are replaced while waiting in the queue.
+     */
+    private class SaveTask implements Runnable {
+        final File m_file;
+        CharSequence m_text;
+        Doc.DocMetadata m_docMeta;
+        String m_pwd;
+        String m_hint;
+        DirtyRange m_dirty;
+        final ArrayList<SaveListener> m_listeners = new ArrayList<SaveListener>(2);
+
+        SaveTask(File file, CharSequence text, Doc.DocMetadata docMeta, String pwd, String hint,
+                DirtyRange dirty, SaveListener listener) {
+            m_file = file;
+            m_text = text;
+            m_docMeta = docMeta;
+            m_pwd = pwd;
+            m_hint = hint;
+            m_dirty = dirty;
+            m_listeners.add(listener);
+        }
+
+        @Override
+        public void run() {
+            final Doc.DocMetadata docMeta;
+            final CharSequence text;
+            String pwd;
+            String hint;
+            DirtyRange dirty;
+            KeyChange change;
+            String path = m_file.getAbsolutePath();
+            synchronized (m_pendingSaves) {
+                m_pendingSaves.remove(path);
+                docMeta = m_docMeta;
+                text = m_text;
+                pwd = m_pwd;
+                hint = m_hint;
+                dirty = m_dirty;
+                // Metadata copied before a password change completed still holds the old key.
+                change = m_keyChanges.get(path);
+                if (pwd == null && change != null) {
+                    pwd = change.pwd;
+                    if (change.hint != null)
+                        hint = change.hint;
+                } else if (pwd != null && (change == null || !pwd.equals(change.pwd))) {
+                    change = new KeyChange(pwd, null, null);
+                    m_keyChanges.put(path, change);
+                }
+            }
+            if (m_needFullSave.contains(path))
+                dirty = null;
+
+            Exception error = null;
+            Doc doc = null;
+            try {
+                // Key derivation can be slow, cached per password and salt for the session.
+                byte[] prevKey = docMeta.key;
+                if (pwd != null) {
+                    docMeta.setKey(pwd);
+                    DocSearchIndex.get().attach(docMeta.key, pwd);
+                    synchronized (m_pendingSaves) {
+                        change.key = docMeta.key.clone();
+                    }
+                }
+                doc = new Doc(text, docMeta);
+                doc.setPreviousKey(prevKey);    // Keep revision history across password change.
+                boolean incremental = doc.doSave(m_file, hint, dirty);
+                m_needFullSave.remove(path);
+                DocHeaderCache.get().getHeader(m_file);
+                if (incremental)
+                    DocCatalog.get().updateSaved(m_file, doc);
+                else
+                    DocCatalog.get().update(m_file, doc);
+                scheduleFlush();
+                if (incremental) {
+                    // Indexing is proportional to note size, refreshed when saves are idle.
+                    LogIt.log(DocIoService.class, LogIt.DEBUG, "Incremental save " + path + " " + dirty, null);
+                    m_staleIndex.put(path, new StaleIndex(m_file, text, docMeta.key));
+                    scheduleIndexRefresh();
+                } else {
+                    m_staleIndex.remove(path);
+                    DocSearchIndex.get().update(m_file, text, docMeta.key);
+                }
+            } catch (Exception ex) {
+                LogIt.log(DocIoService.class, LogIt.ERROR, "Save failed " + m_file, ex);
+                m_needFullSave.add(path);
+                error = ex;
+            }
+
+            final Exception saveEx = error;
+            m_uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (SaveListener listener : m_listeners) {
+                        if (saveEx == null)
+                            listener.onSaved(m_file, docMeta);
+                        else
+                            listener.onSaveFailed(m_file, saveEx);
+                    }
+                }
+            });
+
+            // Keep small notes warm for reopen, large ones are cached again on next open.
+            if (error == null && text.length() <= DocCache.SAVE_MAX_CHARS)
+                DocCache.get().put(m_file, doc);
+            else
+                DocCache.get().remove(m_file);
+        }
+    }
+}
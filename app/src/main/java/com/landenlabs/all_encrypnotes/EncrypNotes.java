@@ -65,6 +65,9 @@ import com.landenlabs.all_encrypnotes.ui.YesNoDialog;
 import com.landenlabs.all_encrypnotes.util.AppCrash;
 import com.landenlabs.all_encrypnotes.util.GoogleAnalyticsHelper;
 
+import java.io.File;
+import java.util.zip.Deflater;
+
 /**
  * Encrypted Notepad based off work from Ivan Voras
  * 
@@ -91,10 +94,15 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
     private View       m_titleBar;
     private ScrollView m_mainScroll;
     private EditText   m_mainText;
+    private WindowedEditor m_editor;
     private MenuItem   m_menuParanoid;
     private MenuItem   m_menuGlobalPwd;
     private MenuItem   m_menuInvertBg;
 
+    private static final String DOC_HEADER_CACHE = "doc_headers.cache";
+    private static final String DOC_CATALOG = "notes.catalog";
+    private static final String METRICS_TAG = "DocMetrics";
+
     public static final int HNDMSG_LOAD_DONE = 1;
     public static final int HNDMSG_SAVE_DONE = 2;
     private final Handler m_handler = new Handler() {
@@ -128,6 +136,14 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
     private SendLoadDoneMsg mSendLoadDoneMsg = new SendLoadDoneMsg();
     private SendSaveDoneMsg mSendSaveDoneMsg = new SendSaveDoneMsg();
 
+    // Save named documents shortly after typing pauses, only modified chunks are rewritten.
+    private final AutoSaver m_autoSaver = new AutoSaver(m_handler, new Runnable() {
+        @Override
+        public void run() {
+            m_docFileDialog.autoSave(m_mainText, mSendSaveDoneMsg);
+        }
+    });
+
     private GoogleAnalyticsHelper mAnalytics;
 
     // ========================================================================
@@ -152,11 +168,41 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
         m_mainText = (EditText) this.findViewById(R.id.main_text);
         m_mainTextSize = m_mainText.getTextSize();
         m_mainScroll = (ScrollView) this.findViewById(R.id.main_scroll);
+        m_editor = new WindowedEditor(m_mainText, m_mainScroll);
 
         LogIt.setDebugMode(getApplicationInfo());
+        DocLog.setLogger(new DocLog.Logger() {
+            @Override
+            public void log(Class<?> cls, int level, String message, Throwable tr) {
+                LogIt.log(cls, level, message, tr);
+            }
+        });
+        DocMetrics.setListener(new DocMetrics.Listener() {
+            @Override
+            public void onStage(int stage, long nanos, long bytes) {
+                LogIt.timing(METRICS_TAG, DocMetrics.getName(stage), nanos, bytes);
+            }
+        });
+        DocHeaderCache.get().setCacheFile(new File(getCacheDir(), DOC_HEADER_CACHE));
+        DocCatalog.get().setFile(new File(getCacheDir(), DOC_CATALOG));
+        DocSearchIndex.get().setIndexDir(DocFileDlg.getDir());
+        // Notes are small and saved often, favor speed, store pasted blobs which do not compress.
+        DocCodec.setDefault(DocCodec.deflate(Deflater.BEST_SPEED).adaptive());
+        m_homeWatcher.setOnHomePressedListener(new HomeWatcher.OnHomePressedListener() {
+            @Override
+            public void onHomePressed() {
+                wipeCacheIfParanoid();
+            }
+
+            @Override
+            public void onHomeLongPressed() {
+                wipeCacheIfParanoid();
+            }
+        });
 
         if (Util.fileExists(EncrypPrefs.PREFS_FILENAME))
             loadPrefs();
+        unlockCatalog();
 
         updateTitle();
         setupUI();
@@ -269,6 +315,18 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
         case R.id.menu_open:
             loadFile();
             return true;
+
+        case R.id.menu_search:
+            searchFiles();
+            return true;
+
+        case R.id.menu_rekey:
+            m_docFileDialog.showRekey(m_prefs);
+            return true;
+
+        case R.id.menu_revisions:
+            m_docFileDialog.showRevisions(m_mainText);
+            return true;
             
         case R.id.menu_save:
             saveFileUI(DocFileDlg.SAVE);
@@ -279,11 +337,11 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
             return true;
 
         case R.id.menu_email:
-            if (m_mainText.getText().length() == 0) {
+            if (m_editor.length() == 0) {
                 WebDialog.show(this, WebDialog.HTML_CENTER_BOX, "<h2>Nothing to save</h2>");
                 return false;
             }
-            Email.send(this, "to@gmail.com", "EncrypNotes", m_mainText.getText().toString());
+            Email.send(this, "to@gmail.com", "EncrypNotes", m_editor.getText());
             return true;
 
         case R.id.menu_about:
@@ -326,10 +384,10 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
             ClipboardManager cMan = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
             switch (item.getItemId()) {
             case R.id.menu_copy:
-                if (m_mainText.length() != 0) {
-                    ClipData clip = ClipData.newPlainText("simple text", m_mainText.getText());
+                if (m_editor.length() != 0) {
+                    ClipData clip = ClipData.newPlainText("simple text", m_editor.getText());
                     cMan.setPrimaryClip(clip);
-                    YesNoDialog.showOk(this, "Copied " + m_mainText.length() + " characters");
+                    YesNoDialog.showOk(this, "Copied " + m_editor.length() + " characters");
                 }
                 return true;
 
@@ -360,10 +418,12 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
                 return true;
 
             case R.id.menu_clear:
-                if (m_mainText.length() != 0) {
-                    ClipData clip = ClipData.newPlainText("simple text", m_mainText.getText());
+                if (m_editor.length() != 0) {
+                    ClipData clip = ClipData.newPlainText("simple text", m_editor.getText());
                     cMan.setPrimaryClip(clip);
-                    m_mainText.setText("");
+                    m_editor.setText("");
+                    m_docFileDialog.setModified(true);
+                    updateTitle();
                 }
 
                 return true;
@@ -372,6 +432,9 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
         case R.id.menu_info:
             m_docFileDialog.showInfo();
             break;
+        case R.id.menu_diagnostics:
+            m_docFileDialog.showDiagnostics();
+            break;
         }
         return false;
     }
@@ -393,8 +456,18 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
     }
     
     public void onPause() {
+        m_autoSaver.cancel();
         saveIfNeeded(false);
         m_prefs.save();
+        // Catalog and search index writes are deferred, persist them behind the quick save.
+        DocIoService.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                DocCatalog.get().flush();
+                DocSearchIndex.get().flush();
+            }
+        }, null);
+        wipeCacheIfParanoid();
 
         // Clear screen before saving - so thumbnail does not contain text.
         // This does not seem to work, so used FLAG_SECURE in onCreate()
@@ -403,10 +476,63 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
     }
     
     public void onResume() {
+        DocCache.get().setSuspended(false);
         m_mainText.setVisibility(View.VISIBLE);
         super.onResume();
     }
 
+    @Override
+    protected void onDestroy() {
+        // End of session, wipe derived keys.
+        if (isFinishing()) {
+            DocCache.get().clear();
+            Kdf.clearCache();
+            NoteCatalog.get().stop();
+            DocIoService.get().execute(new Runnable() {
+                @Override
+                public void run() {
+                    DocCatalog.get().flush();
+                    DocCatalog.get().lock();
+                    DocSearchIndex.get().close();
+                }
+            }, null);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Open the encrypted note catalog with the global password, key derivation runs on the I/O thread.
+     */
+    private void unlockCatalog() {
+        if (!m_prefs.Global_pwd_state || TextUtils.isEmpty(m_prefs.Global_pwd_value))
+            return;
+        final String pwd = m_prefs.Global_pwd_value;
+        DocIoService.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                DocCatalog.get().unlock(pwd);
+            }
+        }, null);
+    }
+
+    /**
+     * Paranoid mode keeps no opened notes or derived keys in memory while in background, even sealed.
+     * Saves and prefetches still queued may not cache again, the wipe repeats after them.
+     */
+    private void wipeCacheIfParanoid() {
+        if (!m_prefs.Paranoid)
+            return;
+        DocCache.get().setSuspended(true);
+        DocCache.get().clear();
+        DocIoService.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                DocCache.get().clear();
+                Kdf.clearCache();
+            }
+        }, null);
+    }
+
     /*
      * The problem: already saved files can be saved since we know both the filename and the
      * password. But new documents which are not yet saved have no such data associated with them.
@@ -466,7 +592,7 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
                 return;
         case -CLKMSG_SAVE_THEN_NEW:
             m_docFileDialog.Clear();
-            UiUtil.setText(m_mainText, "");
+            m_editor.setText("");
             updateTitle();
             break;
         case CLKMSG_SAVE_THEN_OPEN:
@@ -540,11 +666,12 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
             public void afterTextChanged(Editable s) {
                 // See UiUtil.setText, trick set to disable to indicate no text watcher. 
                 if (m_mainText.isEnabled()) {
-                    if (!m_docFileDialog.isModified()) {
-                        m_docFileDialog.setModified(true);
+                    if (!m_docFileDialog.isModified())
                         m_splashScreen.hide();
-                    }
+                    // Always mark, edit count tells background save if text changed.
+                    m_docFileDialog.setModified(true);
                     updateTitle();
+                    m_autoSaver.onEdit();
                 }
             }
 
@@ -552,6 +679,13 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
             }
 
             public void onTextChanged(CharSequence s, int start, int before, int count) {
+                m_editor.onTextChanged(s, start, before, count);
+            }
+        });
+        m_editor.setListener(new WindowedEditor.Listener() {
+            @Override
+            public void onTextChanged(int start, int before, int count) {
+                m_docFileDialog.onTextChanged(start, before, count);
             }
         });
 
@@ -629,8 +763,10 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
      * Ensure document directory exists.
      */
     private void ensureDocDir() {
-        if (m_docFileDialog.ensureDocDir())
+        if (m_docFileDialog.ensureDocDir()) {
+            m_docFileDialog.recoverSaves();
             return;
+        }
         YesNoDialog.showOk(this, "Cannot make directory " + m_docFileDialog.getDir().getName()
                 + "\nEnable write permissions.", CLKMSG_EXIT);
     }
@@ -663,19 +799,19 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
      * Prompt to save any active file, then clear buffer for new file.
      */
     private void newFile() {
-        if (m_docFileDialog.isModified() && m_mainText.length() != 0) {
+        if (m_docFileDialog.isModified() && m_editor.length() != 0) {
             FragmentTransaction ft = getFragmentManager().beginTransaction();
             YesNoDialog yesNoDialog = YesNoDialog.create("Save Changes", "Save changes ?", CLKMSG_SAVE_THEN_NEW, YesNoDialog.BTN_YES_NO);
             yesNoDialog.show(ft, "msgDialog");
         } else {
             m_docFileDialog.Clear();
-            UiUtil.setText(m_mainText, "");
+            m_editor.setText("");
             updateTitle();
         }
     }
 
     private void loadFile() {
-        if (m_docFileDialog.isModified() && m_mainText.length() != 0) {
+        if (m_docFileDialog.isModified() && m_editor.length() != 0) {
             YesNoDialog.showDialog(this, "Save Changes", "Save changes ?", CLKMSG_SAVE_THEN_OPEN, YesNoDialog.BTN_YES_NO);
             // FragmentTransaction ft = getFragmentManager().beginTransaction();
             // YesNoDialog yesNoDialog = YesNoDialog.create("Save Changes", "Save changes ?", CLKMSG_SAVE_THEN_OPEN, YesNoDialog.BTN_YES_NO);
@@ -685,6 +821,17 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
         }
     }
     
+    /**
+     * Search encrypted index of saved documents, selected hit replaces current document.
+     */
+    private void searchFiles() {
+        if (m_docFileDialog.isModified() && m_editor.length() != 0) {
+            WebDialog.show(this, WebDialog.HTML_CENTER_BOX, "<h2>Save changes before searching</h2>");
+        } else {
+            m_docFileDialog.showSearch(m_prefs, m_mainText, mSendLoadDoneMsg);
+        }
+    }
+
     /**
      * Prompt for file to save text to.
      * 
@@ -693,7 +840,7 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
      */
     private void saveFileUI(int saveMode) {
 
-        if (m_mainText.getText().length() == 0) {
+        if (m_editor.length() == 0) {
             WebDialog.show(this, WebDialog.HTML_CENTER_BOX, "<h2>Nothing to save</h2>");
             return;
         }
@@ -722,7 +869,7 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
     private void aboutBox() {
         // wv.loadUrl("file:///android_asset/about.html");
         String htmlStr = String.format(UiUtil.LoadData(this, "about.html"), UiUtil.getPackageInfo(this).versionName,
-                Doc.CRYPTO_MODE);
+                Doc.CRYPTO_MODE_AEAD);
         WebDialog.show(this, WebDialog.HTML_CENTER_BOX, htmlStr);
     }
  
@@ -803,6 +950,7 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
                 m_prefs.Global_pwd_value = pwdText.getText().toString();
                 m_prefs.Global_pwd_state = true;
                 m_prefs.save();
+                unlockCatalog();
                 dlg.dismiss();
             }
         });
@@ -838,7 +986,7 @@ public class EncrypNotes extends Activity implements DlgClickListener, OnSeekBar
                 m_docFileDialog.getName();
                             
         final int lineCnt = m_mainText.getLineCount();
-        final int charCnt = m_mainText.length();
+        final int charCnt = m_editor.length();
         this.setTitle(getResources().getString(R.string.app_title, fname, charCnt));
 
         if (m_titleBar == null) {
@@ -47,10 +47,21 @@ import java.util.ArrayList;
  */
 public class FileListAdapter extends ArrayAdapter<String> implements View.OnClickListener,  View.OnLongClickListener  {
 
+    static final int PAGE_SIZE = 100;
+
     private final File m_storagePath;
     private final String m_ext;
     private final DateFormat m_dateFormat;
     private final int m_dialogHeight;
+    private final HeaderLoader m_loader;
+
+    // Sorted and filtered notes shown a page at a time, m_pageOffset is -1 once all pages are added.
+    private DocSortIndex m_index;
+    private int m_sortKey = DocSortIndex.SORT_NAME;
+    private boolean m_descending;
+    private String m_filter;
+    private int m_pageOffset = -1;
+    private boolean m_pageQueued;
     
     /**
      * File List Adapter - Present list of file names with modify date and file length.
@@ -72,6 +83,19 @@ public class FileListAdapter extends ArrayAdapter<String> implements View.OnClic
         m_ext = ext;
         m_dateFormat = dateFormat;
         m_dialogHeight = dialogHeight;
+        m_loader = new HeaderLoader(new HeaderLoader.Binder() {
+            @Override
+            public void onHeader(View row, File file, DocHeaderCache.Header header) {
+                bindHeader(row, header, false);
+            }
+        });
+    }
+
+    /**
+     * Stop loading row headers, call when the list is dismissed.
+     */
+    public void close() {
+        m_loader.close();
     }
 
     AdapterView.OnItemLongClickListener m_onItemLongClickListener;
@@ -84,12 +108,71 @@ public class FileListAdapter extends ArrayAdapter<String> implements View.OnClic
         m_onItemClickListener = clickList;
     }
 
+    /**
+     * Show notes after a directory scan. Sort and filter keys are gathered once here,
+     * from the catalog or header cache, then the current sort and filter are applied.
+     *
+     * @param allNames  Notes present, without extension.
+     */
+    public void setNames(String[] allNames) {
+        m_index = new DocSortIndex(m_storagePath, allNames, m_ext);
+        m_index.sort(m_sortKey, m_descending);
+        m_index.filter(m_filter);
+        showIndex();
+    }
+
+    /**
+     * Reorder notes without touching any note file.
+     *
+     * @param sortKey  DocSortIndex.SORT_NAME, SORT_MODIFIED, SORT_SIZE, SORT_TITLE, SORT_VERSION or SORT_HINT.
+     */
+    public void setSort(int sortKey, boolean descending) {
+        m_sortKey = sortKey;
+        m_descending = descending;
+        if (m_index != null) {
+            m_index.sort(sortKey, descending);
+            showIndex();
+        }
+    }
+
+    /**
+     * Show only notes whose name, hint, title or tags contain filter, case ignored.
+     *
+     * @param filter  Prefix or substring, null or empty for all.
+     */
+    public void setFilter(String filter) {
+        m_filter = filter;
+        if (m_index != null) {
+            m_index.filter(filter);
+            showIndex();
+        }
+    }
+
+    private void showIndex() {
+        setNotifyOnChange(false);
+        clear();
+        m_pageOffset = 0;
+        addPage();
+        notifyDataSetChanged();
+    }
+
+    private void addPage() {
+        int end = Math.min(m_index.size(), m_pageOffset + PAGE_SIZE);
+        for (int pos = m_pageOffset; pos < end; pos++)
+            add(m_index.getName(pos));
+        m_pageOffset = (end == m_index.size()) ? -1 : end;
+    }
+
     public void deleteFile(final String filename) {
         int pos = this.getPosition(filename);
 
         try {
             File file = new File(m_storagePath, filename + m_ext);
             file.delete();
+            NoteCatalog.get().onDeleted(file);
+            DocCatalog.get().remove(file);
+            DocHeaderCache.get().remove(file);
+            DocCache.get().remove(file);
             this.remove(filename);
         } catch (Exception ex) {
             Toast.makeText(this.getContext(), "Failed to delete file " + ex.getMessage(), Toast.LENGTH_LONG).show();
@@ -103,9 +186,13 @@ public class FileListAdapter extends ArrayAdapter<String> implements View.OnClic
             File fromFile = new File(m_storagePath, fromFilename + m_ext);
             File toFile = new File(m_storagePath, toFilename + m_ext);
             if (fromFile.renameTo(toFile)) {
+                NoteCatalog.get().onRenamed(fromFile, toFile);
+                DocCatalog.get().rename(fromFile, toFile);
+                DocHeaderCache.get().rename(fromFile, toFile);
+                DocCache.get().remove(fromFile);
+                // Keep row in place, the catalog refresh re-sorts it.
                 this.remove(fromFilename);
-                this.add(toFilename);
-                this.sort();
+                this.insert(toFilename, pos);
             } else {
                 Toast.makeText(this.getContext(), "Failed to rename file ", Toast.LENGTH_LONG).show();
             }
@@ -132,23 +219,28 @@ public class FileListAdapter extends ArrayAdapter<String> implements View.OnClic
     public String getInfoStr(final File file) {
         StringBuilder sb = new StringBuilder();
 
-        Doc doc = new Doc();
-        try {
-            doc.doOpen(file, null);
-            sb.append("\nVersion: ").append(doc.getVersion());
-            sb.append("\nHint: ").append(doc.getHint());
+        DocHeaderCache.Header header = DocHeaderCache.get().getHeader(file);
+        if (header != null) {
+            sb.append("\nVersion: ").append(header.version);
+            sb.append("\nHint: ").append(header.hint);
 
             // Doc Meta not available unless you have password.
             // Doc.DocMetadata docMetaData = doc.getDocMetadata();
             // sb.append(Doc.getInfoStr(docMetaData, m_dateFormat));
-        } catch (Exception ex) {
         }
 
-        return sb.toString();
-    }
+        // Encrypted catalog holds values from inside the note, available while unlocked.
+        DocCatalog.Entry entry = DocCatalog.get().getEntry(file.getName());
+        if (entry != null) {
+            sb.append("\nTitle: ").append(entry.title);
+            if (entry.tags.length() != 0)
+                sb.append("\nTags: #").append(entry.tags.replace(" ", " #"));
+            sb.append(String.format("\nCharacters: %,d", entry.chars));
+            if (entry.created != 0)
+                sb.append("\nCreated: ").append(m_dateFormat.format(entry.created));
+        }
 
-    public void sort() {
-        super.sort(String.CASE_INSENSITIVE_ORDER);
+        return sb.toString();
     }
 
     @SuppressLint("DefaultLocale")
@@ -159,6 +251,22 @@ public class FileListAdapter extends ArrayAdapter<String> implements View.OnClic
 
         itemView.setTag(Integer.valueOf(position));
 
+        // Add next catalog page when nearing the end, after this layout pass.
+        if (m_pageOffset >= 0 && !m_pageQueued && position >= getCount() - PAGE_SIZE / 4) {
+            m_pageQueued = true;
+            parent.post(new Runnable() {
+                @Override
+                public void run() {
+                    m_pageQueued = false;
+                    if (m_pageOffset >= 0) {
+                        setNotifyOnChange(false);
+                        addPage();
+                        notifyDataSetChanged();
+                    }
+                }
+            });
+        }
+
         // Once you set onLongClickListener it breaks the default onClick
         // behavior and requires that both click actions get handled via
         // custom code.
@@ -186,35 +294,34 @@ public class FileListAdapter extends ArrayAdapter<String> implements View.OnClic
         // TextView nameTv = (TextView) itemView.findViewById(R.id.fl_name);
         File file = new File(m_storagePath, item + m_ext);
 
+        // Bind cached header or a placeholder now, the loader validates the cached header
+        // or reads a missing one in background and rebinds. Recycled rows cancel old requests.
+        bindHeader(itemView, DocHeaderCache.get().peek(file), true);
+        m_loader.request(itemView, file);
+
+        return itemView;
+    }
+
+    /**
+     * @param loading  Header may still arrive, show a placeholder if none.
+     */
+    private void bindHeader(View itemView, DocHeaderCache.Header header, boolean loading) {
         TextView hintTv = UiUtil.viewById(itemView, R.id.fl_hint);
         TextView dateTv = UiUtil.viewById(itemView, R.id.fl_date);
         TextView vernTv = UiUtil.viewById(itemView, R.id.fl_version);
         TextView sizeTv = UiUtil.viewById(itemView, R.id.fl_size);
-        
-        if (file.exists()) {
-            // Get Hint and version.
-            String hint = "";
-            String version = "";
-            Doc doc = new Doc();
-            try {
-                doc.doOpen(file, null);
-                hint = doc.getHint();
-                version = doc.getVersion();
-            } catch (Exception ex) {
-            }
 
-            dateTv.setText(m_dateFormat.format(file.lastModified()));
-            sizeTv.setText(String.format("%,d", file.length()));
-            hintTv.setText(hint);
-            vernTv.setText(version);
+        if (header != null) {
+            dateTv.setText(m_dateFormat.format(header.lastModified));
+            sizeTv.setText(String.format("%,d", header.length));
+            hintTv.setText(header.hint);
+            vernTv.setText(header.version);
         } else {
             dateTv.setText("");
             sizeTv.setText("");
             vernTv.setText("");
-            hintTv.setText("");
+            hintTv.setText(loading ? "\u2026" : "");
         }
-            
-        return itemView;
     }
 
     // ============================================================================================
@@ -0,0 +1,155 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Loads document headers for list rows on a background thread.
+ * <p>
+ * Requests are served newest first, so rows scrolled into view load before rows
+ * already scrolled past. Rebinding a recycled row cancels its older request, a
+ * cancelled request still waiting is skipped and a finished one is not delivered.
+ * Only rows the list asks for are loaded, so a folder of thousands of notes opens
+ * at once.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+class HeaderLoader {
+
+    /**
+     * Header ready for row, called on UI thread.
+     */
+    interface Binder {
+        void onHeader(View row, File file, DocHeaderCache.Header header);
+    }
+
+    private static class Request {
+        final View row;
+        final File file;
+        volatile boolean cancelled;
+
+        Request(View row, File file) {
+            this.row = row;
+            this.file = file;
+        }
+    }
+
+    private static final Request STOP = new Request(null, null);
+
+    private final Binder m_binder;
+    private final Handler m_uiHandler = new Handler(Looper.getMainLooper());
+    private final LinkedBlockingDeque<Request> m_queue = new LinkedBlockingDeque<Request>();
+    private final HashMap<View, Request> m_pending = new HashMap<View, Request>();   // UI thread only.
+    private Thread m_thread;
+
+    HeaderLoader(Binder binder) {
+        m_binder = binder;
+    }
+
+    /**
+     * Load header of file for row, replacing any request still pending for row.
+     */
+    void request(View row, File file) {
+        Request old = m_pending.get(row);
+        if (old != null) {
+            if (old.file.equals(file))
+                return;
+            cancel(old);
+        }
+        Request request = new Request(row, file);
+        m_pending.put(row, request);
+        m_queue.offerFirst(request);
+        if (m_thread == null) {
+            m_thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "HeaderLoader");
+            m_thread.setPriority(Thread.NORM_PRIORITY - 1);
+            m_thread.start();
+        }
+    }
+
+    /**
+     * Cancel request pending for row, if any, when row is rebound to something without a header.
+     */
+    void cancel(View row) {
+        Request old = m_pending.remove(row);
+        if (old != null)
+            cancel(old);
+    }
+
+    /**
+     * Cancel all requests and end the worker, persists headers read so far.
+     */
+    void close() {
+        for (Request request : m_pending.values())
+            request.cancelled = true;
+        m_pending.clear();
+        m_queue.clear();
+        if (m_thread != null) {
+            m_queue.offerFirst(STOP);
+            m_thread = null;
+        }
+    }
+
+    private void cancel(Request request) {
+        request.cancelled = true;
+        m_queue.remove(request);
+    }
+
+    private void work() {
+        try {
+            for (;;) {
+                final Request request = m_queue.takeFirst();
+                if (request == STOP)
+                    break;
+                if (request.cancelled)
+                    continue;
+                final DocHeaderCache.Header header = DocHeaderCache.get().getHeader(request.file);
+                m_uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request.cancelled || m_pending.get(request.row) != request)
+                            return;
+                        m_pending.remove(request.row);
+                        m_binder.onHeader(request.row, request.file, header);
+                    }
+                });
+            }
+        } catch (InterruptedException ex) {
+            // Ended.
+        }
+        DocHeaderCache.get().flush();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.landenlabs.all_encrypnotes.ui.LogIt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * Sorted catalog of note names (without extension) in the storage directory.
+ * <p>
+ * The directory is listed once, then a FileObserver keeps the catalog current as notes
+ * are created, deleted or renamed, so showing the file list does no directory I/O.
+ * Renames and deletes done by the app update the catalog directly, the matching file
+ * events are then no-ops. If the directory itself goes away or the event queue
+ * overflows, the next {@link #getNames} lists it again.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class NoteCatalog {
+
+    /**
+     * Catalog changed, called on UI thread.
+     */
+    public interface Listener {
+        void onCatalogChanged();
+    }
+
+    /**
+     * Case insensitive name order, ties broken by case so names differing only in case are kept.
+     */
+    public static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            int cmp = String.CASE_INSENSITIVE_ORDER.compare(lhs, rhs);
+            return (cmp != 0) ? cmp : lhs.compareTo(rhs);
+        }
+    };
+
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static NoteCatalog s_instance;
+
+    private final Handler m_uiHandler = new Handler(Looper.getMainLooper());
+    private final TreeSet<String> m_names = new TreeSet<String>(NAME_ORDER);
+    private final ArrayList<Listener> m_listeners = new ArrayList<Listener>(2);
+    private String[] m_sorted;          // Array of m_names, null after a change.
+    private File m_dir;
+    private String m_ext;
+    private DirObserver m_observer;     // Referenced here, a collected FileObserver stops watching.
+    private boolean m_scanned;
+    private boolean m_rewatch;          // Directory was deleted or moved, watch again before listing.
+
+    /**
+     * @return Application wide note catalog.
+     */
+    public static synchronized NoteCatalog get() {
+        if (s_instance == null)
+            s_instance = new NoteCatalog();
+        return s_instance;
+    }
+
+    /**
+     * Watch directory for notes with extension, listed on first use. Can be called on any thread.
+     */
+    public synchronized void start(File dir, String ext) {
+        if (m_observer != null && dir.equals(m_dir) && ext.equals(m_ext))
+            return;
+        stop();
+        m_dir = dir;
+        m_ext = ext;
+        m_scanned = false;
+        m_names.clear();
+        m_sorted = null;
+        // Watch before listing so no change falls between the two.
+        m_observer = new DirObserver(dir.getPath());
+        m_observer.startWatching();
+    }
+
+    public synchronized void stop() {
+        if (m_observer != null) {
+            m_observer.stopWatching();
+            m_observer = null;
+        }
+    }
+
+    /**
+     * @return Sorted note names, lists the directory only on first use or after the
+     * watch was lost. Do not modify the returned array.
+     */
+    public synchronized String[] getNames() {
+        if (m_dir == null)
+            return new String[0];
+        if (!m_scanned)
+            scan();
+        if (m_sorted == null)
+            m_sorted = m_names.toArray(new String[m_names.size()]);
+        return m_sorted;
+    }
+
+    /**
+     * @return Files of the sorted note names.
+     */
+    public File[] getFiles() {
+        String[] names = getNames();
+        File[] files = new File[names.length];
+        for (int idx = 0; idx < names.length; idx++)
+            files[idx] = new File(m_dir, names[idx] + m_ext);
+        return files;
+    }
+
+    public synchronized void addListener(Listener listener) {
+        m_listeners.add(listener);
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        m_listeners.remove(listener);
+    }
+
+    /**
+     * Note deleted by the app.
+     */
+    public void onDeleted(File file) {
+        update(file.getParentFile(), file.getName(), false);
+    }
+
+    /**
+     * Note renamed by the app.
+     */
+    public void onRenamed(File fromFile, File toFile) {
+        update(fromFile.getParentFile(), fromFile.getName(), false);
+        update(toFile.getParentFile(), toFile.getName(), true);
+    }
+
+    private void scan() {
+        if (m_rewatch && m_observer != null) {
+            m_observer.stopWatching();
+            m_observer.startWatching();
+        }
+        m_rewatch = false;
+        m_names.clear();
+        m_sorted = null;
+        String[] files = m_dir.list();
+        if (files != null) {
+            for (String filename : files) {
+                if (filename.endsWith(m_ext))
+                    m_names.add(filename.substring(0, filename.length() - m_ext.length()));
+            }
+        }
+        m_scanned = true;
+        LogIt.log(NoteCatalog.class, LogIt.DEBUG, "Scanned " + m_names.size() + " notes", null);
+    }
+
+    private void update(File dir, String filename, boolean present) {
+        synchronized (this) {
+            if (m_dir == null || !m_scanned || filename == null || !filename.endsWith(m_ext)
+                    || (dir != null && !dir.equals(m_dir)))
+                return;
+            String name = filename.substring(0, filename.length() - m_ext.length());
+            boolean changed = present ? m_names.add(name) : m_names.remove(name);
+            if (!changed)
+                return;
+            m_sorted = null;
+        }
+        notifyChanged();
+    }
+
+    private void invalidate() {
+        synchronized (this) {
+            m_scanned = false;
+            m_sorted = null;
+            m_rewatch = true;
+        }
+        notifyChanged();
+    }
+
+    private void notifyChanged() {
+        m_uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener[] listeners;
+                synchronized (NoteCatalog.this) {
+                    listeners = m_listeners.toArray(new Listener[m_listeners.size()]);
+                }
+                for (Listener listener : listeners)
+                    listener.onCatalogChanged();
+            }
+        });
+    }
+
+    /**
+     * Directory watch, events arrive on the FileObserver thread.
+     */
+    private class DirObserver extends FileObserver {
+        DirObserver(String path) {
+            super(path, EVENTS);
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            switch (event & FileObserver.ALL_EVENTS) {
+            case FileObserver.CREATE:
+            case FileObserver.MOVED_TO:
+                update(null, path, true);
+                break;
+            case FileObserver.DELETE:
+            case FileObserver.MOVED_FROM:
+                update(null, path, false);
+                break;
+            case FileObserver.DELETE_SELF:
+            case FileObserver.MOVE_SELF:
+                invalidate();
+                break;
+            default:
+                // Queue overflow has no path, changes may be lost.
+                if (path == null)
+                    invalidate();
+                break;
+            }
+        }
+    }
+}
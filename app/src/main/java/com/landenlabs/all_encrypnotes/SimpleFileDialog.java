@@ -76,8 +76,8 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
 public class SimpleFileDialog {
 
@@ -109,9 +109,12 @@ public class SimpleFileDialog {
     private String m_dir = "";
     // private String m_ext = "";
     private List<String> m_subdirs = null;
+    private int m_upEntries;    // 1 when ".." is pinned at the top of m_subdirs.
     private SimpleFileDialogListener m_simpleFileDialogListener = null;
     private ArrayAdapter<String> m_listAdapter = null;
     private int m_dialogHeight;
+    private DirLister m_dirLister;
+    private HeaderLoader m_headerLoader;
     
     // Callback interface for selected directory
     public interface SimpleFileDialogListener {
@@ -164,12 +167,23 @@ public class SimpleFileDialog {
         }
 
         m_dir = dir;
-        m_subdirs = getDirList(dir);
+        m_subdirs = new ArrayList<String>();
+
+        // Patterns compiled once per dialog, listing runs in background.
+        m_dirLister = new DirLister(ShowDirs ? Pattern.compile(DirPattern) : null,
+                (ShowFiles && m_selectType != FolderChoose) ? Pattern.compile(FilePattern) : null);
+        m_headerLoader = new HeaderLoader(new HeaderLoader.Binder() {
+            @Override
+            public void onHeader(View row, File file, DocHeaderCache.Header header) {
+                bindHeader(row, header);
+            }
+        });
 
         class SimpleFileDialogOnClickListener implements OnClickListener {
             public void onClick(DialogInterface dialog, int itemIdx) {
                 String orgDir = m_dir;
                 String sel = "" + ((AlertDialog) dialog).getListView().getAdapter().getItem(itemIdx);
+                boolean isDir = sel.equals("..") || sel.charAt(0) == '/';
                 if (sel.charAt(0) == '/')
                     sel = sel.substring(1, sel.length());
 
@@ -181,7 +195,7 @@ public class SimpleFileDialog {
                 }
                 m_selectedFileName = DefaultFileName;
 
-                if ((new File(m_dir).isFile())) // If the selection is a regular file
+                if (!isDir) // If the selection is a regular file
                 {
                     m_dir = orgDir;
                     m_selectedFileName = sel;
@@ -213,9 +227,17 @@ public class SimpleFileDialog {
         }).setNegativeButton("Cancel", null);
 
         final AlertDialog dirsDialog = dialogBuilder.create();
+        dirsDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialog) {
+                m_dirLister.close();
+                m_headerLoader.close();
+            }
+        });
 
         // Show directory chooser dialog
         dirsDialog.show();
+        listDirectory();
     }
 
     private boolean createSubDir(String newDir) {
@@ -225,41 +247,50 @@ public class SimpleFileDialog {
     }
 
     /**
-     * Get Directory List (optionally subDir and/or files)
+     * Start background listing of m_dir (optionally subDir and/or files), entries are
+     * merged into the list as they arrive.
      * See ShowFiles, FilePattern, ShowDir, DirPattern
-     *
-     * @param dir
-     *          Start directory scan at 'dir'
-     * @return
-     *          List of directory entries (files and/or directories)
      */
-    private List<String> getDirList(String dir) {
-        List<String> dirs = new ArrayList<String>();
-        try {
-            File dirFile = new File(dir);
+    private void listDirectory() {
+        m_subdirs.clear();
 
-            // If directory is not the base sd card directory add ".." for going up one directory
-            if (!m_dir.equals(m_sdcardDirectory) && ShowDirs)
-                dirs.add("..");
+        // If directory is not the base sd card directory add ".." for going up one directory
+        m_upEntries = 0;
+        if (!m_dir.equals(m_sdcardDirectory) && ShowDirs) {
+            m_subdirs.add("..");
+            m_upEntries = 1;
+        }
+        m_titleView.setText(m_dir + " \u2026");
+        m_listAdapter.notifyDataSetChanged();
 
-            for (File file : dirFile.listFiles()) {
-                if (file.isDirectory()) {
-                    if (ShowDirs && file.getName().matches(DirPattern)) {
-                        // Add "/" to directory names to identify them in the list
-                        dirs.add("/" + file.getName());
-                    }
-                } else if (m_selectType == FileSave || m_selectType == FileOpen) {
-                    // Add file names to the list if we are doing a file save or file open operation
-                    if (ShowFiles && file.getName().matches(FilePattern)) {
-                        dirs.add(file.getName());
-                    }
-                }
+        m_dirLister.list(m_dir, new DirLister.Listener() {
+            @Override
+            public void onEntries(List<String> entries, boolean done) {
+                mergeEntries(entries);
+                m_listAdapter.notifyDataSetChanged();
+                if (done)
+                    m_titleView.setText(m_dir);
             }
-        } catch (Exception e) {
-        }
+        });
+    }
 
-        Collections.sort(dirs, String.CASE_INSENSITIVE_ORDER);
-        return dirs;
+    /**
+     * Merge a sorted batch into the sorted entries below "..", one pass over both.
+     */
+    private void mergeEntries(List<String> entries) {
+        List<String> listed = m_subdirs.subList(m_upEntries, m_subdirs.size());
+        List<String> merged = new ArrayList<String>(listed.size() + entries.size());
+        int i = 0, j = 0;
+        while (i < listed.size() && j < entries.size()) {
+            if (String.CASE_INSENSITIVE_ORDER.compare(entries.get(j), listed.get(i)) < 0)
+                merged.add(entries.get(j++));
+            else
+                merged.add(listed.get(i++));
+        }
+        merged.addAll(listed.subList(i, listed.size()));
+        merged.addAll(entries.subList(j, entries.size()));
+        listed.clear();
+        m_subdirs.addAll(merged);
     }
 
     //////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -361,10 +392,7 @@ public class SimpleFileDialog {
     }
 
     private void updateDirectory() {
-        m_subdirs.clear();
-        m_subdirs.addAll(getDirList(m_dir));
-        m_titleView.setText(m_dir);
-        m_listAdapter.notifyDataSetChanged();
+        listDirectory();
 
         if (m_selectType == FileSave || m_selectType == FileOpen) {
             m_inputText.setText(m_selectedFileName);
@@ -386,42 +414,41 @@ public class SimpleFileDialog {
                     itemView.setLayoutParams(params);
                 }
                 
-                File file = new File(m_dir, item);
-
                 TextView nameTv = UiUtil.viewById(itemView, R.id.fl_name);
-                TextView dateTv = UiUtil.viewById(itemView, R.id.fl_date);
-                TextView sizeTv = UiUtil.viewById(itemView, R.id.fl_size);
-                TextView hintTv = UiUtil.viewById(itemView, R.id.fl_hint);
-                TextView vernTv = UiUtil.viewById(itemView, R.id.fl_version);
-                
                 if (!ShowExt)
                     nameTv.setText(item.replaceAll("\\..*", ""));
-                
-                if (file.exists()) {
-                    // Get Hint and version.
-                    String hint = "";
-                    String version = "";
-                    Doc doc = new Doc();
-                    try {
-                        doc.doOpen(file, null);
-                        hint = doc.getHint();
-                        version = doc.getVersion();
-                    } catch (Exception ex) {
-                    }
 
-                    dateTv.setText(DateFmt.format(file.lastModified()));
-                    sizeTv.setText(String.format("%,d", file.length()));
-                    vernTv.setText(version);
-                    hintTv.setText(hint);
+                // Directories have no header, files bind a cached header now and load a missing one in background.
+                if (item.equals("..") || item.charAt(0) == '/') {
+                    m_headerLoader.cancel(itemView);
+                    bindHeader(itemView, null);
                 } else {
-                    dateTv.setText("");
-                    sizeTv.setText("");
-                    vernTv.setText("");
-                    hintTv.setText("");
+                    File file = new File(m_dir, item);
+                    bindHeader(itemView, DocHeaderCache.get().peek(file));
+                    m_headerLoader.request(itemView, file);
                 }
-                
+
                 return itemView;
             }
         };
     }
+
+    private void bindHeader(View itemView, DocHeaderCache.Header header) {
+        TextView dateTv = UiUtil.viewById(itemView, R.id.fl_date);
+        TextView sizeTv = UiUtil.viewById(itemView, R.id.fl_size);
+        TextView hintTv = UiUtil.viewById(itemView, R.id.fl_hint);
+        TextView vernTv = UiUtil.viewById(itemView, R.id.fl_version);
+
+        if (header != null) {
+            dateTv.setText(DateFmt.format(header.lastModified));
+            sizeTv.setText(String.format("%,d", header.length));
+            vernTv.setText(header.version);
+            hintTv.setText(header.hint);
+        } else {
+            dateTv.setText("");
+            sizeTv.setText("");
+            vernTv.setText("");
+            hintTv.setText("");
+        }
+    }
 }
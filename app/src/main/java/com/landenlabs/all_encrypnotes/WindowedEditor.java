@@ -0,0 +1,266 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import android.text.Layout;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
+import android.widget.ScrollView;
+
+import com.landenlabs.all_encrypnotes.ui.UiUtil;
+
+/**
+ * Editor mode for large notes. The whole note is held in a {@link PieceTable}, the
+ * EditText only holds a window of about {@link #WINDOW_CHARS} around the visible text.
+ * When scrolling gets near either end of the window it is moved, keeping the same text
+ * at the top of the screen.
+ * <p>
+ * Edits in the window are applied to the piece table and reported to the listener in
+ * document offsets. Notes shorter than {@link #LARGE_CHARS} are edited directly in the
+ * EditText as before.
+ * <p>
+ * Use the static helpers with the EditText so callers work in either mode.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class WindowedEditor {
+
+    public static final int LARGE_CHARS = 256 * 1024;
+    public static final int WINDOW_CHARS = 64 * 1024;
+    private static final int LINE_PROBE = 4096;     // Longest line moved to keep window line aligned.
+
+    /**
+     * Document change, same arguments as TextWatcher.onTextChanged in document offsets.
+     */
+    public interface Listener {
+        void onTextChanged(int start, int before, int count);
+    }
+
+    private final EditText m_editText;
+    private final ScrollView m_scroll;
+    private Listener m_listener;
+    private PieceTable m_table;     // Whole note in windowed mode, null otherwise.
+    private int m_winStart;         // Note offset of first window character.
+    private boolean m_moving;       // Window text being replaced, not an edit.
+
+    public WindowedEditor(EditText editText, ScrollView scroll) {
+        m_editText = editText;
+        m_scroll = scroll;
+        m_editText.setTag(R.id.windowed_editor, this);
+        m_scroll.getViewTreeObserver().addOnScrollChangedListener(new ViewTreeObserver.OnScrollChangedListener() {
+            @Override
+            public void onScrollChanged() {
+                checkEdges();
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        m_listener = listener;
+    }
+
+    /**
+     * @return Editor attached to EditText, null if none.
+     */
+    public static WindowedEditor of(EditText editText) {
+        return (WindowedEditor) editText.getTag(R.id.windowed_editor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Helpers which fall back to the plain EditText.
+
+    public static String getText(EditText editText) {
+        WindowedEditor editor = of(editText);
+        return (editor != null) ? editor.getText() : editText.getText().toString();
+    }
+
+    /**
+     * @return Text for a background save, an O(1) piece table snapshot in windowed mode.
+     */
+    public static CharSequence getSnapshot(EditText editText) {
+        WindowedEditor editor = of(editText);
+        return (editor != null && editor.isWindowed()) ? editor.m_table.snapshot() : editText.getText().toString();
+    }
+
+    public static void setText(EditText editText, String text) {
+        WindowedEditor editor = of(editText);
+        if (editor != null)
+            editor.setText(text);
+        else
+            UiUtil.setText(editText, text);
+    }
+
+    public static int length(EditText editText) {
+        WindowedEditor editor = of(editText);
+        return (editor != null) ? editor.length() : editText.length();
+    }
+
+    public static int getSelectionStart(EditText editText) {
+        WindowedEditor editor = of(editText);
+        return (editor != null) ? editor.getSelectionStart() : editText.getSelectionStart();
+    }
+
+    public static void setSelection(EditText editText, int pos) {
+        WindowedEditor editor = of(editText);
+        if (editor != null)
+            editor.setSelection(pos);
+        else
+            editText.setSelection(pos, pos);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public boolean isWindowed() {
+        return m_table != null;
+    }
+
+    /**
+     * @return Whole note.
+     */
+    public String getText() {
+        return (m_table != null) ? m_table.toString() : m_editText.getText().toString();
+    }
+
+    /**
+     * Replace whole note, large notes switch to windowed mode. Like UiUtil.setText the
+     * text watcher sees a disabled view, the listener is told the whole note changed.
+     */
+    public void setText(String text) {
+        int oldLen = length();
+        if (text.length() < LARGE_CHARS) {
+            boolean wasWindowed = (m_table != null);
+            m_table = null;
+            m_winStart = 0;
+            m_moving = wasWindowed;
+            UiUtil.setText(m_editText, text);
+            m_moving = false;
+            if (wasWindowed && m_listener != null)
+                m_listener.onTextChanged(0, oldLen, text.length());
+            return;
+        }
+
+        m_table = new PieceTable(text);
+        showWindow(0, 0);
+        if (m_listener != null)
+            m_listener.onTextChanged(0, oldLen, text.length());
+    }
+
+    public int length() {
+        return (m_table != null) ? m_table.length() : m_editText.length();
+    }
+
+    public int getSelectionStart() {
+        return m_winStart + Math.max(0, m_editText.getSelectionStart());
+    }
+
+    /**
+     * Place caret at note offset, moving window if needed.
+     */
+    public void setSelection(int pos) {
+        pos = Math.max(0, Math.min(pos, length()));
+        if (m_table != null && (pos < m_winStart || pos > m_winStart + m_editText.length()))
+            showWindow(pos - WINDOW_CHARS / 2, pos);
+        m_editText.setSelection(pos - m_winStart, pos - m_winStart);
+    }
+
+    /**
+     * Call from the EditText watcher onTextChanged.
+     */
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (m_moving)
+            return;
+        if (m_table != null)
+            m_table.replace(m_winStart + start, m_winStart + start + before, s.subSequence(start, start + count));
+        if (m_listener != null)
+            m_listener.onTextChanged(m_winStart + start, before, count);
+    }
+
+    /**
+     * Move window when the visible text is within a screen of either window end.
+     */
+    private void checkEdges() {
+        if (m_table == null || m_moving)
+            return;
+        int scrollY = m_scroll.getScrollY();
+        int viewHeight = m_scroll.getHeight();
+        int winEnd = m_winStart + m_editText.length();
+        boolean nearTop = (scrollY < viewHeight && m_winStart > 0);
+        boolean nearBottom = (scrollY + 2 * viewHeight > m_editText.getBottom() && winEnd < m_table.length());
+        if (nearTop || nearBottom) {
+            int topPos = getTopPosition();
+            showWindow(topPos - WINDOW_CHARS / 2, topPos);
+        }
+    }
+
+    /**
+     * @return Note offset of first visible line.
+     */
+    private int getTopPosition() {
+        Layout layout = m_editText.getLayout();
+        if (layout == null)
+            return m_winStart;
+        int y = m_scroll.getScrollY() - m_editText.getTop() - m_editText.getTotalPaddingTop();
+        return m_winStart + layout.getLineStart(layout.getLineForVertical(Math.max(0, y)));
+    }
+
+    /**
+     * Fill EditText with window starting near winStart, then scroll so topPos is
+     * the first visible line. Caret is kept if still inside the window.
+     */
+    private void showWindow(int winStart, final int topPos) {
+        int length = m_table.length();
+        int start = Math.max(0, Math.min(winStart, length - WINDOW_CHARS));
+        start = m_table.lineStart(start, LINE_PROBE);
+        int end = Math.min(length, start + WINDOW_CHARS);
+        if (end != length) {
+            int lineEnd = m_table.lineStart(end, LINE_PROBE);
+            if (lineEnd > start)
+                end = lineEnd;
+        }
+
+        int caret = getSelectionStart();
+        m_moving = true;
+        UiUtil.setText(m_editText, m_table.substring(start, end));
+        m_moving = false;
+        m_winStart = start;
+        if (caret >= start && caret <= end)
+            m_editText.setSelection(caret - start);
+
+        // Scroll once the EditText has its new height.
+        m_scroll.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
+            @SuppressWarnings("deprecation")
+            @Override
+            public void onGlobalLayout() {
+                m_scroll.getViewTreeObserver().removeGlobalOnLayoutListener(this);
+                Layout layout = m_editText.getLayout();
+                int offset = topPos - m_winStart;
+                if (layout != null && offset >= 0 && offset <= m_editText.length()) {
+                    int y = layout.getLineTop(layout.getLineForOffset(offset));
+                    m_scroll.scrollTo(0, m_editText.getTop() + m_editText.getTotalPaddingTop() + y);
+                }
+            }
+        });
+    }
+}
@@ -102,6 +102,23 @@ public class LogIt {
         log(getTag(cls), level, message, t);
     }
 
+    public static boolean isLoggable(String tag, int level) {
+        return s_debugMode && Log.isLoggable(tag, level);
+    }
+
+    /**
+     * Structured timing event, logged at DEBUG as "event ms=.. bytes=..".
+     * Checks the level before building the message so disabled logging does not allocate.
+     */
+    public static void timing(String tag, String event, long nanos, long bytes) {
+        if (!isLoggable(tag, Log.DEBUG))
+            return;
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(event).append(" ms=").append(nanos / 1000000).append('.')
+                .append((nanos / 1000) % 1000 / 100).append(" bytes=").append(bytes);
+        Log.println(Log.DEBUG, tag, sb.toString());
+    }
+
     public static void log(String tag, int level, String message, Throwable t) {
         // Only log if build type is DEBUG
         if (s_debugMode && Log.isLoggable(tag, level)) {
@@ -0,0 +1,133 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the format 6 compression codecs against the GZIP path used by
+ * earlier formats.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CodecBenchmark {
+
+    /**
+     * Note size in bytes (UTF-8).
+     */
+    @Param({"1024", "1048576", "10485760"})
+    public int noteBytes;
+
+    /**
+     * Codec name, see {@link DocCodec#forName}. gzip is the baseline.
+     */
+    @Param({"gzip", "store", "deflate-1", "deflate-6", "deflate-9", "fast", "fast/adaptive", "deflate-6/adaptive"})
+    public String codec;
+
+    /**
+     * Note content, text (word list) or random printable characters (like pasted base64,
+     * deflate saves under 25%, adaptive codecs store it).
+     */
+    @Param({"text", "random"})
+    public String content;
+
+    private File m_dir;
+    private File m_openFile;
+    private File m_saveFile;
+    private String m_text;
+    private Doc.DocMetadata m_docMeta;
+    private DocCodec m_codec;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        m_dir = File.createTempFile("codecbench", "");
+        if (!m_dir.delete() || !m_dir.mkdir())
+            throw new IOException("Cannot create " + m_dir);
+
+        m_text = content.equals("random") ? makeRandomText(noteBytes) : DocBenchmark.makeText(noteBytes);
+        m_codec = DocCodec.forName(codec);
+        m_docMeta = new Doc.DocMetadata();
+        m_docMeta.filename = "bench.etxt";
+        m_docMeta.setKey(DocBenchmark.PWD);
+
+        m_openFile = new File(m_dir, "open.etxt");
+        m_saveFile = new File(m_dir, "save.etxt");
+        Doc doc = new Doc(m_text, m_docMeta);
+        doc.setCodec(m_codec);
+        doc.doSave(m_openFile, DocBenchmark.HINT, Doc.VERSION_FORMAT_CODEC);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        m_dir.delete();
+    }
+
+    @Benchmark
+    public boolean save() throws Exception {
+        Doc doc = new Doc(m_text, m_docMeta);
+        doc.setCodec(m_codec);
+        return doc.doSave(m_saveFile, DocBenchmark.HINT, Doc.VERSION_FORMAT_CODEC);
+    }
+
+    @Benchmark
+    public String open() throws Exception {
+        Doc doc = new Doc();
+        doc.doOpen(m_openFile, DocBenchmark.PWD);
+        return doc.getText();
+    }
+
+    /**
+     * Random printable characters, fixed seed.
+     */
+    static String makeRandomText(int bytes) {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(bytes);
+        while (sb.length() < bytes)
+            sb.append((char) (0x21 + random.nextInt(0x5e)));
+        return sb.toString();
+    }
+}
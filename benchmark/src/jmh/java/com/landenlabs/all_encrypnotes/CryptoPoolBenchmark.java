@@ -0,0 +1,138 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of bulk opens of small notes with and without {@link CryptoPool}.
+ * <p>
+ * Each invocation opens {@link #NOTE_COUNT} notes in a loop, times are per note.
+ * With pooled=false every open looks up the Cipher and MessageDigest providers again.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoPoolBenchmark {
+
+    static final int NOTE_COUNT = 10000;
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    /**
+     * Note size in bytes (UTF-8).
+     */
+    @Param({"256", "4096"})
+    public int noteBytes;
+
+    /**
+     * File format, 3 single stream AES-CBC, 6 chunked AES-GCM.
+     */
+    @Param({"3", "6"})
+    public byte format;
+
+    private File m_dir;
+    private File[] m_files;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        m_dir = File.createTempFile("poolbench", "");
+        if (!m_dir.delete() || !m_dir.mkdir())
+            throw new IOException("Cannot create " + m_dir);
+
+        Doc.DocMetadata docMeta = new Doc.DocMetadata();
+        docMeta.filename = "bench.etxt";
+        if (format < Doc.VERSION_FORMAT_CHUNKED)
+            docMeta.setKey(DocBenchmark.PWD, Kdf.LEGACY);
+        else
+            docMeta.setKey(DocBenchmark.PWD);
+        File first = new File(m_dir, "note0.etxt");
+        new Doc(DocBenchmark.makeText(noteBytes), docMeta).doSave(first, DocBenchmark.HINT, format);
+
+        // Same note copied, saving 10k notes would mostly measure fsync.
+        byte[] data = new byte[(int) first.length()];
+        FileInputStream in = new FileInputStream(first);
+        try {
+            if (in.read(data) != data.length)
+                throw new IOException("Short read " + first);
+        } finally {
+            in.close();
+        }
+        m_files = new File[NOTE_COUNT];
+        m_files[0] = first;
+        for (int idx = 1; idx < NOTE_COUNT; idx++) {
+            m_files[idx] = new File(m_dir, "note" + idx + ".etxt");
+            FileOutputStream out = new FileOutputStream(m_files[idx]);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+        CryptoPool.setEnabled(pooled);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CryptoPool.setEnabled(true);
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        m_dir.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NOTE_COUNT)
+    public long openAll() throws Exception {
+        long total = 0;
+        for (File file : m_files) {
+            Doc doc = new Doc();
+            doc.doOpen(file, DocBenchmark.PWD);
+            total += doc.getText().length();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the document save and open pipeline (key check, AES, GZIP, file I/O).
+ * <p>
+ * Run with {@code ./gradlew :benchmark:jmh}. Throughput and sample time (p50..p99.99)
+ * are reported per note size and file format, the gc profiler adds allocation rate.
+ * Chunked formats use one crypto thread per core, pass {@code -XX:ActiveProcessorCount=N}
+ * in jvmArgs to measure scaling with core count.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DocBenchmark {
+
+    static final String PWD = "benchmark-pwd";
+    static final String BAD_PWD = "wrong-pwd";
+    static final String HINT = "bench";
+
+    /**
+     * Note size in bytes (UTF-8), 1 KB to 50 MB.
+     */
+    @Param({"1024", "65536", "1048576", "10485760", "52428800"})
+    public int noteBytes;
+
+    /**
+     * File format, 2 and 3 single stream, 4 chunked AES-CBC, 5 chunked AES-GCM,
+     * 6 chunked AES-GCM with default (GZIP) codec, see CodecBenchmark for other codecs.
+     */
+    @Param({"2", "3", "4", "5", "6"})
+    public byte format;
+
+    private File m_dir;
+    private File m_openFile;
+    private File m_saveFile;
+    private File m_editFile;
+    private String m_text;
+    private String m_editText;
+    private boolean m_edited;
+    private Doc.DocMetadata m_docMeta;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        m_dir = File.createTempFile("docbench", "");
+        if (!m_dir.delete() || !m_dir.mkdir())
+            throw new IOException("Cannot create " + m_dir);
+
+        m_text = makeText(noteBytes);
+        m_docMeta = new Doc.DocMetadata();
+        m_docMeta.filename = "bench.etxt";
+        // Format 2 and 3 only store the legacy key, key derivation is cached so not measured.
+        if (format < Doc.VERSION_FORMAT_CHUNKED)
+            m_docMeta.setKey(PWD, Kdf.LEGACY);
+        else
+            m_docMeta.setKey(PWD);
+
+        m_openFile = new File(m_dir, "open.etxt");
+        m_saveFile = new File(m_dir, "save.etxt");
+        new Doc(m_text, m_docMeta).doSave(m_openFile, HINT, format);
+
+        // One character changed mid document, saves alternate between the two texts.
+        int mid = m_text.length() / 2;
+        m_editText = m_text.substring(0, mid) + '#' + m_text.substring(mid + 1);
+        m_editFile = new File(m_dir, "edit.etxt");
+        new Doc(m_text, m_docMeta).doSave(m_editFile, HINT, format);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        m_dir.delete();
+    }
+
+    @Benchmark
+    public boolean save() throws Exception {
+        return new Doc(m_text, m_docMeta).doSave(m_saveFile, HINT, format);
+    }
+
+    /**
+     * Autosave of a one character edit, the current format only rewrites the touched
+     * chunk, older formats fall back to a full save.
+     */
+    @Benchmark
+    public boolean saveIncremental() throws Exception {
+        m_edited = !m_edited;
+        String text = m_edited ? m_editText : m_text;
+        DirtyRange dirty = new DirtyRange(text.length());
+        dirty.onTextChanged(text.length() / 2, 1, 1);
+        if (format != Doc.VERSION_FORMAT)
+            return new Doc(text, m_docMeta).doSave(m_editFile, HINT, format);
+        return new Doc(text, m_docMeta).doSave(m_editFile, HINT, dirty);
+    }
+
+    /**
+     * Open by file, notes of Doc.MAP_MIN_BYTES or more are memory mapped.
+     */
+    @Benchmark
+    public String open() throws Exception {
+        Doc doc = new Doc();
+        doc.doOpen(m_openFile, PWD);
+        return doc.getText();
+    }
+
+    /**
+     * Open through channel streams and positional reads, compare with open for mapped reads.
+     */
+    @Benchmark
+    public String openChannel() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(m_openFile, "r");
+        try {
+            Doc doc = new Doc();
+            doc.doOpen(raf.getChannel(), PWD);
+            return doc.getText();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Streaming save, no full plaintext copy, compare gc.alloc.rate.norm with save.
+     * Always writes the current format.
+     */
+    @Benchmark
+    public boolean saveStream() throws Exception {
+        return new Doc(null, m_docMeta).saveStream(m_saveFile, m_docMeta.key, m_text);
+    }
+
+    /**
+     * Streaming open read through a fixed char buffer.
+     */
+    @Benchmark
+    public long openStream() throws Exception {
+        Reader reader = new Doc().openStream(m_openFile, m_docMeta.key);
+        try {
+            char[] buf = new char[8192];
+            long total = 0;
+            int nread;
+            while ((nread = reader.read(buf)) > 0)
+                total += nread;
+            return total;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Header only open used by file list, reads hint and version.
+     */
+    @Benchmark
+    public String openHeaderOnly() throws Exception {
+        Doc doc = new Doc();
+        doc.doOpen(m_openFile, null);
+        return doc.getHint();
+    }
+
+    @Benchmark
+    public boolean openWrongPassword() throws Exception {
+        try {
+            new Doc().doOpen(m_openFile, BAD_PWD);
+            throw new IllegalStateException("Wrong password accepted");
+        } catch (Doc.DocPasswordException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Word text with repeats similar to notes, fixed seed so runs compress the same.
+     */
+    static String makeText(int bytes) {
+        String[] words = {"the", "note", "password", "meeting", "account", "number", "remember",
+                "call", "tomorrow", "list", "and", "of", "to", "pin", "code", "address", "bank"};
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(bytes + 16);
+        while (sb.length() < bytes) {
+            int wordCnt = 4 + random.nextInt(12);
+            for (int idx = 0; idx < wordCnt; idx++)
+                sb.append(words[random.nextInt(words.length)]).append(' ');
+            sb.append(random.nextInt(100000)).append('\n');
+        }
+        sb.setLength(bytes);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the UI thread cost of an edit followed by a save snapshot,
+ * as done by an auto save after typing.
+ * <p>
+ * model=string edits a StringBuilder and copies it to a String, model=pieces edits a
+ * {@link PieceTable} and takes an O(1) snapshot. saveText then encodes the snapshot
+ * to UTF-8, the work left to the background save.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PieceTableBenchmark {
+
+    @Param({"string", "pieces"})
+    public String model;
+
+    @Param({"262144", "4194304"})
+    public int docChars;
+
+    private StringBuilder m_builder;
+    private PieceTable m_table;
+    private CharSequence m_snapshot;
+    private final Random m_random = new Random(1);
+    private final OutputStream m_nullOut = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String text = DocBenchmark.makeText(docChars);
+        m_builder = new StringBuilder(text);
+        m_table = new PieceTable(text);
+        m_snapshot = "string".equals(model) ? text : m_table.snapshot();
+    }
+
+    @Benchmark
+    public int editSnapshot() {
+        if ("string".equals(model)) {
+            int pos = m_random.nextInt(m_builder.length());
+            m_builder.replace(pos, pos + 1, "ab");
+            m_snapshot = m_builder.toString();
+        } else {
+            int pos = m_random.nextInt(m_table.length());
+            m_table.replace(pos, pos + 1, "ab");
+            m_snapshot = m_table.snapshot();
+        }
+        return m_snapshot.length();
+    }
+
+    @Benchmark
+    public long saveText() throws Exception {
+        return DocStreams.writeUtf8(m_snapshot, 0, m_snapshot.length(), m_nullOut);
+    }
+}
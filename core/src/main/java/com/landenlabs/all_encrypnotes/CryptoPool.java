@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per thread cache of Cipher, MessageDigest and SecureRandom instances.
+ * <p>
+ * Provider lookup in getInstance and PRNG seeding cost more than encrypting a small note,
+ * so each thread keeps one idle instance per transformation or algorithm.
+ * {@link #acquireCipher} hands out the idle instance, or a new one when it is already
+ * out, the caller must init it. {@link #releaseCipher} re-inits the instance with a zero
+ * key so the document key does not stay in the idle cipher. Instances which are never
+ * released (ciphers held by an open stream) are simply not reused.
+ * <p>
+ * Instances never move between threads, so none of them need locking.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class CryptoPool {
+
+    static final String RANDOM_ALG = "SHA1PRNG";
+
+    private static final SecretKeySpec WIPE_KEY = new SecretKeySpec(new byte[16], Doc.CRYPTO_ALG);
+    private static final byte[] WIPE_IV = new byte[16];
+
+    private static volatile boolean s_enabled = true;
+
+    /**
+     * Idle instances of one thread.
+     */
+    private static final class Slots {
+        final HashMap<String, Cipher> ciphers = new HashMap<String, Cipher>(4);
+        final HashMap<String, MessageDigest> digests = new HashMap<String, MessageDigest>(4);
+        SecureRandom random;
+    }
+
+    private static final ThreadLocal<Slots> s_slots = new ThreadLocal<Slots>() {
+        @Override
+        protected Slots initialValue() {
+            return new Slots();
+        }
+    };
+
+    /**
+     * Disable to get a new instance on every acquire, used by benchmarks to compare.
+     */
+    public static void setEnabled(boolean enabled) {
+        s_enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return s_enabled;
+    }
+
+    /**
+     * @return Uninitialized or previously released cipher, caller must init it.
+     */
+    static Cipher acquireCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (s_enabled) {
+            Cipher cipher = s_slots.get().ciphers.remove(transformation);
+            if (cipher != null)
+                return cipher;
+        }
+        return Cipher.getInstance(transformation);
+    }
+
+    /**
+     * Return cipher once its last doFinal or close is done, null is ignored.
+     * Any state from a failed operation is dropped by the wipe init.
+     */
+    static void releaseCipher(Cipher cipher) {
+        if (cipher == null || !s_enabled)
+            return;
+        String transformation = cipher.getAlgorithm();
+        try {
+            if (transformation.equals(Doc.CRYPTO_MODE_AEAD))
+                cipher.init(Cipher.DECRYPT_MODE, WIPE_KEY, Doc.gcmSpec(WIPE_IV));
+            else
+                cipher.init(Cipher.DECRYPT_MODE, WIPE_KEY, new IvParameterSpec(WIPE_IV));
+        } catch (GeneralSecurityException ex) {
+            return;     // Not reusable, let it go.
+        }
+        HashMap<String, Cipher> ciphers = s_slots.get().ciphers;
+        if (!ciphers.containsKey(transformation))
+            ciphers.put(transformation, cipher);
+    }
+
+    /**
+     * @return Reset digest, pass to {@link #releaseDigest} when done.
+     */
+    static MessageDigest acquireDigest(String algorithm) throws NoSuchAlgorithmException {
+        if (s_enabled) {
+            MessageDigest md = s_slots.get().digests.remove(algorithm);
+            if (md != null)
+                return md;
+        }
+        return MessageDigest.getInstance(algorithm);
+    }
+
+    static void releaseDigest(MessageDigest md) {
+        if (md == null || !s_enabled)
+            return;
+        md.reset();
+        HashMap<String, MessageDigest> digests = s_slots.get().digests;
+        if (!digests.containsKey(md.getAlgorithm()))
+            digests.put(md.getAlgorithm(), md);
+    }
+
+    /**
+     * @return Seeded random source of this thread, shared by all callers on the thread.
+     */
+    static SecureRandom getRandom() throws NoSuchAlgorithmException {
+        if (!s_enabled)
+            return newRandom();
+        Slots slots = s_slots.get();
+        if (slots.random == null)
+            slots.random = newRandom();
+        return slots.random;
+    }
+
+    private static SecureRandom newRandom() throws NoSuchAlgorithmException {
+        SecureRandom random = SecureRandom.getInstance(RANDOM_ALG);
+        random.nextBytes(new byte[1]);  // Self seeds on first use.
+        return random;
+    }
+}
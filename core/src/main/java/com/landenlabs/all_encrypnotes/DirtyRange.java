@@ -0,0 +1,127 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+/**
+ * Tracks the span of text modified since the last save, as an unchanged prefix
+ * and an unchanged suffix. Both are stable under further edits, so a sequence of
+ * edits collapses to a single range relative to the saved text.
+ * <p>
+ * Fed from {@code TextWatcher.onTextChanged(start, before, count)}.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DirtyRange {
+
+    private int m_baseLength;   // Text length when last saved.
+    private int m_length;       // Current text length.
+    private int m_prefix;       // Unchanged characters at start.
+    private int m_suffix;       // Unchanged characters at end.
+
+    public DirtyRange(int baseLength) {
+        reset(baseLength);
+    }
+
+    public DirtyRange(DirtyRange other) {
+        m_baseLength = other.m_baseLength;
+        m_length = other.m_length;
+        m_prefix = other.m_prefix;
+        m_suffix = other.m_suffix;
+    }
+
+    /**
+     * Mark text as saved (clean).
+     */
+    public synchronized void reset(int length) {
+        m_baseLength = m_length = m_prefix = m_suffix = length;
+    }
+
+    /**
+     * Record text replacement, same arguments as TextWatcher.onTextChanged.
+     *
+     * @param start   Start of change.
+     * @param before  Characters replaced.
+     * @param count   Characters inserted.
+     */
+    public synchronized void onTextChanged(int start, int before, int count) {
+        m_length += count - before;
+        m_prefix = Math.min(m_prefix, start);
+        m_suffix = Math.min(m_suffix, m_length - (start + count));
+        // Keep prefix and suffix from overlapping in either saved or current text.
+        m_suffix = Math.max(0, Math.min(m_suffix, Math.min(m_baseLength, m_length) - m_prefix));
+    }
+
+    /**
+     * Combine with a newer range recorded against the text this range ends at.
+     * Used when coalescing queued saves.
+     */
+    public synchronized void merge(DirtyRange newer) {
+        m_length = newer.m_length;
+        m_prefix = Math.min(m_prefix, newer.m_prefix);
+        m_suffix = Math.min(m_suffix, newer.m_suffix);
+        m_suffix = Math.max(0, Math.min(m_suffix, Math.min(m_baseLength, m_length) - m_prefix));
+    }
+
+    public synchronized boolean isDirty() {
+        return m_prefix != m_baseLength || m_suffix != m_baseLength || m_length != m_baseLength;
+    }
+
+    /**
+     * @return Text length when last saved.
+     */
+    public synchronized int getBaseLength() {
+        return m_baseLength;
+    }
+
+    public synchronized int getLength() {
+        return m_length;
+    }
+
+    /**
+     * @return Start of modified range, same in saved and current text.
+     */
+    public synchronized int getStart() {
+        return m_prefix;
+    }
+
+    /**
+     * @return Number of unchanged characters at end of text.
+     */
+    public synchronized int getSuffix() {
+        return m_suffix;
+    }
+
+    /**
+     * @return Characters of current text inside the modified range.
+     */
+    public synchronized int getChangedLength() {
+        return m_length - m_suffix - m_prefix;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[" + m_prefix + "," + (m_length - m_suffix) + ") of " + m_length + " was " + m_baseLength;
+    }
+}
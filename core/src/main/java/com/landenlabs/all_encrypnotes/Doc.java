@@ -0,0 +1,1252 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+/*
+ * (c) 2009.-2014. Ivan Voras <ivoras@fer.hr>
+ * Released under the 2-clause BSDL.
+ *
+ * Updated and rewritten by Dennis Lang 2015/2016.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Document abstraction; contains load and save encrypted file routines.
+ *
+ * @author Ivan Voras
+ * <br>WebSite: {@link http://sourceforge.net/projects/enotes/}
+ *
+ * Updated and rewritten by Dennis Lang 2015/2016
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ * 
+ */
+public class Doc {
+
+    static final byte[] SIGNATURE = {0x00, (byte) 0xff, (byte) 0xed, (byte) 0xed};
+    static final byte VERSION_FORMAT = 6;
+    static final byte VERSION_FORMAT_HAS_HINT = 2;
+    static final byte VERSION_FORMAT_HAS_HASH_LEN = 3;
+    static final byte VERSION_FORMAT_LEGACY = 3;        // Last single stream format.
+    static final byte VERSION_FORMAT_CHUNKED = 4;       // See DocChunks
+    static final byte VERSION_FORMAT_GCM = 5;           // Chunked, AES-GCM sealed chunks
+    static final byte VERSION_FORMAT_CODEC = 6;         // GCM chunks, compression codec in header
+    static final byte VERSION_MINOR = 5;                // Metadata layout, independent of format.
+    static final byte VERSION_MINOR_HAS_ENC = 2;
+    static final String ENC = "UTF-8"; //   Charsets.UTF_8 Java 1.7
+    static final int HISTORY_SAME_EDIT_MINUTES = 15;    // Same edit if changes made within these minutes
+    static final int HISTORY_MAX_ENTRIES = 10;
+    static final int HINT_MAX_LEN = 16;
+    static final int MAP_MIN_BYTES = 256 * 1024;        // Smaller files are read through streams.
+
+    // A mapped file cannot be replaced on Windows until the mapping is garbage collected.
+    private static final boolean s_canMap = !System.getProperty("os.name", "").startsWith("Windows");
+
+    // Cipher.updateAAD, needed by the GCM formats, exists from Android API 19.
+    private static final boolean s_hasAad = hasMethod(Cipher.class, "updateAAD", byte[].class);
+
+    public static class DocException extends Exception {
+
+        private static final long serialVersionUID = -8618217887516753754L;
+
+        /**
+         * Creates a new instance of <code>DocException</code> without detail message.
+         */
+        public DocException() {
+        }
+
+        /**
+         * Constructs an instance of <code>DocException</code> with the specified detail message.
+         *
+         * @param msg the detail message.
+         */
+        public DocException(String msg) {
+            super(msg);
+        }
+    }
+
+    public static class DocPasswordException extends DocException {
+
+        private static final long serialVersionUID = 8526674767186417815L;
+
+        /**
+         * Creates a new instance of <code>DocPasswordException</code> without detail message.
+         */
+        public DocPasswordException() {
+        }
+
+        /**
+         * Constructs an instance of <code>DocPasswordException</code> with the specified detail message.
+         *
+         * @param msg the detail message.
+         */
+        public DocPasswordException(String msg) {
+            super(msg);
+        }
+    }
+
+    public static class SaveMetadata implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        public long     timestamp;
+        public String   username;
+
+        public SaveMetadata(long timestamp, String username) {
+            this.timestamp = timestamp;
+            this.username = username;
+        }
+    }
+    
+    /**
+     * @author ivoras (original author, modified by Dennis Lang)
+     */
+    public static class DocMetadata implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public ArrayList<Doc.SaveMetadata> saveHistory = new ArrayList<Doc.SaveMetadata>();
+        public boolean modified = false;
+        public String filename;
+        public String hint;
+        public int caretPosition;
+        public byte[] key;
+        public Kdf.Spec kdf = Kdf.LEGACY;
+
+        void saveMetadata(DataOutputStream oStrm) throws IOException {
+            oStrm.writeInt(caretPosition);
+            oStrm.writeUTF(filename);
+
+            oStrm.writeInt(saveHistory.size());
+            for (SaveMetadata sm : saveHistory) {
+                oStrm.writeLong(sm.timestamp);
+                oStrm.writeUTF(sm.username);
+            }
+
+            // oStrm.writeUTF(hint);
+        }
+
+        void loadMetadata(DataInputStream iStrm, int minVer) throws IOException {
+            caretPosition = iStrm.readInt();
+            filename = iStrm.readUTF();
+
+            int nSave = iStrm.readInt();
+            saveHistory = new ArrayList<SaveMetadata>(nSave+1);
+            for (int idx = 0; idx < nSave; idx++)
+                saveHistory.add(new Doc.SaveMetadata(iStrm.readLong(), iStrm.readUTF()));
+
+            // hint = iStrm.readUTF();
+        }
+
+        void copyTo(DocMetadata other) {
+            other.caretPosition = caretPosition;
+            other.filename = filename;
+            other.hint = hint;
+            other.modified = modified;
+            other.key = (key == null) ? null : key.clone();
+            other.kdf = kdf;
+            other.saveHistory = new ArrayList<Doc.SaveMetadata>(saveHistory);
+        }
+        
+        /**
+         * Derive key with session KDF, reuses cached key if password already used this session.
+         */
+        public void setKey(String pwd) throws DocException {
+            setKey(pwd, Kdf.specForPassword(pwd));
+        }
+
+        public void setKey(String pwd, Kdf.Spec spec) throws DocException {
+            try {
+                key = Kdf.deriveKey(spec, pwd);
+                kdf = spec;
+            } catch (GeneralSecurityException ex) {
+                throw new DocException("Key derivation failed, " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Crypto mode to use while writing the file
+     */
+    public static final String CRYPTO_MODE = "AES/CBC/PKCS5Padding";
+
+    /**
+     * Authenticated crypto mode used for chunks of format 5 files.
+     */
+    public static final String CRYPTO_MODE_AEAD = "AES/GCM/NoPadding";
+    static final int GCM_TAG_BITS = 128;
+    static final int GCM_NONCE_LEN = 12;
+
+    /**
+     * The short name of the crypt algorithm used on the files
+     */
+    public static final String CRYPTO_ALG = "AES";
+
+    private byte m_verFormat = 0;
+    private byte m_verMinor = 0;
+    private long m_bodyPos = 0;
+    private byte[] m_randomBytes;
+    private String m_hint;
+    private PieceTable m_text;                          // Edits never change a snapshot given to a save.
+    private DocMetadata m_docMeta;
+    private DocCodec m_codec;                           // Codec for saves, null for DocCodec default.
+    private DocCodec m_fileCodec = DocCodec.GZIP;       // Codec of opened or saved file.
+    private byte[] m_prevKey;                           // Key of file being replaced, to carry its revisions.
+    private boolean m_newSession;                       // Save starts new edit session, store a revision.
+
+    /**
+     * @param text  Note text, null for none. A PieceTable is shared through a snapshot instead of copied.
+     */
+    public Doc(CharSequence text, DocMetadata docm) {
+        if (text instanceof PieceTable)
+            m_text = ((PieceTable) text).snapshot();
+        else
+            m_text = new PieceTable((text == null) ? "" : text.toString());
+        m_docMeta = docm;
+    }
+
+    public Doc() {
+        m_text = new PieceTable("");
+        m_docMeta = new DocMetadata();
+    }
+
+    public String getHint() {
+        return m_hint;
+    }
+
+    public String getVersion() {
+        return String.format("v%d.%d", m_verFormat, m_verMinor);
+    }
+
+    /**
+     * @return Compression codec of the opened file.
+     */
+    public DocCodec getCodec() {
+        return m_fileCodec;
+    }
+
+    /**
+     * Set compression used by full saves in format 6+, null to use {@link DocCodec#getDefault()}.
+     * Incremental saves keep the codec of the existing file, at this level if it is the same codec.
+     */
+    public void setCodec(DocCodec codec) {
+        m_codec = codec;
+    }
+
+    byte getVersionFormat() {
+        return m_verFormat;
+    }
+
+    byte getVersionMinor() {
+        return m_verMinor;
+    }
+
+    /**
+     * Set state of a document opened earlier without reading the file, see {@link DocCache}.
+     */
+    void setCachedOpen(byte verFormat, byte verMinor, DocCodec fileCodec, String hint, DocMetadata newdocm,
+            String newtext) {
+        m_verFormat = verFormat;
+        m_verMinor = verMinor;
+        m_fileCodec = fileCodec;
+        m_hint = hint;
+        setOpened(newdocm, newtext);
+    }
+
+    /**
+     * Set key the existing file was written with, when it differs from the key being saved.
+     * Revision history of the existing file is re-encrypted with the new key.
+     */
+    public void setPreviousKey(byte[] key) {
+        m_prevKey = key;
+    }
+
+    /**
+     * @param dir  Directory holding saved document.
+     */
+    public static String getInfoStr(File dir, Doc.DocMetadata docMetaData, DateFormat dataFormat) {
+        StringBuilder sb = new StringBuilder();
+
+        if (docMetaData != null ) {
+
+            try {
+                if (docMetaData.filename != null && docMetaData.filename.length() != 0) {
+                    sb.append("\nFile: ").append(docMetaData.filename);
+                    File file = new File(dir, docMetaData.filename);
+                    sb.append("\nLastMod: ").append(dataFormat.format(file.lastModified()));
+                    sb.append(String.format("\nSaved Length: %,d", file.length()));
+
+                    DocHeaderCache.Header header = DocHeaderCache.get().getHeader(file);
+                    if (header != null) {
+                        sb.append("\nVersion: ").append(header.version);
+                        if (header.hint.length() != 0)
+                            sb.append("\nHint: ").append(header.hint);
+                    }
+                } else {
+                    sb.append("\nNew Note\nNot saved");
+                }
+            } catch (Exception ex) {
+            }
+
+            if (docMetaData != null && docMetaData.saveHistory.size() != 0) {
+                sb.append("\nHistory: ");
+                for (Doc.SaveMetadata saveMetaData : docMetaData.saveHistory) {
+                    sb.append("\n ");
+                    sb.append(dataFormat.format(saveMetaData.timestamp));
+                    // sb.append(" ");
+                    // sb.append(saveMetaData.username);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Saves the currently edited document to the given file using the current format.
+     *
+     * @param outFile
+     * @return
+     * @throws java.io.FileNotFoundException
+     * @throws java.io.IOException
+     * @throws #DocPasswordException
+     */
+    public boolean doSave(File outFile, String hint) throws FileNotFoundException, IOException, DocPasswordException {
+        return doSave(outFile, hint, getSaveFormat());
+    }
+
+    /**
+     * @return Format of new saves, VERSION_FORMAT or VERSION_FORMAT_CHUNKED where AES-GCM is not usable.
+     */
+    public static byte getSaveFormat() {
+        return s_hasAad ? VERSION_FORMAT : VERSION_FORMAT_CHUNKED;
+    }
+
+    /**
+     * @return true if AES-GCM formats, {@link DocCache} and {@link DocCatalog} can be used.
+     */
+    public static boolean hasAead() {
+        return s_hasAad;
+    }
+
+    /**
+     * Saves the currently edited document to the given file. Document is written to a
+     * temp file, synced and renamed over outFile, see {@link SafeFile}.
+     *
+     * @param outFile
+     * @param verFormat  VERSION_FORMAT_CODEC, VERSION_FORMAT_GCM, VERSION_FORMAT_CHUNKED
+     *                   or older single stream format (2 or 3).
+     * @return
+     * @throws java.io.FileNotFoundException
+     * @throws java.io.IOException
+     * @throws #DocPasswordException
+     */
+    public boolean doSave(File outFile, String hint, byte verFormat)
+            throws FileNotFoundException, IOException, DocPasswordException {
+        return saveFile(outFile, hint, verFormat, m_text.snapshot());
+    }
+
+    /**
+     * Save text, which need not be a String (ex: editor buffer), in the current format.
+     * Text is encoded, compressed and encrypted through fixed size buffers so no full
+     * copy of the plaintext is made. Metadata and hint come from this document.
+     *
+     * @param key  Key derived with the document metadata key derivation (DocMetadata.kdf).
+     */
+    public boolean saveStream(File outFile, byte[] key, CharSequence text)
+            throws IOException, DocPasswordException {
+        m_docMeta.key = key;
+        return saveFile(outFile, m_docMeta.hint, getSaveFormat(), text);
+    }
+
+    private boolean saveFile(File outFile, String hint, byte verFormat, CharSequence text)
+            throws IOException, DocPasswordException {
+        long startNanos = DocMetrics.start();
+        SafeFile.recover(outFile);
+        File tmpFile = SafeFile.tempFile(outFile);
+        DocChunks.Reader prev = (verFormat >= VERSION_FORMAT_CHUNKED) ? openPrevious(outFile) : null;
+        RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+        boolean saved = false;
+        try {
+            writeDoc(raf.getChannel(), hint, verFormat, text, prev, outFile.lastModified());
+            SafeFile.force(raf.getChannel());
+            saved = true;
+        } finally {
+            raf.close();
+            if (prev != null)
+                prev.close();
+            if (!saved)
+                tmpFile.delete();
+        }
+        SafeFile.commit(tmpFile, outFile);
+        DocMetrics.stop(DocMetrics.SAVE, startNanos, outFile.length());
+        return true;
+    }
+
+    /**
+     * Open chunked file being replaced to carry over its revision history.
+     *
+     * @return Reader or null if file is missing, not chunked or written with another key.
+     */
+    private DocChunks.Reader openPrevious(File outFile) {
+        if (!outFile.exists())
+            return null;
+        byte[][] keys = {m_docMeta.key, m_prevKey};
+        for (int keyIdx = 0; keyIdx < keys.length; keyIdx++) {
+            byte[] key = keys[keyIdx];
+            if (key == null || (keyIdx != 0 && Arrays.equals(key, m_docMeta.key)))
+                continue;
+            try {
+                RandomAccessFile raf = new RandomAccessFile(outFile, "r");
+                try {
+                    Doc oldDoc = new Doc();
+                    if (oldDoc.openHeader(new BufferedInputStream(Channels.newInputStream(raf.getChannel())),
+                            null, key, new DocMetadata()) && oldDoc.m_verFormat >= VERSION_FORMAT_CHUNKED) {
+                        DocChunks.Reader reader = new DocChunks.Reader(raf.getChannel(), oldDoc.m_bodyPos, true,
+                                oldDoc.m_verFormat, oldDoc.m_fileCodec, key, oldDoc.m_randomBytes, null);
+                        raf = null;
+                        return reader;
+                    }
+                } catch (DocException ex) {
+                    // Different key, try next.
+                } finally {
+                    if (raf != null)
+                        raf.close();
+                }
+            } catch (IOException ex) {
+                DocLog.log(this.getClass(), DocLog.WARN, "Previous revisions not readable", ex);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Saves the currently edited document, re-encrypting only the chunks touched by
+     * the dirty range when the file is an existing format 4 document written with the
+     * same key and hint. Otherwise the whole document is saved.
+     * <p>
+     * The in-place update is journaled, see {@link SafeFile}.
+     *
+     * @param dirty  Range changed since text was last saved to outFile, null for full save.
+     * @return true if saved incrementally, false if whole document was written.
+     */
+    public boolean doSave(File outFile, String hint, DirtyRange dirty)
+            throws FileNotFoundException, IOException, DocPasswordException {
+        long startNanos = DocMetrics.start();
+        SafeFile.recover(outFile);
+        if (dirty != null && outFile.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                long oldSize = channel.size();
+                byte[] front = doSaveIncremental(channel, hint, dirty);
+                if (front != null) {
+                    // Appended chunks must be on disk before the table points at them.
+                    SafeFile.force(channel);
+                    SafeFile.writeJournal(outFile, front);
+                    DocChunks.writeFully(channel, ByteBuffer.wrap(front), 0);
+                    SafeFile.force(channel);
+                    SafeFile.deleteJournal(outFile);
+                    DocMetrics.stop(DocMetrics.SAVE, startNanos, channel.size() - oldSize + front.length);
+                    return true;
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        doSave(outFile, hint, getSaveFormat());
+        return false;
+    }
+
+    /**
+     * Append re-encrypted chunks to the document.
+     *
+     * @return Header, metadata and table to write at offset 0, null if existing file
+     * layout does not allow an in-place update.
+     */
+    private byte[] doSaveIncremental(FileChannel channel, String hint, DirtyRange dirty)
+            throws IOException, DocPasswordException {
+        if (m_docMeta.key == null)
+            throw new DocPasswordException("Key not set in DocMetadata");
+
+        Doc oldDoc = new Doc();
+        try {
+            channel.position(0);
+            if (!oldDoc.openHeader(new BufferedInputStream(Channels.newInputStream(channel)),
+                    null, m_docMeta.key, new DocMetadata()))
+                return null;
+        } catch (DocException ex) {
+            // Different key, key derivation or not a document, rewrite whole file.
+            return null;
+        }
+        // Older chunked format is upgraded by a full save.
+        byte verFormat = getSaveFormat();
+        if (oldDoc.m_verFormat != verFormat || oldDoc.m_verMinor != VERSION_MINOR)
+            return null;
+
+        SecureRandom random = prepareSave(verFormat);
+        // New edit session stores a revision, which needs a full save.
+        if (m_newSession)
+            return null;
+        byte[] randomBytes = new byte[16];
+        random.nextBytes(randomBytes);
+        ByteArrayOutputStream hout = new ByteArrayOutputStream(128);
+        DocCodec codec = appendCodec(oldDoc.m_fileCodec);
+        writeHeader(hout, verFormat, codec, hint, randomBytes);
+        if (hout.size() != oldDoc.m_bodyPos)
+            return null;
+
+        return DocChunks.update(channel, hout.toByteArray(), verFormat, codec, m_docMeta.key,
+                oldDoc.m_randomBytes, randomBytes, m_docMeta, m_text.snapshot(), dirty, random);
+    }
+
+    /**
+     * Saves the currently edited document to channel, written from position 0 and
+     * truncated to the saved length. Channel is left open.
+     *
+     * @param verFormat  VERSION_FORMAT_CODEC, VERSION_FORMAT_GCM, VERSION_FORMAT_CHUNKED
+     *                   or older single stream format (2 or 3).
+     */
+    public boolean doSave(FileChannel channel, String hint, byte verFormat)
+            throws IOException, DocPasswordException {
+        return writeDoc(channel, hint, verFormat, m_text.snapshot(), null, 0);
+    }
+
+    /**
+     * @param prev      Reader on file being replaced, null if none. Its revisions are carried over.
+     * @param prevTime  Time file being replaced was saved.
+     */
+    private boolean writeDoc(FileChannel channel, String hint, byte verFormat, CharSequence text,
+            DocChunks.Reader prev, long prevTime) throws IOException, DocPasswordException {
+        SecureRandom random = prepareSave(verFormat);
+        boolean newRevision = m_newSession;
+        m_newSession = false;
+        byte[] randomBytes = new byte[16];
+        random.nextBytes(randomBytes);
+
+        DocCodec codec = selectCodec(verFormat, text);
+        ByteArrayOutputStream hout = new ByteArrayOutputStream(128);
+        writeHeader(hout, verFormat, codec, hint, randomBytes);
+
+        if (verFormat >= VERSION_FORMAT_CHUNKED) {
+            DocHistory.Writer history = null;
+            if (prev != null) {
+                try {
+                    history = DocHistory.prepare(prev, newRevision, prevTime, text, DocChunks.isAead(verFormat),
+                            codec, m_docMeta.key, random);
+                } catch (IOException ex) {
+                    // Damaged history does not prevent saving the text.
+                    DocLog.log(this.getClass(), DocLog.WARN, "Revision history dropped", ex);
+                }
+            }
+            long bodyPos = DocChunks.writeFully(channel, ByteBuffer.wrap(hout.toByteArray()), 0);
+            DocChunks.write(channel, bodyPos, verFormat, codec, m_docMeta.key, randomBytes, m_docMeta, text, random,
+                    history);
+        } else {
+            channel.position(0);
+            OutputStream out = new NoCloseOutputStream(Channels.newOutputStream(channel));
+            hout.writeTo(out);
+            writeStreamBody(out, randomBytes, text);
+            channel.truncate(channel.position());
+        }
+        return true;
+    }
+
+    /**
+     * Saves the currently edited document to a stream, stream is flushed but left open.
+     * Format 4 chunks are held in memory until the chunk table is written.
+     *
+     * @param verFormat  VERSION_FORMAT_CODEC, VERSION_FORMAT_GCM, VERSION_FORMAT_CHUNKED
+     *                   or older single stream format (2 or 3).
+     */
+    public boolean doSave(OutputStream out, String hint, byte verFormat)
+            throws IOException, DocPasswordException {
+        SecureRandom random = prepareSave(verFormat);
+        byte[] randomBytes = new byte[16];
+        random.nextBytes(randomBytes);
+
+        PieceTable text = m_text.snapshot();
+        DocCodec codec = selectCodec(verFormat, text);
+        ByteArrayOutputStream hout = new ByteArrayOutputStream(128);
+        writeHeader(hout, verFormat, codec, hint, randomBytes);
+        hout.writeTo(out);
+
+        if (verFormat >= VERSION_FORMAT_CHUNKED)
+            DocChunks.write(out, hout.size(), verFormat, codec, m_docMeta.key, randomBytes, m_docMeta, text, random);
+        else
+            writeStreamBody(new NoCloseOutputStream(out), randomBytes, text);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * @return Codec to append chunks to a file saved with fileCodec. The header only holds the
+     * codec id, so the level of the save codec is used when its id matches.
+     */
+    DocCodec appendCodec(DocCodec fileCodec) {
+        DocCodec codec = (m_codec != null) ? m_codec : DocCodec.getDefault();
+        if (codec.codecId != fileCodec.codecId)
+            return fileCodec;
+        return new DocCodec(codec.codecId, codec.level, false);
+    }
+
+    /**
+     * @return Codec to write text with, formats before 6 always use GZIP.
+     */
+    private DocCodec selectCodec(byte verFormat, CharSequence text) {
+        if (verFormat < VERSION_FORMAT_CODEC)
+            return DocCodec.GZIP;
+        return ((m_codec != null) ? m_codec : DocCodec.getDefault()).select(text);
+    }
+
+    /**
+     * Update save history and check key, return random source for IVs.
+     * A new save history entry marks a new edit session.
+     */
+    private SecureRandom prepareSave(byte verFormat) throws DocPasswordException {
+        assert (m_docMeta.key != null);
+
+        String current_user = System.getProperty("user.name");
+        if (m_docMeta.saveHistory.size() != 0) {
+            SaveMetadata saveMetaData = m_docMeta.saveHistory.get(m_docMeta.saveHistory.size() - 1);
+            if (!saveMetaData.username.equalsIgnoreCase(current_user) ||
+                    TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - saveMetaData.timestamp)
+                            > Doc.HISTORY_SAME_EDIT_MINUTES) {
+                saveMetaData = new SaveMetadata(System.currentTimeMillis(), current_user);
+                m_docMeta.saveHistory.add(saveMetaData);
+                m_newSession = true;
+            } else
+                saveMetaData.timestamp = System.currentTimeMillis();
+        } else {
+            m_docMeta.saveHistory.add(new SaveMetadata(System.currentTimeMillis(), current_user));
+            m_newSession = true;
+        }
+
+        while (m_docMeta.saveHistory.size() > Doc.HISTORY_MAX_ENTRIES)
+            m_docMeta.saveHistory.remove(0);
+
+        if (m_docMeta.key == null)
+            throw new DocPasswordException("Key not set in DocMetadata");
+        if (verFormat < VERSION_FORMAT_CHUNKED && m_docMeta.kdf.algId != Kdf.KDF_SHA1)
+            throw new DocPasswordException("Format " + verFormat + " requires legacy SHA1 key");
+
+        SecureRandom random = null;
+        long startNanos = DocMetrics.start();
+        try {
+            random = CryptoPool.getRandom();
+        } catch (NoSuchAlgorithmException ex) {
+            DocLog.log(this.getClass(), DocLog.ERROR, null, ex);
+            System.exit(1);
+        }
+        DocMetrics.stop(DocMetrics.RANDOM, startNanos, 0);
+        return random;
+    }
+
+    /**
+     * Write single stream (format 2 and 3) body, closes out.
+     */
+    private void writeStreamBody(OutputStream out, byte[] randomBytes, CharSequence text) throws IOException {
+        Cipher ecipher = getCipher(Cipher.ENCRYPT_MODE, m_docMeta.key, randomBytes);
+        DocMetrics.TimedOutputStream wout = new DocMetrics.TimedOutputStream(DocMetrics.WRITE, out, null);
+        DocMetrics.TimedOutputStream cout = new DocMetrics.TimedOutputStream(DocMetrics.ENCRYPT,
+                new CipherOutputStream(new BufferedOutputStream(wout), ecipher), wout);
+        GZIPOutputStream zout = new GZIPOutputStream(cout);
+        DataOutputStream dout = new DataOutputStream(new DocMetrics.TimedOutputStream(DocMetrics.COMPRESS, zout, cout));
+
+        // 5. Save encrypted meta data (modify history)
+        m_docMeta.saveMetadata(dout);
+
+        // 6. Save encrypted text, UTF-8 length then text encoded through a fixed buffer.
+        long byteLen = DocStreams.utf8Length(text, 0, text.length());
+        if (byteLen > Integer.MAX_VALUE)
+            throw new IOException("Document too large");
+        dout.writeInt((int) byteLen);
+        DocStreams.writeUtf8(text, 0, text.length(), dout);
+
+        // System.out.println("Written " + ddata.length + " bytes");
+        // dout.writeUTF(text); // Java doesn't work with strings > 64 KiB :DD
+
+        dout.close();
+        CryptoPool.releaseCipher(ecipher);
+    }
+
+    /**
+     * Write clear text header - signature, version, hint, key derivation (format 4+),
+     * codec (format 6+), key hash and random bytes.
+     */
+    private void writeHeader(OutputStream bout, byte verFormat, DocCodec codec, String hint, byte[] randomBytes)
+            throws IOException {
+        long startNanos = DocMetrics.start();
+        // 1. Save prefix
+        bout.write(Doc.SIGNATURE);
+        bout.write(verFormat);
+        bout.write(Doc.VERSION_MINOR);
+
+        // 2. Save Hint in clear text.
+        hint = (hint == null) ? "" : hint.substring(0, Math.min(hint.length(), HINT_MAX_LEN));
+        byte[] hintBytes = hint.getBytes(ENC);
+        // Saved document now describes the written file, as if opened.
+        m_verFormat = verFormat;
+        m_verMinor = VERSION_MINOR;
+        m_fileCodec = codec;
+        m_hint = hint;
+        bout.write(hintBytes.length);
+        bout.write(hintBytes);
+
+        // 3. Save key derivation, algorithm and salt.
+        if (verFormat >= VERSION_FORMAT_CHUNKED) {
+            DataOutputStream kout = new DataOutputStream(bout);
+            m_docMeta.kdf.write(kout);
+            kout.flush();
+        }
+        if (verFormat >= VERSION_FORMAT_CODEC)
+            bout.write(codec.codecId);
+
+        // 4. Save key hash and randomBytes used to make hash
+        long hashNanos = DocMetrics.start();
+        byte[] keyHash = CryptoUtil.sha1hash(CryptoUtil.concat(m_docMeta.key, randomBytes));
+        DocMetrics.stop(DocMetrics.KEY_HASH, hashNanos, m_docMeta.key.length + randomBytes.length);
+        bout.write(keyHash.length); // Add format version 3
+        bout.write(keyHash);
+        bout.write(randomBytes);
+        DocMetrics.stop(DocMetrics.HEADER, startNanos, 0);
+    }
+
+    /**
+     * Pass through stream which only flushes on close, so closing cipher and
+     * compression streams does not close the caller's stream or channel.
+     */
+    private static class NoCloseOutputStream extends FilterOutputStream {
+        NoCloseOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Opens the specified file to be the currently edited document.
+     * Files of {@link #MAP_MIN_BYTES} or more are memory mapped.
+     *
+     * @param fOpen File to read.
+     * @param pwd  set to null to get hint but not decrypt file.
+     *
+     * @return true if file decrypted
+     *
+     * @throws java.io.FileNotFoundException
+     * @throws java.io.IOException
+     */
+    public boolean doOpen(File fOpen, String pwd) throws FileNotFoundException, IOException, DocException, DocPasswordException {
+        long startNanos = DocMetrics.start();
+        RandomAccessFile raf = new RandomAccessFile(fOpen, "r");
+        long size;
+        try {
+            FileChannel channel = raf.getChannel();
+            size = channel.size();
+            boolean opened;
+            if (s_canMap && pwd != null && size >= MAP_MIN_BYTES && size <= Integer.MAX_VALUE)
+                opened = doOpen(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), pwd);
+            else
+                opened = doOpen(channel, pwd);
+            if (!opened)
+                return false;
+        } finally {
+            raf.close();
+        }
+        m_docMeta.filename = fOpen.getAbsolutePath();
+        DocMetrics.stop(DocMetrics.OPEN, startNanos, size);
+        return true;
+    }
+
+    /**
+     * Open document from a mapped file. Header is parsed from the buffer, format 4+ chunks
+     * and the format 2 and 3 body are decrypted from buffer slices without copying them
+     * through stream buffers. Mapping stays valid after the channel is closed.
+     *
+     * @param mapped  Whole document, from offset 0.
+     * @return true if document decrypted
+     */
+    private boolean doOpen(ByteBuffer mapped, String pwd) throws IOException, DocException {
+        DocMetadata newdocm = new DocMetadata();
+        if (!openHeader(new DocStreams.ByteBufferInputStream(mapped), pwd, null, newdocm))
+            return false;
+
+        String newtext;
+        if (m_verFormat >= VERSION_FORMAT_CHUNKED) {
+            newtext = new DocChunks.Reader(mapped, m_bodyPos, m_verFormat, m_fileCodec, newdocm.key,
+                    m_randomBytes, newdocm).readAll();
+        } else {
+            ByteBuffer body = mapped.duplicate();
+            body.position((int) m_bodyPos);
+            Cipher dcipher = getCipher(Cipher.DECRYPT_MODE, newdocm.key, m_randomBytes);
+            newtext = readPlainBody(new DocMetrics.TimedInputStream(DocMetrics.DECRYPT,
+                    new DocStreams.CipherBufferInputStream(body, dcipher), null), newdocm);
+            CryptoPool.releaseCipher(dcipher);
+        }
+
+        setOpened(newdocm, newtext);
+        return true;
+    }
+
+    /**
+     * Open document from channel, read from position 0. Format 4 chunks are read
+     * with positional reads. Channel is left open.
+     *
+     * @param pwd  set to null to get hint but not decrypt file.
+     * @return true if document decrypted
+     */
+    public boolean doOpen(FileChannel channel, String pwd) throws IOException, DocException {
+        DocMetadata newdocm = new DocMetadata();
+        channel.position(0);
+        BufferedInputStream bin = new BufferedInputStream(Channels.newInputStream(channel));
+        if (!openHeader(bin, pwd, null, newdocm))
+            return false;
+
+        String newtext;
+        if (m_verFormat >= VERSION_FORMAT_CHUNKED) {
+            // 5. and 6. Meta data read by reader, decrypt all chunks.
+            newtext = new DocChunks.Reader(channel, m_bodyPos, false, m_verFormat, m_fileCodec, newdocm.key,
+                    m_randomBytes, newdocm).readAll();
+        } else {
+            newtext = readStreamBody(bin, newdocm);
+        }
+
+        setOpened(newdocm, newtext);
+        return true;
+    }
+
+    /**
+     * Open document from a sequential stream. Stream is read to the end of the
+     * document but not closed.
+     *
+     * @param pwd  set to null to get hint but not decrypt file.
+     * @return true if document decrypted
+     */
+    public boolean doOpen(InputStream in, String pwd) throws IOException, DocException {
+        DocMetadata newdocm = new DocMetadata();
+        BufferedInputStream bin = new BufferedInputStream(in);
+        if (!openHeader(bin, pwd, null, newdocm))
+            return false;
+
+        String newtext;
+        if (m_verFormat >= VERSION_FORMAT_CHUNKED)
+            newtext = DocChunks.readAll(bin, m_bodyPos, m_verFormat, m_fileCodec, newdocm.key, m_randomBytes,
+                    newdocm);
+        else
+            newtext = readStreamBody(bin, newdocm);
+
+        setOpened(newdocm, newtext);
+        return true;
+    }
+
+    private void setOpened(DocMetadata newdocm, String newtext) {
+        newdocm.hint = m_hint;
+        m_prevKey = newdocm.key;
+        m_docMeta = newdocm;
+        m_text = new PieceTable(newtext);
+    }
+
+    /**
+     * Read single stream (format 2 and 3) metadata and text, bin is left open.
+     */
+    private String readStreamBody(InputStream bin, DocMetadata newdocm) throws IOException {
+        Cipher dcipher = getCipher(Cipher.DECRYPT_MODE, newdocm.key, m_randomBytes);
+        DocMetrics.TimedInputStream rin = new DocMetrics.TimedInputStream(DocMetrics.READ, bin, null);
+        String text = readPlainBody(new DocMetrics.TimedInputStream(DocMetrics.DECRYPT,
+                new CipherInputStream(rin, dcipher), rin), newdocm);
+        rin.finish();
+        CryptoPool.releaseCipher(dcipher);
+        return text;
+    }
+
+    /**
+     * Read single stream (format 2 and 3) metadata and text from the decrypting stream.
+     */
+    private String readPlainBody(DocMetrics.TimedInputStream cin, DocMetadata newdocm) throws IOException {
+        DocMetrics.TimedInputStream zin = new DocMetrics.TimedInputStream(DocMetrics.DECOMPRESS,
+                new GZIPInputStream(cin, DocStreams.BUFFER_SIZE), cin);
+        DataInputStream din = new DataInputStream(zin);
+
+        // 5. Read encrypted Meta data.
+        newdocm.loadMetadata(din, m_verMinor);
+
+        // 6. Read encrypted text.
+        String text;
+        if (m_verMinor < VERSION_MINOR_HAS_ENC) {
+            text = din.readUTF();
+        } else {
+            int len = din.readInt();
+            byte[] ddata = new byte[len];
+            din.readFully(ddata);
+            text = new String(ddata, ENC);
+        }
+        zin.finish();
+        cin.finish();
+        return text;
+    }
+
+    /**
+     * Open document text as a stream which is decoded incrementally, format 4 one chunk
+     * at a time and formats 2 and 3 through the cipher and GZIP stream buffers.
+     * Metadata is loaded into this document.
+     *
+     * @param fOpen File to read.
+     * @param key   Key derived from password with the file's key derivation.
+     * @return Text reader, caller must close.
+     * @throws DocPasswordException if key does not match file.
+     */
+    public Reader openStream(File fOpen, byte[] key) throws IOException, DocException {
+        DocMetadata newdocm = new DocMetadata();
+        RandomAccessFile raf = new RandomAccessFile(fOpen, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            BufferedInputStream bin = new BufferedInputStream(Channels.newInputStream(channel), DocStreams.BUFFER_SIZE);
+            if (!openHeader(bin, null, key, newdocm))
+                throw new DocPasswordException("Key required");
+
+            Reader reader;
+            if (m_verFormat >= VERSION_FORMAT_CHUNKED) {
+                reader = new DocStreams.ChunkTextReader(
+                        new DocChunks.Reader(channel, m_bodyPos, true, m_verFormat, m_fileCodec, key, m_randomBytes,
+                                newdocm));
+            } else {
+                DataInputStream din = new DataInputStream(new GZIPInputStream(
+                        new CipherInputStream(bin, getCipher(Cipher.DECRYPT_MODE, key, m_randomBytes)),
+                        DocStreams.BUFFER_SIZE));
+                newdocm.loadMetadata(din, m_verMinor);
+                if (m_verMinor < VERSION_MINOR_HAS_ENC) {
+                    reader = new StringReader(din.readUTF());   // Limited to 64K
+                    raf.close();
+                } else {
+                    reader = new InputStreamReader(new DocStreams.BoundedInputStream(din, din.readInt()), ENC);
+                }
+            }
+            newdocm.filename = fOpen.getAbsolutePath();
+            setOpened(newdocm, "");
+            return reader;
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        } catch (DocException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Open version 4 (chunked) document for random access to its chunks, without
+     * decrypting the text. Metadata is loaded into this document.
+     *
+     * @param fOpen File to read.
+     * @param pwd   Password to decrypt file.
+     * @return Chunk reader, caller must close.
+     * @throws DocException if file is not a chunked (v4) file.
+     */
+    public DocChunks.Reader doOpenChunks(File fOpen, String pwd) throws IOException, DocException {
+        return openChunks(fOpen, pwd, null);
+    }
+
+    /**
+     * Open chunked document with a derived key, see {@link #doOpenChunks(File, String)}.
+     * Reader gives access to the revision history.
+     *
+     * @param key  Key derived from password with the file's key derivation.
+     */
+    public DocChunks.Reader doOpenChunks(File fOpen, byte[] key) throws IOException, DocException {
+        return openChunks(fOpen, null, key);
+    }
+
+    private DocChunks.Reader openChunks(File fOpen, String pwd, byte[] key) throws IOException, DocException {
+        DocMetadata newdocm = new DocMetadata();
+        RandomAccessFile raf = new RandomAccessFile(fOpen, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (!openHeader(new BufferedInputStream(Channels.newInputStream(channel)), pwd, key, newdocm))
+                throw new DocPasswordException("Password required");
+            if (m_verFormat < VERSION_FORMAT_CHUNKED)
+                throw new DocException("File format " + getVersion() + " does not support chunk access");
+
+            DocChunks.Reader reader = new DocChunks.Reader(channel, m_bodyPos, true, m_verFormat, m_fileCodec,
+                    newdocm.key, m_randomBytes, newdocm);
+            newdocm.filename = fOpen.getAbsolutePath();
+            setOpened(newdocm, "");
+            return reader;
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        } catch (DocException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Read clear text header, verify password and leave stream at start of encrypted body.
+     *
+     * @param bin     Stream positioned at start of document, not closed.
+     * @param pwd     Password, null to only read hint and version.
+     * @param key     Already derived key, used instead of pwd when not null.
+     * @param newdocm Receives key derived from password.
+     * @return false if no password provided.
+     */
+    private boolean openHeader(InputStream bin, String pwd, byte[] key, DocMetadata newdocm)
+            throws IOException, DocException {
+        long startNanos = DocMetrics.start();
+        DataInputStream din = new DataInputStream(bin);
+        byte[] sig = new byte[Doc.SIGNATURE.length];
+
+        // 1. Read header - signature, format and version.
+        din.readFully(sig);
+        m_verFormat = (byte) din.read();
+        m_verMinor = (byte) din.read();
+        long bodyPos = sig.length + 2;
+
+        boolean equal = Arrays.equals(sig, Doc.SIGNATURE);
+        if (!equal) {
+            throw new DocException("File is not a valid EncrypNotes file");
+        } else if (m_verFormat > Doc.VERSION_FORMAT) {
+            throw new DocException("File is a EncrypNotes file but cannot be opened by this version of the program");
+        }
+
+        // 2. Read hint
+        this.m_hint = "";
+        if (m_verFormat >= Doc.VERSION_FORMAT_HAS_HINT) {
+            int hintLen = (byte)din.read();
+            bodyPos++;
+            if (hintLen >= 0 && hintLen < HINT_MAX_LEN) {
+                byte[] hintBytes = new byte[hintLen];
+                din.readFully(hintBytes);
+                bodyPos += hintLen;
+                this.m_hint = new String(hintBytes, ENC);
+            } else {
+                this.m_hint = "???";
+            }
+        }
+
+        // Return if no password and just wanted hint.
+        if (pwd == null && key == null) {
+            return false;
+        }
+
+        // 3. Read key derivation
+        Kdf.Spec kdfSpec = Kdf.LEGACY;
+        if (m_verFormat >= VERSION_FORMAT_CHUNKED) {
+            kdfSpec = Kdf.Spec.read(din);
+            bodyPos += kdfSpec.getEncodedLength();
+        }
+        m_fileCodec = DocCodec.GZIP;
+        if (m_verFormat >= VERSION_FORMAT_CODEC) {
+            m_fileCodec = DocCodec.forId(din.readByte());
+            bodyPos++;
+        }
+
+        // 4. Read hash and randomBytes
+        byte[] pwdhash = new byte[2];
+        if (m_verMinor >= Doc.VERSION_FORMAT_HAS_HASH_LEN) {
+            int hintLen = (byte)din.read();
+            bodyPos++;
+            if (hintLen != pwdhash.length)
+                pwdhash = new byte[hintLen];
+        }
+        din.readFully(pwdhash);
+        byte[] randomBytes = new byte[16];
+        din.readFully(randomBytes);
+        bodyPos += pwdhash.length + randomBytes.length;
+
+        try {
+            newdocm.key = (key != null) ? key : Kdf.deriveKey(kdfSpec, pwd);
+            newdocm.kdf = kdfSpec;
+        } catch (GeneralSecurityException ex) {
+            throw new DocException("Key derivation failed, " + ex.getMessage());
+        }
+
+        long hashNanos = DocMetrics.start();
+        byte[] keyHash = CryptoUtil.sha1hash(CryptoUtil.concat(newdocm.key, randomBytes));
+        DocMetrics.stop(DocMetrics.KEY_HASH, hashNanos, newdocm.key.length + randomBytes.length);
+        if (m_verMinor >= Doc.VERSION_FORMAT_HAS_HASH_LEN) {
+            equal = Arrays.equals(keyHash, pwdhash);
+        } else {
+            equal = (keyHash[0] == pwdhash[0]) && (keyHash[1] == pwdhash[1]);
+        }
+
+        if (!equal) {
+            throw new DocPasswordException("Invalid password!");
+        }
+
+        m_bodyPos = bodyPos;
+        m_randomBytes = randomBytes;
+        DocMetrics.stop(DocMetrics.HEADER, startNanos, bodyPos);
+        return true;
+    }
+
+    /**
+     * @return Whole text, the opened string itself if not edited.
+     */
+    public String getText() {
+        return m_text.toString();
+    }
+
+    /**
+     * @return Read only snapshot of the text, O(1) and unchanged by later edits.
+     */
+    public PieceTable getContent() {
+        return m_text.snapshot();
+    }
+
+    public int getLength() {
+        return m_text.length();
+    }
+
+    /**
+     * Replace text[beg, end) with text, O(log n) in the number of edits.
+     */
+    public void replace(int beg, int end, CharSequence text) {
+        if (m_text.isReadOnly())
+            m_text = m_text.editableCopy();
+        m_text.replace(beg, end, text);
+    }
+
+    public DocMetadata getDocMetadata() {
+        return m_docMeta;
+    }
+
+    /***
+     * Create cipher to d/encrypt stream, taken from this thread's {@link CryptoPool}.
+     * Hand it back with CryptoPool.releaseCipher when done, unless a returned stream still uses it.
+     *
+     * @param cipherMode  Cipher.DECRYPT_MODE or Cipher.ENCRYPT_MODE
+     * @param key
+     * @param randomBytes
+     * @return
+     */
+    static Cipher getCipher(int cipherMode, byte[] key, byte[] randomBytes)  {
+        long startNanos = DocMetrics.start();
+        AlgorithmParameterSpec paramSpec = new IvParameterSpec(randomBytes);
+        Cipher cipher = null;
+        try {
+            cipher = CryptoPool.acquireCipher(CRYPTO_MODE);
+        } catch (NoSuchAlgorithmException ex) {
+            DocLog.log(Doc.class, DocLog.ERROR, null, ex);
+            System.exit(1);
+        } catch (NoSuchPaddingException ex) {
+            DocLog.log(Doc.class, DocLog.ERROR, null, ex);
+            System.exit(1);
+        }
+
+        try {
+            cipher.init(cipherMode, new SecretKeySpec(key, 0, 16, CRYPTO_ALG), paramSpec);
+        } catch (InvalidKeyException ex) {
+            DocLog.log(Doc.class, DocLog.ERROR, null, ex);
+            System.exit(1);
+        } catch (InvalidAlgorithmParameterException ex) {
+            DocLog.log(Doc.class, DocLog.ERROR, null, ex);
+            System.exit(1);
+        }
+
+        DocMetrics.stop(DocMetrics.CIPHER_INIT, startNanos, 0);
+        return cipher;
+    }
+
+    /**
+     * AES-GCM cipher for format 5 chunks and metadata, first 12 bytes of iv are the nonce.
+     */
+    static Cipher getAeadCipher(int cipherMode, byte[] key, byte[] iv) throws IOException {
+        if (!s_hasAad)
+            throw new IOException(CRYPTO_MODE_AEAD + " needs Android 4.4 or newer");
+        try {
+            long startNanos = DocMetrics.start();
+            Cipher cipher = CryptoPool.acquireCipher(CRYPTO_MODE_AEAD);
+            cipher.init(cipherMode, new SecretKeySpec(key, 0, 16, CRYPTO_ALG), gcmSpec(iv));
+            DocMetrics.stop(DocMetrics.CIPHER_INIT, startNanos, 0);
+            return cipher;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(CRYPTO_MODE_AEAD + " not available, " + ex.getMessage());
+        }
+    }
+
+    static AlgorithmParameterSpec gcmSpec(byte[] iv) {
+        try {
+            return new GCMParameterSpec(GCM_TAG_BITS, iv, 0, GCM_NONCE_LEN);
+        } catch (NoClassDefFoundError err) {
+            // Android before API 19, provider takes the nonce as IV with a 128 bit tag.
+            return new IvParameterSpec(iv, 0, GCM_NONCE_LEN);
+        }
+    }
+
+    private static boolean hasMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        try {
+            clazz.getMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * In memory LRU of recently opened or saved documents, so reopening a note skips
+ * key check, file read and chunk decryption.
+ * <p>
+ * Entries hold the metadata and text compressed and sealed with AES-GCM, no clear text
+ * is kept on the heap. The entry key is SHA-256 of a random session key and the
+ * document key, so an entry only opens with the document password and the session key
+ * alone does not reveal it. The file path is authenticated with the entry. An entry is
+ * valid while the file length and modify time match.
+ * <p>
+ * Size is bounded by total sealed bytes, least recently used entries are evicted first.
+ * Without AES-GCM (Android before 4.4) nothing is cached.
+ * {@link #clear()} wipes all entries and replaces the session key, the app calls it when
+ * sent to background in paranoid mode, and {@link #setSuspended} keeps work still queued
+ * from sealing notes again until the app returns.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocCache {
+
+    public static final long DEFAULT_MAX_BYTES = 8 << 20;
+
+    /**
+     * Saves of larger notes drop the entry instead of sealing the whole text again,
+     * it is cached again on the next open.
+     */
+    public static final int SAVE_MAX_CHARS = 256 * 1024;
+
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * One sealed document, arrays are wiped on eviction.
+     */
+    private static class Entry {
+        long length;
+        long lastModified;
+        Kdf.Spec kdf;
+        byte verFormat;
+        byte verMinor;
+        DocCodec fileCodec;
+        String hint;
+        byte[] iv;
+        byte[] sealed;
+
+        int size() {
+            return sealed.length + ENTRY_OVERHEAD;
+        }
+
+        boolean matches(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+
+        void wipe() {
+            Arrays.fill(sealed, (byte) 0);
+            Arrays.fill(iv, (byte) 0);
+        }
+    }
+
+    private static final DocCache s_instance = new DocCache();
+
+    private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private byte[] m_sessionKey;
+    private long m_maxBytes = DEFAULT_MAX_BYTES;
+    private long m_totalBytes;
+    private boolean m_suspended;
+    private int m_hits;
+    private int m_misses;
+
+    /**
+     * @return Application wide document cache.
+     */
+    public static DocCache get() {
+        return s_instance;
+    }
+
+    /**
+     * Set bound on total sealed bytes, 0 disables the cache.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        m_maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * While suspended {@link #put} only drops entries, no note is sealed and no session key created.
+     */
+    public synchronized void setSuspended(boolean suspended) {
+        m_suspended = suspended;
+    }
+
+    /**
+     * Open document from cache.
+     *
+     * @return Opened document, or null if not cached, stale, or pwd does not match.
+     */
+    public Doc get(File file, String pwd) {
+        String path = file.getAbsolutePath();
+        Entry entry;
+        byte[] sessionKey;
+        synchronized (this) {
+            entry = m_entries.get(path);
+            if (entry != null && !entry.matches(file)) {
+                remove(path);
+                entry = null;
+            }
+            if (entry == null) {
+                m_misses++;
+                return null;
+            }
+            sessionKey = m_sessionKey;
+        }
+
+        // Key derivation can be slow on first use of password, keep it out of the lock.
+        byte[] entryKey = null;
+        byte[] plain = null;
+        try {
+            byte[] docKey = Kdf.deriveKey(entry.kdf, pwd);
+            entryKey = entryKey(sessionKey, docKey);
+            Cipher cipher = Doc.getAeadCipher(Cipher.DECRYPT_MODE, entryKey, entry.iv);
+            try {
+                cipher.updateAAD(path.getBytes(Doc.ENC));
+                plain = cipher.doFinal(entry.sealed);
+            } finally {
+                CryptoPool.releaseCipher(cipher);
+            }
+
+            DataInputStream din = new DataInputStream(DocCodec.FAST.decompress(new ByteArrayInputStream(plain)));
+            Doc.DocMetadata docMeta = new Doc.DocMetadata();
+            docMeta.loadMetadata(din, Doc.VERSION_MINOR);
+            byte[] textBytes = new byte[din.readInt()];
+            din.readFully(textBytes);
+            din.close();
+            String text = new String(textBytes, Doc.ENC);
+            Arrays.fill(textBytes, (byte) 0);
+
+            docMeta.key = docKey;
+            docMeta.kdf = entry.kdf;
+            Doc doc = new Doc();
+            doc.setCachedOpen(entry.verFormat, entry.verMinor, entry.fileCodec, entry.hint, docMeta, text);
+            synchronized (this) {
+                m_hits++;
+            }
+            return doc;
+        } catch (GeneralSecurityException ex) {
+            // Wrong password or entry wiped while opening, normal open reports the error.
+        } catch (IOException ex) {
+            DocLog.log(DocCache.class, DocLog.WARN, "Cache entry unreadable " + path, ex);
+        } finally {
+            if (entryKey != null)
+                Arrays.fill(entryKey, (byte) 0);
+            if (plain != null)
+                Arrays.fill(plain, (byte) 0);
+        }
+        synchronized (this) {
+            m_misses++;
+        }
+        return null;
+    }
+
+    /**
+     * Seal opened or just saved document into cache, replacing any older entry.
+     * Call on a background thread, cost is one compress and encrypt of the text.
+     */
+    public void put(File file, Doc doc) {
+        Doc.DocMetadata docMeta = doc.getDocMetadata();
+        String text = doc.getText();
+        String path = file.getAbsolutePath();
+        byte[] sessionKey;
+        synchronized (this) {
+            if (m_suspended || !Doc.hasAead() || docMeta.key == null || text == null
+                    || text.length() > m_maxBytes) {
+                remove(path);
+                return;
+            }
+            if (m_sessionKey == null) {
+                try {
+                    m_sessionKey = new byte[32];
+                    CryptoPool.getRandom().nextBytes(m_sessionKey);
+                } catch (GeneralSecurityException ex) {
+                    DocLog.log(DocCache.class, DocLog.ERROR, "No random source", ex);
+                    m_sessionKey = null;
+                    return;
+                }
+            }
+            sessionKey = m_sessionKey;
+        }
+
+        Entry entry = new Entry();
+        entry.kdf = docMeta.kdf;
+        entry.verFormat = doc.getVersionFormat();
+        entry.verMinor = doc.getVersionMinor();
+        entry.fileCodec = doc.getCodec();
+        entry.hint = doc.getHint();
+        entry.length = file.length();
+        entry.lastModified = file.lastModified();
+
+        byte[] entryKey = null;
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(text.length() / 2 + 64);
+            DataOutputStream dout = new DataOutputStream(DocCodec.FAST.compress(bout));
+            docMeta.saveMetadata(dout);
+            long byteLen = DocStreams.utf8Length(text, 0, text.length());
+            dout.writeInt((int) byteLen);
+            DocStreams.writeUtf8(text, 0, text.length(), dout);
+            dout.close();
+
+            entry.iv = new byte[DocChunks.IV_LEN];
+            CryptoPool.getRandom().nextBytes(entry.iv);
+            entryKey = entryKey(sessionKey, docMeta.key);
+            Cipher cipher = Doc.getAeadCipher(Cipher.ENCRYPT_MODE, entryKey, entry.iv);
+            try {
+                cipher.updateAAD(path.getBytes(Doc.ENC));
+                entry.sealed = cipher.doFinal(bout.toByteArray());
+            } finally {
+                CryptoPool.releaseCipher(cipher);
+            }
+        } catch (Exception ex) {
+            DocLog.log(DocCache.class, DocLog.WARN, "Cache put failed " + path, ex);
+            synchronized (this) {
+                remove(path);
+            }
+            return;
+        } finally {
+            if (entryKey != null)
+                Arrays.fill(entryKey, (byte) 0);
+        }
+
+        synchronized (this) {
+            if (sessionKey != m_sessionKey || m_suspended) {
+                entry.wipe();   // Cleared or suspended while sealing.
+                return;
+            }
+            remove(path);
+            m_entries.put(path, entry);
+            m_totalBytes += entry.size();
+            trim();
+        }
+    }
+
+    /**
+     * Drop entry, for example after delete or rename.
+     */
+    public synchronized void remove(File file) {
+        remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Wipe all entries and forget the session key, entries sealed before can not be opened.
+     */
+    public synchronized void clear() {
+        for (Entry entry : m_entries.values())
+            entry.wipe();
+        m_entries.clear();
+        m_totalBytes = 0;
+        if (m_sessionKey != null) {
+            Arrays.fill(m_sessionKey, (byte) 0);
+            m_sessionKey = null;
+        }
+    }
+
+    public synchronized int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * @return Entries, bytes and hit rate, for diagnostics.
+     */
+    public synchronized String getSummary() {
+        return String.format(Locale.US, "%d notes, %,d of %,d bytes, %d hits, %d misses",
+                m_entries.size(), m_totalBytes, m_maxBytes, m_hits, m_misses);
+    }
+
+    private void remove(String path) {
+        Entry entry = m_entries.remove(path);
+        if (entry != null) {
+            m_totalBytes -= entry.size();
+            entry.wipe();
+        }
+    }
+
+    /**
+     * Evict least recently used entries until under size bound.
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+        while (m_totalBytes > m_maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            m_totalBytes -= entry.size();
+            entry.wipe();
+        }
+    }
+
+    private static byte[] entryKey(byte[] sessionKey, byte[] docKey) {
+        byte[] both = CryptoUtil.concat(sessionKey, docKey);
+        byte[] key = CryptoUtil.hash(both, "SHA-256");
+        Arrays.fill(both, (byte) 0);
+        return key;
+    }
+}
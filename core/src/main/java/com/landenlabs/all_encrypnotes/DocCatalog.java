@@ -0,0 +1,654 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+
+import javax.crypto.Cipher;
+
+/**
+ * Encrypted catalog of per note metadata, so the note list can sort, filter and page
+ * without opening any note.
+ * <p>
+ * An entry holds the clear header values (size, date, version, hint) plus values only
+ * found inside the encrypted note: title (first line), #tags, character count, first
+ * and last save time and a SHA-256 of the text. Entries are written when a note is
+ * opened or fully saved, an incremental save only updates size and times. Entries are
+ * moved or dropped on rename and delete. Changes are kept in memory until {@link #flush}.
+ * <p>
+ * The catalog file is sealed with AES-GCM under a key derived from the session
+ * (global) password, the clear header is the associated data. Until {@link #unlock}
+ * succeeds the catalog is empty and updates are ignored. Without AES-GCM (Android
+ * before 4.4) the catalog stays locked. Key derivation and sealing run outside the
+ * catalog lock, so UI lookups do not wait for them. A catalog which fails to parse is
+ * discarded and rebuilt as notes are opened, one which fails verification is kept for
+ * the password it was written with.
+ *
+ * <pre>
+ *   byte[4]      signature
+ *   byte         version
+ *   Kdf.Spec     key derivation
+ *   byte[16]     iv
+ *   AES-GCM(
+ *     int        entryCount
+ *     entry[entryCount]
+ *        UTF     name, UTF version, UTF hint, UTF title, UTF tags
+ *        long    length, long lastModified, long created, long saved
+ *        int     chars
+ *        byte[32] SHA-256 of UTF-8 text
+ *   )
+ * </pre>
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocCatalog {
+
+    static final byte[] SIGNATURE = {0x00, (byte) 0xff, (byte) 0xed, (byte) 0x1c};
+    static final byte CATALOG_VERSION = 1;
+    static final int IV_LEN = 16;
+    static final int HASH_LEN = 32;
+    static final int TITLE_MAX_CHARS = 64;
+    static final int TAGS_MAX = 16;
+
+    public static final int SORT_NAME = 0;
+    public static final int SORT_MODIFIED = 1;
+    public static final int SORT_SIZE = 2;
+    public static final int SORT_TITLE = 3;
+
+    /**
+     * Metadata of one note.
+     */
+    public static class Entry {
+        public final String name;
+        public long length;
+        public long lastModified;
+        public String version = "";
+        public String hint = "";
+        public String title = "";
+        public String tags = "";        // Space separated, lower case, without '#'.
+        public int chars;
+        public long created;
+        public long saved;
+        public byte[] hash = new byte[HASH_LEN];
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        Entry renamed(String newName) {
+            Entry entry = new Entry(newName);
+            entry.length = length;
+            entry.lastModified = lastModified;
+            entry.version = version;
+            entry.hint = hint;
+            entry.title = title;
+            entry.tags = tags;
+            entry.chars = chars;
+            entry.created = created;
+            entry.saved = saved;
+            entry.hash = hash;
+            return entry;
+        }
+
+        boolean matches(String lowerFilter) {
+            return name.toLowerCase(Locale.US).contains(lowerFilter)
+                    || title.toLowerCase(Locale.US).contains(lowerFilter)
+                    || tags.contains(lowerFilter)
+                    || hint.toLowerCase(Locale.US).contains(lowerFilter);
+        }
+    }
+
+    /**
+     * Catalog read from file.
+     */
+    private static class Contents {
+        Kdf.Spec spec;
+        byte[] key;
+        final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    }
+
+    private static final DocCatalog s_instance = new DocCatalog();
+
+    private File m_file;
+    private byte[] m_key;           // Null while locked.
+    private Kdf.Spec m_spec;
+    private final HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+    private boolean m_dirty;
+    private final Object m_writeLock = new Object();    // Orders flushes, held without the catalog lock.
+
+    /**
+     * @return Application wide note catalog.
+     */
+    public static DocCatalog get() {
+        return s_instance;
+    }
+
+    /**
+     * Set file holding the catalog, locks any open catalog.
+     */
+    public synchronized void setFile(File file) {
+        lock();
+        m_file = file;
+    }
+
+    public synchronized boolean isUnlocked() {
+        return m_key != null;
+    }
+
+    /**
+     * Open catalog with session password, create it if none exists. Run on background thread.
+     *
+     * @return false if catalog exists under another password or AES-GCM is not available,
+     * catalog stays locked.
+     */
+    public boolean unlock(String pwd) {
+        File file;
+        Kdf.Spec spec;
+        byte[] key;
+        synchronized (this) {
+            if (m_file == null || pwd == null || pwd.length() == 0 || !Doc.hasAead())
+                return false;
+            file = m_file;
+            spec = m_spec;
+            key = (m_key == null) ? null : m_key.clone();
+        }
+        if (key != null) {
+            byte[] pwdKey = deriveKey(spec, pwd);
+            boolean same = Arrays.equals(key, pwdKey);
+            Arrays.fill(key, (byte) 0);
+            if (pwdKey != null)
+                Arrays.fill(pwdKey, (byte) 0);
+            if (same)
+                return true;
+        }
+
+        Contents contents;
+        synchronized (m_writeLock) {
+            try {
+                SafeFile.recover(file);
+                contents = file.exists() ? read(file, pwd) : null;
+            } catch (GeneralSecurityException ex) {
+                // Wrong password, keep catalog, a rekey or the old password may still open it.
+                DocLog.log(DocCatalog.class, DocLog.WARN, "Catalog unlock failed", ex);
+                lock();
+                return false;
+            } catch (IOException ex) {
+                DocLog.log(DocCatalog.class, DocLog.WARN, "Catalog damaged, recreated " + file, ex);
+                file.delete();
+                contents = null;
+            }
+        }
+        if (contents == null) {
+            contents = new Contents();
+            contents.spec = Kdf.specForPassword(pwd);
+            contents.key = deriveKey(contents.spec, pwd);
+            if (contents.key == null)
+                return false;
+        }
+
+        synchronized (this) {
+            lock();
+            if (file != m_file) {
+                Arrays.fill(contents.key, (byte) 0);
+                return false;       // File changed while unlocking.
+            }
+            m_key = contents.key;
+            m_spec = contents.spec;
+            m_entries.putAll(contents.entries);
+            return true;
+        }
+    }
+
+    /**
+     * Write catalog under a new session password. Run on background thread.
+     */
+    public void rekey(String newPwd) {
+        synchronized (this) {
+            if (m_key == null || newPwd == null || newPwd.length() == 0)
+                return;
+        }
+        Kdf.Spec spec = Kdf.specForPassword(newPwd);
+        byte[] key = deriveKey(spec, newPwd);
+        if (key == null)
+            return;
+        synchronized (this) {
+            if (m_key == null) {
+                Arrays.fill(key, (byte) 0);
+                return;
+            }
+            Arrays.fill(m_key, (byte) 0);
+            m_key = key;
+            m_spec = spec;
+            m_dirty = true;
+        }
+        flush();
+    }
+
+    /**
+     * Wipe key and drop entries, end of session.
+     */
+    public synchronized void lock() {
+        if (m_key != null)
+            Arrays.fill(m_key, (byte) 0);
+        m_key = null;
+        m_spec = null;
+        m_entries.clear();
+        m_dirty = false;
+    }
+
+    /**
+     * Record note just opened or fully saved to file. Reads the text once for title, tags
+     * and hash, persisted on next {@link #flush}. Run on background thread.
+     */
+    public void update(File docFile, Doc doc) {
+        synchronized (this) {
+            if (m_key == null)
+                return;
+        }
+        Entry entry = new Entry(docFile.getName());
+        entry.length = docFile.length();
+        entry.lastModified = docFile.lastModified();
+        entry.version = doc.getVersion();
+        entry.hint = (doc.getHint() == null) ? "" : doc.getHint();
+        PieceTable text = doc.getContent();
+        entry.chars = text.length();
+        scanText(text, entry);
+        List<Doc.SaveMetadata> history = doc.getDocMetadata().saveHistory;
+        if (history != null && !history.isEmpty()) {
+            entry.created = history.get(0).timestamp;
+            entry.saved = history.get(history.size() - 1).timestamp;
+        }
+        try {
+            entry.hash = hashText(text);
+        } catch (Exception ex) {
+            DocLog.log(DocCatalog.class, DocLog.WARN, "Catalog hash failed " + docFile, ex);
+        }
+
+        synchronized (this) {
+            if (m_key == null)
+                return;
+            m_entries.put(entry.name, entry);
+            m_dirty = true;
+        }
+    }
+
+    /**
+     * Record an incremental save, cost does not depend on note size. Only length, times and
+     * character count change, title, tags and hash are refreshed by the next {@link #update}.
+     * Notes not yet cataloged are left for the next update.
+     */
+    public synchronized void updateSaved(File docFile, Doc doc) {
+        Entry old = (m_key == null) ? null : m_entries.get(docFile.getName());
+        if (old == null)
+            return;
+        Entry entry = old.renamed(old.name);
+        entry.length = docFile.length();
+        entry.lastModified = docFile.lastModified();
+        entry.chars = doc.getLength();
+        List<Doc.SaveMetadata> history = doc.getDocMetadata().saveHistory;
+        if (history != null && !history.isEmpty())
+            entry.saved = history.get(history.size() - 1).timestamp;
+        m_entries.put(entry.name, entry);
+        m_dirty = true;
+    }
+
+    /**
+     * Move entry after a rename, persisted on next {@link #flush}.
+     */
+    public synchronized void rename(File fromFile, File toFile) {
+        Entry entry = m_entries.remove(fromFile.getName());
+        if (entry != null) {
+            m_entries.put(toFile.getName(), entry.renamed(toFile.getName()));
+            m_dirty = true;
+        }
+    }
+
+    /**
+     * Drop entry after a delete, persisted on next {@link #flush}.
+     */
+    public synchronized void remove(File file) {
+        if (m_entries.remove(file.getName()) != null)
+            m_dirty = true;
+    }
+
+    /**
+     * @return Entry of file name or null if not cataloged.
+     */
+    public synchronized Entry getEntry(String filename) {
+        return m_entries.get(filename);
+    }
+
+    public synchronized int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * Sorted and filtered page of entries, touches no note file.
+     *
+     * @param filter   Substring of name, title, tag or hint, case ignored, null or empty for all.
+     * @param sortKey  SORT_NAME, SORT_MODIFIED, SORT_SIZE or SORT_TITLE.
+     * @param offset   First entry of page.
+     * @param limit    Maximum entries in page.
+     */
+    public synchronized List<Entry> query(String filter, int sortKey, boolean descending, int offset, int limit) {
+        ArrayList<Entry> found = new ArrayList<Entry>(m_entries.size());
+        String lowerFilter = (filter == null) ? "" : filter.trim().toLowerCase(Locale.US);
+        for (Entry entry : m_entries.values()) {
+            if (lowerFilter.length() == 0 || entry.matches(lowerFilter))
+                found.add(entry);
+        }
+        Comparator<Entry> order = getOrder(sortKey);
+        Collections.sort(found, descending ? Collections.reverseOrder(order) : order);
+        int beg = Math.min(offset, found.size());
+        int end = Math.min(found.size(), beg + limit);
+        return new ArrayList<Entry>(found.subList(beg, end));
+    }
+
+    /**
+     * Persist pending changes. Run on background thread, entries are copied under the
+     * catalog lock then sealed and written without it.
+     */
+    public void flush() {
+        synchronized (m_writeLock) {
+            File file;
+            Kdf.Spec spec;
+            byte[] key;
+            byte[] plain;
+            synchronized (this) {
+                if (!m_dirty || m_key == null || m_file == null)
+                    return;
+                try {
+                    plain = serialize(m_entries);
+                } catch (IOException ex) {
+                    DocLog.log(DocCatalog.class, DocLog.ERROR, "Catalog write failed", ex);
+                    return;
+                }
+                file = m_file;
+                spec = m_spec;
+                key = m_key.clone();
+                m_dirty = false;
+            }
+
+            try {
+                write(file, spec, key, plain);
+            } catch (Exception ex) {
+                DocLog.log(DocCatalog.class, DocLog.ERROR, "Catalog write failed", ex);
+                synchronized (this) {
+                    if (m_key != null && file == m_file)
+                        m_dirty = true;
+                }
+            } finally {
+                Arrays.fill(key, (byte) 0);
+                Arrays.fill(plain, (byte) 0);
+            }
+        }
+    }
+
+    private static Comparator<Entry> getOrder(int sortKey) {
+        switch (sortKey) {
+        case SORT_MODIFIED:
+            return new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return (lhs.lastModified < rhs.lastModified) ? -1 : (lhs.lastModified == rhs.lastModified ? 0 : 1);
+                }
+            };
+        case SORT_SIZE:
+            return new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return (lhs.length < rhs.length) ? -1 : (lhs.length == rhs.length ? 0 : 1);
+                }
+            };
+        case SORT_TITLE:
+            return new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return String.CASE_INSENSITIVE_ORDER.compare(lhs.title, rhs.title);
+                }
+            };
+        default:
+            return new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return String.CASE_INSENSITIVE_ORDER.compare(lhs.name, rhs.name);
+                }
+            };
+        }
+    }
+
+    /**
+     * Title is the first non blank line, tags are words starting with '#'.
+     */
+    static void scanText(CharSequence text, Entry entry) {
+        int len = text.length();
+        int pos = 0;
+        while (pos < len && Character.isWhitespace(text.charAt(pos)))
+            pos++;
+        int end = pos;
+        while (end < len && end - pos < TITLE_MAX_CHARS && text.charAt(end) != '\n' && text.charAt(end) != '\r')
+            end++;
+        entry.title = text.subSequence(pos, end).toString().trim();
+
+        LinkedHashSet<String> tags = new LinkedHashSet<String>();
+        StringBuilder tag = new StringBuilder();
+        for (int idx = 0; idx < len && tags.size() < TAGS_MAX; idx++) {
+            if (text.charAt(idx) != '#' || (idx != 0 && Character.isLetterOrDigit(text.charAt(idx - 1))))
+                continue;
+            tag.setLength(0);
+            int tagPos = idx + 1;
+            while (tagPos < len && Character.isLetterOrDigit(text.charAt(tagPos)) && tag.length() < 32)
+                tag.append(Character.toLowerCase(text.charAt(tagPos++)));
+            if (tag.length() != 0)
+                tags.add(tag.toString());
+            idx = tagPos - 1;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String name : tags) {
+            if (sb.length() != 0)
+                sb.append(' ');
+            sb.append(name);
+        }
+        entry.tags = sb.toString();
+    }
+
+    /**
+     * @return SHA-256 of UTF-8 text, encoded through a fixed buffer.
+     */
+    static byte[] hashText(CharSequence text) throws IOException, GeneralSecurityException {
+        final MessageDigest md = CryptoPool.acquireDigest("SHA-256");
+        try {
+            DocStreams.writeUtf8(text, 0, text.length(), new OutputStream() {
+                @Override
+                public void write(int b) {
+                    md.update((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    md.update(b, off, len);
+                }
+            });
+            return md.digest();
+        } finally {
+            CryptoPool.releaseDigest(md);
+        }
+    }
+
+    private static byte[] deriveKey(Kdf.Spec spec, String pwd) {
+        try {
+            return Kdf.deriveKey(spec, pwd);
+        } catch (GeneralSecurityException ex) {
+            DocLog.log(DocCatalog.class, DocLog.ERROR, "Catalog key failed", ex);
+            return null;
+        }
+    }
+
+    private static byte[] header(Kdf.Spec spec, byte[] iv) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+        DataOutputStream hout = new DataOutputStream(bout);
+        hout.write(SIGNATURE);
+        hout.writeByte(CATALOG_VERSION);
+        spec.write(hout);
+        hout.write(iv);
+        hout.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * @throws GeneralSecurityException if password does not match or catalog failed verification.
+     * @throws IOException if catalog could not be read or parsed.
+     */
+    private static Contents read(File file, String pwd) throws IOException, GeneralSecurityException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream fin = new DataInputStream(new FileInputStream(file));
+        try {
+            fin.readFully(data);
+        } finally {
+            fin.close();
+        }
+
+        DataInputStream hin = new DataInputStream(new ByteArrayInputStream(data));
+        byte[] sig = new byte[SIGNATURE.length];
+        hin.readFully(sig);
+        if (!Arrays.equals(sig, SIGNATURE) || hin.readByte() != CATALOG_VERSION)
+            throw new IOException("Not a catalog " + file);
+        Contents contents = new Contents();
+        contents.spec = Kdf.Spec.read(hin);
+        byte[] iv = new byte[IV_LEN];
+        hin.readFully(iv);
+        int headerLen = data.length - hin.available();
+
+        contents.key = Kdf.deriveKey(contents.spec, pwd);
+        byte[] plain;
+        Cipher cipher = Doc.getAeadCipher(Cipher.DECRYPT_MODE, contents.key, iv);
+        try {
+            cipher.updateAAD(data, 0, headerLen);
+            plain = cipher.doFinal(data, headerLen, data.length - headerLen);
+        } catch (GeneralSecurityException ex) {
+            Arrays.fill(contents.key, (byte) 0);
+            throw ex;
+        } finally {
+            CryptoPool.releaseCipher(cipher);
+        }
+
+        try {
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(plain));
+            int count = din.readInt();
+            for (int idx = 0; idx < count; idx++) {
+                Entry entry = new Entry(din.readUTF());
+                entry.version = din.readUTF();
+                entry.hint = din.readUTF();
+                entry.title = din.readUTF();
+                entry.tags = din.readUTF();
+                entry.length = din.readLong();
+                entry.lastModified = din.readLong();
+                entry.created = din.readLong();
+                entry.saved = din.readLong();
+                entry.chars = din.readInt();
+                din.readFully(entry.hash);
+                contents.entries.put(entry.name, entry);
+            }
+        } catch (IOException ex) {
+            Arrays.fill(contents.key, (byte) 0);
+            throw ex;
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+        return contents;
+    }
+
+    private static byte[] serialize(HashMap<String, Entry> entries) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256 + entries.size() * 128);
+        DataOutputStream dout = new DataOutputStream(bout);
+        dout.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+            dout.writeUTF(entry.name);
+            dout.writeUTF(entry.version);
+            dout.writeUTF(entry.hint);
+            dout.writeUTF(entry.title);
+            dout.writeUTF(entry.tags);
+            dout.writeLong(entry.length);
+            dout.writeLong(entry.lastModified);
+            dout.writeLong(entry.created);
+            dout.writeLong(entry.saved);
+            dout.writeInt(entry.chars);
+            dout.write(entry.hash);
+        }
+        dout.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Seal catalog to forced temporary file then replace old catalog, see {@link SafeFile}.
+     */
+    private static void write(File file, Kdf.Spec spec, byte[] key, byte[] plain)
+            throws IOException, GeneralSecurityException {
+        byte[] iv = new byte[IV_LEN];
+        CryptoPool.getRandom().nextBytes(iv);
+        byte[] header = header(spec, iv);
+        byte[] sealed;
+        Cipher cipher = Doc.getAeadCipher(Cipher.ENCRYPT_MODE, key, iv);
+        try {
+            cipher.updateAAD(header);
+            sealed = cipher.doFinal(plain);
+        } finally {
+            CryptoPool.releaseCipher(cipher);
+        }
+
+        File tmpFile = SafeFile.tempFile(file);
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        boolean written = false;
+        try {
+            out.write(header);
+            out.write(sealed);
+            SafeFile.force(out.getChannel());
+            written = true;
+        } finally {
+            out.close();
+            if (!written)
+                tmpFile.delete();
+        }
+        SafeFile.commit(tmpFile, file);
+    }
+}
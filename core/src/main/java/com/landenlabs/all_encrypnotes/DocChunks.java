@@ -0,0 +1,1053 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+
+/**
+ * Chunked document body used by file format versions 4 (AES-CBC), 5 (AES-GCM) and
+ * 6 (AES-GCM, codec chosen in header, see {@link DocCodec}).
+ * <p>
+ * The text is split into fixed size chunks, each one compressed and encrypted
+ * on its own with its own IV. An offset table in the header lets a reader decrypt
+ * only the chunks it needs and lets a writer re-emit only modified chunks. Chunks
+ * are independent so they are encrypted and decrypted in parallel.
+ * <p>
+ * Metadata and table are written with spare capacity so an incremental save can
+ * append re-encrypted chunks at the end of the file and rewrite the header, metadata
+ * and table in place. Chunk data is therefore not always in text order.
+ * <p>
+ * Earlier revisions are stored as encrypted deltas after the chunk data, see
+ * {@link DocHistory}. The revision index is part of the metadata block.
+ * <p>
+ * Format 5 seals each chunk with AES-GCM, the nonce is a per save random prefix plus
+ * the chunk index. The metadata block is sealed with the used table entries as
+ * additional data, so chunk offsets, lengths and nonces are authenticated too.
+ *
+ * <pre>
+ *   header       signature, version, hint, key derivation (see Kdf.Spec), codec (format 6+),
+ *                key hash, random bytes
+ *   int          metaCap         bytes reserved for metadata
+ *   int          metaLen
+ *   byte[metaCap] AES(GZIP(DocMetadata, revision index)), IV is header random bytes, zero padded
+ *   int          chunkChars      nominal characters per chunk
+ *   int          tableCap        table entries reserved
+ *   int          chunkCount
+ *   table[tableCap], first chunkCount used
+ *      long      offset          absolute file offset of encrypted chunk
+ *      int       cipherLen       encrypted length
+ *      int       charLen         characters in chunk
+ *      int       byteLen         UTF-8 length of chunk, chunk data is AES(codec(UTF-8 text))
+ *      byte[16]  iv              CBC IV, or GCM 12 byte nonce zero padded
+ *   chunk data
+ *   revision deltas
+ * </pre>
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocChunks {
+
+    static final int CHUNK_CHARS = 64 * 1024;
+    static final int IV_LEN = 16;
+    static final int TABLE_ENTRY_LEN = 8 + 4 + 4 + 4 + IV_LEN;
+    static final int META_SLACK = 256;
+    static final int TABLE_SLACK_MIN = 16;
+    static final int GCM_NONCE_PREFIX_LEN = 8;
+
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+    static final int WINDOW = THREADS * 2;      // Chunks in flight, bounds memory.
+    private static ExecutorService s_pool;
+
+    /**
+     * Location and size of one encrypted chunk.
+     */
+    public static class Chunk {
+        public long offset;
+        public int cipherLen;
+        public int charLen;
+        public int byteLen;
+        public byte[] iv;
+    }
+
+    /**
+     * Work on one chunk, run on the crypto pool.
+     */
+    interface ChunkTask<T> {
+        T run(int idx) throws IOException;
+    }
+
+    /**
+     * Receives chunk results in chunk order, on the calling thread.
+     */
+    interface ChunkSink<T> {
+        void accept(int idx, T result) throws IOException;
+    }
+
+    /**
+     * @return true if format seals chunks with AES-GCM.
+     */
+    static boolean isAead(byte verFormat) {
+        return verFormat >= Doc.VERSION_FORMAT_GCM;
+    }
+
+    /**
+     * Split text into chunk boundaries, never splitting a surrogate pair.
+     *
+     * @return array of chunk end positions (exclusive).
+     */
+    static int[] splitChunks(CharSequence text, int chunkChars) {
+        ArrayList<Integer> ends = new ArrayList<Integer>(text.length() / chunkChars + 1);
+        int beg = 0;
+        while (beg < text.length()) {
+            int end = Math.min(beg + chunkChars, text.length());
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1)))
+                end--;
+            ends.add(end);
+            beg = end;
+        }
+
+        int[] result = new int[ends.size()];
+        for (int idx = 0; idx < result.length; idx++)
+            result[idx] = ends.get(idx);
+        return result;
+    }
+
+    /**
+     * Write metadata, chunk table and chunk data with positional writes, channel
+     * is truncated at end of data. Chunks are encrypted in parallel and written in
+     * order, at most WINDOW chunks are held in memory whatever the text size.
+     * Text must not change while it is saved.
+     *
+     * @param out       Output channel.
+     * @param bodyPos   Offset just past header.
+     * @param verFormat VERSION_FORMAT_CHUNKED, VERSION_FORMAT_GCM or VERSION_FORMAT_CODEC.
+     * @param codec     Chunk compression, GZIP before format 6.
+     * @param key       Encryption key.
+     * @param metaIv    IV used for metadata block (header random bytes).
+     * @param docMeta   Metadata saved in first encrypted block.
+     * @param text      Document text.
+     * @param random    Source for per-chunk IV.
+     * @param history   Revision deltas written after the chunks, null for none.
+     */
+    static void write(final FileChannel out, long bodyPos, byte verFormat, final DocCodec codec, final byte[] key,
+            byte[] metaIv, Doc.DocMetadata docMeta, final CharSequence text, SecureRandom random,
+            DocHistory.Writer history) throws IOException {
+
+        final boolean aead = isAead(verFormat);
+        List<DocHistory.Revision> revisions = (history == null)
+                ? new ArrayList<DocHistory.Revision>(0) : history.getRevisions();
+        // Revision offsets are set once chunks are written, reserve room for them to compress worse.
+        byte[] metaPlain = compressMetadata(docMeta, revisions);
+        int metaCap = sealedLength(aead, metaPlain.length) + META_SLACK + revisions.size() * 8;
+        final int[] ends = splitChunks(text, CHUNK_CHARS);
+        int tableCap = tableCapacity(ends.length);
+        final Chunk[] chunks = newChunks(aead, random, ends, 0, 0);
+
+        // Reserve metadata and table, fill in after chunks are written.
+        final long[] pos = {bodyPos + frontLength(metaCap, tableCap)};
+        runOrdered(chunks.length, new ChunkTask<byte[]>() {
+            @Override
+            public byte[] run(int idx) throws IOException {
+                return encodeChunk(aead, codec, key, chunks[idx], text, (idx == 0) ? 0 : ends[idx - 1], ends[idx]);
+            }
+        }, new ChunkSink<byte[]>() {
+            @Override
+            public void accept(int idx, byte[] cipherData) throws IOException {
+                chunks[idx].offset = pos[0];
+                pos[0] = writeFully(out, ByteBuffer.wrap(cipherData), pos[0]);
+            }
+        });
+
+        if (history != null)
+            pos[0] = history.write(out, pos[0]);
+
+        byte[] table = tableBytes(chunks);
+        metaPlain = compressMetadata(docMeta, revisions);
+        if (sealedLength(aead, metaPlain.length) > metaCap)
+            throw new IOException("Metadata exceeds reserved space");
+        byte[] metaData = sealMetadata(aead, key, metaIv, metaPlain, table);
+        writeFully(out, ByteBuffer.wrap(frontBytes(null, metaData, metaCap, CHUNK_CHARS, table, tableCap)), bodyPos);
+        out.truncate(pos[0]);
+    }
+
+    /**
+     * Write metadata, chunk table and chunk data to a sequential stream. Encrypted
+     * chunks are held in memory until the table is written. No revision history is written.
+     *
+     * @param bodyPos   Stream offset just past header.
+     */
+    static void write(OutputStream out, long bodyPos, byte verFormat, final DocCodec codec, final byte[] key,
+            byte[] metaIv,
+            Doc.DocMetadata docMeta, final CharSequence text, SecureRandom random) throws IOException {
+
+        final boolean aead = isAead(verFormat);
+        byte[] metaPlain = compressMetadata(docMeta, new ArrayList<DocHistory.Revision>(0));
+        int metaCap = sealedLength(aead, metaPlain.length) + META_SLACK;
+        final int[] ends = splitChunks(text, CHUNK_CHARS);
+        int tableCap = tableCapacity(ends.length);
+        final Chunk[] chunks = newChunks(aead, random, ends, 0, 0);
+
+        final long[] pos = {bodyPos + frontLength(metaCap, tableCap)};
+        final byte[][] cipherData = new byte[ends.length][];
+        runOrdered(chunks.length, new ChunkTask<byte[]>() {
+            @Override
+            public byte[] run(int idx) throws IOException {
+                return encodeChunk(aead, codec, key, chunks[idx], text, (idx == 0) ? 0 : ends[idx - 1], ends[idx]);
+            }
+        }, new ChunkSink<byte[]>() {
+            @Override
+            public void accept(int idx, byte[] data) {
+                chunks[idx].offset = pos[0];
+                pos[0] += data.length;
+                cipherData[idx] = data;
+            }
+        });
+
+        byte[] table = tableBytes(chunks);
+        byte[] metaData = sealMetadata(aead, key, metaIv, metaPlain, table);
+        out.write(frontBytes(null, metaData, metaCap, CHUNK_CHARS, table, tableCap));
+        for (byte[] data : cipherData)
+            out.write(data);
+        out.flush();
+    }
+
+    /**
+     * Rewrite only the chunks overlapping the dirty range. Unchanged chunks keep their
+     * encrypted bytes and file offset, re-encrypted chunks are appended at the end of the
+     * file. The existing table does not reference the appended chunks, so the document
+     * stays valid until the caller writes the returned front region at offset 0.
+     * Older revision deltas are kept in place, the newest is rebased and appended.
+     * <p>
+     * Returns null, leaving the file untouched, when the existing layout does not match
+     * the saved text, the metadata or table outgrew its reserved space, or dead chunk
+     * data would exceed the live data. Caller should then do a full save which compacts.
+     *
+     * @param channel   Existing chunked document opened read/write.
+     * @param header    New header bytes, must be exactly bodyPos long.
+     * @param verFormat Format of existing document, kept.
+     * @param codec     Codec of existing document, kept.
+     * @param key       Encryption key, must match existing file.
+     * @param oldMetaIv Random bytes in existing header.
+     * @param metaIv    IV for metadata, random bytes in new header.
+     * @param text      Current document text.
+     * @param dirty     Range modified since text was last saved to this file.
+     * @return New header, metadata and table to write at offset 0, or null.
+     */
+    static byte[] update(FileChannel channel, byte[] header, byte verFormat, final DocCodec codec, final byte[] key,
+            byte[] oldMetaIv,
+            byte[] metaIv, Doc.DocMetadata docMeta, final CharSequence text, DirtyRange dirty, SecureRandom random)
+            throws IOException {
+
+        long bodyPos = header.length;
+        final boolean aead = isAead(verFormat);
+        Reader old = new Reader(channel, bodyPos, false, verFormat, codec, key, oldMetaIv, null);
+        int baseLen = dirty.getBaseLength();
+        if (old.getCharCount() != baseLen || text.length() != dirty.getLength())
+            return null;
+
+        // Chunks [0, first) end before the dirty range, chunks [last, count) start after it.
+        // A chunk touching the range is rewritten, so typing at a chunk edge grows that
+        // chunk instead of adding a tiny new one.
+        int count = old.getChunkCount();
+        int first = 0;
+        while (first < count && old.getCharStart(first + 1) < dirty.getStart())
+            first++;
+        int oldSuffixStart = baseLen - dirty.getSuffix();
+        int last = count;
+        while (last > first && old.getCharStart(last - 1) > oldSuffixStart)
+            last--;
+
+        final int midBeg = old.getCharStart(first);
+        int midEnd = text.length() - (baseLen - old.getCharStart(last));
+        if (midEnd < midBeg)
+            return null;
+
+        int chunkChars = old.getChunkChars();
+        final int[] ends = splitChunks(text.subSequence(midBeg, midEnd), chunkChars);
+        int newCount = first + ends.length + (count - last);
+        List<DocHistory.Revision> revisions = old.getRevisions();
+        byte[] metaPlain = compressMetadata(docMeta, revisions);
+        if (newCount > old.m_tableCap || sealedLength(aead, metaPlain.length) > old.m_metaCap)
+            return null;
+
+        DocHistory.Writer history = null;
+        if (!revisions.isEmpty()) {
+            StringBuilder oldText = new StringBuilder();
+            for (int idx = first; idx < last; idx++)
+                oldText.append(old.readChunk(idx));
+            history = DocHistory.prepareUpdate(old, oldText, midBeg, dirty, codec, random);
+            revisions = history.getRevisions();
+        }
+
+        long fileEnd = channel.size();
+        final long[] appended = {0};
+        long live = 0;
+        for (DocHistory.Revision rev : revisions)
+            live += rev.cipherLen;
+        Chunk[] chunks = new Chunk[newCount];
+        for (int idx = 0; idx < first; idx++) {
+            chunks[idx] = old.getChunk(idx);
+            live += chunks[idx].cipherLen;
+        }
+        final Chunk[] midChunks = newChunks(aead, random, ends, midBeg, first);
+        final byte[][] cipherData = new byte[ends.length][];
+        runOrdered(midChunks.length, new ChunkTask<byte[]>() {
+            @Override
+            public byte[] run(int idx) throws IOException {
+                int beg = midBeg + ((idx == 0) ? 0 : ends[idx - 1]);
+                return encodeChunk(aead, codec, key, midChunks[idx], text, beg, midBeg + ends[idx]);
+            }
+        }, new ChunkSink<byte[]>() {
+            @Override
+            public void accept(int idx, byte[] data) {
+                cipherData[idx] = data;
+            }
+        });
+        for (int idx = 0; idx < midChunks.length; idx++) {
+            midChunks[idx].offset = fileEnd + appended[0];
+            appended[0] += cipherData[idx].length;
+            chunks[first + idx] = midChunks[idx];
+        }
+        live += appended[0];
+        for (int idx = last; idx < count; idx++) {
+            chunks[newCount - (count - idx)] = old.getChunk(idx);
+            live += old.getChunk(idx).cipherLen;
+        }
+
+        long historyLen = (history == null) ? 0 : history.getWriteLength();
+        long dataStart = bodyPos + frontLength(old.m_metaCap, old.m_tableCap);
+        if (fileEnd + appended[0] + historyLen - dataStart - live > live)
+            return null;
+
+        long pos = fileEnd;
+        for (byte[] data : cipherData)
+            pos = writeFully(channel, ByteBuffer.wrap(data), pos);
+        if (history != null) {
+            history.write(channel, pos);
+            metaPlain = compressMetadata(docMeta, revisions);
+            if (sealedLength(aead, metaPlain.length) > old.m_metaCap)
+                return null;
+        }
+
+        byte[] table = tableBytes(chunks);
+        byte[] metaData = sealMetadata(aead, key, metaIv, metaPlain, table);
+        return frontBytes(header, metaData, old.m_metaCap, chunkChars, table, old.m_tableCap);
+    }
+
+    /**
+     * @return Table entries to reserve for chunkCount chunks.
+     */
+    static int tableCapacity(int chunkCount) {
+        return chunkCount + Math.max(TABLE_SLACK_MIN, chunkCount / 4);
+    }
+
+    /**
+     * @return Bytes from body start to first chunk.
+     */
+    static long frontLength(int metaCap, int tableCap) {
+        return 4 + 4 + metaCap + 4 + 4 + 4 + (long) tableCap * TABLE_ENTRY_LEN;
+    }
+
+    /**
+     * Build optional header, metadata block and chunk table, padded to reserved sizes.
+     */
+    static byte[] frontBytes(byte[] header, byte[] metaData, int metaCap, int chunkChars, byte[] table,
+            int tableCap) {
+        int headerLen = (header == null) ? 0 : header.length;
+        ByteBuffer buf = ByteBuffer.allocate(headerLen + (int) frontLength(metaCap, tableCap));
+        if (header != null)
+            buf.put(header);
+        buf.putInt(metaCap).putInt(metaData.length).put(metaData);
+        buf.position(buf.position() + metaCap - metaData.length);
+        buf.putInt(chunkChars).putInt(tableCap).putInt(table.length / TABLE_ENTRY_LEN).put(table);
+        return buf.array();
+    }
+
+    /**
+     * Allocate chunks with IV and character count, on the calling thread so the
+     * shared random source is not contended by the pool.
+     *
+     * @param textBeg   Text offset of ends[] base.
+     * @param firstIdx  Table index of first chunk, part of GCM nonce.
+     */
+    private static Chunk[] newChunks(boolean aead, SecureRandom random, int[] ends, int textBeg, int firstIdx) {
+        byte[] noncePrefix = new byte[GCM_NONCE_PREFIX_LEN];
+        random.nextBytes(noncePrefix);
+
+        Chunk[] chunks = new Chunk[ends.length];
+        for (int idx = 0; idx < ends.length; idx++) {
+            Chunk chunk = new Chunk();
+            chunk.iv = new byte[IV_LEN];
+            if (aead) {
+                // Nonce is unique per key: random per save, then chunk index.
+                System.arraycopy(noncePrefix, 0, chunk.iv, 0, noncePrefix.length);
+                ByteBuffer.wrap(chunk.iv).putInt(noncePrefix.length, firstIdx + idx);
+            } else {
+                random.nextBytes(chunk.iv);
+            }
+            chunk.charLen = ends[idx] - ((idx == 0) ? 0 : ends[idx - 1]);
+            chunks[idx] = chunk;
+        }
+        return chunks;
+    }
+
+    /**
+     * Compress and encrypt text[beg, end), fill in chunk lengths.
+     */
+    private static byte[] encodeChunk(boolean aead, DocCodec codec, byte[] key, Chunk chunk, CharSequence text,
+            int beg, int end) throws IOException {
+        Cipher cipher = getChunkCipher(aead, Cipher.ENCRYPT_MODE, key, chunk.iv);
+        long startNanos = DocMetrics.start();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream((end - beg) / 2 + 64);
+        DocMetrics.TimedOutputStream cout = new DocMetrics.TimedOutputStream(DocMetrics.ENCRYPT,
+                new CipherOutputStream(bout, cipher), null);
+        OutputStream zout = codec.compress(cout);
+        chunk.byteLen = (int) DocStreams.writeUtf8(text, beg, end, zout);
+        zout.close();
+        CryptoPool.releaseCipher(cipher);
+        DocMetrics.add(DocMetrics.COMPRESS, System.nanoTime() - startNanos - cout.getNanos(), chunk.byteLen);
+        chunk.cipherLen = bout.size();
+        return bout.toByteArray();
+    }
+
+    private static Cipher getChunkCipher(boolean aead, int cipherMode, byte[] key, byte[] iv) throws IOException {
+        return aead ? Doc.getAeadCipher(cipherMode, key, iv) : Doc.getCipher(cipherMode, key, iv);
+    }
+
+    static byte[] tableBytes(Chunk[] chunks) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(chunks.length * TABLE_ENTRY_LEN);
+        DataOutputStream dout = new DataOutputStream(bout);
+        for (Chunk chunk : chunks) {
+            dout.writeLong(chunk.offset);
+            dout.writeInt(chunk.cipherLen);
+            dout.writeInt(chunk.charLen);
+            dout.writeInt(chunk.byteLen);
+            dout.write(chunk.iv);
+        }
+        dout.flush();
+        return bout.toByteArray();
+    }
+
+    static Chunk[] parseTable(byte[] table, int chunkCount) throws IOException {
+        DataInputStream tin = new DataInputStream(new ByteArrayInputStream(table));
+        Chunk[] chunks = new Chunk[chunkCount];
+        for (int idx = 0; idx < chunkCount; idx++) {
+            Chunk chunk = new Chunk();
+            chunk.offset = tin.readLong();
+            chunk.cipherLen = tin.readInt();
+            chunk.charLen = tin.readInt();
+            chunk.byteLen = tin.readInt();
+            chunk.iv = new byte[IV_LEN];
+            tin.readFully(chunk.iv);
+            chunks[idx] = chunk;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return Position after last byte written.
+     */
+    static long writeFully(FileChannel out, ByteBuffer buf, long pos) throws IOException {
+        long startNanos = DocMetrics.start();
+        int len = buf.remaining();
+        while (buf.hasRemaining())
+            pos += out.write(buf, pos);
+        DocMetrics.stop(DocMetrics.WRITE, startNanos, len);
+        return pos;
+    }
+
+    static void readFully(FileChannel in, long pos, byte[] data) throws IOException {
+        long startNanos = DocMetrics.start();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            int nread = in.read(buf, pos + buf.position());
+            if (nread < 0)
+                throw new EOFException("Unexpected end of document");
+        }
+        DocMetrics.stop(DocMetrics.READ, startNanos, data.length);
+    }
+
+    static byte[] compressMetadata(Doc.DocMetadata docMeta, List<DocHistory.Revision> revisions)
+            throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DataOutputStream dout = new DataOutputStream(new GZIPOutputStream(bout));
+        docMeta.saveMetadata(dout);
+        DocHistory.writeIndex(dout, revisions);
+        dout.close();
+        return bout.toByteArray();
+    }
+
+    /**
+     * @return Encrypted length of plainLen bytes.
+     */
+    static int sealedLength(boolean aead, int plainLen) {
+        return aead ? plainLen + Doc.GCM_TAG_BITS / 8 : (plainLen / 16 + 1) * 16;
+    }
+
+    /**
+     * Encrypt compressed metadata, GCM also authenticates table.
+     */
+    static byte[] sealMetadata(boolean aead, byte[] key, byte[] iv, byte[] metaPlain, byte[] table)
+            throws IOException {
+        Cipher cipher = getChunkCipher(aead, Cipher.ENCRYPT_MODE, key, iv);
+        try {
+            if (aead)
+                cipher.updateAAD(table);
+            return cipher.doFinal(metaPlain);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Metadata encrypt failed " + ex.getMessage());
+        } finally {
+            CryptoPool.releaseCipher(cipher);
+        }
+    }
+
+    /**
+     * Decrypt and verify metadata block.
+     *
+     * @param table    Raw used table entries, authenticated by GCM.
+     * @param docMeta  Receives metadata, null to only verify.
+     * @return Revision index.
+     */
+    static List<DocHistory.Revision> openMetadata(boolean aead, byte[] key, byte[] iv, byte[] metaData,
+            byte[] table, Doc.DocMetadata docMeta) throws IOException {
+        byte[] metaPlain;
+        Cipher cipher = getChunkCipher(aead, Cipher.DECRYPT_MODE, key, iv);
+        try {
+            if (aead)
+                cipher.updateAAD(table);
+            metaPlain = cipher.doFinal(metaData);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Document metadata or chunk table failed verification " + ex.getMessage());
+        } finally {
+            CryptoPool.releaseCipher(cipher);
+        }
+        DataInputStream din = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(metaPlain)));
+        ((docMeta != null) ? docMeta : new Doc.DocMetadata()).loadMetadata(din, Doc.VERSION_MINOR);
+        List<DocHistory.Revision> revisions = DocHistory.readIndex(din);
+        din.close();
+        return revisions;
+    }
+
+    /**
+     * Decrypt, verify (GCM) and decompress one chunk.
+     */
+    static String decodeChunk(boolean aead, DocCodec codec, byte[] key, Chunk chunk, byte[] cipherData)
+            throws IOException {
+        Cipher cipher = getChunkCipher(aead, Cipher.DECRYPT_MODE, key, chunk.iv);
+        long startNanos = DocMetrics.start();
+        byte[] plain;
+        try {
+            plain = cipher.doFinal(cipherData);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException((aead ? "Chunk failed verification " : "Chunk decrypt failed ") + ex.getMessage());
+        } finally {
+            CryptoPool.releaseCipher(cipher);
+        }
+        DocMetrics.stop(DocMetrics.DECRYPT, startNanos, cipherData.length);
+        return inflateChunk(codec, chunk, new ByteArrayInputStream(plain));
+    }
+
+    /**
+     * Decrypt chunk straight from a (mapped) buffer, then decompress.
+     */
+    static String decodeChunk(boolean aead, DocCodec codec, byte[] key, Chunk chunk, ByteBuffer cipherData)
+            throws IOException {
+        Cipher cipher = getChunkCipher(aead, Cipher.DECRYPT_MODE, key, chunk.iv);
+        ByteBuffer plain;
+        try {
+            long startNanos = DocMetrics.start();
+            int cipherLen = cipherData.remaining();
+            plain = ByteBuffer.allocate(cipher.getOutputSize(cipherLen));
+            cipher.doFinal(cipherData, plain);
+            DocMetrics.stop(DocMetrics.DECRYPT, startNanos, cipherLen);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException((aead ? "Chunk failed verification " : "Chunk decrypt failed ") + ex.getMessage());
+        } finally {
+            CryptoPool.releaseCipher(cipher);
+        }
+        return inflateChunk(codec, chunk, new ByteArrayInputStream(plain.array(), 0, plain.position()));
+    }
+
+    private static String inflateChunk(DocCodec codec, Chunk chunk, InputStream compressed) throws IOException {
+        long startNanos = DocMetrics.start();
+        InputStream zin = codec.decompress(compressed);
+        byte[] plain = new byte[chunk.byteLen];
+        int total = 0;
+        while (total < plain.length) {
+            int nread = zin.read(plain, total, plain.length - total);
+            if (nread < 0)
+                throw new IOException("Truncated chunk");
+            total += nread;
+        }
+        zin.close();
+        String text = new String(plain, Doc.ENC);
+        DocMetrics.stop(DocMetrics.DECOMPRESS, startNanos, plain.length);
+        return text;
+    }
+
+    /**
+     * Read whole chunked body from a sequential stream positioned just past the header.
+     * Chunks are decrypted in parallel once read.
+     *
+     * @param bodyPos   Stream offset of body, chunk offsets are absolute.
+     */
+    static String readAll(InputStream in, long bodyPos, byte verFormat, final DocCodec codec, final byte[] key,
+            byte[] metaIv,
+            Doc.DocMetadata docMeta) throws IOException {
+        final boolean aead = isAead(verFormat);
+        DataInputStream din = new DataInputStream(in);
+        int metaCap = din.readInt();
+        int metaLen = din.readInt();
+        if (metaLen < 0 || metaLen > metaCap)
+            throw new IOException("Invalid metadata block");
+        byte[] metaData = new byte[metaLen];
+        din.readFully(metaData);
+        skipFully(din, metaCap - metaLen);
+
+        din.readInt();  // chunkChars
+        int tableCap = din.readInt();
+        int chunkCount = din.readInt();
+        if (chunkCount < 0 || chunkCount > tableCap || tableCap > Integer.MAX_VALUE / TABLE_ENTRY_LEN)
+            throw new IOException("Invalid chunk table");
+        byte[] table = new byte[chunkCount * TABLE_ENTRY_LEN];
+        din.readFully(table);
+        skipFully(din, (tableCap - chunkCount) * TABLE_ENTRY_LEN);
+        openMetadata(aead, key, metaIv, metaData, table, docMeta);
+        final Chunk[] chunks = parseTable(table, chunkCount);
+
+        // Incremental saves append chunks, so read them in file order and decode in text order.
+        Integer[] fileOrder = new Integer[chunkCount];
+        for (int idx = 0; idx < chunkCount; idx++)
+            fileOrder[idx] = idx;
+        Arrays.sort(fileOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long diff = chunks[lhs].offset - chunks[rhs].offset;
+                return (diff < 0) ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        long pos = bodyPos + frontLength(metaCap, tableCap);
+        final byte[][] cipherData = new byte[chunkCount][];
+        for (int idx : fileOrder) {
+            Chunk chunk = chunks[idx];
+            if (chunk.offset < pos)
+                throw new IOException("Overlapping chunks");
+            skipFully(din, chunk.offset - pos);
+            cipherData[idx] = new byte[chunk.cipherLen];
+            din.readFully(cipherData[idx]);
+            pos = chunk.offset + chunk.cipherLen;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        runOrdered(chunkCount, new ChunkTask<String>() {
+            @Override
+            public String run(int idx) throws IOException {
+                String text = decodeChunk(aead, codec, key, chunks[idx], cipherData[idx]);
+                cipherData[idx] = null;
+                return text;
+            }
+        }, new ChunkSink<String>() {
+            @Override
+            public void accept(int idx, String text) {
+                sb.append(text);
+            }
+        });
+        return sb.toString();
+    }
+
+    private static void skipFully(DataInputStream din, long len) throws IOException {
+        while (len > 0) {
+            int skipped = din.skipBytes((int) Math.min(Integer.MAX_VALUE, len));
+            if (skipped <= 0)
+                throw new EOFException("Unexpected end of document");
+            len -= skipped;
+        }
+    }
+
+    static byte[] decrypt(boolean aead, byte[] key, byte[] iv, byte[] cipherData) throws IOException {
+        Cipher cipher = getChunkCipher(aead, Cipher.DECRYPT_MODE, key, iv);
+        try {
+            return cipher.doFinal(cipherData);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException((aead ? "Chunk failed verification " : "Chunk decrypt failed ") + ex.getMessage());
+        } finally {
+            CryptoPool.releaseCipher(cipher);
+        }
+    }
+
+    /**
+     * Shared pool for chunk encryption and decryption, one daemon thread per core.
+     * ForkJoinPool is not used since it needs Android API 21.
+     */
+    static synchronized ExecutorService getPool() {
+        if (s_pool == null) {
+            s_pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private int m_count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DocCrypt-" + (++m_count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return s_pool;
+    }
+
+    /**
+     * Run task for chunks [0, count) on the crypto pool, at most WINDOW at a time,
+     * and pass results to sink in chunk order on the calling thread. Runs inline
+     * for a single chunk or a single core.
+     */
+    static <T> void runOrdered(int count, final ChunkTask<T> task, ChunkSink<T> sink) throws IOException {
+        if (count <= 1 || THREADS <= 1) {
+            for (int idx = 0; idx < count; idx++)
+                sink.accept(idx, task.run(idx));
+            return;
+        }
+
+        ExecutorService pool = getPool();
+        ArrayDeque<Future<T>> inFlight = new ArrayDeque<Future<T>>(WINDOW);
+        int next = 0;
+        try {
+            for (int idx = 0; idx < count; idx++) {
+                while (next < count && next - idx < WINDOW) {
+                    final int taskIdx = next++;
+                    inFlight.add(pool.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws IOException {
+                            return task.run(taskIdx);
+                        }
+                    }));
+                }
+                sink.accept(idx, getResult(inFlight.removeFirst()));
+            }
+        } finally {
+            // Not interrupted, an interrupt would close a shared FileChannel.
+            for (Future<T> future : inFlight)
+                future.cancel(false);
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Chunk work interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Random access reader over a chunked document. Safe for concurrent chunk reads.
+     */
+    public static class Reader implements Closeable {
+        private final FileChannel m_channel;
+        private final ByteBuffer m_mapped;      // Whole file, null to use channel.
+        private final boolean m_ownsChannel;
+        private final boolean m_aead;
+        private final DocCodec m_codec;
+        private final byte[] m_key;
+        private final byte[] m_metaIv;
+        private final long m_metaPos;
+        private final int m_metaLen;
+        private final byte[] m_table;
+        private List<DocHistory.Revision> m_revisions;
+        private final Chunk[] m_chunks;
+        private final int[] m_charStart;
+        private final int m_chunkChars;
+        private final int m_charCount;
+        final int m_metaCap;
+        final int m_tableCap;
+
+        /**
+         * Read metadata and chunk table.
+         *
+         * @param channel     Document channel, read with positional reads.
+         * @param bodyPos     Offset just past header.
+         * @param ownsChannel Close channel when reader is closed.
+         * @param verFormat   VERSION_FORMAT_CHUNKED, VERSION_FORMAT_GCM or VERSION_FORMAT_CODEC.
+         * @param codec       Chunk compression from header.
+         * @param docMeta     Receives metadata, null to skip loading metadata (GCM still verifies table).
+         *                    Revision index is loaded with metadata or on first use.
+         */
+        public Reader(FileChannel channel, long bodyPos, boolean ownsChannel, byte verFormat, DocCodec codec,
+                byte[] key, byte[] metaIv, Doc.DocMetadata docMeta) throws IOException {
+            this(channel, null, bodyPos, ownsChannel, verFormat, codec, key, metaIv, docMeta);
+        }
+
+        /**
+         * Read metadata and chunk table from a mapped file. Chunks are decrypted straight
+         * from the buffer.
+         *
+         * @param mapped  Whole document, from offset 0.
+         */
+        Reader(ByteBuffer mapped, long bodyPos, byte verFormat, DocCodec codec,
+                byte[] key, byte[] metaIv, Doc.DocMetadata docMeta) throws IOException {
+            this(null, mapped, bodyPos, false, verFormat, codec, key, metaIv, docMeta);
+        }
+
+        private Reader(FileChannel channel, ByteBuffer mapped, long bodyPos, boolean ownsChannel, byte verFormat,
+                DocCodec codec, byte[] key, byte[] metaIv, Doc.DocMetadata docMeta) throws IOException {
+            m_channel = channel;
+            m_mapped = mapped;
+            m_ownsChannel = ownsChannel;
+            m_aead = DocChunks.isAead(verFormat);
+            m_codec = codec;
+            m_key = key;
+            m_metaIv = metaIv;
+
+            ByteBuffer intBuf = ByteBuffer.allocate(4);
+            m_metaCap = readInt(bodyPos, intBuf);
+            int metaLen = readInt(bodyPos + 4, intBuf);
+            if (metaLen < 0 || metaLen > m_metaCap || m_metaCap > size())
+                throw new IOException("Invalid metadata block");
+            m_metaPos = bodyPos + 8;
+            m_metaLen = metaLen;
+            long pos = m_metaPos + m_metaCap;
+
+            m_chunkChars = readInt(pos, intBuf);
+            m_tableCap = readInt(pos + 4, intBuf);
+            int chunkCount = readInt(pos + 8, intBuf);
+            pos += 12;
+            if (chunkCount < 0 || chunkCount > m_tableCap
+                    || (long) m_tableCap * TABLE_ENTRY_LEN > size())
+                throw new IOException("Invalid chunk table");
+
+            m_table = new byte[chunkCount * TABLE_ENTRY_LEN];
+            read(pos, m_table);
+            if (docMeta != null || m_aead)
+                m_revisions = loadMetadata(docMeta);
+
+            m_chunks = parseTable(m_table, chunkCount);
+            m_charStart = new int[chunkCount + 1];
+            for (int idx = 0; idx < chunkCount; idx++)
+                m_charStart[idx + 1] = m_charStart[idx] + m_chunks[idx].charLen;
+            m_charCount = m_charStart[chunkCount];
+        }
+
+        private List<DocHistory.Revision> loadMetadata(Doc.DocMetadata docMeta) throws IOException {
+            byte[] metaData = new byte[m_metaLen];
+            read(m_metaPos, metaData);
+            return openMetadata(m_aead, m_key, m_metaIv, metaData, m_table, docMeta);
+        }
+
+        private int readInt(long pos, ByteBuffer intBuf) throws IOException {
+            read(pos, intBuf.array());
+            return intBuf.getInt(0);
+        }
+
+        private long size() throws IOException {
+            return (m_mapped != null) ? m_mapped.capacity() : m_channel.size();
+        }
+
+        /**
+         * @return View of mapped document [pos, pos+len).
+         */
+        private ByteBuffer slice(long pos, int len) throws IOException {
+            if (pos < 0 || len < 0 || pos + len > m_mapped.capacity())
+                throw new EOFException("Unexpected end of document");
+            ByteBuffer buf = m_mapped.duplicate();
+            buf.limit((int) pos + len).position((int) pos);
+            return buf;
+        }
+
+        private void read(long pos, byte[] data) throws IOException {
+            if (m_mapped != null)
+                slice(pos, data.length).get(data);
+            else
+                readFully(m_channel, pos, data);
+        }
+
+        public int getChunkCount() {
+            return m_chunks.length;
+        }
+
+        public int getChunkChars() {
+            return m_chunkChars;
+        }
+
+        public Chunk getChunk(int idx) {
+            return m_chunks[idx];
+        }
+
+        /**
+         * @return Total characters in document.
+         */
+        public int getCharCount() {
+            return m_charCount;
+        }
+
+        /**
+         * @return Character offset of first character in chunk.
+         */
+        public int getCharStart(int idx) {
+            return m_charStart[idx];
+        }
+
+        /**
+         * @return Index of chunk holding character position.
+         */
+        public int findChunk(int charPos) {
+            int lo = 0;
+            int hi = m_chunks.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (m_charStart[mid] <= charPos)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            return lo;
+        }
+
+        /**
+         * @return Encrypted chunk bytes as stored in file.
+         */
+        public byte[] readCipherChunk(int idx) throws IOException {
+            Chunk chunk = m_chunks[idx];
+            byte[] cipherData = new byte[chunk.cipherLen];
+            read(chunk.offset, cipherData);
+            return cipherData;
+        }
+
+        /**
+         * Decrypt and decompress a single chunk.
+         */
+        public String readChunk(int idx) throws IOException {
+            if (m_mapped != null) {
+                Chunk chunk = m_chunks[idx];
+                return decodeChunk(m_aead, m_codec, m_key, chunk, slice(chunk.offset, chunk.cipherLen));
+            }
+            return decodeChunk(m_aead, m_codec, m_key, m_chunks[idx], readCipherChunk(idx));
+        }
+
+        /**
+         * Decrypt all chunks into one string, chunks are decrypted in parallel.
+         */
+        public String readAll() throws IOException {
+            final StringBuilder sb = new StringBuilder(m_charCount);
+            runOrdered(m_chunks.length, new ChunkTask<String>() {
+                @Override
+                public String run(int idx) throws IOException {
+                    return readChunk(idx);
+                }
+            }, new ChunkSink<String>() {
+                @Override
+                public void accept(int idx, String text) {
+                    sb.append(text);
+                }
+            });
+            return sb.toString();
+        }
+
+        byte[] getKey() {
+            return m_key;
+        }
+
+        boolean isAead() {
+            return m_aead;
+        }
+
+        /**
+         * @return Earlier revisions, oldest first.
+         */
+        public synchronized List<DocHistory.Revision> getRevisions() throws IOException {
+            if (m_revisions == null)
+                m_revisions = loadMetadata(null);
+            return m_revisions;
+        }
+
+        byte[] readRevisionData(DocHistory.Revision rev) throws IOException {
+            if (rev.cipherLen < 0 || rev.offset < 0 || rev.offset + rev.cipherLen > size())
+                throw new IOException("Invalid revision");
+            byte[] cipherData = new byte[rev.cipherLen];
+            read(rev.offset, cipherData);
+            return cipherData;
+        }
+
+        /**
+         * Rebuild an earlier revision, applying deltas from the latest text back to it.
+         *
+         * @param idx  Index in {@link #getRevisions()}.
+         */
+        public String readRevision(int idx) throws IOException {
+            List<DocHistory.Revision> revisions = getRevisions();
+            String text = readAll();
+            for (int revIdx = revisions.size() - 1; revIdx >= idx; revIdx--) {
+                DocHistory.Revision rev = revisions.get(revIdx);
+                byte[] delta = DocHistory.open(m_aead, m_key, rev, readRevisionData(rev));
+                text = DocHistory.applyDelta(text, delta);
+            }
+            return text;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (m_ownsChannel)
+                m_channel.close();
+        }
+    }
+}
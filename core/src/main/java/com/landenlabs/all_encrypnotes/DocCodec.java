@@ -0,0 +1,596 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression applied to document text before it is encrypted.
+ * <p>
+ * The codec id is saved in the file header (format 6+), formats 2 to 5 always use GZIP.
+ * The compression level is only used while writing. An adaptive codec compresses a few
+ * samples of the text first and stores the text uncompressed when they do not shrink,
+ * so already compressed or random content does not pay for deflate.
+ * <ul>
+ *     <li>GZIP    - Original stream format, default level.</li>
+ *     <li>STORE   - No compression.</li>
+ *     <li>DEFLATE - Raw deflate at chosen level, no gzip header or CRC.</li>
+ *     <li>FAST    - LZ4 style block compression, greedy hash match, low ratio but
+ *                   several times faster than deflate.</li>
+ * </ul>
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocCodec {
+
+    public static final byte CODEC_GZIP = 0;
+    public static final byte CODEC_STORE = 1;
+    public static final byte CODEC_DEFLATE = 2;
+    public static final byte CODEC_FAST = 3;
+
+    public static final int LEVEL_DEFAULT = Deflater.DEFAULT_COMPRESSION;
+
+    static final int SAMPLE_CHARS = 4096;
+    static final int SAMPLE_COUNT = 3;
+    static final int SAMPLE_MIN_SAVING_PCT = 25;    // Store if samples shrink less, ex: base64 blobs.
+
+    /**
+     * Pluggable compression algorithm.
+     */
+    public interface Codec {
+        /**
+         * @return Stream compressing into out, closing it finishes and closes out.
+         */
+        OutputStream compress(OutputStream out, int level) throws IOException;
+
+        InputStream decompress(InputStream in) throws IOException;
+    }
+
+    public static final DocCodec GZIP = new DocCodec(CODEC_GZIP, LEVEL_DEFAULT, false);
+    public static final DocCodec STORE = new DocCodec(CODEC_STORE, LEVEL_DEFAULT, false);
+    public static final DocCodec FAST = new DocCodec(CODEC_FAST, LEVEL_DEFAULT, false);
+
+    private static final HashMap<Byte, Codec> s_codecs = new HashMap<Byte, Codec>();
+    private static DocCodec s_default = GZIP;
+
+    static {
+        register(CODEC_GZIP, new Codec() {
+            @Override
+            public OutputStream compress(OutputStream out, int level) throws IOException {
+                return new GZIPOutputStream(out, DocStreams.BUFFER_SIZE);
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) throws IOException {
+                return new GZIPInputStream(in, DocStreams.BUFFER_SIZE);
+            }
+        });
+        register(CODEC_STORE, new Codec() {
+            @Override
+            public OutputStream compress(OutputStream out, int level) {
+                return out;
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) {
+                return in;
+            }
+        });
+        register(CODEC_DEFLATE, new Codec() {
+            @Override
+            public OutputStream compress(OutputStream out, final int level) {
+                final Deflater deflater = new Deflater(level, true);
+                return new DeflaterOutputStream(out, deflater, DocStreams.BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        deflater.end();
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) {
+                final Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(new NowrapInput(in), inflater, DocStreams.BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            }
+        });
+        register(CODEC_FAST, new Codec() {
+            @Override
+            public OutputStream compress(OutputStream out, int level) {
+                return new FastOutputStream(out);
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) {
+                return new FastInputStream(in);
+            }
+        });
+    }
+
+    public final byte codecId;
+    public final int level;
+    public final boolean adaptive;
+
+    public DocCodec(byte codecId, int level, boolean adaptive) {
+        this.codecId = codecId;
+        this.level = level;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * @param level  Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9).
+     */
+    public static DocCodec deflate(int level) {
+        return new DocCodec(CODEC_DEFLATE, level, false);
+    }
+
+    /**
+     * @return Same codec, but storing text whose samples do not compress.
+     */
+    public DocCodec adaptive() {
+        return new DocCodec(codecId, level, true);
+    }
+
+    /**
+     * Add or replace a compression algorithm.
+     */
+    public static synchronized void register(byte codecId, Codec codec) {
+        s_codecs.put(codecId, codec);
+    }
+
+    /**
+     * Set codec used by saves which do not pick one.
+     */
+    public static synchronized void setDefault(DocCodec codec) {
+        s_default = codec;
+    }
+
+    public static synchronized DocCodec getDefault() {
+        return s_default;
+    }
+
+    /**
+     * @return Codec to read data saved with codecId.
+     */
+    static DocCodec forId(byte codecId) throws IOException {
+        if (getCodec(codecId) == null)
+            throw new IOException("Unknown compression codec " + codecId);
+        return (codecId == CODEC_GZIP) ? GZIP : new DocCodec(codecId, LEVEL_DEFAULT, false);
+    }
+
+    private static synchronized Codec getCodec(byte codecId) {
+        return s_codecs.get(codecId);
+    }
+
+    public OutputStream compress(OutputStream out) throws IOException {
+        Codec codec = getCodec(codecId);
+        if (codec == null)
+            throw new IOException("Unknown compression codec " + codecId);
+        return codec.compress(out, level);
+    }
+
+    public InputStream decompress(InputStream in) throws IOException {
+        Codec codec = getCodec(codecId);
+        if (codec == null)
+            throw new IOException("Unknown compression codec " + codecId);
+        return codec.decompress(in);
+    }
+
+    /**
+     * Resolve adaptive codec for text, sampling start, middle and end with a fast deflate.
+     *
+     * @return Codec to write text with, never adaptive.
+     */
+    public DocCodec select(CharSequence text) {
+        if (!adaptive)
+            return this;
+        DocCodec fixed = new DocCodec(codecId, level, false);
+        if (codecId == CODEC_STORE)
+            return fixed;
+
+        ByteArrayOutputStream sample = new ByteArrayOutputStream(SAMPLE_CHARS * SAMPLE_COUNT);
+        try {
+            if (text.length() <= SAMPLE_CHARS * SAMPLE_COUNT) {
+                DocStreams.writeUtf8(text, 0, text.length(), sample);
+            } else {
+                int step = (text.length() - SAMPLE_CHARS) / (SAMPLE_COUNT - 1);
+                for (int idx = 0; idx < SAMPLE_COUNT; idx++) {
+                    int beg = idx * step;
+                    DocStreams.writeUtf8(text, beg, beg + SAMPLE_CHARS, sample);
+                }
+            }
+        } catch (IOException ex) {
+            return fixed;   // Not thrown by memory stream.
+        }
+        if (sample.size() == 0)
+            return STORE;
+
+        byte[] plain = sample.toByteArray();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] buf = new byte[plain.length];
+        int packed = 0;
+        while (!deflater.finished() && packed < plain.length)
+            packed += deflater.deflate(buf);
+        deflater.end();
+
+        boolean shrinks = deflater.finished()
+                && (long) packed * 100 < (long) plain.length * (100 - SAMPLE_MIN_SAVING_PCT);
+        return shrinks ? fixed : STORE;
+    }
+
+    /**
+     * Parse name made by {@link #toString()}, ex: "deflate-1", "fast/adaptive".
+     */
+    public static DocCodec forName(String name) {
+        boolean adaptive = name.endsWith("/adaptive");
+        if (adaptive)
+            name = name.substring(0, name.length() - "/adaptive".length());
+        DocCodec codec;
+        if (name.equals("gzip"))
+            codec = GZIP;
+        else if (name.equals("store"))
+            codec = STORE;
+        else if (name.equals("fast"))
+            codec = FAST;
+        else if (name.equals("deflate"))
+            codec = deflate(LEVEL_DEFAULT);
+        else if (name.startsWith("deflate-"))
+            codec = deflate(Integer.parseInt(name.substring("deflate-".length())));
+        else
+            throw new IllegalArgumentException("Unknown codec " + name);
+        return adaptive ? codec.adaptive() : codec;
+    }
+
+    @Override
+    public String toString() {
+        String name;
+        switch (codecId) {
+            case CODEC_GZIP: name = "gzip"; break;
+            case CODEC_STORE: name = "store"; break;
+            case CODEC_DEFLATE: name = "deflate" + ((level == LEVEL_DEFAULT) ? "" : "-" + level); break;
+            case CODEC_FAST: name = "fast"; break;
+            default: name = "codec-" + codecId; break;
+        }
+        return adaptive ? name + "/adaptive" : name;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Raw inflate can need one byte past the compressed data to detect its end,
+     * supply a zero byte at end of input.
+     */
+    private static class NowrapInput extends InputStream {
+        private final InputStream m_in;
+        private boolean m_padded;
+
+        NowrapInput(InputStream in) {
+            m_in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ch = m_in.read();
+            if (ch < 0 && !m_padded) {
+                m_padded = true;
+                return 0;
+            }
+            return ch;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int nread = m_in.read(buf, off, len);
+            if (nread < 0 && !m_padded && len > 0) {
+                m_padded = true;
+                buf[off] = 0;
+                return 1;
+            }
+            return nread;
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_in.close();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // FAST codec, LZ4 block format in framed blocks.
+    //
+    //   block*
+    //      int     rawLen      0 marks end of stream
+    //      int     packedLen   equal to rawLen if block is stored
+    //      byte[packedLen]
+    //
+    // Sequence: token (literal length << 4 | match length - 4), extra literal length
+    // bytes, literals, 2 byte little endian offset, extra match length bytes. Lengths of
+    // 15 continue in following bytes of 255. Last sequence has literals only.
+
+    static final int FAST_BLOCK = 64 * 1024;
+    private static final int FAST_HASH_BITS = 12;
+    private static final int FAST_MIN_MATCH = 4;
+    private static final int FAST_MAX_OFFSET = 0xffff;
+
+    static int fastMaxPacked(int rawLen) {
+        return rawLen + rawLen / 255 + 16;
+    }
+
+    private static int readIntLE(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 | (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] << 24);
+    }
+
+    private static int writeLength(byte[] dst, int op, int len) {
+        while (len >= 255) {
+            dst[op++] = (byte) 255;
+            len -= 255;
+        }
+        dst[op++] = (byte) len;
+        return op;
+    }
+
+    /**
+     * Compress src[0, srcLen) into dst, which must hold fastMaxPacked(srcLen) bytes.
+     *
+     * @return Packed length.
+     */
+    static int fastCompress(byte[] src, int srcLen, byte[] dst, int[] table) {
+        Arrays.fill(table, 0);
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        while (ip <= srcLen - FAST_MIN_MATCH) {
+            int seq = readIntLE(src, ip);
+            int hash = (seq * -1640531535) >>> (32 - FAST_HASH_BITS);
+            int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            if (ref < 0 || ip - ref > FAST_MAX_OFFSET || readIntLE(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+
+            int matchLen = FAST_MIN_MATCH;
+            while (ip + matchLen < srcLen && src[ref + matchLen] == src[ip + matchLen])
+                matchLen++;
+
+            int litLen = ip - anchor;
+            int token = op++;
+            dst[token] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(matchLen - FAST_MIN_MATCH, 15));
+            if (litLen >= 15)
+                op = writeLength(dst, op, litLen - 15);
+            System.arraycopy(src, anchor, dst, op, litLen);
+            op += litLen;
+            int offset = ip - ref;
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            if (matchLen - FAST_MIN_MATCH >= 15)
+                op = writeLength(dst, op, matchLen - FAST_MIN_MATCH - 15);
+
+            ip += matchLen;
+            anchor = ip;
+        }
+
+        int litLen = srcLen - anchor;
+        dst[op++] = (byte) (Math.min(litLen, 15) << 4);
+        if (litLen >= 15)
+            op = writeLength(dst, op, litLen - 15);
+        System.arraycopy(src, anchor, dst, op, litLen);
+        return op + litLen;
+    }
+
+    /**
+     * Expand packed block into dst.
+     */
+    static void fastDecompress(byte[] src, int srcLen, byte[] dst, int rawLen) throws IOException {
+        int ip = 0;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xff;
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int more;
+                    do {
+                        more = src[ip++] & 0xff;
+                        litLen += more;
+                    } while (more == 255);
+                }
+                if (litLen > srcLen - ip || litLen > rawLen - op)
+                    throw new IOException("Corrupt fast block");
+                System.arraycopy(src, ip, dst, op, litLen);
+                ip += litLen;
+                op += litLen;
+                if (ip == srcLen)
+                    break;
+
+                int offset = (src[ip++] & 0xff) | (src[ip++] & 0xff) << 8;
+                int matchLen = (token & 0x0f) + FAST_MIN_MATCH;
+                if ((token & 0x0f) == 15) {
+                    int more;
+                    do {
+                        more = src[ip++] & 0xff;
+                        matchLen += more;
+                    } while (more == 255);
+                }
+                int ref = op - offset;
+                if (offset == 0 || ref < 0 || matchLen > rawLen - op)
+                    throw new IOException("Corrupt fast block");
+                for (int end = op + matchLen; op < end; )
+                    dst[op++] = dst[ref++];     // May overlap, copy forward one byte at a time.
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Corrupt fast block");
+        }
+        if (op != rawLen)
+            throw new IOException("Corrupt fast block");
+    }
+
+    private static class FastOutputStream extends FilterOutputStream {
+        private final byte[] m_raw = new byte[FAST_BLOCK];
+        private final byte[] m_packed = new byte[fastMaxPacked(FAST_BLOCK)];
+        private final int[] m_table = new int[1 << FAST_HASH_BITS];
+        private int m_rawLen;
+
+        FastOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int ch) throws IOException {
+            if (m_rawLen == m_raw.length)
+                flushBlock();
+            m_raw[m_rawLen++] = (byte) ch;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            while (len > 0) {
+                if (m_rawLen == m_raw.length)
+                    flushBlock();
+                int copy = Math.min(len, m_raw.length - m_rawLen);
+                System.arraycopy(buf, off, m_raw, m_rawLen, copy);
+                m_rawLen += copy;
+                off += copy;
+                len -= copy;
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (m_rawLen == 0)
+                return;
+            int packedLen = fastCompress(m_raw, m_rawLen, m_packed, m_table);
+            boolean stored = packedLen >= m_rawLen;
+            writeInt(m_rawLen);
+            writeInt(stored ? m_rawLen : packedLen);
+            out.write(stored ? m_raw : m_packed, 0, stored ? m_rawLen : packedLen);
+            m_rawLen = 0;
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBlock();
+            writeInt(0);
+            out.close();
+        }
+    }
+
+    private static class FastInputStream extends InputStream {
+        private final DataInputStream m_in;
+        private byte[] m_raw = new byte[0];
+        private byte[] m_packed = new byte[0];
+        private int m_pos;
+        private int m_len;
+        private boolean m_eof;
+
+        FastInputStream(InputStream in) {
+            m_in = new DataInputStream(in);
+        }
+
+        private boolean fill() throws IOException {
+            while (m_pos == m_len) {
+                if (m_eof)
+                    return false;
+                int rawLen = m_in.readInt();
+                if (rawLen == 0) {
+                    m_eof = true;
+                    return false;
+                }
+                int packedLen = m_in.readInt();
+                if (rawLen < 0 || rawLen > FAST_BLOCK || packedLen <= 0 || packedLen > rawLen)
+                    throw new IOException("Corrupt fast block");
+                if (m_raw.length < rawLen)
+                    m_raw = new byte[rawLen];
+                if (packedLen == rawLen) {
+                    m_in.readFully(m_raw, 0, rawLen);
+                } else {
+                    if (m_packed.length < packedLen)
+                        m_packed = new byte[packedLen];
+                    m_in.readFully(m_packed, 0, packedLen);
+                    fastDecompress(m_packed, packedLen, m_raw, rawLen);
+                }
+                m_pos = 0;
+                m_len = rawLen;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? (m_raw[m_pos++] & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int copy = Math.min(len, m_len - m_pos);
+            System.arraycopy(m_raw, m_pos, buf, off, copy);
+            m_pos += copy;
+            return copy;
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_in.close();
+        }
+    }
+}
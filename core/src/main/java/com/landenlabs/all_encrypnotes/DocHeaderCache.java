@@ -0,0 +1,269 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent cache of clear text document header information (hint, version) plus
+ * file size and modify time, keyed by path. An entry is valid while the file
+ * length and modify time match.
+ * <p>
+ * {@link #scan} refreshes the cache from a directory and {@link #getHeader} one file,
+ * both on a background thread. {@link #peek} returns cached values without touching
+ * the file system so list binding does no I/O.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocHeaderCache {
+
+    private static final int CACHE_VERSION = 1;
+
+    /**
+     * Cached header values of one document.
+     */
+    public static class Header {
+        public final String hint;
+        public final String version;
+        public final long length;
+        public final long lastModified;
+
+        public Header(String hint, String version, long length, long lastModified) {
+            this.hint = hint;
+            this.version = version;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        boolean matches(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    private static final DocHeaderCache s_instance = new DocHeaderCache();
+
+    private final HashMap<String, Header> m_headers = new HashMap<String, Header>();
+    private File m_cacheFile;
+    private boolean m_loaded = false;
+    private boolean m_dirty = false;
+
+    /**
+     * @return Application wide header cache.
+     */
+    public static DocHeaderCache get() {
+        return s_instance;
+    }
+
+    /**
+     * Set file used to persist cache between sessions, loaded on first scan.
+     */
+    public synchronized void setCacheFile(File cacheFile) {
+        m_cacheFile = cacheFile;
+    }
+
+    /**
+     * Return cached header, does not access file system.
+     *
+     * @return Header or null if file has not been scanned.
+     */
+    public synchronized Header peek(File file) {
+        return m_headers.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Return header, reading file only if cache is missing or stale.
+     *
+     * @return Header or null if file does not exist.
+     */
+    public Header getHeader(File file) {
+        String path = file.getAbsolutePath();
+        synchronized (this) {
+            if (!m_loaded)
+                load();
+            Header header = m_headers.get(path);
+            if (header != null && header.matches(file))
+                return header;
+        }
+
+        Header header = readHeader(file);
+        synchronized (this) {
+            if (header == null)
+                m_headers.remove(path);
+            else
+                m_headers.put(path, header);
+            m_dirty = true;
+        }
+        return header;
+    }
+
+    /**
+     * Refresh cache for all files in directory with extension, drop entries for
+     * files no longer present and persist any changes. Run on background thread.
+     */
+    public void scan(File dir, String ext) {
+        synchronized (this) {
+            if (!m_loaded)
+                load();
+        }
+
+        File[] files = dir.listFiles();
+        HashSet<String> present = new HashSet<String>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(ext)) {
+                    present.add(file.getAbsolutePath());
+                    getHeader(file);
+                }
+            }
+        }
+
+        synchronized (this) {
+            String dirPath = dir.getAbsolutePath() + File.separator;
+            Iterator<Map.Entry<String, Header>> it = m_headers.entrySet().iterator();
+            while (it.hasNext()) {
+                String path = it.next().getKey();
+                if (path.startsWith(dirPath) && !present.contains(path)) {
+                    it.remove();
+                    m_dirty = true;
+                }
+            }
+            if (m_dirty)
+                save();
+        }
+    }
+
+    /**
+     * Persist changes made by {@link #getHeader} since the last scan or flush.
+     */
+    public synchronized void flush() {
+        if (m_dirty)
+            save();
+    }
+
+    /**
+     * Move cached entry after a rename, rename keeps length and modify time.
+     */
+    public synchronized void rename(File fromFile, File toFile) {
+        Header header = m_headers.remove(fromFile.getAbsolutePath());
+        if (header != null)
+            m_headers.put(toFile.getAbsolutePath(), header);
+        m_dirty = true;
+    }
+
+    /**
+     * Drop cached entry, file deleted or changed.
+     */
+    public synchronized void remove(File file) {
+        if (m_headers.remove(file.getAbsolutePath()) != null)
+            m_dirty = true;
+    }
+
+    private static Header readHeader(File file) {
+        if (!file.exists())
+            return null;
+
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Doc doc = new Doc();
+        try {
+            doc.doOpen(file, null);
+            return new Header(doc.getHint(), doc.getVersion(), length, lastModified);
+        } catch (Exception ex) {
+            // Not a valid document, cache so it is not read again.
+            return new Header("", "", length, lastModified);
+        }
+    }
+
+    private void load() {
+        m_loaded = true;
+        if (m_cacheFile == null || !m_cacheFile.exists())
+            return;
+
+        try {
+            DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(m_cacheFile)));
+            try {
+                if (din.readInt() == CACHE_VERSION) {
+                    int count = din.readInt();
+                    for (int idx = 0; idx < count; idx++) {
+                        String path = din.readUTF();
+                        long lastModified = din.readLong();
+                        long length = din.readLong();
+                        String hint = din.readUTF();
+                        String version = din.readUTF();
+                        m_headers.put(path, new Header(hint, version, length, lastModified));
+                    }
+                }
+            } finally {
+                din.close();
+            }
+        } catch (IOException ex) {
+            DocLog.log(DocHeaderCache.class, DocLog.WARN, "Header cache load failed", ex);
+            m_headers.clear();
+        }
+    }
+
+    private void save() {
+        m_dirty = false;
+        if (m_cacheFile == null)
+            return;
+
+        File tmpFile = SafeFile.tempFile(m_cacheFile);
+        try {
+            FileOutputStream fout = new FileOutputStream(tmpFile);
+            try {
+                DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(fout));
+                dout.writeInt(CACHE_VERSION);
+                dout.writeInt(m_headers.size());
+                for (Map.Entry<String, Header> entry : m_headers.entrySet()) {
+                    Header header = entry.getValue();
+                    dout.writeUTF(entry.getKey());
+                    dout.writeLong(header.lastModified);
+                    dout.writeLong(header.length);
+                    dout.writeUTF(header.hint);
+                    dout.writeUTF(header.version);
+                }
+                dout.flush();
+                SafeFile.force(fout.getChannel());
+            } finally {
+                fout.close();
+            }
+            SafeFile.commit(tmpFile, m_cacheFile);
+        } catch (IOException ex) {
+            tmpFile.delete();
+            DocLog.log(DocHeaderCache.class, DocLog.WARN, "Header cache save failed", ex);
+        }
+    }
+}
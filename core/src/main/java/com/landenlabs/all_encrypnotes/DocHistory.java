@@ -0,0 +1,559 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+
+/**
+ * Revision history of a chunked document, stored as reverse deltas.
+ * <p>
+ * The file holds the latest text in its chunks. Each earlier revision is a delta which
+ * rebuilds it from the next newer revision (or the latest text). Deltas are compressed
+ * and encrypted on their own, placed after the chunk data and listed in the sealed
+ * metadata block, so opening a document never reads them. A revision is rebuilt on
+ * request by applying the deltas from the newest down to it.
+ * <p>
+ * A revision is added when a save starts a new edit session, the same rule that adds
+ * an entry to {@link Doc.DocMetadata#saveHistory}. Other saves only rebase the newest
+ * delta onto the new latest text; an incremental save rewrites its copy operations
+ * from the dirty range without reading the rest of the document. Deltas are copy /
+ * insert operations found by hashing fixed size blocks of the newer text, so building
+ * one is linear in text length. At most {@link #HISTORY_MAX_REVISIONS} are kept, oldest
+ * are dropped when their total size passes {@link #HISTORY_MAX_BYTES}, and documents
+ * over {@link #HISTORY_MAX_CHARS} do not keep revisions.
+ *
+ * <pre>
+ *   metadata block, after DocMetadata
+ *     int        revisionCount, oldest first
+ *     revision[revisionCount]
+ *        long    timestamp       save time of revision
+ *        int     charLen         characters in revision
+ *        long    offset          absolute file offset of encrypted delta
+ *        int     cipherLen
+ *        byte    codecId         see DocCodec
+ *        byte[16] iv             CBC IV or GCM nonce
+ *   delta = AES(codec(
+ *     int        charLen
+ *     op*        byte 1 COPY int offset, int length   (from newer text)
+ *                byte 2 INSERT int length, char[length]
+ *     byte 0     end
+ *   ))
+ * </pre>
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocHistory {
+
+    public static final int HISTORY_MAX_REVISIONS = Doc.HISTORY_MAX_ENTRIES - 1;
+    public static final int HISTORY_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int HISTORY_MAX_CHARS = 4 * 1024 * 1024;
+
+    static final int BLOCK = 32;                // Characters hashed per block.
+    private static final int HASH_MUL = 31;
+    private static final int MAX_PROBES = 8;
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_INSERT = 2;
+    private static final int NONCE_HISTORY = 0x80000000;    // GCM nonce counter bit, chunks never set it.
+
+    /**
+     * One earlier revision of the document.
+     */
+    public static class Revision {
+        public long timestamp;
+        public int charLen;
+        long offset;
+        int cipherLen;
+        byte codecId;
+        byte[] iv;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Index in metadata block
+
+    static void writeIndex(DataOutputStream out, List<Revision> revisions) throws IOException {
+        out.writeInt(revisions.size());
+        for (Revision rev : revisions) {
+            out.writeLong(rev.timestamp);
+            out.writeInt(rev.charLen);
+            out.writeLong(rev.offset);
+            out.writeInt(rev.cipherLen);
+            out.writeByte(rev.codecId);
+            out.write(rev.iv);
+        }
+    }
+
+    /**
+     * @return Revisions, empty if metadata was written before history existed.
+     */
+    static List<Revision> readIndex(DataInputStream in) throws IOException {
+        int count;
+        try {
+            count = in.readInt();
+        } catch (EOFException ex) {
+            return new ArrayList<Revision>(0);
+        }
+        if (count < 0 || count > HISTORY_MAX_REVISIONS * 4)
+            throw new IOException("Invalid revision index");
+        List<Revision> revisions = new ArrayList<Revision>(count);
+        for (int idx = 0; idx < count; idx++) {
+            Revision rev = new Revision();
+            rev.timestamp = in.readLong();
+            rev.charLen = in.readInt();
+            rev.offset = in.readLong();
+            rev.cipherLen = in.readInt();
+            rev.codecId = in.readByte();
+            rev.iv = new byte[DocChunks.IV_LEN];
+            in.readFully(rev.iv);
+            revisions.add(rev);
+        }
+        return revisions;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Writing
+
+    /**
+     * Revisions to write with a save, carried over from the previous file plus
+     * an optional new revision holding the previous text.
+     */
+    static class Writer {
+        private final List<Revision> m_revisions = new ArrayList<Revision>();
+        private final List<byte[]> m_cipherData = new ArrayList<byte[]>();  // null keeps delta in place
+
+        /**
+         * @return Revisions with offsets, valid after {@link #write}.
+         */
+        List<Revision> getRevisions() {
+            return m_revisions;
+        }
+
+        /**
+         * @return Bytes {@link #write} appends.
+         */
+        long getWriteLength() {
+            long len = 0;
+            for (byte[] data : m_cipherData)
+                len += (data == null) ? 0 : data.length;
+            return len;
+        }
+
+        /**
+         * Write deltas starting at pos.
+         *
+         * @return Position after last delta.
+         */
+        long write(FileChannel out, long pos) throws IOException {
+            for (int idx = 0; idx < m_revisions.size(); idx++) {
+                byte[] data = m_cipherData.get(idx);
+                if (data != null) {
+                    m_revisions.get(idx).offset = pos;
+                    pos = DocChunks.writeFully(out, ByteBuffer.wrap(data), pos);
+                }
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * Build history for a full save.
+     *
+     * @param prev        Previous file, null if none (or not readable with a known key).
+     * @param newRevision Previous text becomes a revision (new edit session).
+     * @param prevTime    Save time of previous text.
+     * @param text        Text being saved.
+     * @param aead        New file seals with AES-GCM.
+     * @param codec       New file codec.
+     * @param key         New file key, carried deltas are re-encrypted if it differs.
+     */
+    static Writer prepare(DocChunks.Reader prev, boolean newRevision, long prevTime, CharSequence text,
+            boolean aead, DocCodec codec, byte[] key, SecureRandom random) throws IOException {
+        Writer writer = new Writer();
+        if (prev == null)
+            return writer;
+        List<Revision> oldRevs = prev.getRevisions();
+        if ((oldRevs.isEmpty() && !newRevision)
+                || text.length() > HISTORY_MAX_CHARS || prev.getCharCount() > HISTORY_MAX_CHARS)
+            return writer;
+
+        boolean sameCrypto = Arrays.equals(key, prev.getKey()) && aead == prev.isAead();
+        byte[] noncePrefix = new byte[DocChunks.GCM_NONCE_PREFIX_LEN];
+        random.nextBytes(noncePrefix);
+        String prevText = prev.readAll();
+        boolean changed = !prevText.contentEquals(text);
+
+        // Delta from new text back to previous text.
+        Revision newRev = null;
+        byte[] newData = null;
+        if (newRevision && changed) {
+            newRev = new Revision();
+            newRev.timestamp = prevTime;
+            newRev.charLen = prevText.length();
+            newData = seal(aead, codec, key, newRev, encodeDelta(text, prevText), random, noncePrefix,
+                    oldRevs.size());
+        }
+
+        // Keep newest revisions which fit, oldest are dropped first.
+        int maxOld = HISTORY_MAX_REVISIONS - (newRev == null ? 0 : 1);
+        long total = (newData == null) ? 0 : newData.length;
+        int first = oldRevs.size();
+        while (first > 0 && oldRevs.size() - first < maxOld
+                && total + oldRevs.get(first - 1).cipherLen <= HISTORY_MAX_BYTES) {
+            first--;
+            total += oldRevs.get(first).cipherLen;
+        }
+
+        for (int idx = first; idx < oldRevs.size(); idx++) {
+            Revision oldRev = oldRevs.get(idx);
+            byte[] cipherData = prev.readRevisionData(oldRev);
+            Revision rev = new Revision();
+            rev.timestamp = oldRev.timestamp;
+            rev.charLen = oldRev.charLen;
+            if (newRev == null && changed && idx == oldRevs.size() - 1) {
+                // Same session, newest delta is rebuilt against the new latest text.
+                String newest = applyDelta(prevText, open(prev.isAead(), prev.getKey(), oldRev, cipherData));
+                cipherData = seal(aead, codec, key, rev, encodeDelta(text, newest), random, noncePrefix, idx);
+            } else if (sameCrypto) {
+                rev.codecId = oldRev.codecId;
+                rev.iv = oldRev.iv;
+                rev.cipherLen = oldRev.cipherLen;
+            } else {
+                // Password or cipher changed, re-encrypt delta under new key.
+                byte[] delta = open(prev.isAead(), prev.getKey(), oldRev, cipherData);
+                cipherData = seal(aead, codec, key, rev, delta, random, noncePrefix, idx);
+            }
+            writer.m_revisions.add(rev);
+            writer.m_cipherData.add(cipherData);
+        }
+        if (newRev != null) {
+            writer.m_revisions.add(newRev);
+            writer.m_cipherData.add(newData);
+        }
+        return writer;
+    }
+
+    /**
+     * Build history for an incremental save. Older deltas stay in place, the newest is
+     * rebased onto the new latest text.
+     *
+     * @param prev     Document being updated.
+     * @param oldText  Previous latest text covering the dirty range.
+     * @param textBeg  Character offset of oldText.
+     * @param dirty    Change from previous to new latest text.
+     */
+    static Writer prepareUpdate(DocChunks.Reader prev, CharSequence oldText, int textBeg, DirtyRange dirty,
+            DocCodec codec, SecureRandom random) throws IOException {
+        Writer writer = new Writer();
+        List<Revision> oldRevs = prev.getRevisions();
+        int last = oldRevs.size() - 1;
+        for (int idx = 0; idx < last; idx++) {
+            writer.m_revisions.add(oldRevs.get(idx));
+            writer.m_cipherData.add(null);
+        }
+        if (last < 0)
+            return writer;
+
+        Revision newest = oldRevs.get(last);
+        byte[] delta = open(prev.isAead(), prev.getKey(), newest, prev.readRevisionData(newest));
+        int dirtyEnd = dirty.getBaseLength() - dirty.getSuffix();
+        delta = rebaseDelta(delta, oldText, textBeg, dirty.getStart(), dirtyEnd,
+                dirty.getLength() - dirty.getBaseLength());
+
+        Revision rev = new Revision();
+        rev.timestamp = newest.timestamp;
+        rev.charLen = newest.charLen;
+        byte[] noncePrefix = new byte[DocChunks.GCM_NONCE_PREFIX_LEN];
+        random.nextBytes(noncePrefix);
+        writer.m_revisions.add(rev);
+        writer.m_cipherData.add(seal(prev.isAead(), codec, prev.getKey(), rev, delta, random, noncePrefix, last));
+        return writer;
+    }
+
+    /**
+     * Compress and encrypt delta, fill in revision codec, iv and length.
+     */
+    private static byte[] seal(boolean aead, DocCodec codec, byte[] key, Revision rev, byte[] delta,
+            SecureRandom random, byte[] noncePrefix, int idx) throws IOException {
+        rev.codecId = codec.codecId;
+        rev.iv = new byte[DocChunks.IV_LEN];
+        if (aead) {
+            System.arraycopy(noncePrefix, 0, rev.iv, 0, noncePrefix.length);
+            ByteBuffer.wrap(rev.iv).putInt(noncePrefix.length, NONCE_HISTORY | idx);
+        } else {
+            random.nextBytes(rev.iv);
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(delta.length / 2 + 64);
+        Cipher cipher = aead ? Doc.getAeadCipher(Cipher.ENCRYPT_MODE, key, rev.iv)
+                : Doc.getCipher(Cipher.ENCRYPT_MODE, key, rev.iv);
+        OutputStream zout = codec.compress(new CipherOutputStream(bout, cipher));
+        zout.write(delta);
+        zout.close();
+        CryptoPool.releaseCipher(cipher);
+        rev.cipherLen = bout.size();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Decrypt, verify (GCM) and decompress delta.
+     */
+    static byte[] open(boolean aead, byte[] key, Revision rev, byte[] cipherData) throws IOException {
+        byte[] plain = DocChunks.decrypt(aead, key, rev.iv, cipherData);
+        InputStream zin = DocCodec.forId(rev.codecId).decompress(new ByteArrayInputStream(plain));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(plain.length * 2);
+        byte[] buf = new byte[DocStreams.BUFFER_SIZE];
+        int nread;
+        while ((nread = zin.read(buf)) > 0)
+            bout.write(buf, 0, nread);
+        zin.close();
+        return bout.toByteArray();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Delta
+
+    /**
+     * Encode target as copy / insert operations against base.
+     * Common prefix and suffix are copied directly, the rest is matched against a
+     * hash of every BLOCK characters of base.
+     */
+    static byte[] encodeDelta(CharSequence base, CharSequence target) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bout);
+        int baseLen = base.length();
+        int targetLen = target.length();
+        out.writeInt(targetLen);
+
+        int maxCommon = Math.min(baseLen, targetLen);
+        int prefix = 0;
+        while (prefix < maxCommon && base.charAt(prefix) == target.charAt(prefix))
+            prefix++;
+        int suffix = 0;
+        while (suffix < maxCommon - prefix
+                && base.charAt(baseLen - 1 - suffix) == target.charAt(targetLen - 1 - suffix))
+            suffix++;
+
+        if (prefix != 0)
+            writeCopy(out, 0, prefix);
+
+        int end = targetLen - suffix;
+        int[] index = buildIndex(base);
+        int pow = 1;
+        for (int idx = 1; idx < BLOCK; idx++)
+            pow *= HASH_MUL;
+
+        int literal = prefix;
+        int pos = prefix;
+        int hash = (pos + BLOCK <= end) ? hash(target, pos) : 0;
+        while (pos + BLOCK <= end) {
+            int match = lookup(index, base, hash, target, pos);
+            if (match < 0) {
+                if (pos + BLOCK < end)
+                    hash = (hash - target.charAt(pos) * pow) * HASH_MUL + target.charAt(pos + BLOCK);
+                pos++;
+                continue;
+            }
+
+            int back = 0;
+            while (pos - back > literal && match - back > 0
+                    && target.charAt(pos - back - 1) == base.charAt(match - back - 1))
+                back++;
+            int len = BLOCK;
+            while (pos + len < end && match + len < baseLen && target.charAt(pos + len) == base.charAt(match + len))
+                len++;
+
+            writeInsert(out, target, literal, pos - back);
+            writeCopy(out, match - back, len + back);
+            pos += len;
+            literal = pos;
+            if (pos + BLOCK <= end)
+                hash = hash(target, pos);
+        }
+        writeInsert(out, target, literal, end);
+
+        if (suffix != 0)
+            writeCopy(out, baseLen - suffix, suffix);
+        out.writeByte(OP_END);
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Rewrite delta for a base whose range [dirtyBeg, dirtyEnd) was replaced. Copies from
+     * the replaced range become inserts of the old characters, copies after it move by shift.
+     *
+     * @param oldText  Old base characters covering the replaced range.
+     * @param textBeg  Base offset of oldText.
+     */
+    static byte[] rebaseDelta(byte[] delta, CharSequence oldText, int textBeg, int dirtyBeg, int dirtyEnd,
+            int shift) throws IOException {
+        if (dirtyBeg < textBeg || dirtyEnd > textBeg + oldText.length())
+            throw new IOException("Replaced range outside old text");
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(delta.length + 64);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(in.readInt());
+        while (true) {
+            byte op = in.readByte();
+            if (op == OP_END)
+                break;
+            if (op == OP_COPY) {
+                int beg = in.readInt();
+                int end = beg + in.readInt();
+                int mid0 = Math.min(end, Math.max(beg, dirtyBeg));
+                int mid1 = Math.max(mid0, Math.min(end, dirtyEnd));
+                if (mid0 > beg)
+                    writeCopy(out, beg, mid0 - beg);
+                writeInsert(out, oldText, mid0 - textBeg, mid1 - textBeg);
+                if (end > mid1)
+                    writeCopy(out, mid1 + shift, end - mid1);
+            } else if (op == OP_INSERT) {
+                int len = in.readInt();
+                out.writeByte(OP_INSERT);
+                out.writeInt(len);
+                for (int idx = 0; idx < len; idx++)
+                    out.writeChar(in.readChar());
+            } else {
+                throw new IOException("Invalid revision delta");
+            }
+        }
+        out.writeByte(OP_END);
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Rebuild target from base and delta.
+     */
+    static String applyDelta(CharSequence base, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        int targetLen = in.readInt();
+        if (targetLen < 0)
+            throw new IOException("Invalid revision delta");
+        StringBuilder sb = new StringBuilder(targetLen);
+        while (true) {
+            byte op = in.readByte();
+            if (op == OP_END)
+                break;
+            int off = (op == OP_COPY) ? in.readInt() : 0;
+            int len = in.readInt();
+            if (len < 0 || len > targetLen - sb.length())
+                throw new IOException("Invalid revision delta");
+            if (op == OP_COPY) {
+                if (off < 0 || off > base.length() - len)
+                    throw new IOException("Invalid revision delta");
+                sb.append(base, off, off + len);
+            } else if (op == OP_INSERT) {
+                for (int idx = 0; idx < len; idx++)
+                    sb.append(in.readChar());
+            } else {
+                throw new IOException("Invalid revision delta");
+            }
+        }
+        if (sb.length() != targetLen)
+            throw new IOException("Invalid revision delta");
+        return sb.toString();
+    }
+
+    private static void writeCopy(DataOutputStream out, int off, int len) throws IOException {
+        out.writeByte(OP_COPY);
+        out.writeInt(off);
+        out.writeInt(len);
+    }
+
+    private static void writeInsert(DataOutputStream out, CharSequence text, int beg, int end) throws IOException {
+        if (end <= beg)
+            return;
+        out.writeByte(OP_INSERT);
+        out.writeInt(end - beg);
+        for (int idx = beg; idx < end; idx++)
+            out.writeChar(text.charAt(idx));
+    }
+
+    private static int hash(CharSequence text, int pos) {
+        int hash = 0;
+        for (int idx = pos; idx < pos + BLOCK; idx++)
+            hash = hash * HASH_MUL + text.charAt(idx);
+        return hash;
+    }
+
+    /**
+     * Open addressed table of block start + 1 keyed by block hash.
+     */
+    private static int[] buildIndex(CharSequence base) {
+        int blocks = base.length() / BLOCK;
+        int size = Integer.highestOneBit(Math.max(blocks, 8) * 2 - 1) << 1;
+        int[] table = new int[size];
+        for (int blk = 0; blk < blocks; blk++) {
+            int pos = blk * BLOCK;
+            int slot = mix(hash(base, pos)) & (size - 1);
+            for (int probe = 0; probe < MAX_PROBES && table[slot] != 0; probe++)
+                slot = (slot + 1) & (size - 1);
+            if (table[slot] == 0)
+                table[slot] = pos + 1;
+        }
+        return table;
+    }
+
+    private static int lookup(int[] table, CharSequence base, int hash, CharSequence target, int pos) {
+        int slot = mix(hash) & (table.length - 1);
+        for (int probe = 0; probe < MAX_PROBES && table[slot] != 0; probe++) {
+            int basePos = table[slot] - 1;
+            if (regionEquals(base, basePos, target, pos))
+                return basePos;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(CharSequence base, int basePos, CharSequence target, int pos) {
+        for (int idx = 0; idx < BLOCK; idx++) {
+            if (base.charAt(basePos + idx) != target.charAt(pos + idx))
+                return false;
+        }
+        return true;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
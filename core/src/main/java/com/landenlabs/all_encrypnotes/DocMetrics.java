@@ -0,0 +1,373 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Timing and byte counters for each stage of document open and save.
+ * <p>
+ * Every stage keeps lifetime totals plus a rolling window of the last
+ * {@link #ROLLING_SAMPLES} calls, from which percentiles are reported. A sample is one
+ * call of the stage: one chunk for chunked formats, one document for the single stream
+ * formats. Parallel chunk stages are summed over the crypto threads, so they can exceed
+ * the wall time in {@link #SAVE} and {@link #OPEN}. Stages do not overlap except
+ * {@link #HEADER}, which includes {@link #KEY_HASH} and {@link #KEY_DERIVE}.
+ * <p>
+ * Recording does not allocate. An installed {@link Listener} receives each sample,
+ * the app forwards them to LogIt timing events.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocMetrics {
+
+    public static final int OPEN = 0;           // Whole doOpen(File), bytes read
+    public static final int SAVE = 1;           // Whole save to file, bytes written
+    public static final int HEADER = 2;         // Clear text header, write or parse
+    public static final int KEY_DERIVE = 3;     // Password to key
+    public static final int KEY_HASH = 4;       // SHA1 password check hash
+    public static final int RANDOM = 5;         // SecureRandom instance for IVs
+    public static final int CIPHER_INIT = 6;    // Cipher.getInstance and init
+    public static final int COMPRESS = 7;       // Plain bytes in
+    public static final int ENCRYPT = 8;        // Compressed bytes in
+    public static final int WRITE = 9;          // File write
+    public static final int FSYNC = 10;         // Channel force
+    public static final int READ = 11;          // File read (not mapped files)
+    public static final int DECRYPT = 12;       // Cipher bytes in
+    public static final int DECOMPRESS = 13;    // Plain bytes out
+    public static final int STAGE_COUNT = 14;
+
+    private static final String[] NAMES = {
+            "open", "save", "header", "key_derive", "key_hash", "random", "cipher_init",
+            "compress", "encrypt", "write", "fsync", "read", "decrypt", "decompress"};
+
+    public static final int ROLLING_SAMPLES = 256;
+
+    /**
+     * Receives every sample, called on the thread which ran the stage.
+     */
+    public interface Listener {
+        void onStage(int stage, long nanos, long bytes);
+    }
+
+    /**
+     * Totals and rolling percentiles of one stage.
+     */
+    public static class Stats {
+        public String name;
+        public long count;          // Lifetime calls
+        public long totalNanos;
+        public long totalBytes;
+        public int samples;         // Calls in rolling window
+        public long p50Nanos;
+        public long p90Nanos;
+        public long p99Nanos;
+        public long maxNanos;
+
+        /**
+         * @return Lifetime throughput in MB/s, 0 if no bytes counted.
+         */
+        public double getMBps() {
+            return (totalNanos == 0) ? 0 : totalBytes * 1000.0 / totalNanos;
+        }
+    }
+
+    /**
+     * Lifetime totals and ring of recent samples.
+     */
+    private static class Stage {
+        long m_count;
+        long m_totalNanos;
+        long m_totalBytes;
+        final long[] m_ring = new long[ROLLING_SAMPLES];
+        int m_ringPos;
+
+        synchronized void add(long nanos, long bytes) {
+            m_count++;
+            m_totalNanos += nanos;
+            m_totalBytes += bytes;
+            m_ring[m_ringPos] = nanos;
+            m_ringPos = (m_ringPos + 1) % ROLLING_SAMPLES;
+        }
+
+        synchronized void reset() {
+            m_count = m_totalNanos = m_totalBytes = 0;
+            m_ringPos = 0;
+        }
+
+        synchronized Stats snapshot(String name) {
+            Stats stats = new Stats();
+            stats.name = name;
+            stats.count = m_count;
+            stats.totalNanos = m_totalNanos;
+            stats.totalBytes = m_totalBytes;
+            stats.samples = (int) Math.min(m_count, ROLLING_SAMPLES);
+            if (stats.samples != 0) {
+                long[] sorted = Arrays.copyOf(m_ring, stats.samples);
+                Arrays.sort(sorted);
+                stats.p50Nanos = sorted[(stats.samples - 1) * 50 / 100];
+                stats.p90Nanos = sorted[(stats.samples - 1) * 90 / 100];
+                stats.p99Nanos = sorted[(stats.samples - 1) * 99 / 100];
+                stats.maxNanos = sorted[stats.samples - 1];
+            }
+            return stats;
+        }
+    }
+
+    private static final Stage[] s_stages = new Stage[STAGE_COUNT];
+    private static volatile boolean s_enabled = true;
+    private static volatile Listener s_listener;
+
+    static {
+        for (int idx = 0; idx < STAGE_COUNT; idx++)
+            s_stages[idx] = new Stage();
+    }
+
+    public static void setEnabled(boolean enabled) {
+        s_enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return s_enabled;
+    }
+
+    public static void setListener(Listener listener) {
+        s_listener = listener;
+    }
+
+    public static String getName(int stage) {
+        return NAMES[stage];
+    }
+
+    /**
+     * @return Start time to pass to {@link #stop}.
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    static void stop(int stage, long startNanos, long bytes) {
+        if (s_enabled)
+            add(stage, System.nanoTime() - startNanos, bytes);
+    }
+
+    static void add(int stage, long nanos, long bytes) {
+        if (!s_enabled)
+            return;
+        s_stages[stage].add(nanos, bytes);
+        Listener listener = s_listener;
+        if (listener != null)
+            listener.onStage(stage, nanos, bytes);
+    }
+
+    public static Stats getStats(int stage) {
+        return s_stages[stage].snapshot(NAMES[stage]);
+    }
+
+    public static void reset() {
+        for (Stage stage : s_stages)
+            stage.reset();
+    }
+
+    /**
+     * @return Table of all stages which ran, times in milliseconds.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-11s %6s %8s %8s %8s %8s %8s%n",
+                "stage", "count", "p50", "p90", "p99", "max", "MB/s"));
+        for (int idx = 0; idx < STAGE_COUNT; idx++) {
+            Stats stats = getStats(idx);
+            if (stats.count == 0)
+                continue;
+            sb.append(String.format(Locale.US, "%-11s %6d %8.3f %8.3f %8.3f %8.3f %8.1f%n",
+                    stats.name, stats.count, stats.p50Nanos / 1e6, stats.p90Nanos / 1e6, stats.p99Nanos / 1e6,
+                    stats.maxNanos / 1e6, stats.getMBps()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write {@link #report()} to file, appended after a time stamp line.
+     */
+    public static void dump(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), Doc.ENC);
+        try {
+            writer.write("# " + new Date() + "\n");
+            writer.write(report());
+            writer.write("\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Output stream which records time spent in the streams below it as one sample
+     * when closed. Time of an inner timed stream is subtracted, so stacked layers
+     * such as compress, encrypt and write are each counted once.
+     */
+    static class TimedOutputStream extends FilterOutputStream {
+        private final int m_stage;
+        private final TimedOutputStream m_inner;
+        private long m_nanos;
+        private long m_bytes;
+        private boolean m_closed;
+
+        /**
+         * @param inner  Timed stream further down the chain, null if none.
+         */
+        TimedOutputStream(int stage, OutputStream out, TimedOutputStream inner) {
+            super(out);
+            m_stage = stage;
+            m_inner = inner;
+        }
+
+        /**
+         * @return Nanoseconds spent in this and lower streams.
+         */
+        long getNanos() {
+            return m_nanos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long startNanos = System.nanoTime();
+            out.write(b);
+            m_nanos += System.nanoTime() - startNanos;
+            m_bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long startNanos = System.nanoTime();
+            out.write(b, off, len);
+            m_nanos += System.nanoTime() - startNanos;
+            m_bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long startNanos = System.nanoTime();
+            out.flush();
+            m_nanos += System.nanoTime() - startNanos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (m_closed)
+                return;
+            m_closed = true;
+            long startNanos = System.nanoTime();
+            try {
+                out.close();
+            } finally {
+                m_nanos += System.nanoTime() - startNanos;
+                add(m_stage, m_nanos - ((m_inner == null) ? 0 : m_inner.m_nanos), m_bytes);
+            }
+        }
+    }
+
+    /**
+     * Input stream which records time spent in the streams below it as one sample
+     * when finished or closed, see {@link TimedOutputStream}.
+     */
+    static class TimedInputStream extends FilterInputStream {
+        private final int m_stage;
+        private final TimedInputStream m_inner;
+        private long m_nanos;
+        private long m_bytes;
+        private boolean m_finished;
+
+        TimedInputStream(int stage, InputStream in, TimedInputStream inner) {
+            super(in);
+            m_stage = stage;
+            m_inner = inner;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startNanos = System.nanoTime();
+            int b = in.read();
+            m_nanos += System.nanoTime() - startNanos;
+            if (b >= 0)
+                m_bytes++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long startNanos = System.nanoTime();
+            int nread = in.read(b, off, len);
+            m_nanos += System.nanoTime() - startNanos;
+            if (nread > 0)
+                m_bytes += nread;
+            return nread;
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            long startNanos = System.nanoTime();
+            long skipped = in.skip(len);
+            m_nanos += System.nanoTime() - startNanos;
+            m_bytes += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Record sample without closing the stream, once.
+         */
+        void finish() {
+            if (m_finished)
+                return;
+            m_finished = true;
+            add(m_stage, m_nanos - ((m_inner == null) ? 0 : m_inner.m_nanos), m_bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Console;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch password rotation and format upgrade of the documents in one directory.
+ * <p>
+ * Each document is opened with the old password and saved with the new password
+ * and format on a small worker pool. Every save goes through {@link Doc#doSave(File, String, byte)},
+ * so a file is replaced atomically or left untouched.
+ * <p>
+ * Finished files are appended to {@link #STATE_FILE} together with their new size and
+ * time stamp. An interrupted run started again with the same new password and format
+ * skips those files. The first line of the state file identifies the run by its format,
+ * key derivation spec and a salted hash of the new key (as stored in every document
+ * header), so a stale state file from another rotation is discarded. A file the old
+ * password no longer opens is accepted if the new password opens it in the target
+ * format. The state file is removed once a run completes without failures.
+ * <p>
+ * Also runs headless, see {@link #main(String[])}.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocRekey {
+
+    public static final String DOC_EXT = ".etxt";
+    public static final String STATE_FILE = ".rekey.state";
+    private static final String STATE_TAG = "rekey1";
+
+    public static final int STATUS_REKEYED = 0;
+    public static final int STATUS_SKIPPED = 1;     // Already has new password and format.
+    public static final int STATUS_FAILED = 2;
+
+    public static final String ENV_OLD_PWD = "ENCRYPNOTES_OLD_PWD";
+    public static final String ENV_NEW_PWD = "ENCRYPNOTES_NEW_PWD";
+
+    /**
+     * Progress receiver, called on a worker thread after each file.
+     */
+    public interface Listener {
+        void onProgress(int done, int total, File file, int status, Exception error);
+    }
+
+    /**
+     * Hook for state kept outside the documents (ex: search index), called on worker threads.
+     */
+    public interface DocListener {
+        /**
+         * Before the first file, with the key every rekeyed file is saved with.
+         */
+        void onStart(byte[] newKey);
+
+        /**
+         * After file is saved with the new key and format.
+         */
+        void onRekeyed(File file, Doc doc);
+    }
+
+    /**
+     * Counts of a finished (or canceled) run.
+     */
+    public static class Result {
+        public int total;
+        public int rekeyed;
+        public int skipped;
+        public int failed;
+        public boolean canceled;
+        public final Map<String, String> failures = new HashMap<String, String>();
+
+        @Override
+        public String toString() {
+            return String.format("%d files, %d rekeyed, %d skipped, %d failed%s",
+                    total, rekeyed, skipped, failed, canceled ? ", canceled" : "");
+        }
+    }
+
+    private final String m_oldPwd;
+    private final String m_newPwd;
+    private byte m_verFormat = Doc.getSaveFormat();
+    private String m_hint;
+    private DocCodec m_codec;
+    private String m_ext = DOC_EXT;
+    private int m_threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private Listener m_listener;
+    private DocListener m_docListener;
+    private Kdf.Spec m_newSpec;
+    private volatile boolean m_canceled;
+
+    public DocRekey(String oldPwd, String newPwd) {
+        m_oldPwd = oldPwd;
+        m_newPwd = newPwd;
+    }
+
+    /**
+     * @param verFormat  Format written, VERSION_FORMAT_CODEC, VERSION_FORMAT_GCM,
+     *                   VERSION_FORMAT_CHUNKED, 3 or 2. Default is {@link Doc#getSaveFormat()}.
+     */
+    public DocRekey setFormat(byte verFormat) {
+        if (verFormat < Doc.VERSION_FORMAT_HAS_HINT || verFormat > Doc.VERSION_FORMAT)
+            throw new IllegalArgumentException("Unsupported format " + verFormat);
+        m_verFormat = verFormat;
+        return this;
+    }
+
+    /**
+     * @param hint  Hint stored with the new password, null keeps the hint of each file.
+     */
+    public DocRekey setHint(String hint) {
+        m_hint = hint;
+        return this;
+    }
+
+    /**
+     * @param codec  Compression for format 6+, null for {@link DocCodec#getDefault()}.
+     */
+    public DocRekey setCodec(DocCodec codec) {
+        m_codec = codec;
+        return this;
+    }
+
+    public DocRekey setExtension(String ext) {
+        m_ext = ext;
+        return this;
+    }
+
+    public DocRekey setThreads(int threads) {
+        m_threads = Math.max(1, threads);
+        return this;
+    }
+
+    public DocRekey setListener(Listener listener) {
+        m_listener = listener;
+        return this;
+    }
+
+    public DocRekey setDocListener(DocListener docListener) {
+        m_docListener = docListener;
+        return this;
+    }
+
+    /**
+     * Stop after the files in progress, safe to call from any thread.
+     */
+    public void cancel() {
+        m_canceled = true;
+    }
+
+    /**
+     * Rekey all documents in directory, blocks until done. Run on background thread.
+     */
+    public Result run(File dir) throws IOException {
+        if (!dir.isDirectory())
+            throw new IOException("Not a directory " + dir);
+
+        // Finish or discard saves interrupted by a crash before reading any file.
+        SafeFile.recover(dir, m_ext);
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(m_ext);
+            }
+        });
+        if (files == null)
+            throw new IOException("Unable to list " + dir);
+        Arrays.sort(files);
+
+        final File stateFile = new File(dir, STATE_FILE);
+        final Map<String, String> finished = new HashMap<String, String>();
+        m_newSpec = loadState(stateFile, finished);
+        boolean resume = (m_newSpec != null);
+        if (!resume)
+            m_newSpec = (m_verFormat < Doc.VERSION_FORMAT_CHUNKED) ? Kdf.LEGACY : Kdf.specForPassword(m_newPwd);
+        final OutputStream stateOut = new FileOutputStream(stateFile, resume);
+        if (!resume)
+            stateOut.write(stateHeader().getBytes(Doc.ENC));
+        if (m_docListener != null) {
+            try {
+                m_docListener.onStart(Kdf.deriveKey(m_newSpec, m_newPwd));
+            } catch (GeneralSecurityException ex) {
+                stateOut.close();
+                throw new IOException("Key derivation failed, " + ex.getMessage());
+            }
+        }
+
+        final Result result = new Result();
+        result.total = files.length;
+        final AtomicInteger done = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(m_threads, new ThreadFactory() {
+            private int m_count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DocRekey-" + (++m_count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            for (final File file : files) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (m_canceled)
+                            return;
+                        int status;
+                        Exception error = null;
+                        try {
+                            if (stateId(file).equals(finished.get(file.getName()))) {
+                                status = STATUS_SKIPPED;
+                            } else {
+                                status = rekeyFile(file);
+                                writeState(stateOut, file);
+                            }
+                        } catch (Exception ex) {
+                            status = STATUS_FAILED;
+                            error = ex;
+                            DocLog.log(DocRekey.class, DocLog.ERROR, "Rekey failed " + file.getName(), ex);
+                        }
+
+                        synchronized (result) {
+                            if (status == STATUS_REKEYED)
+                                result.rekeyed++;
+                            else if (status == STATUS_SKIPPED)
+                                result.skipped++;
+                            else {
+                                result.failed++;
+                                result.failures.put(file.getName(), String.valueOf(error.getMessage()));
+                            }
+                        }
+                        Listener listener = m_listener;
+                        if (listener != null)
+                            listener.onProgress(done.incrementAndGet(), result.total, file, status, error);
+                    }
+                });
+            }
+            pool.shutdown();
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Wait for files in progress, cancel only stops new ones.
+            }
+        } catch (InterruptedException ex) {
+            m_canceled = true;
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            stateOut.close();
+        }
+
+        synchronized (result) {
+            result.canceled = m_canceled;
+            if (!result.canceled && result.failed == 0 && !stateFile.delete())
+                DocLog.log(DocRekey.class, DocLog.WARN, "Unable to delete " + stateFile, null);
+            return result;
+        }
+    }
+
+    /**
+     * Open with old password and save with new password and format.
+     *
+     * @return STATUS_REKEYED, or STATUS_SKIPPED if file already uses new password and format.
+     */
+    int rekeyFile(File file) throws IOException, Doc.DocException {
+        Doc doc = new Doc();
+        try {
+            doc.doOpen(file, m_oldPwd);
+        } catch (Doc.DocPasswordException ex) {
+            // Rekeyed by an earlier run which did not record it.
+            Doc newDoc = new Doc();
+            try {
+                newDoc.doOpen(file, m_newPwd);
+            } catch (Doc.DocPasswordException ignore) {
+                throw ex;
+            }
+            if (newDoc.getVersionFormat() == m_verFormat)
+                return STATUS_SKIPPED;
+            doc = newDoc;
+        }
+
+        Doc.DocMetadata docMeta = doc.getDocMetadata();
+        docMeta.setKey(m_newPwd, m_newSpec);
+        String hint = (m_hint != null) ? m_hint : doc.getHint();
+        doc.setCodec(m_codec);
+        doc.doSave(file, hint, m_verFormat);
+        DocListener docListener = m_docListener;
+        if (docListener != null)
+            docListener.onRekeyed(file, doc);
+        return STATUS_REKEYED;
+    }
+
+    private static String stateId(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * @return Key hash line identifying this rotation, salted like a document header key hash.
+     */
+    private String stateHeader() throws IOException {
+        byte[] salt = new byte[16];
+        try {
+            CryptoPool.getRandom().nextBytes(salt);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("No random source, " + ex.getMessage());
+        }
+        return STATE_TAG + "\t" + m_verFormat + "\t" + specHex(m_newSpec) + "\t"
+                + CryptoUtil.bytea2hex(salt) + "\t" + keyCheck(m_newSpec, salt) + "\n";
+    }
+
+    private String keyCheck(Kdf.Spec spec, byte[] salt) throws IOException {
+        try {
+            byte[] key = Kdf.deriveKey(spec, m_newPwd);
+            return CryptoUtil.bytea2hex(CryptoUtil.hash(CryptoUtil.concat(key, salt), "SHA-256"));
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Key derivation failed, " + ex.getMessage());
+        }
+    }
+
+    private static String specHex(Kdf.Spec spec) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        spec.write(dout);
+        dout.close();
+        return CryptoUtil.bytea2hex(bout.toByteArray());
+    }
+
+    /**
+     * Load files finished by an interrupted run of the same rotation.
+     *
+     * @return Key spec of that run, null if there is no state or it belongs to another rotation.
+     */
+    private Kdf.Spec loadState(File stateFile, Map<String, String> finished) throws IOException {
+        if (!stateFile.exists())
+            return null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), Doc.ENC));
+        try {
+            String[] header = String.valueOf(reader.readLine()).split("\t");
+            if (header.length != 5 || !header[0].equals(STATE_TAG) || !header[1].equals(String.valueOf(m_verFormat)))
+                return null;
+            Kdf.Spec spec = Kdf.Spec.read(new DataInputStream(
+                    new ByteArrayInputStream(CryptoUtil.hex2bytea(header[2]))));
+            if (!keyCheck(spec, CryptoUtil.hex2bytea(header[3])).equals(header[4]))
+                return null;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0)
+                    finished.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+            return spec;
+        } catch (EOFException ex) {
+            return null;         // Truncated key spec.
+        } catch (NumberFormatException ex) {
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void writeState(OutputStream stateOut, File file) throws IOException {
+        byte[] line = (file.getName() + "\t" + stateId(file) + "\n").getBytes(Doc.ENC);
+        synchronized (stateOut) {
+            stateOut.write(line);
+            stateOut.flush();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Command line
+
+    private static void usage() {
+        System.err.println("Usage: DocRekey <dir> [--format 2..6] [--codec name] [--threads N] [--hint text]"
+                + " [--ext .etxt]");
+        System.err.println("  Codec: gzip, store, deflate-1..9, fast, optional /adaptive suffix (ex: fast/adaptive).");
+        System.err.println("  Passwords are read from " + ENV_OLD_PWD + " and " + ENV_NEW_PWD
+                + " or prompted on the console.");
+        System.exit(2);
+    }
+
+    private static String readPassword(String envName, String prompt) {
+        String pwd = System.getenv(envName);
+        if (pwd != null)
+            return pwd;
+        Console console = System.console();
+        if (console == null)
+            return null;
+        char[] chars = console.readPassword(prompt);
+        return (chars == null) ? null : new String(chars);
+    }
+
+    /**
+     * Headless rekey of a directory, exit code 0 on success, 1 if any file failed, 2 on usage error.
+     */
+    public static void main(String[] args) throws IOException {
+        List<String> argList = new ArrayList<String>(Arrays.asList(args));
+        if (argList.isEmpty())
+            usage();
+
+        File dir = new File(argList.remove(0));
+        DocRekey rekey;
+        String oldPwd = readPassword(ENV_OLD_PWD, "Old password: ");
+        String newPwd = readPassword(ENV_NEW_PWD, "New password: ");
+        if (oldPwd == null || newPwd == null || newPwd.isEmpty()) {
+            usage();
+            return;
+        }
+        rekey = new DocRekey(oldPwd, newPwd);
+
+        try {
+            while (argList.size() >= 2) {
+                String opt = argList.remove(0);
+                String val = argList.remove(0);
+                if (opt.equals("--format"))
+                    rekey.setFormat(Byte.parseByte(val));
+                else if (opt.equals("--codec"))
+                    rekey.setCodec(DocCodec.forName(val));
+                else if (opt.equals("--threads"))
+                    rekey.setThreads(Integer.parseInt(val));
+                else if (opt.equals("--hint"))
+                    rekey.setHint(val);
+                else if (opt.equals("--ext"))
+                    rekey.setExtension(val);
+                else
+                    usage();
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            usage();
+        }
+        if (!argList.isEmpty())
+            usage();
+
+        rekey.setListener(new Listener() {
+            @Override
+            public void onProgress(int done, int total, File file, int status, Exception error) {
+                String state = (status == STATUS_REKEYED) ? "rekeyed" : (status == STATUS_SKIPPED) ? "skipped" : "FAILED";
+                System.out.println(String.format("[%d/%d] %s %s%s", done, total, state, file.getName(),
+                        (error == null) ? "" : " " + error.getMessage()));
+            }
+        });
+
+        Result result = rekey.run(dir);
+        System.out.println(result);
+        System.exit(result.failed == 0 && !result.canceled ? 0 : 1);
+    }
+}
@@ -0,0 +1,639 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+
+/**
+ * Encrypted full text search index of the documents in one directory.
+ * <p>
+ * One index file exists per password, it holds an inverted index (term to file and
+ * character offsets) encrypted with a key derived from the password. The index is
+ * updated when a document is saved or opened, so a query only decrypts the index and
+ * the one chunk of each top hit needed for its snippet.
+ * <p>
+ * Changes are kept in memory until {@link #flush()}, so a burst of saves rewrites
+ * each index file once.
+ * <p>
+ * Entries for deleted or renamed documents are dropped the next time a search finds
+ * them missing.
+ *
+ * <pre>
+ *   byte[4]      signature
+ *   byte         version
+ *   Kdf.Spec     key derivation
+ *   byte[20]     key hash, SHA1(key + iv)
+ *   byte[16]     iv
+ *   AES(GZIP(
+ *     int        fileCount
+ *     file[fileCount]
+ *        UTF     name
+ *        long    lastModified
+ *        int     termCount
+ *        term[termCount]
+ *           UTF  term
+ *           int  count
+ *           byte offsetCount, int[offsetCount] character offsets
+ *   ))
+ * </pre>
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocSearchIndex {
+
+    static final byte[] SIGNATURE = {0x00, (byte) 0xff, (byte) 0xed, (byte) 0x1d};
+    static final byte INDEX_VERSION = 1;
+    static final String INDEX_PREFIX = ".search";
+    static final String INDEX_EXT = ".idx";
+    static final int IV_LEN = 16;
+
+    static final int MIN_TERM_LEN = 2;
+    static final int MAX_TERM_LEN = 32;
+    static final int MAX_OFFSETS = 4;
+    static final int SNIPPET_CHARS = 40;
+
+    /**
+     * One ranked search result.
+     */
+    public static class Hit {
+        public final String filename;
+        public final float score;
+        public final int offset;
+        public String snippet = "";
+
+        Hit(String filename, float score, int offset) {
+            this.filename = filename;
+            this.score = score;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Occurrences of one term in one file.
+     */
+    static class Posting {
+        int count;
+        int[] offsets = new int[0];
+
+        void add(int offset) {
+            if (offsets.length < MAX_OFFSETS) {
+                offsets = Arrays.copyOf(offsets, offsets.length + 1);
+                offsets[offsets.length - 1] = offset;
+            }
+            count++;
+        }
+    }
+
+    /**
+     * Indexed terms of one file.
+     */
+    static class FileEntry {
+        long lastModified;
+        HashMap<String, Posting> terms;
+    }
+
+    /**
+     * Index for one password, body loaded on first use.
+     */
+    private static class Index {
+        final File file;
+        final byte[] key;
+        final Kdf.Spec spec;
+        byte[] iv;
+        boolean dirty;      // Changed since last write.
+        HashMap<String, FileEntry> files;
+        final HashMap<String, HashMap<String, Posting>> inverted = new HashMap<String, HashMap<String, Posting>>();
+
+        Index(File file, byte[] key, Kdf.Spec spec) {
+            this.file = file;
+            this.key = key;
+            this.spec = spec;
+        }
+
+        void put(String name, FileEntry entry) {
+            remove(name);
+            files.put(name, entry);
+            for (Map.Entry<String, Posting> term : entry.terms.entrySet()) {
+                HashMap<String, Posting> postings = inverted.get(term.getKey());
+                if (postings == null) {
+                    postings = new HashMap<String, Posting>();
+                    inverted.put(term.getKey(), postings);
+                }
+                postings.put(name, term.getValue());
+            }
+        }
+
+        void remove(String name) {
+            FileEntry old = files.remove(name);
+            if (old == null)
+                return;
+            for (String term : old.terms.keySet()) {
+                HashMap<String, Posting> postings = inverted.get(term);
+                if (postings != null) {
+                    postings.remove(name);
+                    if (postings.isEmpty())
+                        inverted.remove(term);
+                }
+            }
+        }
+    }
+
+    private static final DocSearchIndex s_instance = new DocSearchIndex();
+
+    private File m_indexDir;
+    private final HashMap<String, Index> m_indexes = new HashMap<String, Index>();     // by index path
+    private final HashMap<String, Index> m_keyIndexes = new HashMap<String, Index>();  // by document key id
+
+    /**
+     * @return Application wide search index.
+     */
+    public static DocSearchIndex get() {
+        return s_instance;
+    }
+
+    /**
+     * Set directory holding documents and their index files.
+     */
+    public synchronized void setIndexDir(File dir) {
+        m_indexDir = dir;
+    }
+
+    /**
+     * Associate document key with the index of its password, so later saves
+     * which only have the key can update the index. Run on background thread.
+     */
+    public synchronized void attach(byte[] docKey, String pwd) {
+        if (m_indexDir == null || docKey == null)
+            return;
+        try {
+            m_keyIndexes.put(keyId(docKey), unlock(pwd, true));
+        } catch (Exception ex) {
+            DocLog.log(DocSearchIndex.class, DocLog.WARN, "Search index unlock failed", ex);
+        }
+    }
+
+    /**
+     * Replace indexed terms of document, skipped if document is not in index directory,
+     * its key is not attached or the entry is already current. Run on background thread.
+     */
+    public synchronized void update(File docFile, CharSequence text, byte[] docKey) {
+        if (m_indexDir == null || docKey == null || !m_indexDir.equals(docFile.getParentFile()))
+            return;
+        Index index = m_keyIndexes.get(keyId(docKey));
+        if (index == null)
+            return;
+
+        try {
+            loadBody(index);
+            String name = docFile.getName();
+            FileEntry current = index.files.get(name);
+            if (current != null && current.lastModified == docFile.lastModified())
+                return;
+
+            FileEntry entry = new FileEntry();
+            entry.lastModified = docFile.lastModified();
+            entry.terms = buildPostings(text);
+            index.put(name, entry);
+            index.dirty = true;
+        } catch (Exception ex) {
+            DocLog.log(DocSearchIndex.class, DocLog.ERROR, "Search index update failed", ex);
+        }
+    }
+
+    /**
+     * Drop document from the index of pwd, when it is saved with another password.
+     * Run on background thread.
+     */
+    public synchronized void remove(File docFile, String pwd) {
+        if (m_indexDir == null || !m_indexDir.equals(docFile.getParentFile()))
+            return;
+        try {
+            Index index = unlock(pwd, false);
+            if (index == null)
+                return;
+            loadBody(index);
+            if (index.files.containsKey(docFile.getName())) {
+                index.remove(docFile.getName());
+                index.dirty = true;
+            }
+        } catch (Exception ex) {
+            DocLog.log(DocSearchIndex.class, DocLog.ERROR, "Search index remove failed", ex);
+        }
+    }
+
+    /**
+     * Find documents containing all query terms, ranked by tf-idf.
+     * Snippets are read from the matching chunk of each hit. Run on background thread.
+     *
+     * @return Hits, best first, empty if no index exists for password.
+     */
+    public synchronized List<Hit> search(String pwd, String query, int maxHits) throws IOException {
+        ArrayList<Hit> hits = new ArrayList<Hit>();
+        if (m_indexDir == null)
+            return hits;
+
+        Index index;
+        try {
+            index = unlock(pwd, false);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Search index key failed, " + ex.getMessage());
+        }
+        if (index == null)
+            return hits;
+        loadBody(index);
+
+        ArrayList<String> terms = new ArrayList<String>(buildPostings(query).keySet());
+        if (terms.isEmpty())
+            return hits;
+
+        // Rarest term first, so intersection starts small.
+        final HashMap<String, HashMap<String, Posting>> inverted = index.inverted;
+        for (String term : terms) {
+            if (!inverted.containsKey(term))
+                return hits;
+        }
+        Collections.sort(terms, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return inverted.get(lhs).size() - inverted.get(rhs).size();
+            }
+        });
+
+        int fileCount = index.files.size();
+        for (String name : inverted.get(terms.get(0)).keySet()) {
+            float score = 0;
+            int offset = Integer.MAX_VALUE;
+            for (String term : terms) {
+                HashMap<String, Posting> postings = inverted.get(term);
+                Posting posting = postings.get(name);
+                if (posting == null) {
+                    score = 0;
+                    break;
+                }
+                score += (1 + Math.log(posting.count)) * Math.log(1 + (double) fileCount / postings.size());
+                if (posting.offsets.length != 0)
+                    offset = Math.min(offset, posting.offsets[0]);
+            }
+            if (score > 0)
+                hits.add(new Hit(name, score, offset == Integer.MAX_VALUE ? 0 : offset));
+        }
+
+        Collections.sort(hits, new Comparator<Hit>() {
+            @Override
+            public int compare(Hit lhs, Hit rhs) {
+                return Float.compare(rhs.score, lhs.score);
+            }
+        });
+
+        Iterator<Hit> it = hits.iterator();
+        int count = 0;
+        while (it.hasNext()) {
+            Hit hit = it.next();
+            if (count >= maxHits) {
+                it.remove();
+                continue;
+            }
+            File docFile = new File(m_indexDir, hit.filename);
+            if (!docFile.exists() || !readSnippet(docFile, pwd, hit)) {
+                // Deleted, renamed or re-saved with another password.
+                index.remove(hit.filename);
+                index.dirty = true;
+                it.remove();
+                continue;
+            }
+            count++;
+        }
+
+        return hits;
+    }
+
+    /**
+     * Write indexes changed since the last flush. Run on background thread.
+     */
+    public synchronized void flush() {
+        for (Index index : m_indexes.values()) {
+            if (!index.dirty)
+                continue;
+            try {
+                writeIndex(index);
+                index.dirty = false;
+            } catch (Exception ex) {
+                DocLog.log(DocSearchIndex.class, DocLog.ERROR, "Search index write failed", ex);
+            }
+        }
+    }
+
+    /**
+     * End of session, write pending changes, drop loaded indexes and wipe their keys.
+     * Run on background thread.
+     */
+    public synchronized void close() {
+        flush();
+        for (Index index : m_indexes.values())
+            Arrays.fill(index.key, (byte) 0);
+        m_indexes.clear();
+        m_keyIndexes.clear();
+    }
+
+    /**
+     * Split text into lower case letter/digit terms with their character offsets.
+     */
+    static HashMap<String, Posting> buildPostings(CharSequence text) {
+        HashMap<String, Posting> terms = new HashMap<String, Posting>();
+        StringBuilder term = new StringBuilder(MAX_TERM_LEN);
+        int start = 0;
+        int len = text.length();
+        for (int pos = 0; pos <= len; pos++) {
+            char chr = (pos < len) ? text.charAt(pos) : ' ';
+            if (Character.isLetterOrDigit(chr)) {
+                if (term.length() == 0)
+                    start = pos;
+                if (term.length() < MAX_TERM_LEN)
+                    term.append(Character.toLowerCase(chr));
+            } else if (term.length() != 0) {
+                if (term.length() >= MIN_TERM_LEN) {
+                    String key = term.toString();
+                    Posting posting = terms.get(key);
+                    if (posting == null) {
+                        posting = new Posting();
+                        terms.put(key, posting);
+                    }
+                    posting.add(start);
+                }
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    private static String keyId(byte[] docKey) {
+        return CryptoUtil.bytea2hex(CryptoUtil.sha1hash(docKey));
+    }
+
+    /**
+     * Find index file whose key matches password, or create one when asked.
+     */
+    private Index unlock(String pwd, boolean create) throws IOException, GeneralSecurityException {
+        File[] indexFiles = m_indexDir.listFiles();
+        int nextNum = 0;
+        if (indexFiles != null) {
+            for (File indexFile : indexFiles) {
+                String name = indexFile.getName();
+                if (name.startsWith(INDEX_PREFIX) && name.endsWith(INDEX_EXT + SafeFile.TMP_EXT)) {
+                    // Write interrupted by a crash or kill, old index is intact.
+                    indexFile.delete();
+                    continue;
+                }
+                if (!name.startsWith(INDEX_PREFIX) || !name.endsWith(INDEX_EXT))
+                    continue;
+                try {
+                    nextNum = Math.max(nextNum, 1 + Integer.parseInt(
+                            name.substring(INDEX_PREFIX.length(), name.length() - INDEX_EXT.length())));
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+
+                Index index = m_indexes.get(indexFile.getAbsolutePath());
+                if (index != null) {
+                    if (Arrays.equals(index.key, Kdf.deriveKey(index.spec, pwd)))
+                        return index;
+                    continue;
+                }
+                index = readHeader(indexFile, pwd);
+                if (index != null) {
+                    m_indexes.put(indexFile.getAbsolutePath(), index);
+                    return index;
+                }
+            }
+        }
+
+        // Created this session and not flushed yet.
+        for (Index index : m_indexes.values()) {
+            if (index.file.exists())
+                continue;
+            String name = index.file.getName();
+            nextNum = Math.max(nextNum, 1 + Integer.parseInt(
+                    name.substring(INDEX_PREFIX.length(), name.length() - INDEX_EXT.length())));
+            if (Arrays.equals(index.key, Kdf.deriveKey(index.spec, pwd)))
+                return index;
+        }
+
+        if (!create)
+            return null;
+
+        Kdf.Spec spec = Kdf.specForPassword(pwd);
+        Index index = new Index(new File(m_indexDir, INDEX_PREFIX + nextNum + INDEX_EXT),
+                Kdf.deriveKey(spec, pwd), spec);
+        index.files = new HashMap<String, FileEntry>();
+        m_indexes.put(index.file.getAbsolutePath(), index);
+        return index;
+    }
+
+    /**
+     * Read clear text header, return null if password does not match.
+     */
+    private static Index readHeader(File indexFile, String pwd) throws IOException, GeneralSecurityException {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            byte[] sig = new byte[SIGNATURE.length];
+            din.readFully(sig);
+            if (!Arrays.equals(sig, SIGNATURE) || din.readByte() != INDEX_VERSION)
+                return null;
+            Kdf.Spec spec = Kdf.Spec.read(din);
+            byte[] keyHash = new byte[20];
+            din.readFully(keyHash);
+            byte[] iv = new byte[IV_LEN];
+            din.readFully(iv);
+
+            byte[] key = Kdf.deriveKey(spec, pwd);
+            if (!Arrays.equals(keyHash, CryptoUtil.sha1hash(CryptoUtil.concat(key, iv))))
+                return null;
+            Index index = new Index(indexFile, key, spec);
+            index.iv = iv;
+            return index;
+        } finally {
+            din.close();
+        }
+    }
+
+    private static void loadBody(Index index) throws IOException {
+        if (index.files != null)
+            return;
+
+        index.files = new HashMap<String, FileEntry>();
+        DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(index.file)));
+        try {
+            long headerLen = SIGNATURE.length + 1 + index.spec.getEncodedLength() + 20 + IV_LEN;
+            din.skipBytes((int) headerLen);
+            Cipher dcipher = Doc.getCipher(Cipher.DECRYPT_MODE, index.key, index.iv);
+            DataInputStream bin = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new CipherInputStream(din, dcipher))));
+
+            int fileCount = bin.readInt();
+            for (int fileIdx = 0; fileIdx < fileCount; fileIdx++) {
+                String name = bin.readUTF();
+                FileEntry entry = new FileEntry();
+                entry.lastModified = bin.readLong();
+                int termCount = bin.readInt();
+                entry.terms = new HashMap<String, Posting>(termCount * 4 / 3 + 1);
+                for (int termIdx = 0; termIdx < termCount; termIdx++) {
+                    String term = bin.readUTF();
+                    Posting posting = new Posting();
+                    posting.count = bin.readInt();
+                    posting.offsets = new int[bin.readUnsignedByte()];
+                    for (int offIdx = 0; offIdx < posting.offsets.length; offIdx++)
+                        posting.offsets[offIdx] = bin.readInt();
+                    entry.terms.put(term, posting);
+                }
+                index.put(name, entry);
+            }
+            CryptoPool.releaseCipher(dcipher);
+        } catch (IOException ex) {
+            // Corrupt index, start empty, it is rebuilt as documents are saved or opened.
+            DocLog.log(DocSearchIndex.class, DocLog.WARN, "Search index load failed " + index.file, ex);
+            index.files.clear();
+            index.inverted.clear();
+        } finally {
+            din.close();
+        }
+    }
+
+    /**
+     * Write index to forced temporary file then replace old index, see {@link SafeFile}.
+     */
+    private static void writeIndex(Index index) throws IOException {
+        byte[] iv = new byte[IV_LEN];
+        try {
+            CryptoPool.getRandom().nextBytes(iv);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("No random source, " + ex.getMessage());
+        }
+
+        File tmpFile = SafeFile.tempFile(index.file);
+        FileOutputStream fout = new FileOutputStream(tmpFile);
+        boolean written = false;
+        try {
+            BufferedOutputStream bout = new BufferedOutputStream(new DocStreams.UnclosedOutputStream(fout));
+            DataOutputStream hout = new DataOutputStream(bout);
+            hout.write(SIGNATURE);
+            hout.writeByte(INDEX_VERSION);
+            index.spec.write(hout);
+            hout.write(CryptoUtil.sha1hash(CryptoUtil.concat(index.key, iv)));
+            hout.write(iv);
+            hout.flush();
+
+            Cipher ecipher = Doc.getCipher(Cipher.ENCRYPT_MODE, index.key, iv);
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new CipherOutputStream(bout, ecipher))));
+            dout.writeInt(index.files.size());
+            for (Map.Entry<String, FileEntry> file : index.files.entrySet()) {
+                dout.writeUTF(file.getKey());
+                dout.writeLong(file.getValue().lastModified);
+                dout.writeInt(file.getValue().terms.size());
+                for (Map.Entry<String, Posting> term : file.getValue().terms.entrySet()) {
+                    Posting posting = term.getValue();
+                    dout.writeUTF(term.getKey());
+                    dout.writeInt(posting.count);
+                    dout.writeByte(posting.offsets.length);
+                    for (int offset : posting.offsets)
+                        dout.writeInt(offset);
+                }
+            }
+            dout.close();
+            CryptoPool.releaseCipher(ecipher);
+            SafeFile.force(fout.getChannel());
+            written = true;
+        } finally {
+            fout.close();
+            if (!written)
+                tmpFile.delete();
+        }
+
+        SafeFile.commit(tmpFile, index.file);
+        index.iv = iv;
+    }
+
+    /**
+     * Fill hit snippet, decrypting only the chunk holding the hit for chunked files.
+     *
+     * @return false if document could not be opened with password.
+     */
+    private static boolean readSnippet(File docFile, String pwd, Hit hit) {
+        String text;
+        int offset = hit.offset;
+        try {
+            DocChunks.Reader reader = null;
+            try {
+                reader = new Doc().doOpenChunks(docFile, pwd);
+                int chunkIdx = reader.findChunk(offset);
+                if (chunkIdx < 0)
+                    return true;
+                text = reader.readChunk(chunkIdx);
+                offset -= reader.getCharStart(chunkIdx);
+            } catch (Doc.DocPasswordException ex) {
+                return false;
+            } catch (Doc.DocException ex) {
+                // Single stream format, must decrypt whole document.
+                Doc doc = new Doc();
+                doc.doOpen(docFile, pwd);
+                text = doc.getText();
+            } finally {
+                if (reader != null)
+                    reader.close();
+            }
+        } catch (Exception ex) {
+            DocLog.log(DocSearchIndex.class, DocLog.WARN, "Search snippet failed " + docFile, ex);
+            return false;
+        }
+
+        int start = Math.max(0, Math.min(offset, text.length()) - SNIPPET_CHARS);
+        int end = Math.min(text.length(), offset + SNIPPET_CHARS);
+        hit.snippet = text.substring(start, end).replace('\n', ' ');
+        return true;
+    }
+}
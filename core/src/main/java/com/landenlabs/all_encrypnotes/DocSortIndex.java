@@ -0,0 +1,245 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Sortable and filterable index of the notes in one directory.
+ * <p>
+ * Keys are gathered once per directory scan into primitive arrays, from the encrypted
+ * catalog while it is unlocked, else from the header cache, else one stat of the file.
+ * Sorting and filtering then reorder an array of indices and never touch the file system.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocSortIndex {
+
+    public static final int SORT_NAME = DocCatalog.SORT_NAME;
+    public static final int SORT_MODIFIED = DocCatalog.SORT_MODIFIED;
+    public static final int SORT_SIZE = DocCatalog.SORT_SIZE;
+    public static final int SORT_TITLE = DocCatalog.SORT_TITLE;
+    public static final int SORT_VERSION = 4;
+    public static final int SORT_HINT = 5;
+
+    private static final int INSERTION_SORT_MAX = 12;
+
+    private final String[] m_names;
+    private final String[] m_nameKeys;      // Lower case keys, as are the other String keys.
+    private final long[] m_modified;
+    private final long[] m_sizes;
+    private final String[] m_versions;
+    private final String[] m_hints;
+    private final String[] m_titles;
+    private final String[] m_tags;
+
+    private int[] m_sorted;                 // All notes in sort order.
+    private int[] m_shown;                  // Notes matching filter, in sort order.
+    private int m_shownCount;
+    private int m_sortKey = SORT_NAME;
+    private boolean m_descending;
+    private String m_filter = "";
+
+    /**
+     * @param dir    Directory holding notes.
+     * @param names  Note names without extension.
+     * @param ext    Note file extension.
+     */
+    public DocSortIndex(File dir, String[] names, String ext) {
+        int count = names.length;
+        m_names = names.clone();
+        m_nameKeys = new String[count];
+        m_modified = new long[count];
+        m_sizes = new long[count];
+        m_versions = new String[count];
+        m_hints = new String[count];
+        m_titles = new String[count];
+        m_tags = new String[count];
+
+        DocCatalog catalog = DocCatalog.get();
+        boolean useCatalog = catalog.isUnlocked();
+        DocHeaderCache headers = DocHeaderCache.get();
+        for (int idx = 0; idx != count; idx++) {
+            String filename = names[idx] + ext;
+            m_nameKeys[idx] = names[idx].toLowerCase(Locale.US);
+            DocCatalog.Entry entry = useCatalog ? catalog.getEntry(filename) : null;
+            if (entry != null) {
+                setKeys(idx, entry.lastModified, entry.length, entry.version, entry.hint);
+                m_titles[idx] = entry.title.toLowerCase(Locale.US);
+                m_tags[idx] = entry.tags;
+                continue;
+            }
+            m_titles[idx] = "";
+            m_tags[idx] = "";
+            File file = new File(dir, filename);
+            DocHeaderCache.Header header = headers.peek(file);
+            if (header != null)
+                setKeys(idx, header.lastModified, header.length, header.version, header.hint);
+            else
+                setKeys(idx, file.lastModified(), file.length(), "", "");
+        }
+
+        m_sorted = new int[count];
+        for (int idx = 0; idx != count; idx++)
+            m_sorted[idx] = idx;
+        m_shown = new int[count];
+        sort(m_sortKey, m_descending);
+    }
+
+    private void setKeys(int idx, long modified, long size, String version, String hint) {
+        m_modified[idx] = modified;
+        m_sizes[idx] = size;
+        m_versions[idx] = (version == null) ? "" : version.toLowerCase(Locale.US);
+        m_hints[idx] = (hint == null) ? "" : hint.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Reorder notes, ties are kept in name order.
+     *
+     * @param sortKey  SORT_NAME, SORT_MODIFIED, SORT_SIZE, SORT_TITLE, SORT_VERSION or SORT_HINT.
+     */
+    public void sort(int sortKey, boolean descending) {
+        m_sortKey = sortKey;
+        m_descending = descending;
+        mergeSort(m_sorted, m_sorted.clone(), 0, m_sorted.length);
+        applyFilter();
+    }
+
+    /**
+     * Show only notes whose name, hint, title or tags contain the filter, case ignored.
+     *
+     * @param filter  Prefix or substring, null or empty for all.
+     */
+    public void filter(String filter) {
+        m_filter = (filter == null) ? "" : filter.trim().toLowerCase(Locale.US);
+        applyFilter();
+    }
+
+    public int getSortKey() {
+        return m_sortKey;
+    }
+
+    public boolean isDescending() {
+        return m_descending;
+    }
+
+    /**
+     * @return Number of notes matching filter.
+     */
+    public int size() {
+        return m_shownCount;
+    }
+
+    /**
+     * @return Name of note at position in filtered sort order.
+     */
+    public String getName(int pos) {
+        return m_names[m_shown[pos]];
+    }
+
+    private void applyFilter() {
+        int count = 0;
+        for (int idx : m_sorted) {
+            if (m_filter.length() == 0 || matches(idx, m_filter))
+                m_shown[count++] = idx;
+        }
+        m_shownCount = count;
+    }
+
+    private boolean matches(int idx, String filter) {
+        return m_nameKeys[idx].contains(filter) || m_hints[idx].contains(filter)
+                || m_titles[idx].contains(filter) || m_tags[idx].contains(filter);
+    }
+
+    private int compare(int lhs, int rhs) {
+        int diff;
+        switch (m_sortKey) {
+        case SORT_MODIFIED:
+            diff = compareLong(m_modified[lhs], m_modified[rhs]);
+            break;
+        case SORT_SIZE:
+            diff = compareLong(m_sizes[lhs], m_sizes[rhs]);
+            break;
+        case SORT_TITLE:
+            diff = m_titles[lhs].compareTo(m_titles[rhs]);
+            break;
+        case SORT_VERSION:
+            diff = m_versions[lhs].compareTo(m_versions[rhs]);
+            break;
+        case SORT_HINT:
+            diff = m_hints[lhs].compareTo(m_hints[rhs]);
+            break;
+        default:
+            diff = 0;
+            break;
+        }
+        if (m_descending)
+            diff = -diff;
+        if (diff == 0) {
+            diff = m_nameKeys[lhs].compareTo(m_nameKeys[rhs]);
+            if (m_sortKey == SORT_NAME && m_descending)
+                diff = -diff;
+        }
+        return diff;
+    }
+
+    private static int compareLong(long lhs, long rhs) {
+        return (lhs < rhs) ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    /**
+     * Sort dst[beg..end) by {@link #compare}, src holds the same values on entry.
+     */
+    private void mergeSort(int[] dst, int[] src, int beg, int end) {
+        if (end - beg <= INSERTION_SORT_MAX) {
+            for (int i = beg + 1; i < end; i++) {
+                int val = dst[i];
+                int j = i;
+                while (j > beg && compare(dst[j - 1], val) > 0) {
+                    dst[j] = dst[j - 1];
+                    j--;
+                }
+                dst[j] = val;
+            }
+            return;
+        }
+
+        int mid = (beg + end) >>> 1;
+        mergeSort(src, dst, beg, mid);
+        mergeSort(src, dst, mid, end);
+        if (compare(src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, beg, dst, beg, end - beg);
+            return;
+        }
+        for (int out = beg, lo = beg, hi = mid; out < end; out++) {
+            if (hi >= end || (lo < mid && compare(src[lo], src[hi]) <= 0))
+                dst[out] = src[lo++];
+            else
+                dst[out] = src[hi++];
+        }
+    }
+}
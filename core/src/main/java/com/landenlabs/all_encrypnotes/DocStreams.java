@@ -0,0 +1,355 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Fixed buffer helpers used to encode and decode document text without building a
+ * full copy of the plaintext as a String or byte array.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+class DocStreams {
+
+    static final int BUFFER_SIZE = 8192;
+    static final int SLICE_SIZE = 256 * 1024;     // Mapped bytes passed to Cipher.update at once.
+
+    /**
+     * @return UTF-8 length of text[beg, end), same as String.getBytes("UTF-8").length.
+     */
+    static long utf8Length(CharSequence text, int beg, int end) {
+        char[] cbuf = new char[BUFFER_SIZE];
+        long len = 0;
+        while (beg < end) {
+            int count = getChars(text, beg, end, cbuf);
+            for (int idx = 0; idx < count; idx++) {
+                char c = cbuf[idx];
+                if (c < 0x80) {
+                    len++;
+                } else if (c < 0x800) {
+                    len += 2;
+                } else if (Character.isHighSurrogate(c) && idx + 1 < count
+                        && Character.isLowSurrogate(cbuf[idx + 1])) {
+                    len += 4;
+                    idx++;
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    len++;      // Unpaired surrogate is encoded as '?'
+                } else {
+                    len += 3;
+                }
+            }
+            beg += count;
+        }
+        return len;
+    }
+
+    /**
+     * Encode text[beg, end) as UTF-8 through a fixed buffer, unpaired surrogates are
+     * written as '?' like String.getBytes.
+     *
+     * @return Bytes written.
+     */
+    static long writeUtf8(CharSequence text, int beg, int end, OutputStream out) throws IOException {
+        char[] cbuf = new char[BUFFER_SIZE];
+        byte[] buf = new byte[BUFFER_SIZE];
+        int pos = 0;
+        long total = 0;
+        while (beg < end) {
+            int count = getChars(text, beg, end, cbuf);
+            for (int idx = 0; idx < count; idx++) {
+                if (pos > buf.length - 4) {
+                    out.write(buf, 0, pos);
+                    total += pos;
+                    pos = 0;
+                }
+                char c = cbuf[idx];
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xc0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && idx + 1 < count
+                        && Character.isLowSurrogate(cbuf[idx + 1])) {
+                    int cp = Character.toCodePoint(c, cbuf[++idx]);
+                    buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    buf[pos++] = '?';
+                } else {
+                    buf[pos++] = (byte) (0xe0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            beg += count;
+        }
+        out.write(buf, 0, pos);
+        return total + pos;
+    }
+
+    /**
+     * Copy up to cbuf.length characters of text[beg, end) to cbuf, one less if the last
+     * is a high surrogate, so a pair is never split. Strings and piece tables are copied in bulk.
+     *
+     * @return Characters copied.
+     */
+    private static int getChars(CharSequence text, int beg, int end, char[] cbuf) {
+        int count = Math.min(end - beg, cbuf.length);
+        if (count < end - beg && Character.isHighSurrogate(text.charAt(beg + count - 1)))
+            count--;
+        if (text instanceof String) {
+            ((String) text).getChars(beg, beg + count, cbuf, 0);
+        } else if (text instanceof PieceTable) {
+            ((PieceTable) text).getChars(beg, beg + count, cbuf, 0);
+        } else if (text instanceof StringBuilder) {
+            ((StringBuilder) text).getChars(beg, beg + count, cbuf, 0);
+        } else {
+            for (int idx = 0; idx < count; idx++)
+                cbuf[idx] = text.charAt(beg + idx);
+        }
+        return count;
+    }
+
+    /**
+     * Stream limited to the next len bytes of its source.
+     */
+    static class BoundedInputStream extends FilterInputStream {
+        private long m_remaining;
+
+        BoundedInputStream(InputStream in, long len) {
+            super(in);
+            m_remaining = len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (m_remaining <= 0)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                m_remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (m_remaining <= 0)
+                return -1;
+            int nread = in.read(b, off, (int) Math.min(len, m_remaining));
+            if (nread > 0)
+                m_remaining -= nread;
+            return nread;
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            long skipped = in.skip(Math.min(len, m_remaining));
+            m_remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), m_remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Stream whose close only flushes, so a file written through wrapping streams can be
+     * forced before it is closed.
+     */
+    static class UnclosedOutputStream extends FilterOutputStream {
+        UnclosedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Stream over a byte buffer, such as a mapped file. Reads copy directly from the
+     * buffer without system calls. Source buffer position is not changed.
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer m_buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            m_buf = buf.duplicate();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return m_buf.hasRemaining() ? (m_buf.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!m_buf.hasRemaining())
+                return (len == 0) ? 0 : -1;
+            int count = Math.min(len, m_buf.remaining());
+            m_buf.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            int count = (int) Math.max(0, Math.min(len, m_buf.remaining()));
+            m_buf.position(m_buf.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return m_buf.remaining();
+        }
+    }
+
+    /**
+     * Decrypting stream over a byte buffer, such as a mapped file. Ciphertext is passed to
+     * Cipher.update(ByteBuffer, ByteBuffer) in {@link #SLICE_SIZE} slices, replacing the
+     * small reads and copies made by CipherInputStream over a buffered file stream.
+     */
+    static class CipherBufferInputStream extends InputStream {
+        private final ByteBuffer m_in;
+        private final Cipher m_cipher;
+        private final ByteBuffer m_out;
+        private boolean m_done = false;
+
+        CipherBufferInputStream(ByteBuffer in, Cipher cipher) {
+            m_in = in.duplicate();
+            m_cipher = cipher;
+            m_out = ByteBuffer.allocate(cipher.getOutputSize(SLICE_SIZE) + cipher.getBlockSize());
+            m_out.flip();
+        }
+
+        /**
+         * @return false at end of stream.
+         */
+        private boolean fill() throws IOException {
+            while (!m_out.hasRemaining()) {
+                if (m_done)
+                    return false;
+                m_out.clear();
+                try {
+                    if (m_in.hasRemaining()) {
+                        ByteBuffer slice = m_in.duplicate();
+                        slice.limit(slice.position() + Math.min(SLICE_SIZE, slice.remaining()));
+                        m_in.position(slice.limit());
+                        m_cipher.update(slice, m_out);
+                    } else {
+                        m_cipher.doFinal(m_in, m_out);
+                        m_done = true;
+                    }
+                } catch (GeneralSecurityException ex) {
+                    throw new IOException("Decrypt failed " + ex.getMessage());
+                }
+                m_out.flip();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? (m_out.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int count = Math.min(len, m_out.remaining());
+            m_out.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return m_out.remaining();
+        }
+    }
+
+    /**
+     * Text reader over a version 4 document which decrypts one chunk at a time.
+     */
+    static class ChunkTextReader extends Reader {
+        private final DocChunks.Reader m_chunks;
+        private int m_chunkIdx = 0;
+        private String m_chunk = "";
+        private int m_chunkPos = 0;
+
+        ChunkTextReader(DocChunks.Reader chunks) {
+            m_chunks = chunks;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (m_chunkPos == m_chunk.length()) {
+                if (m_chunkIdx == m_chunks.getChunkCount())
+                    return -1;
+                m_chunk = m_chunks.readChunk(m_chunkIdx++);
+                m_chunkPos = 0;
+            }
+            int count = Math.min(len, m_chunk.length() - m_chunkPos);
+            m_chunk.getChars(m_chunkPos, m_chunkPos + count, cbuf, off);
+            m_chunkPos += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_chunk = "";
+            m_chunks.close();
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Password to key derivation (KDF).
+ * <p>
+ * The algorithm id, salt and cost parameters are saved in the file header (format 4+)
+ * as a {@link Spec}. Derived keys are kept in a session cache keyed by spec and an HMAC of
+ * the password under a random per-session secret, so an expensive KDF runs once per password
+ * and salt. Clearing the cache wipes the secret, so ids left on the heap can not be matched
+ * to a password. Keys created for saving reuse the session salt of the same password, so
+ * files written in one session and later opened together only derive the key once.
+ * <p>
+ * Specs read from a file are bounded, so a damaged or crafted header can not hang the
+ * derivation or exhaust memory.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class Kdf {
+
+    public static final byte KDF_SHA1 = 0;      // Legacy, key = SHA1(pwd), no salt.
+    public static final byte KDF_PBKDF2 = 1;    // PBKDF2WithHmacSHA1, cost = iterations
+    public static final byte KDF_SCRYPT = 2;    // scrypt, cost = N, blockSize = r, parallel = p
+
+    static final int KEY_LEN = 20;
+    static final int SALT_LEN = 16;
+    static final int CACHE_MAX_ENTRIES = 32;
+    static final int PBKDF2_MAX_COST = 10000000;
+    static final int SCRYPT_MAX_COST = 1 << 20;
+    static final int SCRYPT_MAX_PARALLEL = 16;
+    static final int SCRYPT_MAX_INTS = 1 << 25;     // 128 MB working memory.
+
+    /**
+     * KDF parameters stored in file header.
+     */
+    public static class Spec implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final byte algId;
+        public final byte[] salt;
+        public final int cost;
+        public final int blockSize;
+        public final int parallel;
+
+        public Spec(byte algId, byte[] salt, int cost, int blockSize, int parallel) {
+            this.algId = algId;
+            this.salt = salt;
+            this.cost = cost;
+            this.blockSize = blockSize;
+            this.parallel = parallel;
+        }
+
+        /**
+         * @return New spec with same algorithm and cost but a fresh random salt.
+         */
+        public Spec withNewSalt() {
+            if (algId == KDF_SHA1)
+                return this;
+            byte[] newSalt = new byte[SALT_LEN];
+            try {
+                CryptoPool.getRandom().nextBytes(newSalt);
+            } catch (NoSuchAlgorithmException ex) {
+                s_random.nextBytes(newSalt);
+            }
+            return new Spec(algId, newSalt, cost, blockSize, parallel);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(algId);
+            out.writeByte(salt.length);
+            out.write(salt);
+            out.writeInt(cost);
+            out.writeInt(blockSize);
+            out.writeInt(parallel);
+        }
+
+        /**
+         * Read spec from untrusted file header.
+         *
+         * @throws IOException if parameters are outside the supported bounds.
+         */
+        static Spec read(DataInputStream in) throws IOException {
+            byte algId = in.readByte();
+            byte[] salt = new byte[in.readUnsignedByte()];
+            in.readFully(salt);
+            Spec spec = new Spec(algId, salt, in.readInt(), in.readInt(), in.readInt());
+            if (!spec.isBounded())
+                throw new IOException("Bad key derivation spec");
+            return spec;
+        }
+
+        /**
+         * @return true if deriving a key takes bounded time and memory.
+         */
+        boolean isBounded() {
+            switch (algId) {
+            case KDF_PBKDF2:
+                return salt.length != 0 && cost >= 1 && cost <= PBKDF2_MAX_COST;
+            case KDF_SCRYPT:
+                return cost >= 2 && cost <= SCRYPT_MAX_COST && (cost & (cost - 1)) == 0
+                        && blockSize >= 1 && parallel >= 1 && parallel <= SCRYPT_MAX_PARALLEL
+                        && 32L * blockSize * cost <= SCRYPT_MAX_INTS;
+            default:
+                return true;
+            }
+        }
+
+        /**
+         * @return Bytes used by {@link #write}.
+         */
+        int getEncodedLength() {
+            return 1 + 1 + salt.length + 4 + 4 + 4;
+        }
+
+        String cacheId() {
+            return algId + ":" + cost + ":" + blockSize + ":" + parallel + ":" + CryptoUtil.bytea2hex(salt);
+        }
+    }
+
+    /**
+     * Pluggable derivation algorithm.
+     */
+    public interface Algorithm {
+        byte[] derive(String pwd, Spec spec) throws GeneralSecurityException;
+    }
+
+    /**
+     * Legacy key used by format 2 and 3 files.
+     */
+    public static final Spec LEGACY = new Spec(KDF_SHA1, new byte[0], 0, 0, 0);
+
+    private static final HashMap<Byte, Algorithm> s_algorithms = new HashMap<Byte, Algorithm>();
+    private static Spec s_defaultSpec = new Spec(KDF_PBKDF2, new byte[0], 20000, 0, 0);
+
+    // Session cache, access ordered so oldest entries are evicted first.
+    private static final LinkedHashMap<String, byte[]> s_keyCache =
+            new LinkedHashMap<String, byte[]>(CACHE_MAX_ENTRIES, 0.75f, true);
+    private static final HashMap<String, Spec> s_sessionSpecs = new HashMap<String, Spec>();
+    private static final SecureRandom s_random = new SecureRandom();
+    private static byte[] s_idSecret = newIdSecret();
+
+    static {
+        register(KDF_SHA1, new Algorithm() {
+            @Override
+            public byte[] derive(String pwd, Spec spec) {
+                return CryptoUtil.sha1hash(pwd);
+            }
+        });
+        register(KDF_PBKDF2, new Algorithm() {
+            @Override
+            public byte[] derive(String pwd, Spec spec) throws GeneralSecurityException {
+                SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+                PBEKeySpec keySpec = new PBEKeySpec(pwd.toCharArray(), spec.salt, spec.cost, KEY_LEN * 8);
+                try {
+                    return factory.generateSecret(keySpec).getEncoded();
+                } finally {
+                    keySpec.clearPassword();
+                }
+            }
+        });
+        register(KDF_SCRYPT, new Algorithm() {
+            @Override
+            public byte[] derive(String pwd, Spec spec) throws GeneralSecurityException {
+                return scrypt(pwd.getBytes(Charset.forName("UTF-8")), spec.salt, spec.cost, spec.blockSize, spec.parallel, KEY_LEN);
+            }
+        });
+    }
+
+    /**
+     * Add or replace a derivation algorithm.
+     */
+    public static synchronized void register(byte algId, Algorithm algorithm) {
+        s_algorithms.put(algId, algorithm);
+    }
+
+    /**
+     * Set algorithm and cost used for new keys, salt in spec is ignored.
+     */
+    public static synchronized void setDefault(Spec spec) {
+        s_defaultSpec = spec;
+        s_sessionSpecs.clear();
+    }
+
+    /**
+     * Spec for a new key. Reuses the salt already used this session with the same password,
+     * so repeated saves do not derive again.
+     */
+    public static Spec specForPassword(String pwd) {
+        synchronized (Kdf.class) {
+            String pwdId = passwordId(pwd);
+            Spec spec = s_sessionSpecs.get(pwdId);
+            if (spec == null) {
+                spec = s_defaultSpec.withNewSalt();
+                s_sessionSpecs.put(pwdId, spec);
+            }
+            return spec;
+        }
+    }
+
+    /**
+     * Derive key, using session cache.
+     */
+    public static byte[] deriveKey(Spec spec, String pwd) throws GeneralSecurityException {
+        String cacheId;
+        Algorithm algorithm;
+        synchronized (Kdf.class) {
+            cacheId = spec.cacheId() + ":" + passwordId(pwd);
+            byte[] key = s_keyCache.get(cacheId);
+            if (key != null)
+                return key.clone();
+            algorithm = s_algorithms.get(spec.algId);
+        }
+
+        if (algorithm == null)
+            throw new GeneralSecurityException("Unknown key derivation " + spec.algId);
+
+        long startNanos = DocMetrics.start();
+        byte[] key = algorithm.derive(pwd, spec);
+        DocMetrics.stop(DocMetrics.KEY_DERIVE, startNanos, 0);
+        DocLog.log(Kdf.class, DocLog.DEBUG, "Derived key alg=" + spec.algId + " in "
+                + (System.nanoTime() - startNanos) / 1000000 + "ms", null);
+
+        synchronized (Kdf.class) {
+            if (!cacheId.endsWith(passwordId(pwd)))
+                return key;     // Cache cleared while deriving.
+            s_keyCache.put(cacheId, key.clone());
+            if (s_keyCache.size() > CACHE_MAX_ENTRIES) {
+                Iterator<Map.Entry<String, byte[]>> it = s_keyCache.entrySet().iterator();
+                Arrays.fill(it.next().getValue(), (byte) 0);
+                it.remove();
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Wipe and drop all cached keys, end of session.
+     */
+    public static synchronized void clearCache() {
+        for (byte[] key : s_keyCache.values())
+            Arrays.fill(key, (byte) 0);
+        s_keyCache.clear();
+        s_sessionSpecs.clear();
+        Arrays.fill(s_idSecret, (byte) 0);
+        s_idSecret = newIdSecret();
+    }
+
+    private static byte[] newIdSecret() {
+        byte[] secret = new byte[32];
+        s_random.nextBytes(secret);
+        return secret;
+    }
+
+    /**
+     * Cache id of password, HMAC-SHA256 under the session secret. Caller holds Kdf lock.
+     */
+    private static String passwordId(String pwd) {
+        byte[] pwdBytes = pwd.getBytes(Charset.forName("UTF-8"));
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(s_idSecret, "HmacSHA256"));
+            return CryptoUtil.bytea2hex(mac.doFinal(pwdBytes));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("HmacSHA256 unavailable", ex);
+        } finally {
+            Arrays.fill(pwdBytes, (byte) 0);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // scrypt (RFC 7914)
+
+    static byte[] scrypt(byte[] pwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
+        if (N < 2 || (N & (N - 1)) != 0)
+            throw new GeneralSecurityException("scrypt N must be power of 2");
+        if (r < 1 || p < 1 || (long) r * p >= (1 << 30))
+            throw new GeneralSecurityException("scrypt invalid r or p");
+        if (32L * r * N > Integer.MAX_VALUE)
+            throw new GeneralSecurityException("scrypt N * r too large");
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        // HMAC pads key with zeros, so zero block is same as an empty key which SecretKeySpec rejects.
+        mac.init(new SecretKeySpec(pwd.length == 0 ? new byte[64] : pwd, "HmacSHA256"));
+
+        int blockLen = 128 * r;
+        byte[] B = pbkdf2(mac, salt, 1, p * blockLen);
+        int[] XY = new int[64 * r];
+        int[] V = new int[32 * r * N];
+        for (int idx = 0; idx < p; idx++)
+            smix(B, idx * blockLen, r, N, V, XY);
+
+        return pbkdf2(mac, B, 1, dkLen);
+    }
+
+    private static byte[] pbkdf2(Mac mac, byte[] salt, int iterations, int dkLen) {
+        int hLen = mac.getMacLength();
+        byte[] dk = new byte[dkLen];
+        byte[] block = new byte[salt.length + 4];
+        System.arraycopy(salt, 0, block, 0, salt.length);
+
+        int blocks = (dkLen + hLen - 1) / hLen;
+        for (int blk = 1; blk <= blocks; blk++) {
+            block[salt.length] = (byte) (blk >>> 24);
+            block[salt.length + 1] = (byte) (blk >>> 16);
+            block[salt.length + 2] = (byte) (blk >>> 8);
+            block[salt.length + 3] = (byte) blk;
+            byte[] u = mac.doFinal(block);
+            byte[] t = u.clone();
+            for (int iter = 1; iter < iterations; iter++) {
+                u = mac.doFinal(u);
+                for (int idx = 0; idx < t.length; idx++)
+                    t[idx] ^= u[idx];
+            }
+            int off = (blk - 1) * hLen;
+            System.arraycopy(t, 0, dk, off, Math.min(hLen, dkLen - off));
+        }
+        return dk;
+    }
+
+    private static void smix(byte[] B, int off, int r, int N, int[] V, int[] XY) {
+        int words = 32 * r;
+        int[] X = XY;
+        for (int idx = 0; idx < words; idx++) {
+            int pos = off + idx * 4;
+            X[idx] = (B[pos] & 0xff) | (B[pos + 1] & 0xff) << 8 | (B[pos + 2] & 0xff) << 16 | (B[pos + 3] & 0xff) << 24;
+        }
+
+        int[] Y = new int[words];
+        for (int idx = 0; idx < N; idx++) {
+            System.arraycopy(X, 0, V, idx * words, words);
+            blockMix(X, Y, r);
+        }
+        for (int idx = 0; idx < N; idx++) {
+            int j = X[(2 * r - 1) * 16] & (N - 1);
+            for (int k = 0; k < words; k++)
+                X[k] ^= V[j * words + k];
+            blockMix(X, Y, r);
+        }
+
+        for (int idx = 0; idx < words; idx++) {
+            int pos = off + idx * 4;
+            B[pos] = (byte) X[idx];
+            B[pos + 1] = (byte) (X[idx] >>> 8);
+            B[pos + 2] = (byte) (X[idx] >>> 16);
+            B[pos + 3] = (byte) (X[idx] >>> 24);
+        }
+    }
+
+    private static void blockMix(int[] B, int[] Y, int r) {
+        int[] X = new int[16];
+        System.arraycopy(B, (2 * r - 1) * 16, X, 0, 16);
+        for (int idx = 0; idx < 2 * r; idx++) {
+            for (int k = 0; k < 16; k++)
+                X[k] ^= B[idx * 16 + k];
+            salsa208(X);
+            // Even blocks to first half, odd blocks to second half.
+            System.arraycopy(X, 0, Y, ((idx & 1) * r + (idx >> 1)) * 16, 16);
+        }
+        System.arraycopy(Y, 0, B, 0, 32 * r);
+    }
+
+    private static void salsa208(int[] B) {
+        int x0 = B[0], x1 = B[1], x2 = B[2], x3 = B[3], x4 = B[4], x5 = B[5], x6 = B[6], x7 = B[7];
+        int x8 = B[8], x9 = B[9], x10 = B[10], x11 = B[11], x12 = B[12], x13 = B[13], x14 = B[14], x15 = B[15];
+        for (int idx = 0; idx < 8; idx += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);   x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);  x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);    x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);  x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);  x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);  x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);  x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);  x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);    x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);   x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);    x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);   x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);  x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);  x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        B[0] += x0; B[1] += x1; B[2] += x2; B[3] += x3; B[4] += x4; B[5] += x5; B[6] += x6; B[7] += x7;
+        B[8] += x8; B[9] += x9; B[10] += x10; B[11] += x11; B[12] += x12; B[13] += x13; B[14] += x14; B[15] += x15;
+    }
+}
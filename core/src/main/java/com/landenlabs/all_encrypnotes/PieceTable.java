@@ -0,0 +1,355 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+/**
+ * Editable text held as pieces of an unchanged original string and append only
+ * add blocks, so edits of a large document copy only the inserted characters.
+ * <p>
+ * Pieces are kept in a persistent (path copying) treap ordered by text offset, each
+ * node holds its subtree length. Inserts and deletes split and merge the tree in
+ * O(log n) and never modify a node, so {@link #snapshot()} is O(1) and a snapshot
+ * stays valid while this table is edited. Add blocks are only appended to, characters
+ * seen by a snapshot are never rewritten.
+ * <p>
+ * A table and each of its snapshots may be used by different threads, but a single
+ * instance is not thread safe. Publish a snapshot to another thread through a queue
+ * or executor.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class PieceTable implements CharSequence {
+
+    static final int ADD_BLOCK_CHARS = 16 * 1024;
+
+    /**
+     * Immutable tree node, a run of characters of the original (str) or an add block (chars).
+     */
+    private static final class Node {
+        final Node left;
+        final Node right;
+        final int prio;
+        final String str;
+        final char[] chars;
+        final int start;
+        final int len;
+        final int total;    // Characters in this subtree.
+
+        Node(Node left, Node right, int prio, String str, char[] chars, int start, int len) {
+            this.left = left;
+            this.right = right;
+            this.prio = prio;
+            this.str = str;
+            this.chars = chars;
+            this.start = start;
+            this.len = len;
+            this.total = size(left) + len + size(right);
+        }
+
+        Node with(Node newLeft, Node newRight) {
+            return new Node(newLeft, newRight, prio, str, chars, start, len);
+        }
+
+        Node piece(int newStart, int newLen, Node newLeft, Node newRight) {
+            return new Node(newLeft, newRight, prio, str, chars, newStart, newLen);
+        }
+
+        char charAt(int off) {
+            return (str != null) ? str.charAt(start + off) : chars[start + off];
+        }
+
+        void getChars(int beg, int end, char[] dst, int dstBeg) {
+            if (str != null)
+                str.getChars(start + beg, start + end, dst, dstBeg);
+            else
+                System.arraycopy(chars, start + beg, dst, dstBeg, end - beg);
+        }
+    }
+
+    private Node m_root;
+    private final boolean m_readOnly;
+
+    // Add block being filled, shared with snapshots which only read below m_addUsed.
+    private char[] m_addBlock;
+    private int m_addUsed;
+    private int m_seed;
+
+    // Last node found by charAt and the text offset of its piece.
+    private Node m_lastNode;
+    private int m_lastPos;
+
+    public PieceTable(String original) {
+        this(null, false);
+        if (original.length() != 0)
+            m_root = new Node(null, null, nextPrio(), original, null, 0, original.length());
+    }
+
+    private PieceTable(Node root, boolean readOnly) {
+        m_root = root;
+        m_readOnly = readOnly;
+        m_seed = (int) System.nanoTime() | 1;
+    }
+
+    /**
+     * @return Read only copy of the current text, later edits of this table do not change it.
+     */
+    public PieceTable snapshot() {
+        return m_readOnly ? this : new PieceTable(m_root, true);
+    }
+
+    /**
+     * @return Editable table starting from the current text, sharing its pieces.
+     */
+    public PieceTable editableCopy() {
+        return new PieceTable(m_root, false);
+    }
+
+    public boolean isReadOnly() {
+        return m_readOnly;
+    }
+
+    @Override
+    public int length() {
+        return size(m_root);
+    }
+
+    @Override
+    public char charAt(int index) {
+        Node node = m_lastNode;
+        int off = index - m_lastPos;
+        if (node == null || off < 0 || off >= node.len) {
+            if (index < 0 || index >= length())
+                throw new IndexOutOfBoundsException("index " + index + " length " + length());
+            node = m_root;
+            int pos = 0;
+            for (;;) {
+                int leftLen = size(node.left);
+                if (index < pos + leftLen) {
+                    node = node.left;
+                } else if (index >= pos + leftLen + node.len) {
+                    pos += leftLen + node.len;
+                    node = node.right;
+                } else {
+                    pos += leftLen;
+                    break;
+                }
+            }
+            m_lastNode = node;
+            m_lastPos = pos;
+            off = index - pos;
+        }
+        return node.charAt(off);
+    }
+
+    /**
+     * @return Read only view of text[start, end), shares pieces with this table.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        checkRange(start, end);
+        Node[] tail = split(m_root, start);
+        return new PieceTable(split(tail[1], end - start)[0], true);
+    }
+
+    /**
+     * @return Copy of text[beg, end).
+     */
+    public String substring(int beg, int end) {
+        checkRange(beg, end);
+        char[] buf = new char[end - beg];
+        getChars(beg, end, buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Copy text[beg, end) to dst starting at dstBeg, like String.getChars.
+     */
+    public void getChars(int beg, int end, char[] dst, int dstBeg) {
+        checkRange(beg, end);
+        getChars(m_root, 0, beg, end, dst, dstBeg);
+    }
+
+    /**
+     * Replace text[beg, end) with text.
+     */
+    public void replace(int beg, int end, CharSequence text) {
+        if (m_readOnly)
+            throw new UnsupportedOperationException("Read only snapshot");
+        checkRange(beg, end);
+        int insLen = text.length();
+        if (beg == end && insLen == 0)
+            return;
+
+        Node[] head = split(m_root, beg);
+        Node tail = split(head[1], end - beg)[1];
+        Node left = head[0];
+        if (insLen != 0) {
+            Node last = rightmost(left);
+            if (last != null && last.chars == m_addBlock && last.start + last.len == m_addUsed
+                    && insLen <= m_addBlock.length - m_addUsed) {
+                // Typing at the end of the last insert extends its piece.
+                appendAdd(text);
+                left = extendRightmost(left, insLen);
+            } else {
+                if (m_addBlock == null || insLen > m_addBlock.length - m_addUsed) {
+                    m_addBlock = new char[Math.max(ADD_BLOCK_CHARS, insLen)];
+                    m_addUsed = 0;
+                }
+                Node piece = new Node(null, null, nextPrio(), null, m_addBlock, m_addUsed, insLen);
+                appendAdd(text);
+                left = merge(left, piece);
+            }
+        }
+        m_root = merge(left, tail);
+        m_lastNode = null;
+    }
+
+    /**
+     * @return Start of line holding pos, no earlier than pos - maxBack.
+     */
+    public int lineStart(int pos, int maxBack) {
+        int limit = Math.max(0, pos - maxBack);
+        for (int idx = pos - 1; idx >= Math.max(0, limit - 1); idx--) {
+            if (charAt(idx) == '\n')
+                return idx + 1;
+        }
+        return (limit == 0) ? 0 : pos;
+    }
+
+    @Override
+    public String toString() {
+        Node root = m_root;
+        if (root == null)
+            return "";
+        // Unedited text is the original string.
+        if (root.str != null && root.start == 0 && root.len == root.str.length() && root.total == root.len)
+            return root.str;
+        return substring(0, root.total);
+    }
+
+    private void appendAdd(CharSequence text) {
+        int len = text.length();
+        if (text instanceof String)
+            ((String) text).getChars(0, len, m_addBlock, m_addUsed);
+        else if (text instanceof PieceTable)
+            ((PieceTable) text).getChars(0, len, m_addBlock, m_addUsed);
+        else {
+            for (int idx = 0; idx < len; idx++)
+                m_addBlock[m_addUsed + idx] = text.charAt(idx);
+        }
+        m_addUsed += len;
+    }
+
+    /**
+     * Random heap priority, xorshift keeps the treap balanced without a shared Random.
+     */
+    private int nextPrio() {
+        int x = m_seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        m_seed = x;
+        return x;
+    }
+
+    private static int size(Node node) {
+        return (node == null) ? 0 : node.total;
+    }
+
+    private static void getChars(Node node, int pos, int beg, int end, char[] dst, int dstBeg) {
+        while (node != null && beg < end) {
+            int leftLen = size(node.left);
+            int piecePos = pos + leftLen;
+            if (beg < piecePos)
+                getChars(node.left, pos, beg, Math.min(end, piecePos), dst, dstBeg);
+            int from = Math.max(beg, piecePos);
+            int to = Math.min(end, piecePos + node.len);
+            if (from < to)
+                node.getChars(from - piecePos, to - piecePos, dst, dstBeg + from - beg);
+            if (end <= piecePos + node.len)
+                return;
+            // Continue right without recursion.
+            dstBeg += Math.max(piecePos + node.len, beg) - beg;
+            beg = Math.max(piecePos + node.len, beg);
+            pos = piecePos + node.len;
+            node = node.right;
+        }
+    }
+
+    /**
+     * @return {first pos characters, rest} of tree.
+     */
+    private static Node[] split(Node node, int pos) {
+        if (node == null)
+            return new Node[] { null, null };
+        int leftLen = size(node.left);
+        if (pos <= leftLen) {
+            if (pos == 0 && node.left == null)
+                return new Node[] { null, node };
+            Node[] parts = split(node.left, pos);
+            return new Node[] { parts[0], node.with(parts[1], node.right) };
+        }
+        int off = pos - leftLen;
+        if (off >= node.len) {
+            if (off == node.len && node.right == null)
+                return new Node[] { node, null };
+            Node[] parts = split(node.right, off - node.len);
+            return new Node[] { node.with(node.left, parts[0]), parts[1] };
+        }
+        // Split inside the piece, both halves keep the node priority.
+        return new Node[] {
+                node.piece(node.start, off, node.left, null),
+                node.piece(node.start + off, node.len - off, null, node.right) };
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null)
+            return right;
+        if (right == null)
+            return left;
+        if (left.prio > right.prio)
+            return left.with(left.left, merge(left.right, right));
+        return right.with(merge(left, right.left), right.right);
+    }
+
+    private static Node rightmost(Node node) {
+        if (node == null)
+            return null;
+        while (node.right != null)
+            node = node.right;
+        return node;
+    }
+
+    private static Node extendRightmost(Node node, int more) {
+        if (node.right == null)
+            return node.piece(node.start, node.len + more, node.left, null);
+        return node.with(node.left, extendRightmost(node.right, more));
+    }
+
+    private void checkRange(int beg, int end) {
+        if (beg < 0 || end < beg || end > length())
+            throw new IndexOutOfBoundsException("range " + beg + "," + end + " length " + length());
+    }
+}
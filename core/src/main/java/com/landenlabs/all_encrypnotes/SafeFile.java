@@ -0,0 +1,288 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Crash safe document writes.
+ * <p>
+ * A full save writes {@code name.tmp}, forces it to disk and renames it over the
+ * document, so a crash leaves either the old or the new copy. An incremental save
+ * appends chunks past the end of the live data (invisible to the old table), forces
+ * them, then records the new front region (header, metadata, table) in
+ * {@code name.journal} before overwriting it in place. {@link #recover} replays a
+ * complete journal and removes orphaned temp files.
+ * <p>
+ * Time spent in {@link FileChannel#force} is measured so autosave frequency can be
+ * tuned against the cost of a sync on the device.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class SafeFile {
+
+    public static final String TMP_EXT = ".tmp";
+    public static final String JOURNAL_EXT = ".journal";
+
+    private static final int JOURNAL_MAGIC = 0x00ffed1a;
+
+    // java.nio.file is missing before Android 8, where File.renameTo replaces the target.
+    private static final boolean s_hasNioFiles = hasClass("java.nio.file.Files");
+
+    private static final Object s_statsLock = new Object();
+    private static int s_syncCount;
+    private static long s_syncTotalNanos;
+    private static long s_syncMaxNanos;
+    private static long s_syncLastNanos;
+
+    public static File tempFile(File target) {
+        return new File(target.getPath() + TMP_EXT);
+    }
+
+    public static File journalFile(File target) {
+        return new File(target.getPath() + JOURNAL_EXT);
+    }
+
+    /**
+     * Force channel content (and size) to storage, recording time spent.
+     */
+    public static void force(FileChannel channel) throws IOException {
+        long startNanos = System.nanoTime();
+        channel.force(true);
+        long nanos = System.nanoTime() - startNanos;
+        DocMetrics.add(DocMetrics.FSYNC, nanos, 0);
+        synchronized (s_statsLock) {
+            s_syncCount++;
+            s_syncTotalNanos += nanos;
+            s_syncLastNanos = nanos;
+            s_syncMaxNanos = Math.max(s_syncMaxNanos, nanos);
+        }
+    }
+
+    /**
+     * Atomically replace target with forced temp file.
+     * <p>
+     * Uses {@link Files#move} where available, File.renameTo does not replace an existing
+     * target on Windows. Directory entry is not synced, java.io has no portable way to open
+     * a directory.
+     */
+    public static void commit(File tmpFile, File target) throws IOException {
+        if (s_hasNioFiles) {
+            try {
+                NioMove.replace(tmpFile, target);
+            } catch (IOException ex) {
+                tmpFile.delete();
+                throw new IOException("Unable to rename " + tmpFile.getName() + " to " + target.getName()
+                        + ", " + ex.getMessage());
+            }
+        } else if (!tmpFile.renameTo(target)) {
+            tmpFile.delete();
+            throw new IOException("Unable to rename " + tmpFile.getName() + " to " + target.getName());
+        }
+    }
+
+    private static boolean hasClass(String className) {
+        try {
+            Class.forName(className);
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Only loaded where java.nio.file exists.
+     */
+    private static class NioMove {
+        static void replace(File tmpFile, File target) throws IOException {
+            try {
+                Files.move(tmpFile.toPath(), target.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Durably record bytes which are about to overwrite the start of target.
+     */
+    public static void writeJournal(File target, byte[] front) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(front);
+        FileOutputStream fout = new FileOutputStream(journalFile(target));
+        try {
+            DataOutputStream dout = new DataOutputStream(fout);
+            dout.writeInt(JOURNAL_MAGIC);
+            dout.writeInt(front.length);
+            dout.write(front);
+            dout.writeLong(crc.getValue());
+            dout.flush();
+            force(fout.getChannel());
+        } finally {
+            fout.close();
+        }
+    }
+
+    public static void deleteJournal(File target) {
+        journalFile(target).delete();
+    }
+
+    /**
+     * Finish or discard an interrupted save of target. A complete journal is written
+     * over the start of the document, a partial journal means the document was not
+     * touched yet. Leftover temp file is an unfinished full save and is removed.
+     *
+     * @return true if anything was recovered or removed.
+     */
+    public static boolean recover(File target) throws IOException {
+        boolean found = false;
+        File journal = journalFile(target);
+        if (journal.exists()) {
+            found = true;
+            byte[] front = readJournal(journal);
+            if (front != null && target.exists()) {
+                RandomAccessFile raf = new RandomAccessFile(target, "rw");
+                try {
+                    DocChunks.writeFully(raf.getChannel(), ByteBuffer.wrap(front), 0);
+                    force(raf.getChannel());
+                } finally {
+                    raf.close();
+                }
+                DocLog.log(SafeFile.class, DocLog.WARN, "Replayed journal " + journal, null);
+            }
+            journal.delete();
+        }
+
+        File tmpFile = tempFile(target);
+        if (tmpFile.exists()) {
+            found = true;
+            tmpFile.delete();
+            DocLog.log(SafeFile.class, DocLog.WARN, "Removed unfinished save " + tmpFile, null);
+        }
+        return found;
+    }
+
+    /**
+     * Recover every document in dir with interrupted saves, run once at startup.
+     *
+     * @param docExt Document extension, ex ".etxt".
+     * @return Number of documents recovered or cleaned up.
+     */
+    public static int recover(File dir, final String docExt) {
+        File[] leftovers = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(docExt + TMP_EXT) || name.endsWith(docExt + JOURNAL_EXT);
+            }
+        });
+        if (leftovers == null)
+            return 0;
+
+        int count = 0;
+        for (File leftover : leftovers) {
+            String path = leftover.getPath();
+            String ext = path.endsWith(TMP_EXT) ? TMP_EXT : JOURNAL_EXT;
+            try {
+                if (recover(new File(path.substring(0, path.length() - ext.length()))))
+                    count++;
+            } catch (IOException ex) {
+                DocLog.log(SafeFile.class, DocLog.ERROR, "Recovery failed " + path, ex);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Journal payload or null if journal is incomplete.
+     */
+    private static byte[] readJournal(File journal) throws IOException {
+        DataInputStream din = new DataInputStream(new FileInputStream(journal));
+        try {
+            if (journal.length() < 16 || din.readInt() != JOURNAL_MAGIC)
+                return null;
+            int len = din.readInt();
+            if (len < 0 || len != journal.length() - 16)
+                return null;
+            byte[] front = new byte[len];
+            din.readFully(front);
+            CRC32 crc = new CRC32();
+            crc.update(front);
+            return (crc.getValue() == din.readLong()) ? front : null;
+        } finally {
+            din.close();
+        }
+    }
+
+    public static int getSyncCount() {
+        synchronized (s_statsLock) {
+            return s_syncCount;
+        }
+    }
+
+    /**
+     * @return Average time of a sync in microseconds, 0 if none yet.
+     */
+    public static long getSyncAvgMicros() {
+        synchronized (s_statsLock) {
+            return (s_syncCount == 0) ? 0 : s_syncTotalNanos / s_syncCount / 1000;
+        }
+    }
+
+    public static long getSyncMaxMicros() {
+        synchronized (s_statsLock) {
+            return s_syncMaxNanos / 1000;
+        }
+    }
+
+    public static long getSyncLastMicros() {
+        synchronized (s_statsLock) {
+            return s_syncLastNanos / 1000;
+        }
+    }
+
+    /**
+     * @return One line summary, ex "12 syncs, avg 4.2 ms, max 18.0 ms".
+     */
+    public static String getSyncSummary() {
+        synchronized (s_statsLock) {
+            return String.format("%d syncs, avg %.1f ms, max %.1f ms", s_syncCount,
+                    getSyncAvgMicros() / 1000.0, s_syncMaxNanos / 1e6);
+        }
+    }
+}
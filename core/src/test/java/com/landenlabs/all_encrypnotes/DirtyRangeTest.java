@@ -0,0 +1,116 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dirty range must cover every change made to the text.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DirtyRangeTest {
+
+    private final Random m_random = new Random(2);
+
+    private void randomEdit(StringBuilder text, DirtyRange dirty) {
+        int start = m_random.nextInt(text.length() + 1);
+        int before = Math.min(m_random.nextInt(10), text.length() - start);
+        int count = m_random.nextInt(10);
+        if (m_random.nextInt(8) == 0)
+            start = text.length();
+        before = Math.min(before, text.length() - start);
+        text.replace(start, start + before, "abcdefghij".substring(0, count));
+        dirty.onTextChanged(start, before, count);
+    }
+
+    /**
+     * Text outside the range must equal the saved text.
+     */
+    private static void assertCovers(String saved, String text, DirtyRange dirty) {
+        int start = dirty.getStart();
+        int suffix = dirty.getSuffix();
+        assertEquals(saved.length(), dirty.getBaseLength());
+        assertEquals(text.length(), dirty.getLength());
+        assertTrue(dirty.toString(), start + suffix <= Math.min(saved.length(), text.length()));
+        assertEquals(dirty.toString(), saved.substring(0, start), text.substring(0, start));
+        assertEquals(dirty.toString(), saved.substring(saved.length() - suffix),
+                text.substring(text.length() - suffix));
+        assertEquals(text.length() - start - suffix, dirty.getChangedLength());
+    }
+
+    @Test
+    public void rangeCoversEdits() {
+        for (int round = 0; round < 500; round++) {
+            String saved = DocFormatTest.makeText(m_random.nextInt(20));
+            StringBuilder text = new StringBuilder(saved);
+            DirtyRange dirty = new DirtyRange(saved.length());
+            assertFalse(dirty.isDirty());
+            for (int op = 1 + m_random.nextInt(10); op > 0; op--)
+                randomEdit(text, dirty);
+            assertCovers(saved, text.toString(), dirty);
+        }
+    }
+
+    @Test
+    public void mergeCoversBothRanges() {
+        for (int round = 0; round < 500; round++) {
+            String saved = DocFormatTest.makeText(m_random.nextInt(20));
+            StringBuilder text = new StringBuilder(saved);
+            DirtyRange older = new DirtyRange(saved.length());
+            for (int op = 1 + m_random.nextInt(5); op > 0; op--)
+                randomEdit(text, older);
+
+            DirtyRange newer = new DirtyRange(text.length());
+            for (int op = 1 + m_random.nextInt(5); op > 0; op--)
+                randomEdit(text, newer);
+
+            DirtyRange copy = new DirtyRange(older);
+            older.merge(newer);
+            assertCovers(saved, text.toString(), older);
+            assertEquals(saved.length(), copy.getBaseLength());
+        }
+    }
+
+    @Test
+    public void resetClears() {
+        DirtyRange dirty = new DirtyRange(100);
+        dirty.onTextChanged(10, 5, 0);
+        assertTrue(dirty.isDirty());
+        assertEquals(10, dirty.getStart());
+        assertEquals(85, dirty.getSuffix());
+        dirty.reset(95);
+        assertFalse(dirty.isDirty());
+        assertEquals(95, dirty.getStart());
+        assertEquals(95, dirty.getBaseLength());
+    }
+}
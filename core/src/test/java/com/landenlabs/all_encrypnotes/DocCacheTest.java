@@ -0,0 +1,107 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Sealed document cache, reopen with the right password and misses otherwise.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocCacheTest {
+
+    private static final String TEXT = "First line\nsecond line\n";
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private final DocCache m_cache = DocCache.get();
+
+    @After
+    public void tearDown() {
+        m_cache.clear();
+        m_cache.setSuspended(false);
+        m_cache.setMaxBytes(DocCache.DEFAULT_MAX_BYTES);
+    }
+
+    private File putNote(String name) throws Exception {
+        File file = new File(m_folder.getRoot(), name);
+        new Doc(TEXT, DocFormatTest.newMetadata("pw", Doc.VERSION_FORMAT)).doSave(file, "hint");
+        Doc doc = new Doc();
+        doc.doOpen(file, "pw");
+        m_cache.put(file, doc);
+        return file;
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        File file = putNote("a.etxt");
+        assertEquals(1, m_cache.size());
+
+        Doc doc = m_cache.get(file, "pw");
+        assertNotNull(doc);
+        assertEquals(TEXT, doc.getText());
+        assertEquals("hint", doc.getHint());
+        assertNull(m_cache.get(file, "wrong"));
+    }
+
+    @Test
+    public void staleEntryDropped() throws Exception {
+        File file = putNote("a.etxt");
+        file.setLastModified(file.lastModified() - 10000);
+        assertNull(m_cache.get(file, "pw"));
+        assertEquals(0, m_cache.size());
+    }
+
+    @Test
+    public void clearForgetsSessionKey() throws Exception {
+        File file = putNote("a.etxt");
+        m_cache.clear();
+        assertNull(m_cache.get(file, "pw"));
+
+        m_cache.setSuspended(true);
+        putNote("a.etxt");
+        assertEquals(0, m_cache.size());
+    }
+
+    @Test
+    public void boundedBySize() throws Exception {
+        putNote("a.etxt");
+        putNote("b.etxt");
+        assertEquals(2, m_cache.size());
+        m_cache.setMaxBytes(0);
+        assertEquals(0, m_cache.size());
+    }
+}
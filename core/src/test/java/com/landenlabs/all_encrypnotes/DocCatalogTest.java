@@ -0,0 +1,143 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Catalog write and unlock, with the right, wrong and a new password and after damage.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocCatalogTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private final DocCatalog m_catalog = DocCatalog.get();
+
+    @After
+    public void tearDown() {
+        m_catalog.setFile(null);
+    }
+
+    private File saveNote(String name, String text) throws Exception {
+        File file = new File(m_folder.getRoot(), name);
+        Doc doc = new Doc(text, DocFormatTest.newMetadata("pw", Doc.VERSION_FORMAT));
+        doc.doSave(file, "hint");
+        return file;
+    }
+
+    private File writeCatalog() throws Exception {
+        File catalogFile = new File(m_folder.getRoot(), "catalog");
+        m_catalog.setFile(catalogFile);
+        assertTrue(m_catalog.unlock("session"));
+        File note = saveNote("a.etxt", "First line\nbody #Tag1 #tag2\n");
+        Doc doc = new Doc();
+        doc.doOpen(note, "pw");
+        m_catalog.update(note, doc);
+        m_catalog.flush();
+        m_catalog.lock();
+        assertTrue(catalogFile.exists());
+        return catalogFile;
+    }
+
+    @Test
+    public void writeAndUnlock() throws Exception {
+        File catalogFile = writeCatalog();
+        assertNull(m_catalog.getEntry("a.etxt"));
+
+        m_catalog.setFile(catalogFile);
+        assertTrue(m_catalog.unlock("session"));
+        DocCatalog.Entry entry = m_catalog.getEntry("a.etxt");
+        assertNotNull(entry);
+        assertEquals("First line", entry.title);
+        assertEquals("tag1 tag2", entry.tags);
+        assertEquals(new File(m_folder.getRoot(), "a.etxt").length(), entry.length);
+        assertEquals(1, m_catalog.query("tag2", DocCatalog.SORT_NAME, false, 0, 10).size());
+    }
+
+    @Test
+    public void wrongPasswordKeepsCatalog() throws Exception {
+        File catalogFile = writeCatalog();
+        long length = catalogFile.length();
+
+        m_catalog.setFile(catalogFile);
+        assertFalse(m_catalog.unlock("wrong"));
+        assertFalse(m_catalog.isUnlocked());
+        assertEquals(length, catalogFile.length());
+
+        assertTrue(m_catalog.unlock("session"));
+        assertNotNull(m_catalog.getEntry("a.etxt"));
+    }
+
+    @Test
+    public void rekeyOpensWithNewPassword() throws Exception {
+        File catalogFile = writeCatalog();
+        m_catalog.setFile(catalogFile);
+        assertTrue(m_catalog.unlock("session"));
+        m_catalog.rekey("session2");
+        m_catalog.lock();
+
+        assertFalse(m_catalog.unlock("session"));
+        assertTrue(m_catalog.unlock("session2"));
+        assertNotNull(m_catalog.getEntry("a.etxt"));
+    }
+
+    @Test
+    public void damagedCatalogRecreated() throws Exception {
+        File catalogFile = writeCatalog();
+        RandomAccessFile raf = new RandomAccessFile(catalogFile, "rw");
+        raf.setLength(3);
+        raf.close();
+
+        m_catalog.setFile(catalogFile);
+        assertTrue(m_catalog.unlock("session"));
+        assertEquals(0, m_catalog.size());
+        assertFalse(catalogFile.exists());
+
+        File note = saveNote("b.etxt", "Second\n");
+        Doc doc = new Doc();
+        doc.doOpen(note, "pw");
+        m_catalog.update(note, doc);
+        m_catalog.flush();
+        m_catalog.lock();
+        assertTrue(m_catalog.unlock("session"));
+        assertEquals("Second", m_catalog.getEntry("b.etxt").title);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Save and open round trip of every document format, through file, stream and channel.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocFormatTest {
+
+    private static final byte[] FORMATS = {2, 3, Doc.VERSION_FORMAT_CHUNKED, Doc.VERSION_FORMAT_GCM,
+            Doc.VERSION_FORMAT_CODEC};
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    /**
+     * Multi byte UTF-8 text without surrogate pairs, so random edits keep it valid.
+     */
+    static String makeText(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int line = 0; line < lines; line++)
+            sb.append("line ").append(line).append(" h\u00e9llo w\u00f6rld\n");
+        return sb.toString();
+    }
+
+    static Doc.DocMetadata newMetadata(String pwd, byte verFormat) throws Doc.DocException {
+        Doc.DocMetadata docMeta = new Doc.DocMetadata();
+        if (verFormat <= Doc.VERSION_FORMAT_LEGACY)
+            docMeta.setKey(pwd, Kdf.LEGACY);
+        else
+            docMeta.setKey(pwd);
+        docMeta.filename = "test.etxt";
+        return docMeta;
+    }
+
+    @Test
+    public void fileRoundTrip() throws Exception {
+        String text = makeText(20000) + "\ud83d\ude00 surrogate pair\n";
+        for (byte verFormat : FORMATS) {
+            File file = new File(m_folder.getRoot(), "doc" + verFormat + ".etxt");
+            // Longer stale content must be truncated by the save.
+            FileOutputStream fout = new FileOutputStream(file);
+            fout.write(new byte[2 << 20]);
+            fout.close();
+
+            new Doc(text, newMetadata("pw", verFormat)).doSave(file, "hint", verFormat);
+
+            Doc header = new Doc();
+            header.doOpen(file, null);
+            assertEquals("hint", header.getHint());
+
+            Doc doc = new Doc();
+            doc.doOpen(file, "pw");
+            assertEquals("format " + verFormat, text, doc.getText());
+            assertEquals(file.getAbsolutePath(), doc.getDocMetadata().filename);
+
+            FileInputStream in = new FileInputStream(file);
+            doc = new Doc();
+            doc.doOpen(in, "pw");
+            in.close();
+            assertEquals("stream format " + verFormat, text, doc.getText());
+        }
+    }
+
+    @Test
+    public void streamAndChannelRoundTrip() throws Exception {
+        String text = makeText(5000) + "\ud83d\ude00 surrogate pair\n";
+        for (byte verFormat : FORMATS) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            new Doc(text, newMetadata("pw", verFormat)).doSave(bout, "hint", verFormat);
+
+            Doc doc = new Doc();
+            doc.doOpen(new ByteArrayInputStream(bout.toByteArray()), "pw");
+            assertEquals("stream format " + verFormat, text, doc.getText());
+
+            File file = new File(m_folder.getRoot(), "chan" + verFormat + ".etxt");
+            FileOutputStream fout = new FileOutputStream(file);
+            fout.write(bout.toByteArray());
+            fout.close();
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                doc = new Doc();
+                doc.doOpen(raf.getChannel(), "pw");
+                assertEquals("channel format " + verFormat, text, doc.getText());
+                assertTrue(raf.getChannel().isOpen());
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    @Test
+    public void emptyAndCodecRoundTrip() throws Exception {
+        DocCodec[] codecs = {DocCodec.GZIP, DocCodec.STORE, DocCodec.deflate(1), DocCodec.FAST,
+                DocCodec.FAST.adaptive()};
+        File file = new File(m_folder.getRoot(), "codec.etxt");
+        for (String text : new String[]{"", "x", makeText(3000)}) {
+            for (DocCodec codec : codecs) {
+                Doc saved = new Doc(text, newMetadata("pw", Doc.VERSION_FORMAT));
+                saved.setCodec(codec);
+                saved.doSave(file, "hint");
+                Doc doc = new Doc();
+                doc.doOpen(file, "pw");
+                assertEquals(codec + " length " + text.length(), text, doc.getText());
+            }
+        }
+    }
+
+    @Test
+    public void appendCodecKeepsLevel() throws Exception {
+        DocCodec fileCodec = DocCodec.forId(DocCodec.CODEC_DEFLATE);
+        Doc doc = new Doc("text", newMetadata("pw", Doc.VERSION_FORMAT));
+        doc.setCodec(DocCodec.deflate(Deflater.BEST_SPEED).adaptive());
+        DocCodec codec = doc.appendCodec(fileCodec);
+        assertEquals(DocCodec.CODEC_DEFLATE, codec.codecId);
+        assertEquals(Deflater.BEST_SPEED, codec.level);
+        assertFalse(codec.adaptive);
+
+        // Different codec, file keeps its own.
+        assertSame(DocCodec.GZIP, doc.appendCodec(DocCodec.GZIP));
+        doc.setCodec(null);
+        assertSame(fileCodec, doc.appendCodec(fileCodec));
+    }
+
+    @Test
+    public void wrongPasswordRejected() throws Exception {
+        for (byte verFormat : FORMATS) {
+            File file = new File(m_folder.getRoot(), "pwd" + verFormat + ".etxt");
+            new Doc("secret", newMetadata("pw", verFormat)).doSave(file, "hint", verFormat);
+            try {
+                new Doc().doOpen(file, "bad");
+                fail("format " + verFormat + " opened with wrong password");
+            } catch (Doc.DocPasswordException ex) {
+                // Expected.
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Revision deltas and reconstruction of earlier revisions from saved documents.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocHistoryTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private final Random m_random = new Random(3);
+
+    /**
+     * Apply a few random replacements, recorded in dirty if not null.
+     */
+    private String edit(String text, DirtyRange dirty) {
+        int edits = 1 + m_random.nextInt(4);
+        for (int idx = 0; idx < edits; idx++) {
+            int start = m_random.nextInt(text.length() + 1);
+            int before = Math.min(m_random.nextInt(40), text.length() - start);
+            String insert = "ed" + m_random.nextInt(1000);
+            text = text.substring(0, start) + insert + text.substring(start + before);
+            if (dirty != null)
+                dirty.onTextChanged(start, before, insert.length());
+        }
+        return text;
+    }
+
+    /**
+     * Age last save history entry so the next save starts a new edit session.
+     */
+    private static void newSession(Doc.DocMetadata docMeta) {
+        List<Doc.SaveMetadata> history = docMeta.saveHistory;
+        if (!history.isEmpty())
+            history.get(history.size() - 1).timestamp -= (Doc.HISTORY_SAME_EDIT_MINUTES + 5) * 60 * 1000L;
+    }
+
+    private static void verify(File file, String pwd, List<String> revisions, String text) throws Exception {
+        DocChunks.Reader reader = new Doc().doOpenChunks(file, pwd);
+        try {
+            assertEquals(text, reader.readAll());
+            assertEquals(revisions.size(), reader.getRevisions().size());
+            for (int idx = 0; idx < revisions.size(); idx++)
+                assertEquals("revision " + idx, revisions.get(idx), reader.readRevision(idx));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void deltaRoundTrip() throws Exception {
+        for (int round = 0; round < 300; round++) {
+            StringBuilder sb = new StringBuilder();
+            int len = m_random.nextInt(5000);
+            for (int idx = 0; idx < len; idx++)
+                sb.append((char) ('a' + m_random.nextInt(round % 3 == 0 ? 2 : 26)));
+            String base = sb.toString();
+            String target = base;
+            for (int idx = m_random.nextInt(5); idx > 0; idx--)
+                target = edit(target, null);
+            if (round % 10 == 0)
+                target = "";
+            if (round % 13 == 0)
+                target = base + base;
+            assertEquals("round " + round, target, DocHistory.applyDelta(base, DocHistory.encodeDelta(base, target)));
+        }
+    }
+
+    @Test
+    public void revisionsReconstructed() throws Exception {
+        for (byte verFormat : new byte[]{Doc.VERSION_FORMAT_CHUNKED, Doc.VERSION_FORMAT_GCM, Doc.VERSION_FORMAT}) {
+            String text = DocFormatTest.makeText(5000);
+            Doc.DocMetadata docMeta = DocFormatTest.newMetadata("pw", verFormat);
+            File file = new File(m_folder.getRoot(), "hist" + verFormat + ".etxt");
+            new Doc(text, docMeta).doSave(file, "hint", verFormat);
+
+            List<String> revisions = new ArrayList<String>();
+            String saved = text;
+            for (int session = 0; session < DocHistory.HISTORY_MAX_REVISIONS + 3; session++) {
+                newSession(docMeta);
+                DirtyRange dirty = new DirtyRange(text.length());
+                text = edit(text, dirty);
+                Doc doc = new Doc(text, docMeta);
+                if (verFormat == Doc.VERSION_FORMAT)
+                    assertFalse("new session saved incrementally", doc.doSave(file, "hint", dirty));
+                else
+                    doc.doSave(file, "hint", verFormat);
+                revisions.add(saved);
+                while (revisions.size() > DocHistory.HISTORY_MAX_REVISIONS)
+                    revisions.remove(0);
+
+                // Saves within the session update the latest text only.
+                for (int idx = 0; idx < 3; idx++) {
+                    dirty = new DirtyRange(text.length());
+                    text = edit(text, dirty);
+                    doc = new Doc(text, docMeta);
+                    if (verFormat == Doc.VERSION_FORMAT)
+                        doc.doSave(file, "hint", dirty);
+                    else
+                        doc.doSave(file, "hint", verFormat);
+                }
+                saved = text;
+                verify(file, "pw", revisions, text);
+            }
+
+            // Key change keeps history when the previous key is known.
+            Doc.DocMetadata newMeta = new Doc.DocMetadata();
+            docMeta.copyTo(newMeta);
+            newMeta.setKey("pw2");
+            Doc doc = new Doc(text, newMeta);
+            doc.setPreviousKey(docMeta.key);
+            doc.doSave(file, "hint", verFormat);
+            verify(file, "pw2", revisions, text);
+
+            // Otherwise old revisions can not be read and are dropped.
+            Doc.DocMetadata otherMeta = new Doc.DocMetadata();
+            docMeta.copyTo(otherMeta);
+            otherMeta.setKey("pw3");
+            new Doc(text, otherMeta).doSave(file, "hint", verFormat);
+            verify(file, "pw3", new ArrayList<String>(), text);
+        }
+    }
+}
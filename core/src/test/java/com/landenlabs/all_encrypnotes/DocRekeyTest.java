@@ -0,0 +1,161 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Password rotation of a directory, complete and resumed after an interruption.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocRekeyTest {
+
+    private static final String OLD_PWD = "old";
+    private static final String NEW_PWD = "new";
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private File saveNote(String name, String text) throws Exception {
+        File file = new File(m_folder.getRoot(), name);
+        new Doc(text, DocFormatTest.newMetadata(OLD_PWD, Doc.VERSION_FORMAT)).doSave(file, "hint");
+        return file;
+    }
+
+    private File[] saveNotes(int count) throws Exception {
+        File[] files = new File[count];
+        for (int idx = 0; idx < count; idx++)
+            files[idx] = saveNote("n" + idx + DocRekey.DOC_EXT, "Note " + idx + "\n");
+        return files;
+    }
+
+    private static Doc open(File file, String pwd) throws Exception {
+        Doc doc = new Doc();
+        doc.doOpen(file, pwd);
+        return doc;
+    }
+
+    private static void assertRekeyed(File file, int idx) throws Exception {
+        try {
+            open(file, OLD_PWD);
+            fail("Old password opened " + file);
+        } catch (Doc.DocPasswordException expected) {
+            // Rekeyed.
+        }
+        assertEquals("Note " + idx + "\n", open(file, NEW_PWD).getText());
+    }
+
+    @Test
+    public void rekeyFile() throws Exception {
+        File file = saveNote("a" + DocRekey.DOC_EXT, "Note 0\n");
+        DocRekey rekey = new DocRekey(OLD_PWD, NEW_PWD);
+        rekey.run(m_folder.getRoot());
+        assertRekeyed(file, 0);
+
+        // Already rekeyed, opened with the new password instead.
+        assertEquals(DocRekey.STATUS_SKIPPED, rekey.rekeyFile(file));
+        assertRekeyed(file, 0);
+    }
+
+    @Test
+    public void rekeyDirectory() throws Exception {
+        File[] files = saveNotes(3);
+        DocRekey.Result result = new DocRekey(OLD_PWD, NEW_PWD).run(m_folder.getRoot());
+        assertEquals(3, result.total);
+        assertEquals(3, result.rekeyed);
+        assertEquals(0, result.failed);
+        assertFalse(result.canceled);
+        assertFalse(new File(m_folder.getRoot(), DocRekey.STATE_FILE).exists());
+        for (int idx = 0; idx < files.length; idx++)
+            assertRekeyed(files[idx], idx);
+    }
+
+    @Test
+    public void interruptedRunResumes() throws Exception {
+        File[] files = saveNotes(4);
+        final DocRekey first = new DocRekey(OLD_PWD, NEW_PWD).setThreads(1);
+        first.setListener(new DocRekey.Listener() {
+            @Override
+            public void onProgress(int done, int total, File file, int status, Exception error) {
+                if (done == 2)
+                    first.cancel();
+            }
+        });
+        DocRekey.Result result = first.run(m_folder.getRoot());
+        assertTrue(result.canceled);
+        assertEquals(2, result.rekeyed);
+        File stateFile = new File(m_folder.getRoot(), DocRekey.STATE_FILE);
+        assertTrue(stateFile.exists());
+        String firstSalt = CryptoUtil.bytea2hex(open(files[0], NEW_PWD).getDocMetadata().kdf.salt);
+
+        // Finished file changed since, its state id no longer matches.
+        files[1].delete();
+        saveNote(files[1].getName(), "Note 1\n");
+
+        result = new DocRekey(OLD_PWD, NEW_PWD).run(m_folder.getRoot());
+        assertFalse(result.canceled);
+        assertEquals(1, result.skipped);
+        assertEquals(3, result.rekeyed);
+        assertEquals(0, result.failed);
+        assertFalse(stateFile.exists());
+        for (int idx = 0; idx < files.length; idx++) {
+            assertRekeyed(files[idx], idx);
+            // Resumed run keeps the key derivation of the interrupted one.
+            assertEquals(firstSalt, CryptoUtil.bytea2hex(open(files[idx], NEW_PWD).getDocMetadata().kdf.salt));
+        }
+    }
+
+    @Test
+    public void otherRotationStateDiscarded() throws Exception {
+        File[] files = saveNotes(2);
+        final DocRekey first = new DocRekey(OLD_PWD, "other").setThreads(1);
+        first.setListener(new DocRekey.Listener() {
+            @Override
+            public void onProgress(int done, int total, File file, int status, Exception error) {
+                first.cancel();
+            }
+        });
+        first.run(m_folder.getRoot());
+        files[0].delete();
+        saveNote(files[0].getName(), "Note 0\n");
+
+        DocRekey.Result result = new DocRekey(OLD_PWD, NEW_PWD).run(m_folder.getRoot());
+        assertEquals(2, result.rekeyed);
+        assertEquals(0, result.skipped);
+        assertFalse(new File(m_folder.getRoot(), DocRekey.STATE_FILE).exists());
+        for (int idx = 0; idx < files.length; idx++)
+            assertRekeyed(files[idx], idx);
+    }
+}
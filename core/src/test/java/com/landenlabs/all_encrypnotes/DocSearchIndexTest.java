@@ -0,0 +1,121 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Search index updates are held in memory until flush, then read back from disk.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocSearchIndexTest {
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private final DocSearchIndex m_index = DocSearchIndex.get();
+
+    @Before
+    public void setUp() {
+        m_index.setIndexDir(m_folder.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        m_index.close();
+        m_index.setIndexDir(null);
+    }
+
+    private Doc saveNote(String name, String text, String pwd) throws Exception {
+        File file = new File(m_folder.getRoot(), name);
+        new Doc(text, DocFormatTest.newMetadata(pwd, Doc.VERSION_FORMAT)).doSave(file, "hint");
+        Doc doc = new Doc();
+        doc.doOpen(file, pwd);
+        m_index.attach(doc.getDocMetadata().key, pwd);
+        m_index.update(file, doc.getText(), doc.getDocMetadata().key);
+        return doc;
+    }
+
+    private String[] indexFiles() {
+        String[] names = m_folder.getRoot().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(DocSearchIndex.INDEX_PREFIX);
+            }
+        });
+        return names == null ? new String[0] : names;
+    }
+
+    @Test
+    public void updateWrittenOnFlush() throws Exception {
+        saveNote("a.etxt", "alpha bravo\ncharlie\n", "pw");
+        saveNote("b.etxt", "bravo delta\n", "pw");
+        assertEquals(0, indexFiles().length);
+
+        List<DocSearchIndex.Hit> hits = m_index.search("pw", "bravo", 10);
+        assertEquals(2, hits.size());
+
+        m_index.flush();
+        assertEquals(1, indexFiles().length);
+
+        m_index.close();
+        hits = m_index.search("pw", "charlie", 10);
+        assertEquals(1, hits.size());
+        assertEquals("a.etxt", hits.get(0).filename);
+        assertEquals(0, m_index.search("wrong", "charlie", 10).size());
+    }
+
+    @Test
+    public void unwrittenIndexesKeepOwnFiles() throws Exception {
+        saveNote("a.etxt", "alpha\n", "pw");
+        saveNote("b.etxt", "bravo\n", "pw2");
+        m_index.flush();
+        assertEquals(2, indexFiles().length);
+
+        m_index.close();
+        assertEquals(1, m_index.search("pw", "alpha", 10).size());
+        assertEquals(0, m_index.search("pw", "bravo", 10).size());
+        assertEquals(1, m_index.search("pw2", "bravo", 10).size());
+    }
+
+    @Test
+    public void closeWritesPending() throws Exception {
+        saveNote("a.etxt", "alpha\n", "pw");
+        m_index.close();
+        assertEquals(1, indexFiles().length);
+        assertEquals(1, m_index.search("pw", "alpha", 10).size());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Note list order by each key, ties in name order, and filtering.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocSortIndexTest {
+
+    private static final String EXT = ".etxt";
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private String[] makeNotes(int count) throws Exception {
+        Random random = new Random(3);
+        String[] names = new String[count];
+        for (int idx = 0; idx < count; idx++) {
+            names[idx] = "Note" + random.nextInt(1000) + "_" + idx;
+            File file = new File(m_folder.getRoot(), names[idx] + EXT);
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[random.nextInt(50)]);
+            out.close();
+            file.setLastModified(1000000L * random.nextInt(20));
+        }
+        return names;
+    }
+
+    private long keyOf(String name, int sortKey) {
+        File file = new File(m_folder.getRoot(), name + EXT);
+        return (sortKey == DocSortIndex.SORT_MODIFIED) ? file.lastModified()
+                : (sortKey == DocSortIndex.SORT_SIZE) ? file.length() : 0;
+    }
+
+    @Test
+    public void sortOrder() throws Exception {
+        String[] names = makeNotes(200);
+        DocSortIndex index = new DocSortIndex(m_folder.getRoot(), names, EXT);
+        int[] sortKeys = {DocSortIndex.SORT_NAME, DocSortIndex.SORT_MODIFIED, DocSortIndex.SORT_SIZE};
+        for (int sortKey : sortKeys) {
+            for (int pass = 0; pass < 2; pass++) {
+                boolean descending = (pass == 1);
+                index.sort(sortKey, descending);
+                assertEquals(names.length, index.size());
+                for (int pos = 1; pos < index.size(); pos++) {
+                    String prev = index.getName(pos - 1);
+                    String cur = index.getName(pos);
+                    long prevKey = keyOf(prev, sortKey);
+                    long curKey = keyOf(cur, sortKey);
+                    int diff = (prevKey < curKey) ? -1 : (prevKey == curKey ? 0 : 1);
+                    if (descending)
+                        diff = -diff;
+                    if (diff == 0) {
+                        diff = prev.toLowerCase(Locale.US).compareTo(cur.toLowerCase(Locale.US));
+                        if (sortKey == DocSortIndex.SORT_NAME && descending)
+                            diff = -diff;
+                    }
+                    assertTrue(sortKey + " " + descending + " at " + pos, diff <= 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void filterKeepsOrder() throws Exception {
+        String[] names = makeNotes(100);
+        int matching = 0;
+        for (String name : names) {
+            if (name.toLowerCase(Locale.US).contains("note1"))
+                matching++;
+        }
+
+        DocSortIndex index = new DocSortIndex(m_folder.getRoot(), names, EXT);
+        index.filter(" NOTE1 ");
+        assertEquals(matching, index.size());
+        index.sort(DocSortIndex.SORT_SIZE, true);
+        assertEquals(matching, index.size());
+        for (int pos = 0; pos < index.size(); pos++)
+            assertTrue(index.getName(pos).toLowerCase(Locale.US).contains("note1"));
+        index.filter(null);
+        assertEquals(names.length, index.size());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Buffered UTF-8 encoding must match String.getBytes, including surrogate pairs split
+ * across buffers and unpaired surrogates.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class DocStreamsTest {
+
+    private static final char[] CHARS = {'a', '\n', '\u00e9', '\u07ff', '\u0800', '\u20ac', '\uffff',
+            '\ud83d', '\ude00', '\ud800', '\udfff'};
+
+    @Test
+    public void utf8MatchesGetBytes() throws Exception {
+        Random random = new Random(4);
+        for (int round = 0; round < 200; round++) {
+            StringBuilder sb = new StringBuilder();
+            int len = random.nextInt(3 * DocStreams.BUFFER_SIZE);
+            for (int idx = 0; idx < len; idx++) {
+                if (random.nextInt(4) == 0)
+                    sb.append("\ud83d\ude00");
+                else
+                    sb.append(CHARS[random.nextInt(CHARS.length)]);
+            }
+            String text = sb.toString();
+            byte[] expected = text.getBytes(Doc.ENC);
+
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            assertEquals(expected.length, DocStreams.writeUtf8(text, 0, text.length(), bout));
+            assertArrayEquals("round " + round, expected, bout.toByteArray());
+            assertEquals(expected.length, DocStreams.utf8Length(text, 0, text.length()));
+            assertEquals(expected.length, DocStreams.utf8Length(new PieceTable(text), 0, text.length()));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * scrypt test vectors from RFC 7914 section 12, spec bounds and key derivation cache.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class KdfTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static String scryptHex(String pwd, String salt, int N, int r, int p) throws GeneralSecurityException {
+        return CryptoUtil.bytea2hex(Kdf.scrypt(pwd.getBytes(UTF8), salt.getBytes(UTF8), N, r, p, 64)).toLowerCase();
+    }
+
+    @Test
+    public void scryptEmpty() throws Exception {
+        assertEquals("77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442"
+                        + "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906",
+                scryptHex("", "", 16, 1, 1));
+    }
+
+    @Test
+    public void scryptPassword() throws Exception {
+        assertEquals("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+                        + "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640",
+                scryptHex("password", "NaCl", 1024, 8, 16));
+    }
+
+    @Test
+    public void scryptPleaseLetMeIn() throws Exception {
+        assertEquals("7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"
+                        + "d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887",
+                scryptHex("pleaseletmein", "SodiumChloride", 16384, 8, 1));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void scryptRejectsCost() throws Exception {
+        scryptHex("password", "NaCl", 1000, 8, 1);
+    }
+
+    private static Kdf.Spec writeRead(Kdf.Spec spec) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        spec.write(dout);
+        dout.flush();
+        return Kdf.Spec.read(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())));
+    }
+
+    @Test
+    public void specReadBounded() throws Exception {
+        byte[] salt = new byte[Kdf.SALT_LEN];
+        Kdf.Spec[] good = {Kdf.LEGACY, new Kdf.Spec(Kdf.KDF_PBKDF2, salt, 20000, 0, 0),
+                new Kdf.Spec(Kdf.KDF_SCRYPT, salt, 16384, 8, 1), new Kdf.Spec(Kdf.KDF_SCRYPT, new byte[0], 16, 1, 1)};
+        for (Kdf.Spec spec : good)
+            assertEquals(spec.cacheId(), writeRead(spec).cacheId());
+
+        Kdf.Spec[] bad = {new Kdf.Spec(Kdf.KDF_PBKDF2, salt, Integer.MAX_VALUE, 0, 0),
+                new Kdf.Spec(Kdf.KDF_PBKDF2, salt, -1, 0, 0),
+                new Kdf.Spec(Kdf.KDF_PBKDF2, new byte[0], 20000, 0, 0),
+                new Kdf.Spec(Kdf.KDF_SCRYPT, salt, 1 << 30, 8, 1),
+                new Kdf.Spec(Kdf.KDF_SCRYPT, salt, 1000, 8, 1),
+                new Kdf.Spec(Kdf.KDF_SCRYPT, salt, 1 << 20, Integer.MAX_VALUE, 1),
+                new Kdf.Spec(Kdf.KDF_SCRYPT, salt, 1024, 8, 0),
+                new Kdf.Spec(Kdf.KDF_SCRYPT, salt, 1024, 8, 1000)};
+        for (Kdf.Spec spec : bad) {
+            try {
+                writeRead(spec);
+                fail("accepted " + spec.cacheId());
+            } catch (IOException ex) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void deriveKeyCached() throws Exception {
+        Kdf.Spec spec = Kdf.specForPassword("pw");
+        byte[] key = Kdf.deriveKey(spec, "pw");
+        assertArrayEquals(key, Kdf.deriveKey(spec, "pw"));
+        assertFalse(Arrays.equals(key, Kdf.deriveKey(spec, "other")));
+
+        Kdf.clearCache();
+        assertArrayEquals(key, Kdf.deriveKey(spec, "pw"));
+    }
+}
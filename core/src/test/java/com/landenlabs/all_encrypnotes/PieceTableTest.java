@@ -0,0 +1,123 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Random edits applied to a PieceTable and a StringBuilder must read back the same.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class PieceTableTest {
+
+    private final Random m_random = new Random(1);
+
+    private void randomEdit(PieceTable table, StringBuilder expected, int tag) {
+        int beg = m_random.nextInt(expected.length() + 1);
+        int end = (m_random.nextInt(3) == 0) ? beg : beg + m_random.nextInt(Math.min(20, expected.length() - beg) + 1);
+        String insert = (m_random.nextInt(4) == 0) ? "" : "x" + tag + (m_random.nextBoolean() ? "\n" : "");
+        table.replace(beg, end, insert);
+        expected.replace(beg, end, insert);
+    }
+
+    @Test
+    public void randomEditsMatchStringBuilder() {
+        for (int round = 0; round < 200; round++) {
+            String original = DocFormatTest.makeText(m_random.nextInt(100));
+            PieceTable table = new PieceTable(original);
+            StringBuilder expected = new StringBuilder(original);
+            for (int op = 0; op < 300; op++) {
+                randomEdit(table, expected, op);
+                assertEquals(expected.length(), table.length());
+
+                int beg = m_random.nextInt(expected.length() + 1);
+                int end = beg + m_random.nextInt(expected.length() - beg + 1);
+                assertEquals(expected.substring(beg, end), table.substring(beg, end));
+                assertEquals(expected.substring(beg, end), table.subSequence(beg, end).toString());
+                if (expected.length() != 0) {
+                    int pos = m_random.nextInt(expected.length());
+                    assertEquals(expected.charAt(pos), table.charAt(pos));
+                }
+            }
+
+            // Sequential typing appends to the last piece.
+            int pos = expected.length() / 2;
+            for (int idx = 0; idx < 50; idx++, pos += 2) {
+                table.replace(pos, pos, "ab");
+                expected.insert(pos, "ab");
+            }
+            assertEquals(expected.toString(), table.toString());
+        }
+    }
+
+    @Test
+    public void lineStart() {
+        String original = "one\ntwo\n\nthree four five\n";
+        PieceTable table = new PieceTable(original);
+        table.replace(5, 5, "\nX");
+        StringBuilder expected = new StringBuilder(original).insert(5, "\nX");
+        for (int pos = 0; pos < expected.length(); pos++) {
+            int lineStart = expected.lastIndexOf("\n", pos - 1) + 1;
+            assertEquals("pos " + pos, lineStart, table.lineStart(pos, 100));
+            int limited = table.lineStart(pos, 2);
+            assertTrue("pos " + pos, limited == lineStart || (limited == pos && pos - lineStart > 2));
+        }
+    }
+
+    @Test
+    public void snapshotUnchangedByEdits() {
+        PieceTable table = new PieceTable(DocFormatTest.makeText(500));
+        StringBuilder expected = new StringBuilder(table.toString());
+        for (int op = 0; op < 100; op++)
+            randomEdit(table, expected, op);
+
+        PieceTable snapshot = table.snapshot();
+        String snapshotText = expected.toString();
+        for (int op = 0; op < 100; op++)
+            randomEdit(table, expected, op);
+        assertEquals(snapshotText, snapshot.toString());
+        assertEquals(expected.toString(), table.toString());
+
+        assertTrue(snapshot.isReadOnly());
+        try {
+            snapshot.replace(0, 0, "x");
+            fail("snapshot is read only");
+        } catch (UnsupportedOperationException ex) {
+            // Expected.
+        }
+        PieceTable copy = snapshot.editableCopy();
+        copy.replace(0, 0, "x");
+        assertEquals("x" + snapshotText, copy.toString());
+        assertEquals(snapshotText, snapshot.toString());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright (c) 2015 Dennis Lang (LanDen Labs) landenlabs@gmail.com
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ *  associated documentation files (the "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ *  following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all copies or substantial
+ *  portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ *  LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN
+ *  NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ *  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ *  SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ *  @author Dennis Lang  (Dec-2015)
+ *  @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ *
+ */
+
+
+package com.landenlabs.all_encrypnotes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Incremental saves and recovery of saves interrupted before the journal was applied.
+ *
+ * @author Dennis Lang
+ * @see <a href="http://landenlabs.com">http://landenlabs.com</a>
+ */
+public class SafeFileTest {
+
+    private static final int FRONT_LEN = 4096;
+
+    @Rule
+    public TemporaryFolder m_folder = new TemporaryFolder();
+
+    private static String open(File file, String pwd) throws Exception {
+        Doc doc = new Doc();
+        doc.doOpen(file, pwd);
+        return doc.getText();
+    }
+
+    private static byte[] readFront(File file, int len) throws IOException {
+        byte[] front = new byte[(int) Math.min(len, file.length())];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            while (off < front.length)
+                off += in.read(front, off, front.length - off);
+        } finally {
+            in.close();
+        }
+        return front;
+    }
+
+    /**
+     * Overwrite start of file as a write torn by a crash would leave it.
+     */
+    private static void tear(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(new byte[10]);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void incrementalSave() throws Exception {
+        String text = DocFormatTest.makeText(40000);
+        Doc.DocMetadata docMeta = DocFormatTest.newMetadata("pw", Doc.VERSION_FORMAT);
+        File file = new File(m_folder.getRoot(), "inc.etxt");
+        new Doc(text, docMeta).doSave(file, "hint");
+
+        DirtyRange dirty = new DirtyRange(text.length());
+        text = text.substring(0, 1000) + "INSERT" + text.substring(1010);
+        dirty.onTextChanged(1000, 10, 6);
+        long oldLength = file.length();
+        assertTrue(new Doc(text, docMeta).doSave(file, "hint", dirty));
+        assertTrue(file.length() < oldLength * 2);
+        assertEquals(text, open(file, "pw"));
+        assertFalse(SafeFile.journalFile(file).exists());
+
+        // Hint change needs a full save.
+        dirty = new DirtyRange(text.length());
+        assertFalse(new Doc(text, docMeta).doSave(file, "hint2", dirty));
+        assertEquals(text, open(file, "pw"));
+    }
+
+    @Test
+    public void recoverReplaysJournal() throws Exception {
+        String text = DocFormatTest.makeText(40000);
+        Doc.DocMetadata docMeta = DocFormatTest.newMetadata("pw", Doc.VERSION_FORMAT);
+        File file = new File(m_folder.getRoot(), "crash.etxt");
+        new Doc(text, docMeta).doSave(file, "hint");
+
+        DirtyRange dirty = new DirtyRange(text.length());
+        text = text.substring(0, 100) + "ZZZ" + text.substring(100);
+        dirty.onTextChanged(100, 0, 3);
+        assertTrue(new Doc(text, docMeta).doSave(file, "hint", dirty));
+
+        // Crash after the journal was written, while the front was being overwritten.
+        SafeFile.writeJournal(file, readFront(file, FRONT_LEN));
+        tear(file);
+        assertEquals(1, SafeFile.recover(m_folder.getRoot(), ".etxt"));
+        assertFalse(SafeFile.journalFile(file).exists());
+        assertEquals(text, open(file, "pw"));
+    }
+
+    @Test
+    public void recoverDiscardsPartialJournal() throws Exception {
+        String text = DocFormatTest.makeText(1000);
+        Doc.DocMetadata docMeta = DocFormatTest.newMetadata("pw", Doc.VERSION_FORMAT);
+        File file = new File(m_folder.getRoot(), "partial.etxt");
+        new Doc(text, docMeta).doSave(file, "hint");
+
+        // Crash while writing the journal, document not touched yet.
+        SafeFile.writeJournal(file, new byte[FRONT_LEN]);
+        RandomAccessFile journal = new RandomAccessFile(SafeFile.journalFile(file), "rw");
+        journal.setLength(journal.length() - 5);
+        journal.close();
+        // Crash during a full save.
+        new FileOutputStream(SafeFile.tempFile(file)).close();
+
+        assertEquals(1, SafeFile.recover(m_folder.getRoot(), ".etxt"));
+        assertFalse(SafeFile.journalFile(file).exists());
+        assertFalse(SafeFile.tempFile(file).exists());
+        assertEquals(text, open(file, "pw"));
+        assertEquals(0, SafeFile.recover(m_folder.getRoot(), ".etxt"));
+    }
+
+    @Test
+    public void commitReplacesTarget() throws Exception {
+        File target = new File(m_folder.getRoot(), "target.etxt");
+        File tmpFile = SafeFile.tempFile(target);
+        FileOutputStream fout = new FileOutputStream(target);
+        fout.write(new byte[100]);
+        fout.close();
+        fout = new FileOutputStream(tmpFile);
+        fout.write(new byte[7]);
+        fout.close();
+
+        SafeFile.commit(tmpFile, target);
+        assertFalse(tmpFile.exists());
+        assertEquals(7, target.length());
+    }
+}